@@ -14,15 +14,23 @@
 package org.moqui.impl.context
 
 import groovy.transform.CompileStatic
+import org.moqui.impl.context.ContextJavaUtil.CacheSnapshotRestorer
+import org.moqui.impl.entity.EntityCache
+import org.moqui.impl.entity.EntityListImpl
+import org.moqui.impl.entity.EntityValueBase
 import org.moqui.jcache.MCache
+import org.moqui.jcache.MCacheSerializer
 import org.moqui.jcache.MCacheConfiguration
 import org.moqui.jcache.MCacheManager
 import org.moqui.impl.tools.MCacheToolFactory
 import org.moqui.jcache.MEntry
+import org.moqui.jcache.MLatencyHistogram
 import org.moqui.jcache.MStats
+import org.moqui.jcache.MWeigher
 import org.moqui.util.CollectionUtilities
 import org.moqui.util.MNode
 import org.moqui.util.ObjectUtilities
+import org.moqui.resource.ResourceReference
 
 import javax.cache.Cache
 import javax.cache.CacheManager
@@ -35,8 +43,10 @@ import javax.cache.expiry.Duration
 import javax.cache.expiry.EternalExpiryPolicy
 import javax.cache.expiry.ExpiryPolicy
 import java.sql.Timestamp
+import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.Future
 
 import org.moqui.context.CacheFacade
 import org.slf4j.Logger
@@ -54,6 +64,11 @@ public class CacheFacadeImpl implements CacheFacade {
     protected CacheManager distCacheManagerInternal = (CacheManager) null
 
     final ConcurrentMap<String, Cache> localCacheMap = new ConcurrentHashMap<>()
+    /** Restorers for cache snapshots by cache name or prefix, see registerSnapshotRestorer() */
+    protected final Map<String, CacheSnapshotRestorer> snapshotRestorers = new ConcurrentHashMap<>()
+
+    static final String SNAPSHOT_HEADER = "moqui-cache-snapshot-1"
+    static final int SNAPSHOT_RESTORE_CHUNK = 256
 
     CacheFacadeImpl(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
@@ -73,6 +88,11 @@ public class CacheFacadeImpl implements CacheFacade {
     }
 
     void destroy() {
+        try {
+            saveSnapshots()
+        } catch (Throwable t) {
+            logger.error("Error saving cache snapshots", t)
+        }
         if (localCacheManagerInternal != null) {
             for (String cacheName in localCacheManagerInternal.getCacheNames())
                 localCacheManagerInternal.destroyCache(cacheName)
@@ -163,11 +183,25 @@ public class CacheFacadeImpl implements CacheFacade {
             if (co instanceof MCache) {
                 MCache mc = co.unwrap(MCache.class)
                 MStats stats = mc.getMStats()
+                MLatencyHistogram loadHist = stats.getLoadHistogram()
+                MLatencyHistogram evictHist = stats.getEvictHistogram()
                 Long expireIdle = mc.getAccessDuration()?.durationAmount ?: 0
                 Long expireLive = mc.getCreationDuration()?.durationAmount ?: 0
                 ci.add([name:co.getName(), expireTimeIdle:expireIdle,
                         expireTimeLive:expireLive, maxElements:mc.getMaxEntries(),
-                        evictionStrategy:"LRU", size:mc.size(),
+                        evictionStrategy:mc.getEvictionPolicyName(), size:mc.size(),
+                        maxWeight:mc.getMaxWeight(), weight:mc.getWeight(),
+                        offHeapSize:mc.getOffHeapSize(), offHeapBytes:mc.getOffHeapBytes(), offHeapMaxBytes:mc.getOffHeapMaxBytes(),
+                        offHeapHitCount:stats.getOffHeapHits(), offHeapMissCount:stats.getOffHeapMisses(),
+                        offHeapPutCount:stats.getOffHeapPuts(), offHeapEvictionCount:stats.getOffHeapEvictions(),
+                        invalidationCount:stats.getInvalidationCount(), invalidationAvgMicros:stats.getAverageInvalidationMicros(),
+                        refreshAfterMillis:mc.getRefreshAfterMillis(), refreshCount:stats.getRefreshCount(),
+                        loadCount:loadHist.getCount(), loadAvgMicros:loadHist.getMeanMicros(),
+                        loadP50Micros:loadHist.getPercentileMicros(50), loadP95Micros:loadHist.getPercentileMicros(95),
+                        loadP99Micros:loadHist.getPercentileMicros(99), loadMaxMicros:loadHist.getMaxMicros(),
+                        evictRunCount:evictHist.getCount(), evictRunP50Micros:evictHist.getPercentileMicros(50),
+                        evictRunP99Micros:evictHist.getPercentileMicros(99), evictRunMaxMicros:evictHist.getMaxMicros(),
+                        hitPercentage:stats.getCacheHitPercentage(),
                         getCount:stats.getCacheGets(), putCount:stats.getCachePuts(),
                         hitCount:stats.getCacheHits(), missCountTotal:stats.getCacheMisses(),
                         evictionCount:stats.getCacheEvictions(), removeCount:stats.getCacheRemovals(),
@@ -236,6 +270,31 @@ public class CacheFacadeImpl implements CacheFacade {
                     int maxElements = Integer.parseInt(maxElementsStr)
                     mConf.setMaxEntries(maxElements)
                 }
+                String maxWeightStr = cacheNode.attribute("max-weight")
+                if (maxWeightStr && maxWeightStr != "0") {
+                    mConf.setMaxWeight(Long.parseLong(maxWeightStr))
+                    String weigherName = cacheNode.attribute("weigher")
+                    if (weigherName) {
+                        Class weigherClass = ObjectUtilities.getClass(weigherName)
+                        if (weigherClass == null) throw new IllegalArgumentException("Weigher class ${weigherName} not found for cache ${cacheName}")
+                        mConf.setWeigher((MWeigher) weigherClass.getDeclaredConstructor().newInstance())
+                    }
+                }
+                mConf.setEvictionPolicy(cacheNode.attribute("eviction-strategy"))
+                String offHeapMaxBytesStr = cacheNode.attribute("off-heap-max-bytes")
+                if (offHeapMaxBytesStr && offHeapMaxBytesStr != "0") {
+                    mConf.setOffHeapMaxBytes(Long.parseLong(offHeapMaxBytesStr))
+                    String serializerName = cacheNode.attribute("off-heap-serializer")
+                    if (serializerName) {
+                        Class serializerClass = ObjectUtilities.getClass(serializerName)
+                        if (serializerClass == null) throw new IllegalArgumentException("Off-heap serializer class ${serializerName} not found for cache ${cacheName}")
+                        mConf.setOffHeapSerializer((MCacheSerializer) serializerClass.getDeclaredConstructor().newInstance())
+                    } else if (valueType != null && (EntityValueBase.class.isAssignableFrom(valueType) || EntityListImpl.class.isAssignableFrom(valueType))) {
+                        mConf.setOffHeapSerializer(new EntityCache.OffHeapSerializer())
+                    }
+                }
+                String refreshAfterStr = cacheNode.attribute("refresh-after")
+                if (refreshAfterStr && refreshAfterStr != "0") mConf.setRefreshAfter(Long.parseLong(refreshAfterStr) * 1000L)
 
                 config = (Configuration) mConf
             /* TODO: somehow support external cache configuration like Hazelcast, through some sort of Moqui interface, maybe pass cacheNode to Cache factory?
@@ -296,6 +355,211 @@ public class CacheFacadeImpl implements CacheFacade {
         return newCache
     }
 
+    /** Register a restorer for snapshot entries of caches with the name or name prefix (ending with a dot). Required for
+     * caches with snapshot=keys to rebuild values, optional for other snapshots where the default is to put the entry. */
+    void registerSnapshotRestorer(String cacheNameOrPrefix, CacheSnapshotRestorer restorer) {
+        snapshotRestorers.put(cacheNameOrPrefix, restorer)
+    }
+    protected CacheSnapshotRestorer getSnapshotRestorer(String cacheName) {
+        CacheSnapshotRestorer restorer = snapshotRestorers.get(cacheName)
+        if (restorer != null) return restorer
+        for (Map.Entry<String, CacheSnapshotRestorer> entry in snapshotRestorers.entrySet())
+            if (entry.getKey().endsWith(".") && cacheName.startsWith(entry.getKey())) return entry.getValue()
+        return null
+    }
+
+    File getSnapshotDirectory() {
+        String snapshotLocation = ecfi.getConfXmlRoot().first("cache-list").attribute("snapshot-location")
+        return new File(snapshotLocation ?: ecfi.getRuntimePath() + "/cache-snapshot")
+    }
+    static String getSnapshotFileName(String cacheName) { return cacheName.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot" }
+
+    /** Write a snapshot file for each local MCache with the snapshot attribute set, called on destroy */
+    void saveSnapshots() {
+        File snapshotDir = getSnapshotDirectory()
+        EntityCache.OffHeapSerializer serializer = new EntityCache.OffHeapSerializer()
+        long startTime = System.currentTimeMillis()
+        int cacheCount = 0, entryCount = 0
+        for (Map.Entry<String, Cache> cacheEntry in localCacheMap.entrySet()) {
+            String cacheName = cacheEntry.getKey()
+            Cache cache = cacheEntry.getValue()
+            String snapshotMode = getCacheNode(cacheName)?.attribute("snapshot")
+            if (!snapshotMode || "none".equals(snapshotMode) || !(cache instanceof MCache)) continue
+            boolean withValues = !"keys".equals(snapshotMode)
+
+            if (!snapshotDir.exists()) snapshotDir.mkdirs()
+            File snapshotFile = new File(snapshotDir, getSnapshotFileName(cacheName))
+            File tempFile = new File(snapshotDir, getSnapshotFileName(cacheName) + ".tmp")
+            int written = 0
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))
+                try {
+                    ArrayList<Cache.Entry> entryList = ((MCache) cache).getEntryList()
+                    out.writeUTF(SNAPSHOT_HEADER)
+                    out.writeUTF(cacheName)
+                    out.writeLong(System.currentTimeMillis())
+                    out.writeBoolean(withValues)
+                    for (Cache.Entry ce in entryList) {
+                        MEntry entry = ce.unwrap(MEntry.class)
+                        byte[] keyBytes, valueBytes = null
+                        try {
+                            keyBytes = serializer.serialize(entry.getKey())
+                            if (withValues) valueBytes = serializer.serialize(entry.getValue())
+                        } catch (Exception e) {
+                            if (logger.isTraceEnabled()) logger.trace("Not including entry ${entry.getKey()} in snapshot of cache ${cacheName}: ${e.toString()}")
+                            continue
+                        }
+                        out.writeBoolean(true)
+                        out.writeInt(keyBytes.length)
+                        out.write(keyBytes)
+                        if (withValues) {
+                            out.writeLong(Math.max(entry.getCreatedTime(), entry.getLastUpdatedTime()))
+                            out.writeInt(valueBytes.length)
+                            out.write(valueBytes)
+                        }
+                        written++
+                    }
+                    out.writeBoolean(false)
+                } finally {
+                    out.close()
+                }
+                if (snapshotFile.exists()) snapshotFile.delete()
+                if (!tempFile.renameTo(snapshotFile)) logger.warn("Could not rename cache snapshot file ${tempFile.getPath()}")
+                cacheCount++
+                entryCount += written
+            } catch (Throwable t) {
+                logger.error("Error saving snapshot for cache ${cacheName}", t)
+                tempFile.delete()
+            }
+        }
+        if (cacheCount > 0) logger.info("Saved snapshots of ${cacheCount} caches with ${entryCount} entries in ${System.currentTimeMillis() - startTime}ms")
+    }
+
+    /** Load snapshot files for caches with the snapshot attribute set; entries are restored in parallel on the worker
+     * pool and this waits for them to finish. Stale entries are discarded: snapshots older than snapshot-max-age, and
+     * for snapshot=location entries whose resource location was modified after the entry was cached. Each snapshot file
+     * is deleted once read so a later start without a save in between (like after a crash) doesn't restore old entries. */
+    void loadSnapshots() {
+        File snapshotDir = getSnapshotDirectory()
+        if (!snapshotDir.exists()) return
+        File[] snapshotFiles = snapshotDir.listFiles()
+        if (snapshotFiles == null) return
+
+        long startTime = System.currentTimeMillis()
+        ArrayList<Future<Integer>> futureList = new ArrayList<>()
+        for (File snapshotFile in snapshotFiles) {
+            if (!snapshotFile.getName().endsWith(".snapshot")) continue
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))
+                try {
+                    if (!SNAPSHOT_HEADER.equals(input.readUTF())) { logger.warn("Ignoring cache snapshot ${snapshotFile.getName()}, unknown format"); continue }
+                    String cacheName = input.readUTF()
+                    long savedTime = input.readLong()
+                    boolean withValues = input.readBoolean()
+
+                    MNode cacheNode = getCacheNode(cacheName)
+                    String snapshotMode = cacheNode?.attribute("snapshot")
+                    if (!snapshotMode || "none".equals(snapshotMode)) continue
+                    String maxAgeStr = cacheNode.attribute("snapshot-max-age")
+                    if (maxAgeStr && maxAgeStr != "0" && (startTime - savedTime) > Long.parseLong(maxAgeStr) * 1000L) {
+                        logger.info("Discarding snapshot for cache ${cacheName}, saved ${(startTime - savedTime) / 1000}s ago is older than snapshot-max-age ${maxAgeStr}s")
+                        continue
+                    }
+                    CacheSnapshotRestorer restorer = getSnapshotRestorer(cacheName)
+                    if (!withValues && restorer == null) {
+                        logger.warn("Ignoring key snapshot for cache ${cacheName}, no restorer registered")
+                        continue
+                    }
+
+                    boolean validateLocation = "location".equals(snapshotMode)
+                    ArrayList<SnapshotItem> chunk = new ArrayList<>(SNAPSHOT_RESTORE_CHUNK)
+                    while (input.readBoolean()) {
+                        SnapshotItem item = new SnapshotItem()
+                        item.keyBytes = new byte[input.readInt()]
+                        input.readFully(item.keyBytes)
+                        if (withValues) {
+                            item.updatedTime = input.readLong()
+                            item.valueBytes = new byte[input.readInt()]
+                            input.readFully(item.valueBytes)
+                        }
+                        chunk.add(item)
+                        if (chunk.size() >= SNAPSHOT_RESTORE_CHUNK) {
+                            futureList.add(ecfi.workerPool.submit(new SnapshotRestoreCallable(this, cacheName, restorer, validateLocation, chunk)))
+                            chunk = new ArrayList<>(SNAPSHOT_RESTORE_CHUNK)
+                        }
+                    }
+                    if (chunk.size() > 0) futureList.add(ecfi.workerPool.submit(new SnapshotRestoreCallable(this, cacheName, restorer, validateLocation, chunk)))
+                } finally {
+                    input.close()
+                }
+            } catch (Throwable t) {
+                logger.error("Error reading cache snapshot ${snapshotFile.getName()}", t)
+            } finally {
+                // entries to restore are already read into memory
+                if (!snapshotFile.delete()) logger.warn("Could not delete cache snapshot file ${snapshotFile.getPath()}")
+            }
+        }
+
+        int restoredCount = 0
+        for (Future<Integer> future in futureList) {
+            try {
+                restoredCount += future.get().intValue()
+            } catch (Throwable t) {
+                logger.error("Error restoring cache snapshot entries", t)
+            }
+        }
+        if (futureList.size() > 0) logger.info("Restored ${restoredCount} cache entries from snapshots in ${System.currentTimeMillis() - startTime}ms")
+    }
+
+    static class SnapshotItem {
+        byte[] keyBytes
+        byte[] valueBytes
+        long updatedTime
+    }
+    static class SnapshotRestoreCallable implements Callable<Integer> {
+        private final CacheFacadeImpl cfi
+        private final String cacheName
+        private final CacheSnapshotRestorer restorer
+        private final boolean validateLocation
+        private final ArrayList<SnapshotItem> itemList
+
+        SnapshotRestoreCallable(CacheFacadeImpl cfi, String cacheName, CacheSnapshotRestorer restorer, boolean validateLocation,
+                                ArrayList<SnapshotItem> itemList) {
+            this.cfi = cfi
+            this.cacheName = cacheName
+            this.restorer = restorer
+            this.validateLocation = validateLocation
+            this.itemList = itemList
+        }
+
+        @Override Integer call() throws Exception {
+            EntityCache.OffHeapSerializer serializer = new EntityCache.OffHeapSerializer(cfi.ecfi.entityFacade)
+            Cache cache = cfi.getCache(cacheName)
+            int restored = 0
+            try {
+                for (SnapshotItem item in itemList) {
+                    try {
+                        Object key = serializer.deserialize(item.keyBytes)
+                        Object value = item.valueBytes != null ? serializer.deserialize(item.valueBytes) : null
+                        if (validateLocation) {
+                            ResourceReference rr = cfi.ecfi.resourceFacade.getLocationReference((String) key)
+                            // same check as MCache.get(key, maxLastModified) used for resource.text.location
+                            if (rr == null || !rr.supportsLastModified() || rr.getLastModified() > item.updatedTime) continue
+                        }
+                        if (restorer != null) restorer.restore(cacheName, key, value)
+                        else cache.put(key, value)
+                        restored++
+                    } catch (Throwable t) {
+                        if (logger.isTraceEnabled()) logger.trace("Skipping snapshot entry for cache ${cacheName}: ${t.toString()}")
+                    }
+                }
+            } finally {
+                cfi.ecfi.destroyActiveExecutionContext()
+            }
+            return restored
+        }
+    }
+
     List<Map> makeElementInfoList(String cacheName, String orderByField) {
         Cache cache = getCache(cacheName)
         if (cache instanceof MCache) {
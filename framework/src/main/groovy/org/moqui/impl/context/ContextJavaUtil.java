@@ -42,8 +42,11 @@ import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
 import javax.transaction.xa.XAResource;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.net.URL;
 import java.sql.*;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
@@ -328,6 +331,8 @@ public class ContextJavaUtil {
         Map<String, ConnectionWrapper> txConByGroup = new HashMap<>();
         public TransactionCache txCache = null;
         ArrayList<EntityRecordLock> recordLockList = new ArrayList<>();
+        /** Entity groups written to in this transaction, see TransactionFacadeImpl.registerGroupWrite() */
+        HashSet<String> writeGroups = new HashSet<>();
 
         public Map<String, XAResource> getActiveXaResourceMap() { return activeXaResourceMap; }
         public Map<String, Synchronization> getActiveSynchronizationMap() { return activeSynchronizationMap; }
@@ -343,6 +348,7 @@ public class ContextJavaUtil {
             activeXaResourceMap.clear();
             activeSynchronizationMap.clear();
             txCache = null;
+            writeGroups.clear();
             // this should already be done, but make sure
             closeTxConnections();
 
@@ -466,26 +472,106 @@ public class ContextJavaUtil {
      * rollback, or destroy (when transactions are also cleaned up as a last resort).
      *
      * Connections are attached to 2 things: entity group and transaction.
+     *
+     * If the datasource has a statement-cache-size PreparedStatements are cached by SQL for the life of the connection (ie
+     * the transaction), independent of any statement caching in the connection pool. Statements are reused only after
+     * close(), a statement in use is never handed out twice; the least recently used idle statements are closed when over
+     * the limit.
      */
     public static class ConnectionWrapper implements Connection {
         protected Connection con;
         TransactionFacadeImpl tfi;
         String groupName;
+        private final int statementCacheSize;
+        private LinkedHashMap<StatementKey, CachedPreparedStatement> idleStatements = null;
+        private boolean closedInternal = false;
 
         public ConnectionWrapper(Connection con, TransactionFacadeImpl tfi, String groupName) {
             this.con = con;
             this.tfi = tfi;
             this.groupName = groupName;
+            statementCacheSize = tfi != null ? tfi.getStatementCacheSize(groupName) : 0;
         }
 
         public String getGroupName() { return groupName; }
 
         public void closeInternal() throws SQLException {
+            ArrayList<CachedPreparedStatement> toClose = null;
+            synchronized (this) {
+                closedInternal = true;
+                if (idleStatements != null) {
+                    toClose = new ArrayList<>(idleStatements.values());
+                    idleStatements = null;
+                }
+            }
+            if (toClose != null) for (CachedPreparedStatement cps : toClose) {
+                try { cps.ps.close(); }
+                catch (SQLException e) { logger.warn("Error closing cached statement for group " + groupName + ": " + e.toString()); }
+            }
             con.close();
         }
 
+        private PreparedStatement prepareCached(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            StatementKey key = new StatementKey(sql, resultSetType, resultSetConcurrency);
+            CachedPreparedStatement cps;
+            synchronized (this) { cps = idleStatements != null ? idleStatements.remove(key) : null; }
+            if (cps != null) {
+                tfi.countStatementCache(true);
+                cps.inUse = true;
+                return cps;
+            }
+            tfi.countStatementCache(false);
+            return new CachedPreparedStatement(con.prepareStatement(sql, resultSetType, resultSetConcurrency), this, key);
+        }
+        void releaseCached(CachedPreparedStatement cps) throws SQLException {
+            if (!cps.inUse) return;
+            cps.inUse = false;
+            boolean reuse = !cps.noReuse;
+            if (reuse) {
+                try {
+                    ResultSet rs = cps.ps.getResultSet();
+                    if (rs != null) rs.close();
+                    cps.ps.clearParameters();
+                    // in case of an error before executeBatch()
+                    cps.ps.clearBatch();
+                    if (cps.resetLimits) {
+                        cps.ps.setMaxRows(0);
+                        cps.ps.setQueryTimeout(0);
+                        cps.ps.setMaxFieldSize(0);
+                        cps.resetLimits = false;
+                    }
+                } catch (SQLException e) {
+                    reuse = false;
+                }
+            }
+            CachedPreparedStatement replaced = null, evicted = null;
+            if (reuse) synchronized (this) {
+                if (closedInternal) {
+                    reuse = false;
+                } else {
+                    if (idleStatements == null) idleStatements = new LinkedHashMap<>(16, 0.75f, true);
+                    // another statement for the same SQL may have been in use at the same time, keep only one
+                    replaced = idleStatements.put(cps.key, cps);
+                    if (idleStatements.size() > statementCacheSize) {
+                        Iterator<CachedPreparedStatement> idleIter = idleStatements.values().iterator();
+                        evicted = idleIter.next();
+                        idleIter.remove();
+                    }
+                }
+            }
+            if (!reuse) cps.ps.close();
+            if (replaced != null && replaced != cps) replaced.ps.close();
+            if (evicted != null) {
+                tfi.countStatementCacheEviction();
+                evicted.ps.close();
+            }
+        }
+
         @Override public Statement createStatement() throws SQLException { return con.createStatement(); }
-        @Override public PreparedStatement prepareStatement(String sql) throws SQLException { return con.prepareStatement(sql); }
+        @Override public PreparedStatement prepareStatement(String sql) throws SQLException {
+            if (statementCacheSize > 0) return prepareCached(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            return con.prepareStatement(sql);
+        }
         @Override public CallableStatement prepareCall(String sql) throws SQLException { return con.prepareCall(sql); }
         @Override public String nativeSQL(String sql) throws SQLException { return con.nativeSQL(sql); }
         @Override public void setAutoCommit(boolean autoCommit) throws SQLException { con.setAutoCommit(autoCommit); }
@@ -512,6 +598,7 @@ public class ContextJavaUtil {
         @Override public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
             return con.createStatement(resultSetType, resultSetConcurrency); }
         @Override public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            if (statementCacheSize > 0) return prepareCached(sql, resultSetType, resultSetConcurrency);
             return con.prepareStatement(sql, resultSetType, resultSetConcurrency); }
         @Override public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
             return con.prepareCall(sql, resultSetType, resultSetConcurrency); }
@@ -576,6 +663,142 @@ public class ContextJavaUtil {
         */
     }
 
+    static class StatementKey {
+        final String sql;
+        final int resultSetType, resultSetConcurrency;
+        final int hashCodeVal;
+        StatementKey(String sql, int resultSetType, int resultSetConcurrency) {
+            this.sql = sql; this.resultSetType = resultSetType; this.resultSetConcurrency = resultSetConcurrency;
+            hashCodeVal = sql.hashCode() + 31 * resultSetType + resultSetConcurrency;
+        }
+        @Override public int hashCode() { return hashCodeVal; }
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof StatementKey)) return false;
+            StatementKey that = (StatementKey) obj;
+            return resultSetType == that.resultSetType && resultSetConcurrency == that.resultSetConcurrency && sql.equals(that.sql);
+        }
+    }
+
+    /** A delegating wrapper for PreparedStatement from the ConnectionWrapper statement cache, close() returns it to the cache.
+     * Statements with settings that can't be reset (cursor name, close on completion, etc) are closed instead of reused. */
+    public static class CachedPreparedStatement implements PreparedStatement {
+        final PreparedStatement ps;
+        final ConnectionWrapper cw;
+        final StatementKey key;
+        boolean inUse = true, resetLimits = false, noReuse = false;
+
+        CachedPreparedStatement(PreparedStatement ps, ConnectionWrapper cw, StatementKey key) {
+            this.ps = ps;
+            this.cw = cw;
+            this.key = key;
+        }
+
+        @Override public void close() throws SQLException { cw.releaseCached(this); }
+        @Override public boolean isClosed() throws SQLException { return !inUse || ps.isClosed(); }
+        @Override public Connection getConnection() throws SQLException { return cw; }
+
+        @Override public void setMaxRows(int max) throws SQLException { resetLimits = true; ps.setMaxRows(max); }
+        @Override public void setQueryTimeout(int seconds) throws SQLException { resetLimits = true; ps.setQueryTimeout(seconds); }
+        @Override public void setMaxFieldSize(int max) throws SQLException { resetLimits = true; ps.setMaxFieldSize(max); }
+        @Override public void setCursorName(String name) throws SQLException { noReuse = true; ps.setCursorName(name); }
+        @Override public void closeOnCompletion() throws SQLException { noReuse = true; ps.closeOnCompletion(); }
+        @Override public void setPoolable(boolean poolable) throws SQLException { noReuse = true; ps.setPoolable(poolable); }
+        @Override public void setEscapeProcessing(boolean enable) throws SQLException { noReuse = true; ps.setEscapeProcessing(enable); }
+        @Override public void setFetchDirection(int direction) throws SQLException { noReuse = true; ps.setFetchDirection(direction); }
+
+        @Override public void addBatch() throws SQLException { ps.addBatch(); }
+        @Override public void addBatch(String sql) throws SQLException { ps.addBatch(sql); }
+        @Override public void cancel() throws SQLException { ps.cancel(); }
+        @Override public void clearBatch() throws SQLException { ps.clearBatch(); }
+        @Override public void clearParameters() throws SQLException { ps.clearParameters(); }
+        @Override public void clearWarnings() throws SQLException { ps.clearWarnings(); }
+        @Override public boolean execute() throws SQLException { return ps.execute(); }
+        @Override public boolean execute(String sql) throws SQLException { return ps.execute(sql); }
+        @Override public boolean execute(String sql, int autoGeneratedKeys) throws SQLException { return ps.execute(sql, autoGeneratedKeys); }
+        @Override public boolean execute(String sql, int[] columnIndexes) throws SQLException { return ps.execute(sql, columnIndexes); }
+        @Override public boolean execute(String sql, String[] columnNames) throws SQLException { return ps.execute(sql, columnNames); }
+        @Override public int[] executeBatch() throws SQLException { return ps.executeBatch(); }
+        @Override public ResultSet executeQuery() throws SQLException { return ps.executeQuery(); }
+        @Override public ResultSet executeQuery(String sql) throws SQLException { return ps.executeQuery(sql); }
+        @Override public int executeUpdate() throws SQLException { return ps.executeUpdate(); }
+        @Override public int executeUpdate(String sql) throws SQLException { return ps.executeUpdate(sql); }
+        @Override public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException { return ps.executeUpdate(sql, autoGeneratedKeys); }
+        @Override public int executeUpdate(String sql, int[] columnIndexes) throws SQLException { return ps.executeUpdate(sql, columnIndexes); }
+        @Override public int executeUpdate(String sql, String[] columnNames) throws SQLException { return ps.executeUpdate(sql, columnNames); }
+        @Override public int getFetchDirection() throws SQLException { return ps.getFetchDirection(); }
+        @Override public int getFetchSize() throws SQLException { return ps.getFetchSize(); }
+        @Override public ResultSet getGeneratedKeys() throws SQLException { return ps.getGeneratedKeys(); }
+        @Override public int getMaxFieldSize() throws SQLException { return ps.getMaxFieldSize(); }
+        @Override public int getMaxRows() throws SQLException { return ps.getMaxRows(); }
+        @Override public ResultSetMetaData getMetaData() throws SQLException { return ps.getMetaData(); }
+        @Override public boolean getMoreResults() throws SQLException { return ps.getMoreResults(); }
+        @Override public boolean getMoreResults(int current) throws SQLException { return ps.getMoreResults(current); }
+        @Override public ParameterMetaData getParameterMetaData() throws SQLException { return ps.getParameterMetaData(); }
+        @Override public int getQueryTimeout() throws SQLException { return ps.getQueryTimeout(); }
+        @Override public ResultSet getResultSet() throws SQLException { return ps.getResultSet(); }
+        @Override public int getResultSetConcurrency() throws SQLException { return ps.getResultSetConcurrency(); }
+        @Override public int getResultSetHoldability() throws SQLException { return ps.getResultSetHoldability(); }
+        @Override public int getResultSetType() throws SQLException { return ps.getResultSetType(); }
+        @Override public int getUpdateCount() throws SQLException { return ps.getUpdateCount(); }
+        @Override public SQLWarning getWarnings() throws SQLException { return ps.getWarnings(); }
+        @Override public boolean isCloseOnCompletion() throws SQLException { return ps.isCloseOnCompletion(); }
+        @Override public boolean isPoolable() throws SQLException { return ps.isPoolable(); }
+        @Override public boolean isWrapperFor(Class<?> iface) throws SQLException { return ps.isWrapperFor(iface); }
+        @Override public void setArray(int idx, Array x) throws SQLException { ps.setArray(idx, x); }
+        @Override public void setAsciiStream(int idx, InputStream x) throws SQLException { ps.setAsciiStream(idx, x); }
+        @Override public void setAsciiStream(int idx, InputStream x, int length) throws SQLException { ps.setAsciiStream(idx, x, length); }
+        @Override public void setAsciiStream(int idx, InputStream x, long length) throws SQLException { ps.setAsciiStream(idx, x, length); }
+        @Override public void setBigDecimal(int idx, BigDecimal x) throws SQLException { ps.setBigDecimal(idx, x); }
+        @Override public void setBinaryStream(int idx, InputStream x) throws SQLException { ps.setBinaryStream(idx, x); }
+        @Override public void setBinaryStream(int idx, InputStream x, int length) throws SQLException { ps.setBinaryStream(idx, x, length); }
+        @Override public void setBinaryStream(int idx, InputStream x, long length) throws SQLException { ps.setBinaryStream(idx, x, length); }
+        @Override public void setBlob(int idx, InputStream x) throws SQLException { ps.setBlob(idx, x); }
+        @Override public void setBlob(int idx, Blob x) throws SQLException { ps.setBlob(idx, x); }
+        @Override public void setBlob(int idx, InputStream x, long length) throws SQLException { ps.setBlob(idx, x, length); }
+        @Override public void setBoolean(int idx, boolean x) throws SQLException { ps.setBoolean(idx, x); }
+        @Override public void setByte(int idx, byte x) throws SQLException { ps.setByte(idx, x); }
+        @Override public void setBytes(int idx, byte[] x) throws SQLException { ps.setBytes(idx, x); }
+        @Override public void setCharacterStream(int idx, Reader x) throws SQLException { ps.setCharacterStream(idx, x); }
+        @Override public void setCharacterStream(int idx, Reader x, int length) throws SQLException { ps.setCharacterStream(idx, x, length); }
+        @Override public void setCharacterStream(int idx, Reader x, long length) throws SQLException { ps.setCharacterStream(idx, x, length); }
+        @Override public void setClob(int idx, Reader x) throws SQLException { ps.setClob(idx, x); }
+        @Override public void setClob(int idx, Clob x) throws SQLException { ps.setClob(idx, x); }
+        @Override public void setClob(int idx, Reader x, long length) throws SQLException { ps.setClob(idx, x, length); }
+        @Override public void setDate(int idx, java.sql.Date x) throws SQLException { ps.setDate(idx, x); }
+        @Override public void setDate(int idx, java.sql.Date x, Calendar cal) throws SQLException { ps.setDate(idx, x, cal); }
+        @Override public void setDouble(int idx, double x) throws SQLException { ps.setDouble(idx, x); }
+        @Override public void setFetchSize(int idx) throws SQLException { ps.setFetchSize(idx); }
+        @Override public void setFloat(int idx, float x) throws SQLException { ps.setFloat(idx, x); }
+        @Override public void setInt(int idx, int x) throws SQLException { ps.setInt(idx, x); }
+        @Override public void setLong(int idx, long x) throws SQLException { ps.setLong(idx, x); }
+        @Override public void setNCharacterStream(int idx, Reader x) throws SQLException { ps.setNCharacterStream(idx, x); }
+        @Override public void setNCharacterStream(int idx, Reader x, long length) throws SQLException { ps.setNCharacterStream(idx, x, length); }
+        @Override public void setNClob(int idx, Reader x) throws SQLException { ps.setNClob(idx, x); }
+        @Override public void setNClob(int idx, NClob x) throws SQLException { ps.setNClob(idx, x); }
+        @Override public void setNClob(int idx, Reader x, long length) throws SQLException { ps.setNClob(idx, x, length); }
+        @Override public void setNString(int idx, String x) throws SQLException { ps.setNString(idx, x); }
+        @Override public void setNull(int idx, int sqlType) throws SQLException { ps.setNull(idx, sqlType); }
+        @Override public void setNull(int idx, int sqlType, String typeName) throws SQLException { ps.setNull(idx, sqlType, typeName); }
+        @Override public void setObject(int idx, Object x) throws SQLException { ps.setObject(idx, x); }
+        @Override public void setObject(int idx, Object x, int targetSqlType) throws SQLException { ps.setObject(idx, x, targetSqlType); }
+        @Override public void setObject(int idx, Object x, int targetSqlType, int scaleOrLength) throws SQLException { ps.setObject(idx, x, targetSqlType, scaleOrLength); }
+        @Override public void setRef(int idx, Ref x) throws SQLException { ps.setRef(idx, x); }
+        @Override public void setRowId(int idx, RowId x) throws SQLException { ps.setRowId(idx, x); }
+        @Override public void setSQLXML(int idx, SQLXML x) throws SQLException { ps.setSQLXML(idx, x); }
+        @Override public void setShort(int idx, short x) throws SQLException { ps.setShort(idx, x); }
+        @Override public void setString(int idx, String x) throws SQLException { ps.setString(idx, x); }
+        @Override public void setTime(int idx, Time x) throws SQLException { ps.setTime(idx, x); }
+        @Override public void setTime(int idx, Time x, Calendar cal) throws SQLException { ps.setTime(idx, x, cal); }
+        @Override public void setTimestamp(int idx, Timestamp x) throws SQLException { ps.setTimestamp(idx, x); }
+        @Override public void setTimestamp(int idx, Timestamp x, Calendar cal) throws SQLException { ps.setTimestamp(idx, x, cal); }
+        @Override public void setURL(int idx, URL x) throws SQLException { ps.setURL(idx, x); }
+        @Override @SuppressWarnings("deprecation")
+        public void setUnicodeStream(int idx, InputStream x, int length) throws SQLException { ps.setUnicodeStream(idx, x, length); }
+        @Override public <T> T unwrap(Class<T> iface) throws SQLException { return ps.unwrap(iface); }
+
+        @Override public String toString() { return "Cached: " + ps.toString(); }
+    }
+
 
     public final static ObjectMapper jacksonMapper = new ObjectMapper()
             .setSerializationInclusion(JsonInclude.Include.ALWAYS)
@@ -647,6 +870,11 @@ public class ContextJavaUtil {
         }
     }
 
+    /** Restores an entry from a cache snapshot, see CacheFacadeImpl.registerSnapshotRestorer(); value is null for key snapshots */
+    public interface CacheSnapshotRestorer {
+        void restore(String cacheName, Object key, Object value);
+    }
+
     // NOTE: using unbound LinkedBlockingQueue, so max pool size in ThreadPoolExecutor has no effect
     public static class WorkerThreadFactory implements ThreadFactory {
         private final ThreadGroup workerGroup = new ThreadGroup("MoquiWorkers");
@@ -658,6 +886,13 @@ public class ContextJavaUtil {
         private final AtomicInteger threadNumber = new AtomicInteger(1);
         public Thread newThread(Runnable r) { return new Thread(workerGroup, r, "MoquiJob-" + threadNumber.getAndIncrement()); }
     }
+    /** Virtual threads for worker pools with worker-virtual or job-virtual, ThreadLocals (like the active ExecutionContext
+     * and transaction stack) are per virtual thread just as for platform threads */
+    public static class VirtualThreadFactory implements ThreadFactory {
+        private final ThreadFactory virtualFactory;
+        public VirtualThreadFactory(String namePrefix) { virtualFactory = Thread.ofVirtual().name(namePrefix, 1).factory(); }
+        public Thread newThread(Runnable r) { return virtualFactory.newThread(r); }
+    }
     public static class WorkerThreadPoolExecutor extends ThreadPoolExecutor {
         private ExecutionContextFactoryImpl ecfi;
         public WorkerThreadPoolExecutor(ExecutionContextFactoryImpl ecfi, int coreSize, int maxSize, long aliveTime,
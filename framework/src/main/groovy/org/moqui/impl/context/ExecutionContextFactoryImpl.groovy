@@ -66,6 +66,7 @@ import java.lang.management.ManagementFactory
 import java.math.RoundingMode
 import java.sql.Timestamp
 import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ScheduledFuture
@@ -106,7 +107,7 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
 
     protected LinkedHashMap<String, ComponentInfo> componentInfoMap = new LinkedHashMap<>()
     public final ThreadLocal<ExecutionContextImpl> activeContext = new ThreadLocal<>()
-    public final Map<Long, ExecutionContextImpl> activeContextMap = new HashMap<>()
+    public final Map<Long, ExecutionContextImpl> activeContextMap = new ConcurrentHashMap<>()
     protected final LinkedHashMap<String, ToolFactory> toolFactoryMap = new LinkedHashMap<>()
 
     protected final Map<String, WebappInfo> webappInfoMap = new HashMap<>()
@@ -451,6 +452,16 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         int workerQueueSize = (toolsNode.attribute("worker-queue") ?: "65536") as int
         BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>(workerQueueSize)
 
+        if (toolsNode.attribute("worker-virtual") == "true") {
+            // a virtual thread per task up to worker-virtual-max, blocking I/O doesn't hold a platform thread
+            int virtualMax = (toolsNode.attribute("worker-virtual-max") ?: "10000") as int
+            logger.info("Initializing worker ThreadPoolExecutor with virtual threads: queue limit ${workerQueueSize}, virtual-max ${virtualMax}")
+            ThreadPoolExecutor virtualPool = new ContextJavaUtil.WorkerThreadPoolExecutor(this, virtualMax, virtualMax, 60,
+                    TimeUnit.SECONDS, workQueue, new ContextJavaUtil.VirtualThreadFactory("MoquiWorkerV-"))
+            virtualPool.allowCoreThreadTimeOut(true)
+            return virtualPool
+        }
+
         int coreSize = (toolsNode.attribute("worker-pool-core") ?: "16") as int
         int maxSize = (toolsNode.attribute("worker-pool-max") ?: "32") as int
         int availableProcessorsSize = Runtime.getRuntime().availableProcessors() * 3
@@ -589,7 +600,8 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         entityFacade.postFacadeInit()
         serviceFacade.postFacadeInit()
 
-        // Warm cache on start if configured to do so
+        // Restore caches from snapshots saved on the last shutdown, then warm cache on start if configured to do so
+        cacheFacade.loadSnapshots()
         if (confXmlRoot.first("cache-list").attribute("warm-on-start") != "false") warmCache()
 
         // Run init() in ToolFactory implementations from tools.tool-factory elements
@@ -933,6 +945,7 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
     }
 
     InetAddress getLocalhostAddress() { return localhostAddress }
+    long getHitBinLengthMillis() { return hitBinLengthMillis }
 
     @Override void registerNotificationMessageListener(@Nonnull NotificationMessageListener nml) {
         nml.init(this)
@@ -23,6 +23,7 @@ import org.moqui.impl.entity.EntityFindBase
 import org.moqui.impl.entity.EntityJavaUtil
 import org.moqui.impl.entity.EntityListImpl
 import org.moqui.impl.entity.EntityValueBase
+import org.moqui.impl.entity.EntityWriteBatch
 import org.moqui.impl.entity.EntityJavaUtil.EntityWriteInfo
 import org.moqui.impl.entity.EntityJavaUtil.FindAugmentInfo
 import org.moqui.impl.entity.EntityJavaUtil.WriteMode
@@ -440,6 +441,8 @@ class TransactionCache implements Synchronization {
     }
 
     void flushCache(boolean clearRead) {
+        // consecutive writes with the same SQL are sent to the DB in JDBC batches, one EntityWriteBatch per connection
+        Map<String, EntityWriteBatch> writeBatchByGroup = new HashMap<>()
         Map<String, Connection> connectionByGroup = new HashMap<>()
         try {
             int writeInfoListSize = writeInfoList.size()
@@ -456,24 +459,25 @@ class TransactionCache implements Synchronization {
                 for (int i = 0; i < writeInfoListSize; i++) {
                     EntityWriteInfo ewi = (EntityWriteInfo) writeInfoList.get(i)
                     String groupName = ewi.evb.getEntityDefinition().getEntityGroupName()
-                    Connection con = connectionByGroup.get(groupName)
-                    if (con == null) {
-                        con = efi.getConnection(groupName)
+                    EntityWriteBatch writeBatch = writeBatchByGroup.get(groupName)
+                    if (writeBatch == null) {
+                        Connection con = efi.getConnection(groupName)
                         connectionByGroup.put(groupName, con)
+                        writeBatch = new EntityWriteBatch(efi, con, efi.getWriteBatchSize(groupName))
+                        writeBatchByGroup.put(groupName, writeBatch)
                     }
 
-                    if (ewi.writeMode.is(WriteMode.CREATE)) {
-                        ewi.evb.basicCreate(con)
-                        createCount++
-                    } else if (ewi.writeMode.is(WriteMode.DELETE)) {
-                        ewi.evb.deleteExtended(con)
-                        deleteCount++
-                    } else {
-                        ewi.evb.basicUpdate(con)
-                        updateCount++
-                    }
+                    writeBatch.add(ewi.evb, ewi.writeMode)
+                    if (ewi.writeMode.is(WriteMode.CREATE)) createCount++
+                    else if (ewi.writeMode.is(WriteMode.DELETE)) deleteCount++
+                    else updateCount++
+                }
+                int batchCount = 0
+                for (EntityWriteBatch writeBatch in writeBatchByGroup.values()) {
+                    writeBatch.flush()
+                    batchCount += writeBatch.getBatchCount()
                 }
-                if (logger.isDebugEnabled()) logger.debug("Flushed TransactionCache in ${System.currentTimeMillis() - startTime}ms: ${createCount} creates, ${updateCount} updates, ${deleteCount} deletes, ${readOneCache.size()} read entries, ${readListCache.size()} entities with list cache")
+                if (logger.isDebugEnabled()) logger.debug("Flushed TransactionCache in ${System.currentTimeMillis() - startTime}ms: ${createCount} creates, ${updateCount} updates, ${deleteCount} deletes in ${batchCount} batches, ${readOneCache.size()} read entries, ${readListCache.size()} entities with list cache")
             }
 
             writeInfoList.clear()
@@ -490,7 +494,8 @@ class TransactionCache implements Synchronization {
             logger.error("Error writing values from TransactionCache: ${t.toString()}", t)
             throw new XAException("Error writing values from TransactionCache: + ${t.toString()}")
         } finally {
-            // now close connections
+            // close any batch statement not executed because of an error, then close connections
+            for (EntityWriteBatch writeBatch in writeBatchByGroup.values()) writeBatch.close()
             for (Connection con in connectionByGroup.values()) con.close()
         }
     }
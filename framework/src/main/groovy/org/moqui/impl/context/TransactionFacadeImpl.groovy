@@ -35,6 +35,7 @@ import javax.transaction.xa.XAException
 import javax.transaction.xa.XAResource
 import java.sql.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
 
 @CompileStatic
 class TransactionFacadeImpl implements TransactionFacade {
@@ -58,6 +59,12 @@ class TransactionFacadeImpl implements TransactionFacade {
 
     protected final ConcurrentHashMap<String, ArrayList<EntityRecordLock>> recordLockByEntityPk = new ConcurrentHashMap<>()
 
+    /** Statement cache size by entity group from datasource.@statement-cache-size, for ConnectionWrapper */
+    protected final ConcurrentHashMap<String, Integer> statementCacheSizeByGroup = new ConcurrentHashMap<>()
+    protected final LongAdder statementCacheHits = new LongAdder()
+    protected final LongAdder statementCacheMisses = new LongAdder()
+    protected final LongAdder statementCacheEvictions = new LongAdder()
+
     TransactionFacadeImpl(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
 
@@ -659,6 +666,14 @@ class TransactionFacadeImpl implements TransactionFacade {
         return txStackInfo.txCache != null && !txStackInfo.txCache.isReadOnly()
     }
     TransactionCache getTransactionCache() { return getTxStackInfo().txCache }
+
+    /** Note a write (or for update find) on an entity group in the current transaction; finds on the group in the
+     * transaction then use the primary datasource, not a clone (see EntityReadRouter) */
+    void registerGroupWrite(String groupName) {
+        if (groupName == null || !isTransactionInPlace()) return
+        getTxStackInfo().writeGroups.add(groupName)
+    }
+    boolean hasGroupWrite(String groupName) { return getTxStackInfo().writeGroups.contains(groupName) }
     @Override
     void flushAndDisableTransactionCache() {
         TxStackInfo txStackInfo = getTxStackInfo()
@@ -710,6 +725,22 @@ class TransactionFacadeImpl implements TransactionFacade {
         return newCw
     }
 
+    int getStatementCacheSize(String groupName) {
+        Integer size = statementCacheSizeByGroup.get(groupName)
+        if (size != null) return size.intValue()
+        MNode datasourceNode = ecfi.entityFacade.getDatasourceNode(groupName)
+        String sizeAttr = datasourceNode?.attribute("statement-cache-size")
+        size = sizeAttr ? Integer.valueOf(sizeAttr) : Integer.valueOf(0)
+        statementCacheSizeByGroup.put(groupName, size)
+        return size.intValue()
+    }
+    void countStatementCache(boolean hit) { if (hit) statementCacheHits.increment() else statementCacheMisses.increment() }
+    void countStatementCacheEviction() { statementCacheEvictions.increment() }
+    Map<String, Object> getStatementCacheInfo() {
+        return [hitCount:statementCacheHits.sum(), missCount:statementCacheMisses.sum(),
+                evictionCount:statementCacheEvictions.sum(), sizeByGroup:new HashMap<String, Integer>(statementCacheSizeByGroup)] as Map<String, Object>
+    }
+
     /* ================== */
     /* Lock Track Methods */
     /* ================== */
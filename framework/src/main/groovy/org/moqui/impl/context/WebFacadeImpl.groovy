@@ -13,6 +13,7 @@
  */
 package org.moqui.impl.context
 
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.io.JsonStringEncoder
 import com.fasterxml.jackson.databind.JsonNode
 import groovy.transform.CompileStatic
@@ -28,6 +29,8 @@ import org.moqui.context.MessageFacade.MessageInfo
 import org.moqui.entity.EntityNotFoundException
 import org.moqui.entity.EntityValue
 import org.moqui.entity.EntityValueNotFoundException
+import org.moqui.impl.entity.EntityFindBase
+import org.moqui.impl.entity.EntityStreamWriter
 import org.moqui.impl.util.SimpleSigner
 import org.moqui.util.MNode
 import org.moqui.util.WebUtilities
@@ -712,6 +715,37 @@ class WebFacadeImpl implements WebFacade {
         }
 
         // logger.warn("========== Sending JSON for object: ${responseObj}")
+        if (responseObj != null && hasStreamWriter(responseObj)) {
+            // serialize directly to the response so EntityStreamWriter values from iterators don't need the full JSON
+            //     text in memory; no Content-Length, will be chunked
+            response.setContentType("application/json")
+            try {
+                ContextJavaUtil.jacksonMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                        .writeValue(response.writer, responseObj)
+                response.writer.flush()
+                if (logger.isTraceEnabled()) {
+                    Long startTime = (Long) requestAttributes.get("moquiRequestStartTime")
+                    String timeMsg = ""
+                    if (startTime) timeMsg = "in ${(System.currentTimeMillis()-startTime)}ms"
+                    logger.trace("Sent JSON response ${timeMsg} for ${request.getMethod()} to ${request.getPathInfo()}")
+                }
+            } catch (Throwable t) {
+                if (!response.isCommitted()) {
+                    // nothing sent yet (values are flushed every EntityStreamWriter.flushRows), send an error instead
+                    response.resetBuffer()
+                    logger.error("Error writing JSON response", t)
+                    sendJsonErrorInternal(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t.toString(), t, response)
+                } else {
+                    // status and part of the body already sent; rethrow so the container aborts the connection instead
+                    //     of ending the chunked response normally, and the client sees it as incomplete
+                    logger.error("Error writing JSON response after partially sent, response truncated", t)
+                    throw t
+                }
+            } finally {
+                closeStreamWriters(responseObj)
+            }
+            return
+        }
         if (responseObj != null) jsonStr = ContextJavaUtil.jacksonMapper.writeValueAsString(responseObj)
 
         if (!jsonStr) return
@@ -736,6 +770,36 @@ class WebFacadeImpl implements WebFacade {
             logger.error("Error sending JSON string response", e)
         }
     }
+    /** True if the response is an EntityStreamWriter or a Map with one in it (directly or in a Map) */
+    static boolean hasStreamWriter(Object responseObj) {
+        if (responseObj instanceof EntityStreamWriter) return true
+        if (responseObj instanceof Map) {
+            for (Object value in ((Map) responseObj).values())
+                if ((value instanceof EntityStreamWriter || value instanceof Map) && hasStreamWriter(value)) return true
+        }
+        return false
+    }
+    /** Replace EntityStreamWriter objects in a response (directly or in a Map) with a List of the values they would write,
+     * closing them; for a response used as objects instead of written as JSON */
+    static Object materializeStreamWriters(Object responseObj) {
+        if (responseObj instanceof EntityStreamWriter) return ((EntityStreamWriter) responseObj).toList()
+        if (!(responseObj instanceof Map) || !hasStreamWriter(responseObj)) return responseObj
+        Map<Object, Object> responseMap = new LinkedHashMap<>((Map<Object, Object>) responseObj)
+        for (Map.Entry<Object, Object> entry in responseMap.entrySet()) {
+            Object value = entry.getValue()
+            if (value instanceof EntityStreamWriter || value instanceof Map) entry.setValue(materializeStreamWriters(value))
+        }
+        return responseMap
+    }
+    /** Close EntityStreamWriter objects in a response (directly or in a Map) in case not written, like after an error */
+    static void closeStreamWriters(Object responseObj) {
+        if (responseObj instanceof EntityStreamWriter) {
+            ((EntityStreamWriter) responseObj).close()
+        } else if (responseObj instanceof Map) {
+            for (Object value in ((Map) responseObj).values())
+                if (value instanceof EntityStreamWriter || value instanceof Map) closeStreamWriters(value)
+        }
+    }
 
     @Override
     void sendJsonError(int statusCode, String message, Throwable origThrowable) {
@@ -992,6 +1056,7 @@ class WebFacadeImpl implements WebFacade {
                 if (parmStack.xPageMaxIndex != null) response.addIntHeader('X-Page-Max-Index', parmStack.xPageMaxIndex as int)
                 if (parmStack.xPageRangeLow != null) response.addIntHeader('X-Page-Range-Low', parmStack.xPageRangeLow as int)
                 if (parmStack.xPageRangeHigh != null) response.addIntHeader('X-Page-Range-High', parmStack.xPageRangeHigh as int)
+                if (parmStack.xPageCursor != null) response.addHeader('X-Page-Cursor', parmStack.xPageCursor as String)
 
                 // NOTE: This will always respond with 200 OK, consider using 201 Created (for successful POST, create PUT)
                 //     and 204 No Content (for DELETE and other when no content is returned)
@@ -1014,6 +1079,10 @@ class WebFacadeImpl implements WebFacade {
             logger.warn("REST Entity Value Not Found (404): " + e.message)
             // record doesn't exist, send 404 Not Found
             sendJsonError(HttpServletResponse.SC_NOT_FOUND, null, e)
+        } catch (EntityFindBase.SeekCursorException e) {
+            logger.warn("REST Bad Request (400): " + e.message)
+            // invalid pageCursor or order by for seek pagination
+            sendJsonError(HttpServletResponse.SC_BAD_REQUEST, null, e)
         } catch (Throwable t) {
             String errorMessage = t.toString()
             if (eci.message.hasError()) {
@@ -1096,6 +1165,7 @@ class WebFacadeImpl implements WebFacade {
 
                 if (eci.message.hasError()) {
                     // if error return that
+                    closeStreamWriters(restResult.responseObj)
                     String errorsString = eci.message.errorsString
                     logger.warn((String) "Error message from Service REST API (400): " + errorsString)
                     sendJsonError(HttpServletResponse.SC_BAD_REQUEST, errorsString, null)
@@ -1128,6 +1198,10 @@ class WebFacadeImpl implements WebFacade {
             logger.warn("REST Entity Value Not Found (404): " + e.message)
             // record doesn't exist, send 404 Not Found
             sendJsonError(HttpServletResponse.SC_NOT_FOUND, null, e)
+        } catch (EntityFindBase.SeekCursorException e) {
+            logger.warn("REST Bad Request (400): " + e.message)
+            // invalid pageCursor or order by for seek pagination
+            sendJsonError(HttpServletResponse.SC_BAD_REQUEST, null, e)
         } catch (Throwable t) {
             String errorMessage = t.toString()
             if (eci.message.hasError()) {
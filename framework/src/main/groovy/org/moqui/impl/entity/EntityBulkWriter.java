@@ -0,0 +1,217 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.context.ArtifactExecutionInfo;
+import org.moqui.entity.EntityException;
+import org.moqui.entity.EntityValue;
+import org.moqui.impl.context.ArtifactExecutionFacadeImpl;
+import org.moqui.impl.context.ArtifactExecutionInfoImpl;
+import org.moqui.impl.context.ExecutionContextImpl;
+import org.moqui.impl.context.TransactionFacadeImpl;
+import org.moqui.util.LiteStringMap;
+import org.moqui.util.MNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk create and create or update (upsert) for EntityFacade.createBulk() and upsertBulk() on JDBC datasources. Values
+ * are written with multi-row INSERT statements (database.@insert-max-rows) or a JDBC batch of single row statements, and
+ * upserts with the database specific syntax in database.@upsert-style instead of a find then create or update per value.
+ *
+ * This skips per-value EECA rules, audit logs, and DataFeed checks, so for entities that have any of those (or other
+ * cases where the bulk SQL can't be used, like with a TransactionCache in place) each value is written with create() or
+ * createOrUpdate() instead.
+ */
+public class EntityBulkWriter {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityBulkWriter.class);
+    /** Max parameters for a multi-row statement, less than the lowest common limit (2100 for SQL Server) */
+    private static final int maxStatementParameters = 2000;
+
+    private final EntityFacadeImpl efi;
+    private final EntityDefinition ed;
+    private final boolean upsert;
+
+    public EntityBulkWriter(EntityFacadeImpl efi, EntityDefinition ed, boolean upsert) {
+        this.efi = efi;
+        this.ed = ed;
+        this.upsert = upsert;
+    }
+
+    public void write(List<EntityValue> valueList) {
+        if (valueList == null || valueList.isEmpty()) return;
+        int valueListSize = valueList.size();
+        for (int i = 0; i < valueListSize; i++) {
+            EntityValue ev = valueList.get(i);
+            if (!(ev instanceof EntityValueBase) || ((EntityValueBase) ev).getEntityDefinition() != ed)
+                throw new EntityException("All values for bulk " + (upsert ? "upsert" : "create") + " must be for entity " + ed.getFullEntityName() + ", found " + ev.getEntityName());
+        }
+
+        ExecutionContextImpl ec = efi.ecfi.getEci();
+        String upsertStyle = upsert ? getUpsertStyle() : null;
+        if (!canWriteBulk(ec, upsertStyle)) {
+            for (int i = 0; i < valueListSize; i++) {
+                EntityValue ev = valueList.get(i);
+                if (upsert) ev.createOrUpdate();
+                else ev.create();
+            }
+            return;
+        }
+
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
+        ArtifactExecutionFacadeImpl aefi = ec.artifactExecutionFacade;
+        EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo;
+        String entityName = ed.getFullEntityName();
+
+        // authz once for the entity instead of per value; upsert may create or update so check both
+        ArtifactExecutionInfoImpl createAei = new ArtifactExecutionInfoImpl(entityName, ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_CREATE, "create");
+        aefi.pushInternal(createAei, !entityInfo.authorizeSkipCreate, false);
+        ArtifactExecutionInfoImpl updateAei = null;
+        boolean beganTransaction = false;
+        try {
+            if (upsert) {
+                updateAei = new ArtifactExecutionInfoImpl(entityName, ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_UPDATE, "update");
+                aefi.pushInternal(updateAei, !entityInfo.authorizeSkipTrue, false);
+            }
+            beganTransaction = tfi.begin(null);
+
+            final Long txStartTime = tfi.getCurrentTransactionStartTime();
+            Timestamp lastUpdatedStamp = new Timestamp(txStartTime != null && txStartTime > 0 ? txStartTime : System.currentTimeMillis());
+            for (int i = 0; i < valueListSize; i++)
+                ((EntityValueBase) valueList.get(i)).prepareBulkWrite(ec, lastUpdatedStamp, upsert);
+
+            writeValues(valueList, upsertStyle);
+
+            EntityCache entityCache = efi.getEntityCache();
+            for (int i = 0; i < valueListSize; i++) {
+                EntityValueBase evb = (EntityValueBase) valueList.get(i);
+                evb.setSyncedWithDb();
+                // for upsert clear as an update, there may be an existing record in list caches
+                entityCache.clearCacheForValue(evb, !upsert);
+            }
+        } catch (Throwable t) {
+            tfi.rollback(beganTransaction, "Error in bulk " + (upsert ? "upsert" : "create") + " of " + valueListSize + " " + entityName + " values", t);
+            if (t instanceof SQLException) throw new EntitySqlException("Error in bulk " + (upsert ? "upsert" : "create") +
+                    " of " + valueListSize + " " + entityName + " values", (SQLException) t);
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new EntityException("Error in bulk " + (upsert ? "upsert" : "create") + " of " + valueListSize + " " + entityName + " values", t);
+        } finally {
+            tfi.commit(beganTransaction);
+            if (updateAei != null) aefi.pop(updateAei);
+            aefi.pop(createAei);
+        }
+    }
+
+    String getUpsertStyle() {
+        MNode databaseNode = efi.getDatabaseNode(ed.getEntityGroupName());
+        String upsertStyle = databaseNode != null ? databaseNode.attribute("upsert-style") : null;
+        if (upsertStyle == null || upsertStyle.isEmpty() || "none".equals(upsertStyle)) return null;
+        return upsertStyle;
+    }
+
+    boolean canWriteBulk(ExecutionContextImpl ec, String upsertStyle) {
+        EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo;
+        if (entityInfo.isView || !entityInfo.isEntityDatasourceFactoryImpl) return false;
+        if (upsert && (upsertStyle == null || entityInfo.optimisticLock || entityInfo.createOnly || entityInfo.createOnlyFields)) return false;
+        // non-PK defaults only apply to new records and to empty fields of existing ones, createOrUpdate() handles that
+        if (upsert && entityInfo.nonPkFieldDefaults != null) return false;
+        // writes with a TransactionCache go through it, it handles batching on flush
+        if (efi.ecfi.transactionFacade.getTransactionCache() != null) return false;
+
+        ArtifactExecutionFacadeImpl aefi = ec.artifactExecutionFacade;
+        String entityName = ed.getFullEntityName();
+        if (efi.hasEecaRules(entityName) && !aefi.entityEcaDisabled()) return false;
+        if (entityInfo.needsAuditLog && !aefi.entityAuditLogDisabled()) return false;
+        if (!aefi.entityDataFeedDisabled() && !"moqui.server.ArtifactHitBin".equals(entityName) &&
+                efi.getEntityDataFeed().getDataFeedEntityInfoList(entityName).size() > 0) return false;
+        return true;
+    }
+
+    private void writeValues(List<EntityValue> valueList, String upsertStyle) throws SQLException {
+        String groupName = ed.getEntityGroupName();
+        MNode databaseNode = efi.getDatabaseNode(groupName);
+        String maxRowsAttr = databaseNode != null ? databaseNode.attribute("insert-max-rows") : null;
+        int insertMaxRows = maxRowsAttr != null && !maxRowsAttr.isEmpty() ? Integer.parseInt(maxRowsAttr) : 1;
+        int batchSize = Math.max(efi.getWriteBatchSize(groupName), 1);
+
+        efi.getEntityDbMeta().checkTableRuntime(ed);
+        efi.ecfi.transactionFacade.registerGroupWrite(groupName);
+        Connection con = efi.getConnection(groupName);
+        try {
+            int valueListSize = valueList.size();
+            int chunkStart = 0;
+            while (chunkStart < valueListSize) {
+                // a chunk is consecutive values with the same fields, for upsert without the same PK twice
+                FieldInfo[] fieldArray = ((EntityValueBase) valueList.get(chunkStart)).makeCreateFieldArray();
+                int fieldCount = 0;
+                while (fieldCount < fieldArray.length && fieldArray[fieldCount] != null) fieldCount++;
+                int rowsPerStatement = Math.min(insertMaxRows, maxStatementParameters / Math.max(fieldCount, 1));
+                int chunkMax = rowsPerStatement > 1 ? rowsPerStatement : batchSize;
+                HashSet<Map<String, Object>> chunkPks = upsert ? new HashSet<>() : null;
+                if (chunkPks != null) chunkPks.add(((EntityValueBase) valueList.get(chunkStart)).getPrimaryKeys());
+
+                int chunkEnd = chunkStart + 1;
+                while (chunkEnd < valueListSize && chunkEnd - chunkStart < chunkMax) {
+                    EntityValueBase evb = (EntityValueBase) valueList.get(chunkEnd);
+                    if (!Arrays.equals(fieldArray, evb.makeCreateFieldArray())) break;
+                    if (chunkPks != null && !chunkPks.add(evb.getPrimaryKeys())) break;
+                    chunkEnd++;
+                }
+
+                writeChunk(con, valueList, chunkStart, chunkEnd, fieldArray, rowsPerStatement > 1, upsertStyle);
+                chunkStart = chunkEnd;
+            }
+        } finally {
+            con.close();
+        }
+    }
+
+    private void writeChunk(Connection con, List<EntityValue> valueList, int start, int end, FieldInfo[] fieldArray,
+                            boolean multiRow, String upsertStyle) throws SQLException {
+        int rowCount = end - start;
+        String sql = ed.entityInfo.makeBulkInsertSql(fieldArray, multiRow ? rowCount : 1, upsertStyle);
+        PreparedStatement ps = con.prepareStatement(sql);
+        try {
+            int paramIndex = 1;
+            for (int r = start; r < end; r++) {
+                EntityValueBase evb = (EntityValueBase) valueList.get(r);
+                // if enabled register locks before operation, same as basicCreate()
+                evb.registerMutateLock();
+                LiteStringMap<Object> valueMap = evb.valueMapInternal;
+                if (!multiRow) paramIndex = 1;
+                for (int i = 0; i < fieldArray.length; i++) {
+                    FieldInfo fi = fieldArray[i];
+                    if (fi == null) break;
+                    fi.setPreparedStatementValue(ps, paramIndex++, valueMap.getByIString(fi.name, fi.index), ed, efi);
+                }
+                if (!multiRow) ps.addBatch();
+            }
+            if (multiRow) ps.executeUpdate();
+            else ps.executeBatch();
+            if (logger.isTraceEnabled()) logger.trace("Bulk " + (upsertStyle != null ? "upsert" : "create") + " of " + rowCount + " " + ed.getFullEntityName() + " values with SQL: " + sql);
+        } finally {
+            ps.close();
+        }
+    }
+}
@@ -16,10 +16,18 @@ package org.moqui.impl.entity
 import groovy.transform.CompileStatic
 
 import javax.cache.Cache
+import javax.transaction.Status
+import javax.transaction.Synchronization
 import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityFind
 import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
 import org.moqui.impl.context.CacheFacadeImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.context.TransactionFacadeImpl
+import org.moqui.jcache.MCache
+import org.moqui.jcache.MCompactSerializer
+import org.moqui.jcache.MEntry
 import org.moqui.util.MNode
 import org.moqui.util.SimpleTopic
 import org.slf4j.Logger
@@ -27,6 +35,9 @@ import org.slf4j.LoggerFactory
 
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
 
 @CompileStatic
 class EntityCache {
@@ -45,10 +56,23 @@ class EntityCache {
 
     Cache<String, Set<EntityCondition>> oneBfCache
     protected final Map<String, List<String>> cachedListViewEntitiesByMember = new HashMap<>()
+    /** Invalidation index for list cache conditions by entity name, used instead of checking every cached condition */
+    protected final ConcurrentHashMap<String, EntityListCacheIndex> listCacheIndexByEntity = new ConcurrentHashMap<>()
+    /** Loads in progress for one and list cache misses, key is cache name and condition; see beginLoad() */
+    protected final ConcurrentHashMap<ViewRaKey, CountDownLatch> loadsInProgress = new ConcurrentHashMap<>()
+    /** Max time to wait for another thread loading the same condition before querying anyway */
+    static final long loadWaitMillis = 10000L
 
     protected final boolean distributedCacheInvalidate
-    /** Entity Cache Invalidate Topic */
-    private SimpleTopic<EntityCacheInvalidate> entityCacheInvalidateTopic = null
+    /** If true a transaction's invalidations are published as one EntityCacheInvalidateBatch, otherwise as one
+     * EntityCacheInvalidate per value so topic listeners that only know that message still work */
+    protected final boolean dciBatchMessages
+    /** Max PKs per entity in a transaction's invalidate batch, beyond this the whole entity cache is cleared on other servers */
+    protected final int dciBatchThreshold
+    /** Identifies batches published from this instance, they are already applied locally when the value is written */
+    final String dciSenderId = UUID.randomUUID().toString()
+    /** Entity Cache Invalidate Topic, messages are EntityCacheInvalidate, or EntityCacheInvalidateBatch with dci-batch-messages */
+    private SimpleTopic<Externalizable> entityCacheInvalidateTopic = null
 
     EntityCache(EntityFacadeImpl efi) {
         this.efi = efi
@@ -58,12 +82,15 @@ class EntityCache {
 
         MNode entityFacadeNode = efi.getEntityFacadeNode()
         distributedCacheInvalidate = entityFacadeNode.attribute("distributed-cache-invalidate") == "true" && entityFacadeNode.attribute("dci-topic-factory")
+        String dciBatchThresholdAttr = entityFacadeNode.attribute("dci-batch-threshold")
+        dciBatchThreshold = dciBatchThresholdAttr ? (dciBatchThresholdAttr as int) : 1000
+        dciBatchMessages = entityFacadeNode.attribute("dci-batch-messages") == "true"
         logger.info("Entity Cache initialized, distributed cache invalidate enabled: ${distributedCacheInvalidate}")
 
         if (distributedCacheInvalidate) {
             try {
                 String dciTopicFactory = entityFacadeNode.attribute("dci-topic-factory")
-                entityCacheInvalidateTopic = (SimpleTopic<EntityCacheInvalidate>) efi.ecfi.getTool(dciTopicFactory, SimpleTopic.class)
+                entityCacheInvalidateTopic = (SimpleTopic<Externalizable>) efi.ecfi.getTool(dciTopicFactory, SimpleTopic.class)
             } catch (Exception e) {
                 logger.error("Entity distributed cache invalidate is enabled but could not initialize", e)
             }
@@ -97,11 +124,208 @@ class EntityCache {
         }
     }
 
+    /** All cache invalidations for a transaction, deduplicated by entity and PK, sent once on commit.
+     * Only PK values are included (with field names once per entity) to keep the message small. */
+    static class EntityCacheInvalidateBatch implements Externalizable {
+        String senderId
+        LinkedHashMap<String, EntityPkInvalidate> pkInvalidateByEntity = new LinkedHashMap<>()
+
+        EntityCacheInvalidateBatch() { }
+        EntityCacheInvalidateBatch(String senderId) { this.senderId = senderId }
+
+        boolean isEmpty() { return pkInvalidateByEntity.isEmpty() }
+        void addValue(EntityDefinition ed, EntityValueBase evb, int threshold) {
+            String fullEntityName = ed.entityInfo.fullEntityName
+            EntityPkInvalidate pkInvalidate = (EntityPkInvalidate) pkInvalidateByEntity.get(fullEntityName)
+            if (pkInvalidate == null) {
+                pkInvalidate = new EntityPkInvalidate(fullEntityName, ed.getPkFieldNames())
+                pkInvalidateByEntity.put(fullEntityName, pkInvalidate)
+            }
+            pkInvalidate.addValue(evb, threshold)
+        }
+        /** Clear all caches for the entity, like for a set-based update or delete where the records are not known */
+        void addClearAll(EntityDefinition ed) {
+            String fullEntityName = ed.entityInfo.fullEntityName
+            EntityPkInvalidate pkInvalidate = (EntityPkInvalidate) pkInvalidateByEntity.get(fullEntityName)
+            if (pkInvalidate == null) {
+                pkInvalidate = new EntityPkInvalidate(fullEntityName, ed.getPkFieldNames())
+                pkInvalidateByEntity.put(fullEntityName, pkInvalidate)
+            }
+            pkInvalidate.pkValueSet = null
+        }
+
+        @Override void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(senderId)
+            out.writeInt(pkInvalidateByEntity.size())
+            for (EntityPkInvalidate pkInvalidate in pkInvalidateByEntity.values()) pkInvalidate.write(out)
+        }
+        @Override void readExternal(ObjectInput objectInput) throws IOException, ClassNotFoundException {
+            senderId = objectInput.readUTF()
+            int entityCount = objectInput.readInt()
+            for (int i = 0; i < entityCount; i++) {
+                EntityPkInvalidate pkInvalidate = EntityPkInvalidate.read(objectInput)
+                pkInvalidateByEntity.put(pkInvalidate.entityName, pkInvalidate)
+            }
+        }
+    }
+    static class EntityPkInvalidate {
+        String entityName
+        ArrayList<String> pkFieldNames
+        /** PK values in pkFieldNames order; set to null when over the threshold, meaning clear all caches for the entity */
+        LinkedHashSet<List<Object>> pkValueSet = new LinkedHashSet<>()
+
+        EntityPkInvalidate(String entityName, ArrayList<String> pkFieldNames) {
+            this.entityName = entityName
+            this.pkFieldNames = pkFieldNames
+        }
+
+        boolean isClearAll() { return pkValueSet == null }
+        void addValue(EntityValueBase evb, int threshold) {
+            if (pkValueSet == null) return
+            int pkSize = pkFieldNames.size()
+            ArrayList<Object> pkValues = new ArrayList<>(pkSize)
+            for (int i = 0; i < pkSize; i++) pkValues.add(evb.getNoCheckSimple((String) pkFieldNames.get(i)))
+            pkValueSet.add(pkValues)
+            if (pkValueSet.size() > threshold) pkValueSet = null
+        }
+        ArrayList<Map<String, Object>> getPkMaps() {
+            ArrayList<Map<String, Object>> pkMaps = new ArrayList<>(pkValueSet.size())
+            int pkSize = pkFieldNames.size()
+            for (List<Object> pkValues in pkValueSet) {
+                Map<String, Object> pkMap = new HashMap<>()
+                for (int i = 0; i < pkSize; i++) pkMap.put((String) pkFieldNames.get(i), pkValues.get(i))
+                pkMaps.add(pkMap)
+            }
+            return pkMaps
+        }
+
+        void write(ObjectOutput out) throws IOException {
+            out.writeUTF(entityName)
+            out.writeBoolean(pkValueSet == null)
+            if (pkValueSet == null) return
+            int pkSize = pkFieldNames.size()
+            out.writeInt(pkSize)
+            for (int i = 0; i < pkSize; i++) out.writeUTF((String) pkFieldNames.get(i))
+            out.writeInt(pkValueSet.size())
+            for (List<Object> pkValues in pkValueSet) for (int i = 0; i < pkSize; i++) out.writeObject(pkValues.get(i))
+        }
+        static EntityPkInvalidate read(ObjectInput objectInput) throws IOException, ClassNotFoundException {
+            String entityName = objectInput.readUTF()
+            boolean clearAll = objectInput.readBoolean()
+            if (clearAll) {
+                EntityPkInvalidate pkInvalidate = new EntityPkInvalidate(entityName, null)
+                pkInvalidate.pkValueSet = null
+                return pkInvalidate
+            }
+            int pkSize = objectInput.readInt()
+            ArrayList<String> pkFieldNames = new ArrayList<>(pkSize)
+            for (int i = 0; i < pkSize; i++) pkFieldNames.add(objectInput.readUTF())
+            EntityPkInvalidate pkInvalidate = new EntityPkInvalidate(entityName, pkFieldNames)
+            int valueCount = objectInput.readInt()
+            for (int v = 0; v < valueCount; v++) {
+                ArrayList<Object> pkValues = new ArrayList<>(pkSize)
+                for (int i = 0; i < pkSize; i++) pkValues.add(objectInput.readObject())
+                pkInvalidate.pkValueSet.add(pkValues)
+            }
+            return pkInvalidate
+        }
+    }
+
+    /** Collects invalidations for the active transaction, deduplicated by entity and PK, and publishes them after commit;
+     * as one batch with dci-batch-messages, otherwise as one EntityCacheInvalidate per value. In both cases when more than
+     * dci-batch-threshold values of an entity are written other servers are told to clear all caches for the entity. */
+    static class CacheInvalidateSynchronization implements Synchronization {
+        protected final EntityCache entityCache
+        protected final EntityCacheInvalidateBatch batch
+        protected final LinkedHashMap<String, LinkedHashMap<List<Object>, EntityCacheInvalidate>> invalidateByEntity
+        /** Without dci-batch-messages the entities over the threshold, published as a batch to clear all caches for each */
+        protected EntityCacheInvalidateBatch clearAllBatch = (EntityCacheInvalidateBatch) null
+
+        CacheInvalidateSynchronization(EntityCache entityCache) {
+            this.entityCache = entityCache
+            if (entityCache.dciBatchMessages) {
+                batch = new EntityCacheInvalidateBatch(entityCache.dciSenderId)
+                invalidateByEntity = null
+            } else {
+                batch = null
+                invalidateByEntity = new LinkedHashMap<>()
+            }
+        }
+
+        void addValue(EntityDefinition ed, EntityValueBase evb, boolean isCreate) {
+            if (batch != null) { batch.addValue(ed, evb, entityCache.dciBatchThreshold); return }
+
+            String fullEntityName = ed.entityInfo.fullEntityName
+            if (clearAllBatch != null && clearAllBatch.pkInvalidateByEntity.containsKey(fullEntityName)) return
+            LinkedHashMap<List<Object>, EntityCacheInvalidate> invalidateByPk = invalidateByEntity.get(fullEntityName)
+            if (invalidateByPk == null) {
+                invalidateByPk = new LinkedHashMap<>()
+                invalidateByEntity.put(fullEntityName, invalidateByPk)
+            }
+            ArrayList<String> pkFieldNames = ed.getPkFieldNames()
+            int pkSize = pkFieldNames.size()
+            ArrayList<Object> pkKey = new ArrayList<>(pkSize)
+            for (int i = 0; i < pkSize; i++) pkKey.add(evb.getNoCheckSimple((String) pkFieldNames.get(i)))
+            EntityCacheInvalidate existing = (EntityCacheInvalidate) invalidateByPk.get(pkKey)
+            // keep the latest value, and isCreate if any write was a create so list caches are checked for the new record
+            invalidateByPk.put(pkKey, new EntityCacheInvalidate(evb, isCreate || (existing != null && existing.isCreate)))
+
+            if (invalidateByPk.size() > entityCache.dciBatchThreshold) {
+                // too many to hold and send one at a time, have other servers clear all caches for the entity instead
+                invalidateByEntity.remove(fullEntityName)
+                if (clearAllBatch == null) clearAllBatch = new EntityCacheInvalidateBatch(entityCache.dciSenderId)
+                clearAllBatch.addClearAll(ed)
+            }
+        }
+        /** Only used with dci-batch-messages, see EntityCache.canClearEntityDistributed() */
+        void addClearAll(EntityDefinition ed) { batch.addClearAll(ed) }
+
+        @Override void beforeCompletion() { }
+        @Override void afterCompletion(int status) {
+            // on rollback nothing changed in the database, local caches were already cleared when values were written
+            if (status != Status.STATUS_COMMITTED) return
+            if (batch != null) {
+                if (!batch.isEmpty()) entityCache.publishInvalidate(batch)
+            } else {
+                for (LinkedHashMap<List<Object>, EntityCacheInvalidate> invalidateByPk in invalidateByEntity.values())
+                    for (EntityCacheInvalidate eci in invalidateByPk.values()) entityCache.publishInvalidate(eci)
+                if (clearAllBatch != null) entityCache.publishInvalidate(clearAllBatch)
+            }
+        }
+    }
+
     static class EmptyRecord extends EntityValueImpl {
         EmptyRecord() { }
         EmptyRecord(EntityDefinition ed, EntityFacadeImpl efip) { super(ed, efip) }
     }
 
+    /** Serializer for the off-heap tier of entity one and list caches and for cache snapshots, values coming back are
+     * immutable like when first cached */
+    static class OffHeapSerializer extends MCompactSerializer<Object> {
+        protected final EntityFacadeImpl efi
+
+        OffHeapSerializer() { efi = null }
+        /** Use when deserializing before Moqui.getExecutionContextFactory() is available */
+        OffHeapSerializer(EntityFacadeImpl efi) { this.efi = efi }
+
+        @Override protected CompactObjectInput makeInput(InputStream input) {
+            if (efi == null) return super.makeInput(input)
+            return new CompactObjectInput(input) {
+                @Override protected Externalizable newExternalizable(String className) throws ClassNotFoundException, IOException {
+                    Externalizable ext = super.newExternalizable(className)
+                    if (ext instanceof EntityValueBase) ((EntityValueBase) ext).setEntityFacadeTransient(efi)
+                    return ext
+                }
+            }
+        }
+        @Override Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+            Object value = super.deserialize(bytes)
+            if (value instanceof EntityValueBase) ((EntityValueBase) value).setFromCache()
+            else if (value instanceof EntityListImpl) ((EntityListImpl) value).setFromCache()
+            return value
+        }
+    }
+
     void putInOneCache(EntityDefinition ed, EntityCondition whereCondition, EntityValueBase newEntityValue,
                        Cache<EntityCondition, EntityValueBase> entityOneCache) {
         if (entityOneCache == null) entityOneCache = ed.getCacheOne(this)
@@ -129,9 +353,100 @@ class EntityCache {
         // EntityList elToCache = el != null ? el : EntityListImpl.EMPTY
         EntityListImpl elToCache = el != null ? el : efi.getEmptyList()
         elToCache.setFromCache()
-        entityListCache.put(whereCondition, elToCache)
+        // register RA and index entries before the put so an invalidation for a concurrent write can't miss the new entry
         registerCacheListRa(ed.getFullEntityName(), whereCondition, elToCache)
+        EntityListCacheIndex listIndex = getListCacheIndex(ed.getFullEntityName())
+        listIndex.addAndPut(entityListCache, whereCondition, elToCache)
+        if (entityListCache instanceof MCache) listIndex.rebuildIfStale(entityListCache, ((MCache) entityListCache).size())
+    }
+    EntityListCacheIndex getListCacheIndex(String fullEntityName) {
+        EntityListCacheIndex listIndex = listCacheIndexByEntity.get(fullEntityName)
+        if (listIndex == null) listIndex = listCacheIndexByEntity.computeIfAbsent(fullEntityName, { new EntityListCacheIndex() })
+        return listIndex
+    }
+
+    /**
+     * Single-flight loading for one and list cache misses. Call on a miss: if no other thread is loading the same condition
+     * for the cache returns a latch and the caller must query, put in the cache, and then call endLoad() (in a finally
+     * block). If another thread is loading it waits for that thread and returns null, the caller should then get from the
+     * cache again and only query if still not there (load failed, invalidated, or took too long).
+     *
+     * In a transaction returns null right away without waiting or becoming the loader: the other thread's query may be
+     * blocked on row locks held by this transaction, so waiting would stall both until the wait times out.
+     */
+    CountDownLatch beginLoad(Cache cache, EntityCondition whereCondition) {
+        if (whereCondition == null) return null
+        if (efi.ecfi.transactionFacade.isTransactionActive()) return null
+        ViewRaKey loadKey = new ViewRaKey(cache.getName(), whereCondition)
+        CountDownLatch loadLatch = new CountDownLatch(1)
+        CountDownLatch existingLatch = loadsInProgress.putIfAbsent(loadKey, loadLatch)
+        if (existingLatch == null) return loadLatch
+        try {
+            if (!existingLatch.await(loadWaitMillis, TimeUnit.MILLISECONDS))
+                logger.warn("Waited ${loadWaitMillis}ms for load of ${loadKey}, querying anyway")
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt()
+        }
+        return null
     }
+    /** Call after the query and put in the cache for a latch from beginLoad(), records load time in the cache stats */
+    void endLoad(Cache cache, EntityCondition whereCondition, CountDownLatch loadLatch, long loadStartNanos) {
+        if (loadLatch == null) return
+        if (cache instanceof MCache) ((MCache) cache).getMStats().recordLoad(System.nanoTime() - loadStartNanos)
+        loadsInProgress.remove(new ViewRaKey(cache.getName(), whereCondition), loadLatch)
+        loadLatch.countDown()
+    }
+
+    /**
+     * For caches with refresh-after (refresh-ahead) call on a hit: if the entry is due for refresh and not already being
+     * refreshed reload it on the worker pool, the current value is still returned to the caller. The reloaded value only
+     * replaces the entry if it was not cleared or replaced in the mean time.
+     */
+    void checkRefresh(EntityDefinition ed, EntityCondition whereCondition, Cache cache, boolean isList) {
+        if (whereCondition == null || !(cache instanceof MCache)) return
+        MCache mCache = (MCache) cache
+        if (mCache.getRefreshAfterMillis() <= 0L) return
+        MEntry claimed = mCache.claimRefresh(whereCondition)
+        if (claimed == null) return
+
+        ExecutionContextImpl.ThreadPoolRunnable runnable = new ExecutionContextImpl.ThreadPoolRunnable(efi.ecfi, {
+            refreshEntry(ed, whereCondition, mCache, claimed, isList) })
+        try {
+            efi.ecfi.workerPool.execute(runnable)
+        } catch (RejectedExecutionException e) {
+            mCache.cancelRefresh(whereCondition, claimed)
+            if (logger.isTraceEnabled()) logger.trace("Worker pool rejected refresh of ${ed.getFullEntityName()} ${whereCondition}: ${e.toString()}")
+        }
+    }
+    protected void refreshEntry(EntityDefinition ed, EntityCondition whereCondition, MCache mCache, MEntry claimed, boolean isList) {
+        boolean completed = false
+        long startNanos = System.nanoTime()
+        try {
+            efi.ecfi.getEci().artifactExecutionFacade.disableAuthz()
+            String entityName = ed.getFullEntityName()
+            EntityFind ef = efi.find(entityName).condition(whereCondition).useCache(false)
+            if (isList) {
+                EntityListImpl el = (EntityListImpl) ef.list()
+                el.setFromCache()
+                if (mCache.completeRefresh(whereCondition, claimed, el)) {
+                    registerCacheListRa(entityName, whereCondition, el)
+                    getListCacheIndex(entityName).add(whereCondition)
+                }
+            } else {
+                EntityValueBase evb = (EntityValueBase) ef.one()
+                if (evb != null) evb.setFromCache()
+                if (mCache.completeRefresh(whereCondition, claimed, evb != null ? evb : new EmptyRecord(ed, efi)))
+                    registerCacheOneRa(entityName, whereCondition, evb)
+            }
+            completed = true
+            mCache.getMStats().recordLoad(System.nanoTime() - startNanos)
+        } catch (Throwable t) {
+            logger.warn("Error refreshing cache ${mCache.getName()} entry ${whereCondition}, will retry on a later get: ${t.toString()}")
+        } finally {
+            if (!completed) mCache.cancelRefresh(whereCondition, claimed)
+        }
+    }
+
     /*
     Long getFromCountCache(EntityDefinition ed, EntityCondition whereCondition, Cache<EntityCondition, Long> entityCountCache) {
         if (entityCountCache == null) entityCountCache = getCacheCount(ed.getFullEntityName())
@@ -151,12 +466,86 @@ class EntityCache {
             // NOTE: this takes some time to run and is done a LOT, for nearly all entity CrUD ops
             // NOTE: have set many entities as never cache
             // NOTE: can't avoid message when caches don't exist and not used in view-entity as it might be on another server
-            EntityCacheInvalidate eci = new EntityCacheInvalidate(evb, isCreate)
-            entityCacheInvalidateTopic.publish(eci)
+            TransactionFacadeImpl tfi = efi.ecfi.transactionFacade
+            if (tfi.isTransactionActive()) {
+                // clear local caches now using the full value, other servers get a PK batch once for the transaction on commit
+                clearCacheForValueActual(evb, isCreate)
+                CacheInvalidateSynchronization cis = (CacheInvalidateSynchronization) tfi.getActiveSynchronization("EntityCacheInvalidate")
+                if (cis == null) {
+                    cis = new CacheInvalidateSynchronization(this)
+                    tfi.putAndEnlistActiveSynchronization("EntityCacheInvalidate", cis)
+                }
+                cis.addValue(ed, evb, isCreate)
+            } else {
+                EntityCacheInvalidate eci = new EntityCacheInvalidate(evb, isCreate)
+                entityCacheInvalidateTopic.publish(eci)
+            }
         } else {
             clearCacheForValueActual(evb, isCreate)
         }
     }
+    /** False if caches can't be cleared for a whole entity on other servers, which needs dci-batch-messages when distributed
+     * cache invalidate is enabled; set-based updates and deletes are not done if false, see clearCacheForEntityWrite() */
+    boolean canClearEntityDistributed() { return !distributedCacheInvalidate || entityCacheInvalidateTopic == null || dciBatchMessages }
+    /** Called after a set-based update or delete, clears all caches for the entity here and on other servers */
+    void clearCacheForEntityWrite(EntityDefinition ed) {
+        if (ed.entityInfo.neverCache) return
+        clearCacheForEntity(ed)
+        if (!distributedCacheInvalidate || entityCacheInvalidateTopic == null) return
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade
+        if (tfi.isTransactionActive()) {
+            CacheInvalidateSynchronization cis = (CacheInvalidateSynchronization) tfi.getActiveSynchronization("EntityCacheInvalidate")
+            if (cis == null) {
+                cis = new CacheInvalidateSynchronization(this)
+                tfi.putAndEnlistActiveSynchronization("EntityCacheInvalidate", cis)
+            }
+            cis.addClearAll(ed)
+        } else {
+            EntityCacheInvalidateBatch batch = new EntityCacheInvalidateBatch(dciSenderId)
+            batch.addClearAll(ed)
+            publishInvalidate(batch)
+        }
+    }
+    protected void publishInvalidate(EntityCacheInvalidateBatch batch) {
+        try {
+            entityCacheInvalidateTopic.publish(batch)
+        } catch (Throwable t) {
+            logger.error("Error publishing entity cache invalidate batch for entities ${batch.pkInvalidateByEntity.keySet()}", t)
+        }
+    }
+    protected void publishInvalidate(EntityCacheInvalidate eci) {
+        try {
+            entityCacheInvalidateTopic.publish(eci)
+        } catch (Throwable t) {
+            logger.error("Error publishing entity cache invalidate for ${eci.evb?.getEntityName()} ${eci.evb?.getPrimaryKeys()}", t)
+        }
+    }
+    /** Handle a message from the distributed cache invalidate topic, either EntityCacheInvalidate or EntityCacheInvalidateBatch */
+    void receiveInvalidate(Object message) {
+        if (message instanceof EntityCacheInvalidate) {
+            EntityCacheInvalidate eci = (EntityCacheInvalidate) message
+            clearCacheForValueActual(eci.evb, eci.isCreate)
+        } else if (message instanceof EntityCacheInvalidateBatch) {
+            EntityCacheInvalidateBatch batch = (EntityCacheInvalidateBatch) message
+            if (dciSenderId.equals(batch.senderId)) return
+            clearCacheForBatch(batch)
+        } else {
+            logger.warn("Ignoring unknown entity cache invalidate message ${message?.getClass()?.getName()}")
+        }
+    }
+    /** Apply a batch from another server, one pass over each affected cache per entity instead of per value */
+    void clearCacheForBatch(EntityCacheInvalidateBatch batch) {
+        for (EntityPkInvalidate pkInvalidate in batch.pkInvalidateByEntity.values()) {
+            try {
+                EntityDefinition ed = efi.getEntityDefinition(pkInvalidate.entityName)
+                if (ed == null) continue
+                if (pkInvalidate.isClearAll()) clearCacheForEntity(ed)
+                else clearCacheForPkMaps(ed, pkInvalidate.getPkMaps())
+            } catch (Throwable t) {
+                logger.error("Suppressed error in entity cache batch clearing [${pkInvalidate.entityName}]", t)
+            }
+        }
+    }
     /** Does actual cache clear, called directly or distributed through topic */
     void clearCacheForValueActual(EntityValueBase evb, boolean isCreate) {
         // logger.info("====== clearCacheForValueActual isCreate=${isCreate}, evb: ${evb}")
@@ -237,17 +626,23 @@ class EntityCache {
                 if (pkCondition == null) pkCondition = efi.getConditionFactory().makeCondition(evb.getPrimaryKeys())
 
                 Cache<EntityCondition, EntityListImpl> entityListCache = ed.getCacheList(this)
+                long startNanos = System.nanoTime()
 
-                // if this was a create the RA cache won't help, so go through EACH entry and see if it matches the created value
+                // if this was a create the RA cache won't help, so go through each entry that may match and see if it matches the created value
                 // The RA cache doesn't work for updates in the scenario where a record exists but its fields don't
                 //     match a find condition when the cached list find is initially done, but is then updated so the
                 //     fields do match
-                Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
-                while (elcIterator.hasNext()) {
-                    Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
-                    EntityCondition ec = (EntityCondition) entry.getKey()
+                // the index narrows this down to conditions with equals constraints matching the value plus those with none
+                EntityListCacheIndex listIndex = getListCacheIndex(fullEntityName)
+                ArrayList<EntityCondition> candidateList = listIndex.getCandidates(evbMap)
+                int candidateListSize = candidateList.size()
+                for (int i = 0; i < candidateListSize; i++) {
+                    EntityCondition ec = (EntityCondition) candidateList.get(i)
                     // any way to efficiently clear out the RA cache for these? for now just leave and they are handled eventually
-                    if (ec.mapMatches(evbMap)) entityListCache.remove(ec)
+                    if (ec.mapMatches(evbMap)) {
+                        entityListCache.remove(ec)
+                        listIndex.remove(ec)
+                    }
                 }
 
                 // if this is an update also check reverse associations (RA) as the condition check above may not match
@@ -264,6 +659,7 @@ class EntityCache {
                             EntityCondition ec = (EntityCondition) raKey
                             // this may have already been cleared, but it is a waste of time to check for that explicitly
                             entityListCache.remove(ec)
+                            listIndex.remove(ec)
                         }
                         // we've cleared all entries that this was referring to, so clean it out too
                         listRaCache.remove(pkCondition)
@@ -286,6 +682,8 @@ class EntityCache {
                         listViewRaCache.remove(pkCondition)
                     }
                 }
+
+                if (entityListCache instanceof MCache) ((MCache) entityListCache).getMStats().countInvalidation(System.nanoTime() - startNanos)
             }
 
             // see if this entity is a member of a cached view-entity
@@ -300,19 +698,7 @@ class EntityCache {
 
                     // generally match against view-entity aliases for fields on member entity
                     // handle cases where current record (evbMap) has some keys from view-entity but not all (like UserPermissionCheck)
-                    Map<String, Object> viewMatchMap = new HashMap<>()
-                    Map<String, ArrayList<MNode>> memberFieldAliases = viewEd.getMemberFieldAliases(fullEntityName)
-                    for (Map.Entry<String, ArrayList<MNode>> mfAliasEntry in memberFieldAliases.entrySet()) {
-                        String fieldName = mfAliasEntry.getKey()
-                        if (!evbMap.containsKey(fieldName)) continue
-                        Object fieldValue = evbMap.get(fieldName)
-                        ArrayList<MNode> aliasNodeList = (ArrayList<MNode>) mfAliasEntry.getValue()
-                        int aliasNodeListSize = aliasNodeList.size()
-                        for (int j = 0 ; j < aliasNodeListSize; j++) {
-                            MNode aliasNode = (MNode) aliasNodeList.get(j)
-                            viewMatchMap.put(aliasNode.attribute("name"), fieldValue)
-                        }
-                    }
+                    Map<String, Object> viewMatchMap = makeViewMatchMap(viewEd, fullEntityName, evbMap)
                     // logger.warn("========= viewMatchMap: ${viewMatchMap}")
 
                     Cache<EntityCondition, EntityListImpl> entityListCache = viewEd.getCacheList(this)
@@ -358,6 +744,169 @@ class EntityCache {
             logger.error("Suppressed error in entity cache clearing [${evb.getEntityName()}; ${isCreate ? 'create' : 'non-create'}]", t)
         }
     }
+    protected static Map<String, Object> makeViewMatchMap(EntityDefinition viewEd, String memberEntityName, Map evbMap) {
+        Map<String, Object> viewMatchMap = new HashMap<>()
+        Map<String, ArrayList<MNode>> memberFieldAliases = viewEd.getMemberFieldAliases(memberEntityName)
+        for (Map.Entry<String, ArrayList<MNode>> mfAliasEntry in memberFieldAliases.entrySet()) {
+            String fieldName = mfAliasEntry.getKey()
+            if (!evbMap.containsKey(fieldName)) continue
+            Object fieldValue = evbMap.get(fieldName)
+            ArrayList<MNode> aliasNodeList = (ArrayList<MNode>) mfAliasEntry.getValue()
+            int aliasNodeListSize = aliasNodeList.size()
+            for (int j = 0 ; j < aliasNodeListSize; j++) {
+                MNode aliasNode = (MNode) aliasNodeList.get(j)
+                viewMatchMap.put(aliasNode.attribute("name"), fieldValue)
+            }
+        }
+        return viewMatchMap
+    }
+    /** Matching used when only PK fields are known: a condition is cleared if it matches any PK field or uses no PK field */
+    protected static boolean matchesAnyPk(EntityCondition ec, ArrayList<Map<String, Object>> pkMaps) {
+        int pkMapsSize = pkMaps.size()
+        for (int i = 0; i < pkMapsSize; i++) {
+            Map<String, Object> pkMap = (Map<String, Object>) pkMaps.get(i)
+            if (ec.mapMatchesAny(pkMap) || ec.mapKeysNotContained(pkMap)) return true
+        }
+        return false
+    }
+
+    /** Clear caches for a set of records where only the PK values are known, like from a distributed invalidate batch.
+     * The one cache is cleared by PK; list caches are cleared more broadly than clearCacheForValueActual() as non-PK field
+     * values are not available for condition matching. */
+    void clearCacheForPkMaps(EntityDefinition ed, ArrayList<Map<String, Object>> pkMaps) {
+        String fullEntityName = ed.entityInfo.fullEntityName
+        ConcurrentMap<String, Cache> localCacheMap = cfi.localCacheMap
+        int pkMapsSize = pkMaps.size()
+        if (pkMapsSize == 0) return
+
+        ArrayList<EntityCondition> pkConditions = new ArrayList<>(pkMapsSize)
+        for (int i = 0; i < pkMapsSize; i++) pkConditions.add(efi.getConditionFactory().makeCondition((Map<String, Object>) pkMaps.get(i)))
+
+        if (localCacheMap.containsKey(oneKeyBase.concat(fullEntityName))) {
+            Cache<EntityCondition, EntityValueBase> entityOneCache = ed.getCacheOne(this)
+            Cache<EntityCondition, Set<EntityCondition>> oneRaCache = ed.getCacheOneRa(this)
+            for (int i = 0; i < pkMapsSize; i++) {
+                EntityCondition pkCondition = (EntityCondition) pkConditions.get(i)
+                entityOneCache.remove(pkCondition)
+                Set<EntityCondition> raKeyList = (Set<EntityCondition>) oneRaCache.get(pkCondition)
+                if (raKeyList != null) {
+                    for (EntityCondition ec in raKeyList) entityOneCache.remove(ec)
+                    oneRaCache.remove(pkCondition)
+                }
+            }
+            Set<EntityCondition> bfKeySet = (Set<EntityCondition>) oneBfCache.get(fullEntityName)
+            if (bfKeySet != null && bfKeySet.size() > 0) {
+                Iterator<EntityCondition> bfKeySetIter = bfKeySet.iterator()
+                while (bfKeySetIter.hasNext()) {
+                    EntityCondition bfKey = (EntityCondition) bfKeySetIter.next()
+                    if (matchesAnyPk(bfKey, pkMaps)) {
+                        entityOneCache.remove(bfKey)
+                        bfKeySetIter.remove()
+                    }
+                }
+            }
+        }
+
+        if (localCacheMap.containsKey(oneViewRaKeyBase.concat(fullEntityName))) {
+            Cache<EntityCondition, Set<ViewRaKey>> oneViewRaCache = ed.getCacheOneViewRa(this)
+            for (int i = 0; i < pkMapsSize; i++) {
+                EntityCondition pkCondition = (EntityCondition) pkConditions.get(i)
+                Set<ViewRaKey> oneViewRaKeyList = (Set<ViewRaKey>) oneViewRaCache.get(pkCondition)
+                if (oneViewRaKeyList == null) continue
+                for (ViewRaKey raKey in oneViewRaKeyList) efi.getEntityDefinition(raKey.entityName).getCacheOne(this).remove(raKey.ec)
+                oneViewRaCache.remove(pkCondition)
+            }
+        }
+
+        if (localCacheMap.containsKey(listKeyBase.concat(fullEntityName))) {
+            Cache<EntityCondition, EntityListImpl> entityListCache = ed.getCacheList(this)
+            EntityListCacheIndex listIndex = getListCacheIndex(fullEntityName)
+            Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
+            while (elcIterator.hasNext()) {
+                Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
+                if (entry == null) continue
+                EntityCondition ec = (EntityCondition) entry.getKey()
+                if (matchesAnyPk(ec, pkMaps)) {
+                    elcIterator.remove()
+                    listIndex.remove(ec)
+                }
+            }
+
+            Cache<EntityCondition, Set<EntityCondition>> listRaCache = ed.getCacheListRa(this)
+            Cache<EntityCondition, Set<ViewRaKey>> listViewRaCache = ed.getCacheListViewRa(this)
+            for (int i = 0; i < pkMapsSize; i++) {
+                EntityCondition pkCondition = (EntityCondition) pkConditions.get(i)
+                Set<EntityCondition> raKeyList = (Set<EntityCondition>) listRaCache.get(pkCondition)
+                if (raKeyList != null) {
+                    for (EntityCondition raKey in raKeyList) {
+                        entityListCache.remove(raKey)
+                        listIndex.remove(raKey)
+                    }
+                    listRaCache.remove(pkCondition)
+                }
+                Set<ViewRaKey> listViewRaKeyList = (Set<ViewRaKey>) listViewRaCache.get(pkCondition)
+                if (listViewRaKeyList != null) {
+                    for (ViewRaKey raKey in listViewRaKeyList) efi.getEntityDefinition(raKey.entityName).getCacheList(this).remove(raKey.ec)
+                    listViewRaCache.remove(pkCondition)
+                }
+            }
+        }
+
+        List<String> cachedViewEntityNames = (List<String>) cachedListViewEntitiesByMember.get(fullEntityName)
+        if (cachedViewEntityNames != null) synchronized (cachedViewEntityNames) {
+            int cachedViewEntityNamesSize = cachedViewEntityNames.size()
+            for (int i = 0; i < cachedViewEntityNamesSize; i++) {
+                EntityDefinition viewEd = efi.getEntityDefinition((String) cachedViewEntityNames.get(i))
+                ArrayList<Map<String, Object>> viewMatchMaps = new ArrayList<>(pkMapsSize)
+                for (int j = 0; j < pkMapsSize; j++) viewMatchMaps.add(makeViewMatchMap(viewEd, fullEntityName, (Map) pkMaps.get(j)))
+
+                Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = viewEd.getCacheList(this).iterator()
+                while (elcIterator.hasNext()) {
+                    Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
+                    if (entry == null) continue
+                    if (matchesAnyPk((EntityCondition) entry.getKey(), viewMatchMaps)) elcIterator.remove()
+                }
+            }
+        }
+
+        if (localCacheMap.containsKey(countKeyBase.concat(fullEntityName))) ed.getCacheCount(this).clear()
+    }
+
+    /** Clear all cache entries for an entity, and entries for view-entities that it is a member of */
+    void clearCacheForEntity(EntityDefinition ed) {
+        String fullEntityName = ed.entityInfo.fullEntityName
+        ConcurrentMap<String, Cache> localCacheMap = cfi.localCacheMap
+
+        if (localCacheMap.containsKey(oneKeyBase.concat(fullEntityName))) {
+            ed.getCacheOne(this).clear()
+            ed.getCacheOneRa(this).clear()
+            oneBfCache.remove(fullEntityName)
+        }
+        if (localCacheMap.containsKey(oneViewRaKeyBase.concat(fullEntityName))) {
+            Cache<EntityCondition, Set<ViewRaKey>> oneViewRaCache = ed.getCacheOneViewRa(this)
+            for (Cache.Entry<EntityCondition, Set<ViewRaKey>> entry in oneViewRaCache) {
+                if (entry == null) continue
+                for (ViewRaKey raKey in entry.getValue()) efi.getEntityDefinition(raKey.entityName).getCacheOne(this).remove(raKey.ec)
+            }
+            oneViewRaCache.clear()
+        }
+        if (localCacheMap.containsKey(listKeyBase.concat(fullEntityName))) {
+            getListCacheIndex(fullEntityName).clear(ed.getCacheList(this))
+            ed.getCacheListRa(this).clear()
+            Cache<EntityCondition, Set<ViewRaKey>> listViewRaCache = ed.getCacheListViewRa(this)
+            for (Cache.Entry<EntityCondition, Set<ViewRaKey>> entry in listViewRaCache) {
+                if (entry == null) continue
+                for (ViewRaKey raKey in entry.getValue()) efi.getEntityDefinition(raKey.entityName).getCacheList(this).remove(raKey.ec)
+            }
+            listViewRaCache.clear()
+        }
+        List<String> cachedViewEntityNames = (List<String>) cachedListViewEntitiesByMember.get(fullEntityName)
+        if (cachedViewEntityNames != null) synchronized (cachedViewEntityNames) {
+            for (String cachedViewEntityName in cachedViewEntityNames) efi.getEntityDefinition(cachedViewEntityName).getCacheList(this).clear()
+        }
+        if (localCacheMap.containsKey(countKeyBase.concat(fullEntityName))) ed.getCacheCount(this).clear()
+    }
+
     void registerCacheOneRa(String entityName, EntityCondition ec, EntityValueBase evb) {
         // don't skip it for null values because we're caching those too: if (evb == null) return
         if (evb == null) {
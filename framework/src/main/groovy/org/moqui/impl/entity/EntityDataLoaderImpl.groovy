@@ -27,6 +27,9 @@ import org.moqui.entity.EntityDataLoader
 import org.moqui.entity.EntityException
 import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ArtifactExecutionFacadeImpl
+import org.moqui.impl.context.ContextJavaUtil
+import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.impl.service.ServiceCallSyncImpl
 import org.moqui.impl.service.ServiceDefinition
@@ -43,6 +46,13 @@ import javax.sql.rowset.serial.SerialBlob
 import javax.xml.parsers.SAXParser
 import javax.xml.parsers.SAXParserFactory
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
 
@@ -72,6 +82,9 @@ class EntityDataLoaderImpl implements EntityDataLoader {
     boolean disableFkCreate = false
     boolean disableDataFeed = false
 
+    int threads = 1
+    int chunkSize = 1000
+
     char csvDelimiter = ','
     char csvCommentStart = '#'
     char csvQuoteChar = '"'
@@ -106,6 +119,8 @@ class EntityDataLoaderImpl implements EntityDataLoader {
     @Override EntityDataLoader onlyCreate(boolean onlyCreate) { this.onlyCreate = onlyCreate; return this }
     @Override EntityDataLoader dummyFks(boolean dummyFks) { this.dummyFks = dummyFks; return this }
     @Override EntityDataLoader messageNoActionFiles(boolean message) { this.messageNoActionFiles = message; return this }
+    @Override EntityDataLoader threads(int threads) { this.threads = threads; return this }
+    @Override EntityDataLoader chunkSize(int chunkSize) { this.chunkSize = chunkSize; return this }
 
     @Override EntityDataLoader disableEntityEca(boolean disable) { disableEeca = disable; return this }
     @Override EntityDataLoader disableAuditLog(boolean disable) { disableAuditLog = disable; return this }
@@ -181,7 +196,7 @@ class EntityDataLoaderImpl implements EntityDataLoader {
 
     @Override long load() { load(null) }
     @Override long load(List<String> messageList) {
-        LoadValueHandler lvh = new LoadValueHandler(this, messageList)
+        ValueHandler lvh = threads > 1 ? new ParallelLoadValueHandler(this, messageList) : new LoadValueHandler(this, messageList)
         EntityXmlHandler exh = new EntityXmlHandler(this, lvh)
         EntityCsvHandler ech = new EntityCsvHandler(this, lvh)
         EntityJsonHandler ejh = new EntityJsonHandler(this, lvh)
@@ -280,46 +295,60 @@ class EntityDataLoaderImpl implements EntityDataLoader {
         // Thread.sleep(45000)
 
         TransactionFacadeImpl tf = efi.ecfi.transactionFacade
-        tf.runRequireNew(transactionTimeout, "Error loading entity data", false, true, {
-            // load the XML text in its own transaction
-            if (this.xmlText) {
-                tf.runUseOrBegin(transactionTimeout, "Error loading XML entity data", {
-                    XMLReader reader = SAXParserFactory.newInstance().newSAXParser().XMLReader
-                    exh.setLocation("xmlText")
-                    reader.setContentHandler(exh)
-                    reader.parse(new InputSource(new StringReader(this.xmlText)))
-                })
-            }
+        // with parallel load values are written in transactions on worker threads, don't hold one open on this thread
+        //     as values written inline (like with nested values) would not be committed before workers refer to them
+        boolean parallelLoad = exh.valueHandler instanceof ParallelLoadValueHandler
+        try {
+            tf.runRequireNew(transactionTimeout, "Error loading entity data", false, true, {
+                // load the XML text in its own transaction
+                if (this.xmlText) {
+                    Closure loadXml = {
+                        XMLReader reader = SAXParserFactory.newInstance().newSAXParser().XMLReader
+                        exh.setLocation("xmlText")
+                        reader.setContentHandler(exh)
+                        reader.parse(new InputSource(new StringReader(this.xmlText)))
+                    }
+                    if (parallelLoad) loadXml.call()
+                    else tf.runUseOrBegin(transactionTimeout, "Error loading XML entity data", loadXml)
+                }
 
-            // load the CSV text in its own transaction
-            if (this.csvText) {
-                InputStream csvInputStream = new ByteArrayInputStream(csvText.getBytes("UTF-8"))
-                try {
-                    tf.runUseOrBegin(transactionTimeout, "Error loading CSV entity data", { ech.loadFile("csvText", csvInputStream) })
-                } finally {
-                    if (csvInputStream != null) csvInputStream.close()
+                // load the CSV text in its own transaction
+                if (this.csvText) {
+                    InputStream csvInputStream = new ByteArrayInputStream(csvText.getBytes("UTF-8"))
+                    try {
+                        if (parallelLoad) ech.loadFile("csvText", csvInputStream)
+                        else tf.runUseOrBegin(transactionTimeout, "Error loading CSV entity data", { ech.loadFile("csvText", csvInputStream) })
+                    } finally {
+                        if (csvInputStream != null) csvInputStream.close()
+                    }
                 }
-            }
 
-            // load the JSON text in its own transaction
-            if (this.jsonText) {
-                InputStream jsonInputStream = new ByteArrayInputStream(jsonText.getBytes("UTF-8"))
-                try {
-                    tf.runUseOrBegin(transactionTimeout, "Error loading JSON entity data", { ejh.loadFile("jsonText", jsonInputStream) })
-                } finally {
-                    if (jsonInputStream != null) jsonInputStream.close()
+                // load the JSON text in its own transaction
+                if (this.jsonText) {
+                    InputStream jsonInputStream = new ByteArrayInputStream(jsonText.getBytes("UTF-8"))
+                    try {
+                        if (parallelLoad) ejh.loadFile("jsonText", jsonInputStream)
+                        else tf.runUseOrBegin(transactionTimeout, "Error loading JSON entity data", { ejh.loadFile("jsonText", jsonInputStream) })
+                    } finally {
+                        if (jsonInputStream != null) jsonInputStream.close()
+                    }
                 }
-            }
 
-            // load each file in its own transaction
-            for (String location in this.locationList) {
-                try {
-                    loadSingleFile(location, exh, ech, ejh)
-                } catch (Throwable t) {
-                    logger.error("Skipping to next file after error: ${t.toString()} ${t.getCause() != null ? t.getCause().toString() : ''}")
+                // load each file in its own transaction
+                for (String location in this.locationList) {
+                    try {
+                        loadSingleFile(location, exh, ech, ejh)
+                    } catch (Throwable t) {
+                        logger.error("Skipping to next file after error: ${t.toString()} ${t.getCause() != null ? t.getCause().toString() : ''}")
+                    }
                 }
-            }
-        })
+
+                // with parallel load wait for all values to be written
+                if (parallelLoad) ((ParallelLoadValueHandler) exh.valueHandler).finish()
+            })
+        } finally {
+            if (parallelLoad) ((ParallelLoadValueHandler) exh.valueHandler).shutdown()
+        }
 
         if (reenableEeca) eci.artifactExecutionFacade.enableEntityEca()
         if (reenableAuditLog) eci.artifactExecutionFacade.enableEntityAuditLog()
@@ -332,7 +361,11 @@ class EntityDataLoaderImpl implements EntityDataLoader {
 
     void loadSingleFile(String location, EntityXmlHandler exh, EntityCsvHandler ech, EntityJsonHandler ejh) {
         TransactionFacade tf = efi.ecfi.transactionFacade
-        boolean beganTransaction = tf.begin(transactionTimeout)
+        // with parallel load values are written in transactions on worker threads, don't hold one open for the file
+        ParallelLoadValueHandler parallelHandler = exh.valueHandler instanceof ParallelLoadValueHandler ?
+                (ParallelLoadValueHandler) exh.valueHandler : (ParallelLoadValueHandler) null
+        String loadedVerb = parallelHandler != null ? "Read" : "Loaded"
+        boolean beganTransaction = parallelHandler == null ? tf.begin(transactionTimeout) : false
         try {
             InputStream inputStream = null
             try {
@@ -353,18 +386,18 @@ class EntityDataLoaderImpl implements EntityDataLoader {
                     parser.parse(inputStream, exh)
 
                     recordsLoaded = (exh.valuesRead?:0) - beforeRecords
-                    logger.info("Loaded ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
+                    logger.info("${loadedVerb} ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
                 } else if (location.endsWith(".csv")) {
                     long beforeRecords = ech.valuesRead ?: 0
                     if (ech.loadFile(location, inputStream)) {
                         recordsLoaded = (ech.valuesRead?:0) - beforeRecords
-                        logger.info("Loaded ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
+                        logger.info("${loadedVerb} ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
                     }
                 } else if (location.endsWith(".json")) {
                     long beforeRecords = ejh.valuesRead ?: 0
                     if (ejh.loadFile(location, inputStream)) {
                         recordsLoaded = (ejh.valuesRead?:0) - beforeRecords
-                        logger.info("Loaded ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
+                        logger.info("${loadedVerb} ${recordsLoaded} records from ${location} in ${((System.currentTimeMillis() - beforeTime)/1000)}s")
                     }
                 } else if (location.endsWith(".zip")) {
                     NoCloseZipStream zis = new NoCloseZipStream(inputStream)
@@ -382,20 +415,20 @@ class EntityDataLoaderImpl implements EntityDataLoader {
 
                                 long curFileLoaded = (exh.valuesRead?:0) - beforeRecords
                                 recordsLoaded += curFileLoaded
-                                logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
+                                logger.info("${loadedVerb} ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
                             } else if (entryFile.endsWith(".csv")) {
                                 long beforeRecords = ech.valuesRead ?: 0
                                 if (ech.loadFile(entryFile, zis)) {
                                     long curFileLoaded = (ech.valuesRead?:0) - beforeRecords
                                     recordsLoaded += curFileLoaded
-                                    logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
+                                    logger.info("${loadedVerb} ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
                                 }
                             } else if (entryFile.endsWith(".json")) {
                                 long beforeRecords = ejh.valuesRead ?: 0
                                 if (ejh.loadFile(entryFile, zis)) {
                                     long curFileLoaded = (ejh.valuesRead?:0) - beforeRecords
                                     recordsLoaded += curFileLoaded
-                                    logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
+                                    logger.info("${loadedVerb} ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
                                 }
                             } else {
                                 logger.warn("Found file ${entryFile} in zip file ${location} that is not a .xml file, ignoring")
@@ -410,7 +443,10 @@ class EntityDataLoaderImpl implements EntityDataLoader {
                 }
 
                 int messagesAdded = (exh.valueHandler.messageList != null ? exh.valueHandler.messageList.size() : 0) - messagesBefore
-                if (exh.valueHandler instanceof CheckValueHandler) {
+                if (parallelHandler != null) {
+                    // messages for parallel load added when all values are written, see ParallelLoadValueHandler.finish()
+                    parallelHandler.endFile(location)
+                } else if (exh.valueHandler instanceof CheckValueHandler) {
                     if (messageNoActionFiles || messagesAdded > 0)
                         exh.valueHandler.messageList.add("-- Checked data (${recordsLoaded} records) in ${location}".toString())
                 } else if (exh.valueHandler?.messageList != null) {
@@ -609,6 +645,270 @@ class EntityDataLoaderImpl implements EntityDataLoader {
             }
         }
     }
+    /** Writes values in transactions of edli.chunkSize values on threads for this load, see EntityDataLoader.threads().
+     * Not the shared ecfi.workerPool: this waits for chunks and with busy workers would wait on tasks that can't start. */
+    static class ParallelLoadValueHandler extends ValueHandler {
+        protected final ExecutionContextFactoryImpl ecfi
+        protected final int threads
+        protected final int maxOutstanding
+        /** no more than maxOutstanding chunks are submitted at once, so the queue doesn't need a limit */
+        protected final ThreadPoolExecutor loadExecutor
+
+        /** Pending chunk per lane for each entity, values in a lane have PKs with the same hash */
+        protected final LinkedHashMap<String, ArrayList<LoadChunk>> pendingByEntity = new LinkedHashMap<>()
+        /** Last submitted chunk per lane for each entity */
+        protected final HashMap<String, ArrayList<Future<Integer>>> lastByEntity = new HashMap<>()
+        protected final ArrayDeque<Future<Integer>> outstanding = new ArrayDeque<>()
+        protected final HashMap<String, Set<String>> fkEntitiesByEntity = new HashMap<>()
+        protected final LinkedHashMap<String, FileLoadInfo> fileInfoMap = new LinkedHashMap<>()
+        protected final List<String> workerMessages = Collections.synchronizedList(new ArrayList<String>())
+
+        ParallelLoadValueHandler(EntityDataLoaderImpl edli, List<String> messages) {
+            super(edli)
+            ecfi = edli.getEfi().ecfi
+            threads = edli.threads
+            maxOutstanding = edli.threads * 2
+            messageList = messages
+            loadExecutor = new ContextJavaUtil.WorkerThreadPoolExecutor(ecfi, threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ContextJavaUtil.WorkerThreadFactory())
+            loadExecutor.allowCoreThreadTimeOut(true)
+        }
+
+        void handleValue(EntityValue value, String location) { addToChunk(value.getEntityName(), value, location) }
+        void handlePlainMap(String entityName, Map value, String location) {
+            EntityDefinition ed = edli.getEfi().getEntityDefinition(entityName)
+            if (ed == null) throw new BaseException("Could not find entity ${entityName}")
+            // nested related values and sequenced PKs are handled by storeEntity() in order, do those inline
+            if (!ed.containsPrimaryKey(value) || hasNestedValues(value)) {
+                runInline({ LoadValueHandler lvh -> lvh.handlePlainMap(entityName, value, location) }, location)
+                return
+            }
+            addToChunk(ed.getFullEntityName(), value, location)
+        }
+        void handleService(ServiceCallSync scs, String location) {
+            runInline({ LoadValueHandler lvh -> lvh.handleService(scs, location) }, location)
+        }
+
+        /** Submit pending chunks for a file, call after reading it */
+        void endFile(String location) {
+            for (String entityName in new ArrayList<String>(pendingByEntity.keySet())) submitEntity(entityName, new HashSet<String>())
+        }
+        /** Submit all pending chunks and wait for them, then log and add messages for each file */
+        void finish() {
+            submitAll()
+            waitAll()
+            if (messageList != null && workerMessages.size() > 0) messageList.addAll(workerMessages)
+            workerMessages.clear()
+            for (FileLoadInfo fli in fileInfoMap.values()) {
+                long loaded = fli.loaded.get()
+                long failed = fli.failed.get()
+                long timeMs = fli.lastDoneTime - fli.startTime
+                logger.info("Loaded ${loaded} records from ${fli.location} in ${timeMs/1000}s (${timeMs > 0 ? (loaded * 1000 / timeMs).longValue() : loaded} records/s) with ${threads} threads" +
+                        (failed > 0 ? ", ${failed} records not loaded because of errors" : ""))
+                if (messageList != null) messageList.add("-- Loaded data (${loaded} records${failed > 0 ? ', ' + failed + ' with errors' : ''}) from ${fli.location}".toString())
+            }
+            fileInfoMap.clear()
+        }
+        /** Stop the load threads, after finish() or an error; chunks already submitted are still written */
+        void shutdown() { loadExecutor.shutdown() }
+
+        protected void addToChunk(String entityName, Map<String, Object> value, String location) {
+            EntityDefinition ed = edli.getEfi().getEntityDefinition(entityName)
+            // values of an entity with a FK to itself may refer to values before them in any lane, use only one
+            int lane = getFkEntities(entityName).contains(entityName) ? 0 : Math.floorMod(pkHash(ed, value), threads)
+            ArrayList<LoadChunk> lanes = pendingByEntity.get(entityName)
+            if (lanes == null) {
+                lanes = new ArrayList<LoadChunk>(Collections.nCopies(threads, (LoadChunk) null))
+                pendingByEntity.put(entityName, lanes)
+            }
+            LoadChunk chunk = lanes.get(lane)
+            if (chunk == null || chunk.location != location) {
+                if (chunk != null) submitChunk(entityName, lane, new HashSet<String>())
+                chunk = new LoadChunk(entityName, location, lane, edli.chunkSize)
+                lanes.set(lane, chunk)
+                if (!fileInfoMap.containsKey(location)) fileInfoMap.put(location, new FileLoadInfo(location))
+            }
+            chunk.values.add(value)
+            if (chunk.values.size() >= edli.chunkSize) submitChunk(entityName, lane, new HashSet<String>())
+        }
+
+        protected void submitChunk(String entityName, int lane, Set<String> doneEntities) {
+            ArrayList<LoadChunk> lanes = pendingByEntity.get(entityName)
+            LoadChunk chunk = lanes != null ? lanes.get(lane) : (LoadChunk) null
+            if (chunk == null) return
+            lanes.set(lane, null)
+
+            // values may refer to values read before them of other entities, submit those and wait until written
+            doneEntities.add(entityName)
+            for (String fkEntityName in getFkEntities(entityName)) {
+                if (doneEntities.contains(fkEntityName)) continue
+                submitEntity(fkEntityName, doneEntities)
+                waitEntity(fkEntityName)
+            }
+
+            // same PK in the same lane, wait for the last chunk in the lane so values are written in the order read
+            ArrayList<Future<Integer>> lastFutures = lastByEntity.get(entityName)
+            if (lastFutures == null) {
+                lastFutures = new ArrayList<Future<Integer>>(Collections.nCopies(threads, (Future<Integer>) null))
+                lastByEntity.put(entityName, lastFutures)
+            }
+            waitFuture(lastFutures.get(lane))
+
+            while (outstanding.size() >= maxOutstanding) waitFuture(outstanding.pollFirst())
+
+            FileLoadInfo fli = fileInfoMap.get(chunk.location)
+            ExecutionContextImpl eci = ecfi.getEci()
+            Future<Integer> future = loadExecutor.submit(new LoadChunkCallable(edli, chunk, fli, eci, workerMessages))
+            lastFutures.set(lane, future)
+            outstanding.addLast(future)
+        }
+        protected void submitEntity(String entityName, Set<String> doneEntities) {
+            ArrayList<LoadChunk> lanes = pendingByEntity.get(entityName)
+            if (lanes == null) return
+            for (int lane = 0; lane < threads; lane++) if (lanes.get(lane) != null) submitChunk(entityName, lane, doneEntities)
+        }
+        protected void submitAll() {
+            for (String entityName in new ArrayList<String>(pendingByEntity.keySet())) submitEntity(entityName, new HashSet<String>())
+        }
+        protected void waitEntity(String entityName) {
+            ArrayList<Future<Integer>> lastFutures = lastByEntity.get(entityName)
+            if (lastFutures != null) for (Future<Integer> future in lastFutures) waitFuture(future)
+        }
+        protected void waitAll() {
+            Future<Integer> future
+            while ((future = outstanding.pollFirst()) != null) waitFuture(future)
+        }
+        protected static void waitFuture(Future<Integer> future) {
+            // errors writing values are rolled back and counted in the chunk, anything else stops the load
+            if (future == null) return
+            try {
+                future.get()
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt()
+                throw new BaseException("Interrupted waiting for data load chunk", e)
+            } catch (ExecutionException e) {
+                throw new BaseException("Error in data load chunk", e.getCause())
+            }
+        }
+
+        /** Wait for everything read so far to be written, then run in a transaction on this thread */
+        protected void runInline(Closure closure, String location) {
+            submitAll()
+            waitAll()
+            LoadValueHandler lvh = new LoadValueHandler(edli, messageList)
+            ecfi.transactionFacade.runUseOrBegin(edli.transactionTimeout, "Error in data load from ${location}", { closure.call(lvh) })
+            FileLoadInfo fli = fileInfoMap.get(location)
+            if (fli == null) { fli = new FileLoadInfo(location); fileInfoMap.put(location, fli) }
+            fli.loaded.incrementAndGet()
+            fli.lastDoneTime = System.currentTimeMillis()
+        }
+
+        protected Set<String> getFkEntities(String entityName) {
+            Set<String> fkEntities = fkEntitiesByEntity.get(entityName)
+            if (fkEntities == null) {
+                fkEntities = new HashSet<String>()
+                EntityDefinition ed = edli.getEfi().getEntityDefinition(entityName)
+                if (ed != null) for (EntityJavaUtil.RelationshipInfo relInfo in ed.getRelationshipsInfo(false))
+                    if (relInfo.isFk && relInfo.relatedEd != null) fkEntities.add(relInfo.relatedEd.getFullEntityName())
+                fkEntitiesByEntity.put(entityName, fkEntities)
+            }
+            return fkEntities
+        }
+        protected static int pkHash(EntityDefinition ed, Map<String, Object> value) {
+            // string form so an EntityValue and a plain Map with the same PK are in the same lane
+            int hash = 1
+            for (String pkName in ed.getPkFieldNames()) hash = 31 * hash + (value.get(pkName)?.toString()?.hashCode() ?: 0)
+            return hash
+        }
+        protected static boolean hasNestedValues(Map value) {
+            for (Object fieldValue in value.values()) if (fieldValue instanceof Map || fieldValue instanceof List) return true
+            return false
+        }
+    }
+    static class LoadChunk {
+        final String entityName, location
+        final int lane
+        final ArrayList<Map<String, Object>> values
+        LoadChunk(String entityName, String location, int lane, int chunkSize) {
+            this.entityName = entityName; this.location = location; this.lane = lane
+            values = new ArrayList<>(chunkSize)
+        }
+    }
+    static class FileLoadInfo {
+        final String location
+        final long startTime = System.currentTimeMillis()
+        final AtomicLong loaded = new AtomicLong(0), failed = new AtomicLong(0)
+        volatile long lastDoneTime = System.currentTimeMillis()
+        FileLoadInfo(String location) { this.location = location }
+    }
+    static class LoadChunkCallable implements Callable<Integer> {
+        protected final EntityDataLoaderImpl edli
+        protected final LoadChunk chunk
+        protected final FileLoadInfo fli
+        protected final List<String> workerMessages
+        protected final String username
+        protected final boolean authzDisabled, eecaDisabled, auditLogDisabled, fkCreateDisabled, dataFeedDisabled
+
+        LoadChunkCallable(EntityDataLoaderImpl edli, LoadChunk chunk, FileLoadInfo fli, ExecutionContextImpl eci, List<String> workerMessages) {
+            this.edli = edli; this.chunk = chunk; this.fli = fli; this.workerMessages = workerMessages
+            username = eci.userFacade.username
+            ArtifactExecutionFacadeImpl aefi = eci.artifactExecutionFacade
+            authzDisabled = aefi.getAuthzDisabled()
+            eecaDisabled = aefi.entityEcaDisabled()
+            auditLogDisabled = aefi.entityAuditLogDisabled()
+            fkCreateDisabled = aefi.entityFkCreateDisabled()
+            dataFeedDisabled = aefi.entityDataFeedDisabled()
+        }
+
+        @Override Integer call() throws Exception {
+            ExecutionContextFactoryImpl ecfi = edli.getEfi().ecfi
+            ExecutionContextImpl threadEci = (ExecutionContextImpl) null
+            int valuesSize = chunk.values.size()
+            try {
+                threadEci = ecfi.getEci()
+                if (username != null && username.length() > 0) threadEci.userFacade.internalLoginUser(username, false)
+                else threadEci.userFacade.loginAnonymousIfNoUser()
+                ArtifactExecutionFacadeImpl aefi = threadEci.artifactExecutionFacade
+                if (authzDisabled) aefi.disableAuthz()
+                if (eecaDisabled) aefi.disableEntityEca()
+                if (auditLogDisabled) aefi.disableEntityAuditLog()
+                if (fkCreateDisabled) aefi.disableEntityFkCreate()
+                if (dataFeedDisabled) aefi.disableEntityDataFeed()
+
+                TransactionFacadeImpl tf = ecfi.transactionFacade
+                boolean beganTransaction = tf.begin(edli.transactionTimeout)
+                try {
+                    LoadValueHandler lvh = new LoadValueHandler(edli, workerMessages)
+                    for (int i = 0; i < valuesSize; i++) {
+                        Map<String, Object> value = chunk.values.get(i)
+                        if (value instanceof EntityValue) lvh.handleValue((EntityValue) value, chunk.location)
+                        else lvh.handlePlainMap(chunk.entityName, value, chunk.location)
+                    }
+                    fli.loaded.addAndGet(valuesSize)
+                } catch (Throwable t) {
+                    String errMsg = "Error loading ${valuesSize} ${chunk.entityName} records from ${chunk.location}, rolled back: ${t.toString()}".toString()
+                    tf.rollback(beganTransaction, errMsg, t)
+                    logger.error(errMsg, t)
+                    workerMessages.add(errMsg)
+                    fli.failed.addAndGet(valuesSize)
+                    return 0
+                } finally {
+                    tf.commit(beganTransaction)
+                }
+                return valuesSize
+            } catch (Throwable t) {
+                // error setting up the thread (not writing values, handled above), none of the chunk was written
+                String errMsg = "Error loading ${valuesSize} ${chunk.entityName} records from ${chunk.location}: ${t.toString()}".toString()
+                logger.error(errMsg, t)
+                workerMessages.add(errMsg)
+                fli.failed.addAndGet(valuesSize)
+                return 0
+            } finally {
+                fli.lastDoneTime = System.currentTimeMillis()
+                if (threadEci != null) threadEci.destroy()
+            }
+        }
+    }
     static class ListValueHandler extends ValueHandler {
         protected EntityList el
         ListValueHandler(EntityDataLoaderImpl edli) { super(edli); el = new EntityListImpl(edli.efi) }
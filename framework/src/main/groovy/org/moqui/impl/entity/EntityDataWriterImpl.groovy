@@ -44,6 +44,7 @@ class EntityDataWriterImpl implements EntityDataWriter {
 
     private FileType fileType = XML
     private int txTimeout = 3600
+    private static final int flushRows = 1000
     private LinkedHashSet<String> entityNames = new LinkedHashSet<>()
     private LinkedHashSet<String> skipEntityNames = new LinkedHashSet<>()
 
@@ -310,8 +311,11 @@ class EntityDataWriterImpl implements EntityDataWriter {
                     boolean useMaster = masterName != null && masterName.length() > 0 && ed.getMasterDefinition(masterName) != null
                     try (EntityListIterator eli = makeEntityFind(en).iterator()) {
                         EntityValue ev
+                        int rowsWritten = 0
                         while ((ev = eli.next()) != null) {
                             valuesWritten+= writeValue(ev, writer, useMaster)
+                            // flush periodically so output to a response or stream goes out as written, not all at the end
+                            if (++rowsWritten % flushRows == 0) writer.flush()
                         }
                     }
                 }
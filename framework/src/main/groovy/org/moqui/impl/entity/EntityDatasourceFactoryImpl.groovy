@@ -141,12 +141,15 @@ class EntityDatasourceFactoryImpl implements EntityDatasourceFactory {
 
     @Override
     void createBulk(List<EntityValue> valueList) {
-        // basic approach, can probably do better with some JDBC tricks
-        Iterator<EntityValue> valueIterator = valueList.iterator()
-        while (valueIterator.hasNext()) {
-            EntityValue ev = (EntityValue) valueIterator.next()
-            ev.create()
-        }
+        if (valueList == null || valueList.isEmpty()) return
+        EntityDefinition ed = ((EntityValueBase) valueList.get(0)).getEntityDefinition()
+        new EntityBulkWriter(efi, ed, false).write(valueList)
+    }
+    @Override
+    void upsertBulk(List<EntityValue> valueList) {
+        if (valueList == null || valueList.isEmpty()) return
+        EntityDefinition ed = ((EntityValueBase) valueList.get(0)).getEntityDefinition()
+        new EntityBulkWriter(efi, ed, true).write(valueList)
     }
 
     @Override
@@ -20,7 +20,9 @@ import org.moqui.util.CollectionUtilities
 import org.moqui.util.MNode
 import org.moqui.util.SystemBinding
 
+import javax.sql.DataSource
 import java.sql.Connection
+import java.sql.PreparedStatement
 import java.sql.Statement
 import java.sql.DatabaseMetaData
 import java.sql.ResultSet
@@ -31,6 +33,10 @@ import org.moqui.entity.EntityException
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 
 @CompileStatic
@@ -739,6 +745,34 @@ class EntityDbMeta {
         return created
     }
 
+    /** CREATE INDEX statement for an index that is not declared on the entity, like from EntityIndexAdvisor */
+    String makeCreateIndexSql(EntityDefinition ed, String indexName, List<String> fieldNames) {
+        if (ed.isViewEntity) throw new IllegalArgumentException("Cannot create indexes for a view entity")
+        MNode databaseNode = efi.getDatabaseNode(ed.getEntityGroupName())
+        StringBuilder sql = new StringBuilder("CREATE INDEX ")
+        if (databaseNode.attribute("use-schema-for-all") == "true") sql.append(ed.getSchemaName() ? ed.getSchemaName() + "." : "")
+        sql.append(indexName).append(" ON ").append(ed.getFullTableName()).append(" (")
+        boolean isFirst = true
+        for (String fieldName in fieldNames) {
+            if (isFirst) isFirst = false else sql.append(", ")
+            sql.append(ed.getColumnName(fieldName))
+        }
+        sql.append(")")
+        return sql.toString()
+    }
+    /** Create an index that is not declared on the entity if it does not already exist, returns true if created */
+    boolean createIndex(EntityDefinition ed, String indexName, List<String> fieldNames) {
+        MNode databaseNode = efi.getDatabaseNode(ed.getEntityGroupName())
+        if (databaseNode.attribute("use-indexes") == "false") return false
+        Boolean idxExists = indexExists(ed, indexName, fieldNames)
+        if (idxExists != null && idxExists) {
+            if (logger.infoEnabled) logger.info("Not creating index ${indexName} for entity ${ed.getFullEntityName()} because it already exists.")
+            return false
+        }
+        Integer curCreated = runSqlUpdate(makeCreateIndexSql(ed, indexName, fieldNames), ed.getEntityGroupName(), null)
+        return curCreated != null
+    }
+
     static String makeFkIndexName(EntityDefinition ed, RelationshipInfo relInfo, int constraintNameClipLength) {
         String relatedEntityName = relInfo.relatedEd.entityInfo.internalEntityName
         StringBuilder indexName = new StringBuilder()
@@ -871,6 +905,51 @@ class EntityDbMeta {
         }
     }
 
+    /** Row count estimate and time from database statistics by full table name, -1 for none */
+    protected final ConcurrentHashMap<String, long[]> rowEstimateByTable = new ConcurrentHashMap<>()
+    static final long rowEstimateCacheMillis = 60000L
+
+    /** Estimated rows in the table from database statistics using database.@count-estimate-sql (with the table name as
+     * the parameter), cached for a minute; null if the database has no count-estimate-sql or the table no statistics */
+    Long getTableRowEstimate(EntityDefinition ed) {
+        String groupName = ed.getEntityGroupName()
+        MNode databaseNode = efi.getDatabaseNode(groupName)
+        String estimateSql = databaseNode != null ? databaseNode.attribute("count-estimate-sql") : null
+        if (estimateSql == null || estimateSql.isEmpty()) return null
+
+        String fullTableName = ed.getFullTableName()
+        long now = System.currentTimeMillis()
+        long[] cached = rowEstimateByTable.get(fullTableName)
+        if (cached != null && now - cached[1] < rowEstimateCacheMillis) return cached[0] >= 0 ? cached[0] : null
+
+        long estimate = -1
+        try {
+            // on the statementExecutor so not in the current transaction, an error in it (like Postgres) would make it rollback only
+            DataSource ds = efi.getDatasourceFactory(groupName).getDataSource()
+            Future<Long> estimateFuture = efi.statementExecutor.submit({
+                Connection con = ds.getConnection()
+                PreparedStatement ps = null
+                ResultSet rs = null
+                try {
+                    ps = con.prepareStatement(estimateSql)
+                    ps.setString(1, ed.getTableName())
+                    rs = ps.executeQuery()
+                    if (rs.next()) { long rows = rs.getLong(1); if (!rs.wasNull()) return rows }
+                    return -1L
+                } finally {
+                    if (rs != null) rs.close()
+                    if (ps != null) ps.close()
+                    con.close()
+                }
+            } as Callable<Long>)
+            estimate = estimateFuture.get(5, TimeUnit.SECONDS)
+        } catch (Exception e) {
+            logger.warn("Error getting row count estimate for table ${fullTableName}: ${e.toString()}")
+        }
+        rowEstimateByTable.put(fullTableName, [estimate, now] as long[])
+        return estimate >= 0 ? estimate : null
+    }
+
     Boolean foreignKeyExists(EntityDefinition ed, RelationshipInfo relInfo) {
         String groupName = ed.getEntityGroupName()
         EntityDefinition relEd = relInfo.relatedEd
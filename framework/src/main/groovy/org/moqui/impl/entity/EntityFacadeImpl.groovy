@@ -28,6 +28,7 @@ import org.moqui.impl.service.runner.EntityAutoServiceRunner
 import org.moqui.resource.ResourceReference
 import org.moqui.entity.*
 import org.moqui.impl.context.ArtifactExecutionFacadeImpl
+import org.moqui.impl.context.ContextJavaUtil.CacheSnapshotRestorer
 import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.context.TransactionFacadeImpl
 import org.moqui.impl.entity.EntityJavaUtil.RelationshipInfo
@@ -93,6 +94,11 @@ class EntityFacadeImpl implements EntityFacade {
     protected final ThreadLocal<Calendar> databaseTzLcCalendar = new ThreadLocal<>()
     protected final String sequencedIdPrefix
     boolean queryStats = false
+    protected final EntityQueryStats entityQueryStats
+    /** Min rows from database statistics to use the estimate for EntityFind.count(true) */
+    final long countEstimateMin
+    /** Index recommendations from find field patterns, null unless entity-facade.@index-advisor is true */
+    public final EntityIndexAdvisor indexAdvisor
 
     protected EntityDbMeta dbMeta = null
     protected final EntityCache entityCache
@@ -100,6 +106,7 @@ class EntityFacadeImpl implements EntityFacade {
     protected final EntityDataDocument entityDataDocument
 
     protected final EntityListImpl emptyList
+    public final EntityReadRouter readRouter
 
     private static class ExecThreadFactory implements ThreadFactory {
         private final ThreadGroup workerGroup = new ThreadGroup("MoquiEntityExec")
@@ -118,6 +125,10 @@ class EntityFacadeImpl implements EntityFacade {
         defaultGroupName = entityFacadeNode.attribute("default-group-name")
         sequencedIdPrefix = entityFacadeNode.attribute("sequenced-id-prefix") ?: null
         queryStats = entityFacadeNode.attribute("query-stats") == "true"
+        entityQueryStats = new EntityQueryStats(this, entityFacadeNode)
+        String countEstimateMinAttr = entityFacadeNode.attribute("count-estimate-min")
+        countEstimateMin = countEstimateMinAttr ? (countEstimateMinAttr as long) : 1000000L
+        indexAdvisor = entityFacadeNode.attribute("index-advisor") == "true" ? new EntityIndexAdvisor(this) : null
 
         TimeZone theTimeZone = null
         if (entityFacadeNode.attribute("database-time-zone")) {
@@ -146,6 +157,8 @@ class EntityFacadeImpl implements EntityFacade {
 
         // init connection pool (DataSource) for each group
         initAllDatasources()
+        readRouter = new EntityReadRouter(this)
+        readRouter.init(datasourceFactoryByGroupMap)
 
         entityCache = new EntityCache(this)
         entityDataFeed = new EntityDataFeed(this)
@@ -153,6 +166,16 @@ class EntityFacadeImpl implements EntityFacade {
 
         emptyList = new EntityListImpl(this)
         emptyList.setFromCache()
+
+        // rebuild definitions and one cache entries (including RA entries) from cache snapshots saved on shutdown
+        ecfi.cacheFacade.registerSnapshotRestorer("entity.definition", { String cacheName, Object key, Object value ->
+            getEntityDefinition((String) key) } as CacheSnapshotRestorer)
+        ecfi.cacheFacade.registerSnapshotRestorer(EntityCache.oneKeyBase, { String cacheName, Object key, Object value ->
+            EntityDefinition ed = getEntityDefinition(cacheName.substring(EntityCache.oneKeyBase.length()))
+            if (ed == null || value == null) return
+            EntityValueBase evb = value instanceof EntityCache.EmptyRecord ? (EntityValueBase) null : (EntityValueBase) value
+            entityCache.putInOneCache(ed, (EntityCondition) key, evb, null)
+        } as CacheSnapshotRestorer)
     }
     void postFacadeInit() {
         // ========== load a few things in advance so first page hit is faster in production (in dev mode will reload anyway as caches timeout)
@@ -169,6 +192,18 @@ class EntityFacadeImpl implements EntityFacade {
 
         // EECA rule tables
         loadEecaRulesAll()
+
+        // save top query stats by shape for each server-stats bin, like ArtifactHitBin
+        if (queryStats && getEntityFacadeNode().attribute("query-stats-persist") == "true") {
+            long binSeconds = (ecfi.getHitBinLengthMillis() / 1000L) as long
+            ecfi.scheduleAtFixedRate(new QueryStatsPersist(entityQueryStats), binSeconds, binSeconds)
+            logger.info("Saving query stats in QueryStatsBin every ${binSeconds} seconds")
+        }
+    }
+    static class QueryStatsPersist implements Runnable {
+        final EntityQueryStats entityQueryStats
+        QueryStatsPersist(EntityQueryStats entityQueryStats) { this.entityQueryStats = entityQueryStats }
+        @Override void run() { entityQueryStats.persistBin() }
     }
 
     void destroy() {
@@ -1245,6 +1280,12 @@ class EntityFacadeImpl implements EntityFacade {
         return dsNode
     }
 
+    /** Max values per JDBC batch when flushing writes from the TransactionCache, from the datasource.write-batch-size attribute */
+    int getWriteBatchSize(String groupName) {
+        String sizeAttr = getDatasourceNode(groupName)?.attribute("write-batch-size")
+        return sizeAttr ? Integer.parseInt(sizeAttr) : 500
+    }
+
     EntityDbMeta getEntityDbMeta() { return dbMeta != null ? dbMeta : (dbMeta = new EntityDbMeta(this)) }
 
     /** Get a JDBC Connection based on xa-properties configuration. The Conf Map should contain the default entity_ds properties
@@ -1347,7 +1388,10 @@ class EntityFacadeImpl implements EntityFacade {
             if (edf instanceof EntityDatasourceFactoryImpl) {
                 EntityDatasourceFactoryImpl edfi = (EntityDatasourceFactoryImpl) edf
                 DatasourceInfo dsi = edfi.dsi
-                dsiList.add([group:groupName, uniqueName:dsi.uniqueName, database:dsi.database.attribute('name'), detail:dsi.dsDetails] as Map<String, Object>)
+                Map<String, Object> dsiMap = [group:groupName, uniqueName:dsi.uniqueName, database:dsi.database.attribute('name'), detail:dsi.dsDetails] as Map<String, Object>
+                Map<String, Object> readRoute = readRouter.getRouteInfo(groupName)
+                if (readRoute != null) dsiMap.put("readRoute", readRoute)
+                dsiList.add(dsiMap)
             } else {
                 dsiList.add([group:groupName] as Map<String, Object>)
             }
@@ -1587,9 +1631,10 @@ class EntityFacadeImpl implements EntityFacade {
             boolean queryStats = getQueryStats()
             long beforeQuery = queryStats ? System.nanoTime() : 0
             rs = ps.executeQuery()
-            if (queryStats) saveQueryStats(ed, finalSql, System.nanoTime() - beforeQuery, false)
+            EntityQueryStats.QueryShape queryShape = queryStats ? saveQueryStats(ed, finalSql, System.nanoTime() - beforeQuery, false, null) : null
 
             if (rs.next()) {
+                if (queryShape != null) queryShape.addRows(1)
                 newEntityValue = new EntityValueImpl(ed, this)
                 LiteStringMap valueMap = newEntityValue.getValueMap()
                 int size = fieldInfoArray.length;
@@ -1624,6 +1669,18 @@ class EntityFacadeImpl implements EntityFacade {
 
         datasourceFactory.createBulk(valueList)
     }
+    @Override
+    void upsertBulk(List<EntityValue> valueList) {
+        if (valueList == null || valueList.isEmpty()) return
+
+        EntityValue firstEv = (EntityValue) valueList.get(0)
+        String groupName = getEntityGroupName(firstEv.getEntityName())
+
+        EntityDatasourceFactory datasourceFactory = getDatasourceFactory(groupName)
+        if (datasourceFactory == null) throw new EntityException("Datasource Factory not found for group " + groupName)
+
+        datasourceFactory.upsertBulk(valueList)
+    }
 
     final static Map<String, String> operationByMethod = [get:'find', post:'create', put:'store', patch:'update', delete:'delete']
     @Override
@@ -1723,8 +1780,46 @@ class EntityFacadeImpl implements EntityFacade {
                 // we don't want to go overboard with these requests, never do an unlimited find, if no limit use 100
                 if (!ef.getLimit()) ef.limit(100)
 
-                // support pagination, at least "X-Total-Count" header if find is paginated
-                long count = ef.count()
+                String pageCursor = (String) parameters.get("pageCursor")
+                if (pageCursor) {
+                    // seek pagination, no count so each page costs the same no matter how deep
+                    ((EntityFindBase) ef).seekPageCursor(pageCursor)
+                    List resultList
+                    Map<String, Object> lastValue
+                    if (masterName != null && masterName.length() > 0) {
+                        resultList = ef.listMaster(masterName)
+                        lastValue = resultList ? (Map<String, Object>) resultList.get(resultList.size() - 1) : null
+                    } else {
+                        EntityList el = ef.list()
+                        resultList = el.getPlainValueList(dependentLevels)
+                        lastValue = el ? el.get(el.size() - 1) : null
+                    }
+                    parameters.put('xPageSize', ef.getPageSize())
+                    if (lastValue != null && resultList.size() >= ef.getLimit()) parameters.put('xPageCursor', ef.makeSeekCursor(lastValue))
+                    return resultList
+                }
+
+                // support pagination, at least "X-Total-Count" header if find is paginated; count at the same time as the list
+                //     query, always needed for the headers (list() cancels it if less than a page, the count is known then)
+                ef.countAsync(false)
+                Object result
+                if (masterName != null && masterName.length() > 0) {
+                    result = ef.listMaster(masterName)
+                } else if (parameters.get("_requestBodyJsonList") == null && !ecfi.transactionFacade.isTransactionInPlace()) {
+                    // stream values from an iterator as the response is written instead of getting the full list first
+                    result = EntityStreamWriter.iterate(ef, ecfi.transactionFacade).plainValueMaps(dependentLevels)
+                } else {
+                    EntityList el = ef.list()
+                    result = el.getPlainValueList(dependentLevels)
+                }
+
+                long count
+                try {
+                    count = ef.count()
+                } catch (Throwable t) {
+                    if (result instanceof EntityStreamWriter) ((EntityStreamWriter) result).close()
+                    throw t
+                }
                 long pageIndex = ef.getPageIndex()
                 long pageSize = ef.getPageSize()
                 long pageMaxIndex = ((count - 1) as BigDecimal).divide(pageSize as BigDecimal, 0, RoundingMode.DOWN).longValue()
@@ -1739,14 +1834,7 @@ class EntityFacadeImpl implements EntityFacade {
                 parameters.put('xPageRangeLow', pageRangeLow)
                 parameters.put('xPageRangeHigh', pageRangeHigh)
 
-                if (masterName != null && masterName.length() > 0) {
-                    List resultList = ef.listMaster(masterName)
-                    return resultList
-                } else {
-                    EntityList el = ef.list()
-                    List resultList = el.getPlainValueList(dependentLevels)
-                    return resultList
-                }
+                return result
             }
         } else {
             // use the entity auto service runner for other operations (create, store, update, delete)
@@ -2287,26 +2375,17 @@ class EntityFacadeImpl implements EntityFacade {
         return typeInt
     }
 
-    final Map<String, EntityJavaUtil.QueryStatsInfo> queryStatsInfoMap = new HashMap<>()
-    void saveQueryStats(EntityDefinition ed, String sql, long queryTime, boolean isError) {
-        EntityJavaUtil.QueryStatsInfo qsi = queryStatsInfoMap.get(sql)
-        if (qsi == null) {
-            qsi = new EntityJavaUtil.QueryStatsInfo(ed.getFullEntityName(), sql)
-            queryStatsInfoMap.put(sql, qsi)
-        }
-        qsi.countHit(this, queryTime, isError)
+    EntityQueryStats.QueryShape saveQueryStats(EntityDefinition ed, String sql, long queryTime, boolean isError,
+                                               ArrayList<EntityJavaUtil.EntityConditionParameter> parameters) {
+        return entityQueryStats.record(ed, sql, queryTime, isError, parameters)
     }
+    EntityQueryStats getEntityQueryStats() { return entityQueryStats }
     ArrayList<Map<String, Object>> getQueryStatsList(String orderByField, String entityFilter, String sqlFilter) {
-        ArrayList<Map<String, Object>> qsl = new ArrayList<>(queryStatsInfoMap.size())
-        boolean hasEntityFilter = entityFilter != null && entityFilter.length() > 0
-        boolean hasSqlFilter = sqlFilter != null && sqlFilter.length() > 0
-        for (EntityJavaUtil.QueryStatsInfo qsi in queryStatsInfoMap.values()) {
-            if (hasEntityFilter && !qsi.entityName.matches("(?i).*" + entityFilter + ".*")) continue
-            if (hasSqlFilter && !qsi.sql.matches("(?i).*" + sqlFilter + ".*")) continue
-            qsl.add(qsi.makeDisplayMap())
-        }
-        if (orderByField) CollectionUtilities.orderMapList(qsl, [orderByField])
-        return qsl
-    }
-    void clearQueryStats() { queryStatsInfoMap.clear() }
+        return entityQueryStats.getStatsList(orderByField, entityFilter, sqlFilter, 0)
+    }
+    ArrayList<Map<String, Object>> getQueryStatsList(String orderByField, String entityFilter, String sqlFilter, int maxResults) {
+        return entityQueryStats.getStatsList(orderByField, entityFilter, sqlFilter, maxResults)
+    }
+    void clearQueryStats() { entityQueryStats.clear() }
+    EntityIndexAdvisor getIndexAdvisor() { return indexAdvisor }
 }
@@ -38,6 +38,9 @@ import javax.cache.Cache
 import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Timestamp
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
 
 @CompileStatic
 abstract class EntityFindBase implements EntityFind {
@@ -48,6 +51,8 @@ abstract class EntityFindBase implements EntityFind {
     private static final String ONE_ERROR = 'Error finding one ${entityName} by ${condition}'
     private static final String LIST_ERROR = 'Error finding list of ${entityName} by ${condition}'
     private static final String COUNT_ERROR = 'Error finding count of ${entityName} by ${condition}'
+    private static final String UPDATE_ALL_ERROR = 'Error updating all ${entityName} by ${condition}'
+    private static final String DELETE_ALL_ERROR = 'Error deleting all ${entityName} by ${condition}'
 
     final static int defaultResultSetType = ResultSet.TYPE_FORWARD_ONLY
 
@@ -74,7 +79,10 @@ abstract class EntityFindBase implements EntityFind {
     protected boolean distinct = false
     protected Integer offset = (Integer) null
     protected Integer limit = (Integer) null
+    protected Map<String, Object> seekAfterValues = (Map<String, Object>) null
+    protected String seekCursor = (String) null
     protected boolean forUpdate = false
+    protected boolean skipLocked = false
     protected boolean useClone = false
 
     protected int resultSetType = defaultResultSetType
@@ -87,6 +95,11 @@ abstract class EntityFindBase implements EntityFind {
     protected boolean hasSearchFormParameters = false
 
     protected ArrayList<String> queryTextList = new ArrayList<>()
+    protected boolean countEstimated = false
+    /** From countAsync() for the next count() */
+    protected CompletableFuture<Long> asyncCount = (CompletableFuture<Long>) null
+    /** allowEstimate from countAsync() for the next count(), if the count could not be started on another thread */
+    protected boolean asyncAllowEstimate = false
 
 
     EntityFindBase(EntityFacadeImpl efi, String entityName) {
@@ -266,6 +279,12 @@ abstract class EntityFindBase implements EntityFind {
     @Override
     EntityCondition getWhereEntityCondition() { return getWhereEntityConditionInternal(getEntityDef()) }
     EntityConditionImplBase getWhereEntityConditionInternal(EntityDefinition localEd) {
+        EntityConditionImplBase whereCond = makeWhereEntityCondition(localEd)
+        if (seekAfterValues == null && seekCursor == null) return whereCond
+        return EntityConditionFactoryImpl.makeConditionImpl(whereCond, EntityCondition.AND,
+                makeSeekCondition(localEd != null ? localEd : getEntityDef()))
+    }
+    protected EntityConditionImplBase makeWhereEntityCondition(EntityDefinition localEd) {
         boolean wecNull = (whereEntityCondition == null)
         int samSize = simpleAndMap != null ? simpleAndMap.size() : 0
 
@@ -616,6 +635,161 @@ abstract class EntityFindBase implements EntityFind {
     @Override int getPageIndex() { return offset == null ? 0 : (offset/getPageSize()).intValue() }
     @Override int getPageSize() { return limit != null ? limit : 20 }
 
+    @Override EntityFind seekAfter(Map<String, Object> lastValues) { seekAfterValues = lastValues; seekCursor = null; return this }
+    @Override EntityFind seekCursor(String cursor) {
+        seekCursor = cursor != null && !cursor.isEmpty() ? cursor : null
+        seekAfterValues = null
+        return this
+    }
+    @Override
+    String makeSeekCursor(Map<String, Object> lastValue) {
+        if (orderByFields == null || orderByFields.size() == 0) throw new SeekCursorException("Seek cursor requires order by fields for find on ${entityName}")
+        EntityDefinition ed = getEntityDef()
+        int obSize = orderByFields.size()
+        ArrayList<String> valueStrList = new ArrayList<>(obSize)
+        for (int i = 0; i < obSize; i++) {
+            String fieldName = new FieldOrderOptions((String) orderByFields.get(i)).fieldName
+            Object value = lastValue.get(fieldName)
+            // null values are fine for fields that can be null, see makeSeekCondition()
+            if (value == null) {
+                FieldInfo fi = ed.getFieldInfo(fieldName)
+                if (fi == null || fi.isPk) throw new SeekCursorException("Seek cursor requires a value for order by field ${fieldName} for find on ${entityName}")
+                valueStrList.add((String) null)
+            } else if (value instanceof Timestamp) valueStrList.add(((Timestamp) value).getTime().toString())
+            else if (value instanceof BigDecimal) valueStrList.add(((BigDecimal) value).toPlainString())
+            else valueStrList.add(value.toString())
+        }
+        Map<String, Object> cursorMap = [o:orderByFields, v:valueStrList] as Map<String, Object>
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(ContextJavaUtil.jacksonMapper.writeValueAsBytes(cursorMap))
+    }
+
+    /** Set up seek pagination for a client request: primary key fields added to the order by so it is unique, no offset,
+     * and seek after the cursor unless it is "start" for the first page. Each full page has a cursor for the next from
+     * makeSeekCursor() on its last value. */
+    EntityFindBase seekPageCursor(String pageCursor) {
+        ArrayList<String> pkFieldNames = getEntityDef().getPkFieldNames()
+        int pkSize = pkFieldNames.size()
+        for (int i = 0; i < pkSize; i++) {
+            String pkName = (String) pkFieldNames.get(i)
+            boolean inOrderBy = false
+            if (orderByFields != null) for (String orderByField in orderByFields)
+                if (pkName.equals(new FieldOrderOptions(orderByField).fieldName)) { inOrderBy = true; break }
+            if (!inOrderBy) orderBy(pkName)
+        }
+        offset = null
+        if (!"start".equals(pageCursor)) seekCursor(pageCursor)
+        return this
+    }
+
+    /** Condition for values after seekAfterValues or seekCursor, with a leading >= on the first field for index use.
+     *
+     * Fields other than PK fields may be null. The ORDER BY has NULLS LAST unless the order by field has NULLS FIRST (see
+     * EntityFindBuilder.makeOrderByClause()), so nulls are handled with explicit IS NULL conditions for that position. On
+     * databases with never-nulls the position of nulls is not known, so only PK fields are allowed in the order by. */
+    protected EntityConditionImplBase makeSeekCondition(EntityDefinition localEd) {
+        if (orderByFields == null || orderByFields.size() == 0) throw new SeekCursorException("Seek pagination requires order by fields for find on ${entityName}")
+        Map<String, Object> lastValues = seekAfterValues != null ? seekAfterValues : parseSeekCursor(localEd)
+        MNode databaseNode = efi.getDatabaseNode(localEd.getEntityGroupName())
+        boolean neverNulls = databaseNode != null && "true".equals(databaseNode.attribute("never-nulls"))
+        int obSize = orderByFields.size()
+        ArrayList<EntityConditionImplBase> orList = new ArrayList<>(obSize)
+        ArrayList<EntityConditionImplBase> equalsList = new ArrayList<>(obSize)
+        EntityConditionImplBase leadCond = (EntityConditionImplBase) null
+        FieldInfo firstField = (FieldInfo) null
+        for (int i = 0; i < obSize; i++) {
+            String orderByField = (String) orderByFields.get(i)
+            FieldOrderOptions foo = new FieldOrderOptions(orderByField)
+            if (foo.caseUpperLower != null) throw new SeekCursorException("Seek pagination does not support order by ${orderByField} with upper or lower case for find on ${entityName}")
+            FieldInfo fi = localEd.getFieldInfo(foo.fieldName)
+            if (fi == null) throw new EntityException("Error in find, field ${foo.fieldName} does not exist in entity ${localEd.getFullEntityName()}")
+            if (i == 0) firstField = fi
+            boolean nullable = !fi.isPk
+            if (nullable && neverNulls) throw new SeekCursorException("Seek pagination on this database only supports order by primary key fields, ${foo.fieldName} may be null for find on ${entityName}")
+            Object value = lastValues.get(foo.fieldName)
+            if (value instanceof CharSequence && fi.typeValue != 1) value = convertSeekValue(fi, value.toString())
+            if (value == null && !nullable) throw new SeekCursorException("Seek pagination requires a value for order by field ${foo.fieldName} for find on ${entityName}")
+            boolean nullsFirst = Boolean.TRUE.equals(foo.nullsFirstLast)
+            FieldValueCondition isNullCond = nullable ? new FieldValueCondition(fi.conditionField, EntityCondition.EQUALS, null) : (FieldValueCondition) null
+
+            EntityConditionImplBase afterCond
+            if (value == null) {
+                // nothing comes after null in this field with nulls last, all non-null values do with nulls first
+                afterCond = nullsFirst ? new FieldValueCondition(fi.conditionField, EntityCondition.NOT_EQUAL, null) : (EntityConditionImplBase) null
+            } else {
+                afterCond = new FieldValueCondition(fi.conditionField, foo.descending ? EntityCondition.LESS_THAN : EntityCondition.GREATER_THAN, value)
+                if (nullable && !nullsFirst) afterCond = new ListCondition([afterCond, isNullCond] as ArrayList<EntityConditionImplBase>, EntityCondition.OR)
+            }
+            if (afterCond != null) {
+                ArrayList<EntityConditionImplBase> andList = new ArrayList<>(equalsList)
+                andList.add(afterCond)
+                orList.add(andList.size() == 1 ? (EntityConditionImplBase) andList.get(0) : new ListCondition(andList, EntityCondition.AND))
+            }
+            equalsList.add(value == null ? isNullCond : new FieldValueCondition(fi.conditionField, EntityCondition.EQUALS, value))
+
+            if (i == 0 && obSize > 1) {
+                if (value != null) {
+                    leadCond = new FieldValueCondition(fi.conditionField,
+                            foo.descending ? EntityCondition.LESS_THAN_EQUAL_TO : EntityCondition.GREATER_THAN_EQUAL_TO, value)
+                    if (nullable && !nullsFirst) leadCond = new ListCondition([leadCond, isNullCond] as ArrayList<EntityConditionImplBase>, EntityCondition.OR)
+                } else if (!nullsFirst) {
+                    leadCond = isNullCond
+                }
+            }
+        }
+        // all fields null with nulls last: nothing comes after, a condition that matches no records
+        if (orList.size() == 0) return new ListCondition([equalsList.get(0), new FieldValueCondition(firstField.conditionField,
+                EntityCondition.NOT_EQUAL, null)] as ArrayList<EntityConditionImplBase>, EntityCondition.AND)
+        EntityConditionImplBase seekCond = orList.size() == 1 ? (EntityConditionImplBase) orList.get(0) : new ListCondition(orList, EntityCondition.OR)
+        if (leadCond == null) return seekCond
+        return new ListCondition([leadCond, seekCond] as ArrayList<EntityConditionImplBase>, EntityCondition.AND)
+    }
+    /** For seek pagination requests that can't be done, like an invalid cursor; REST requests respond with 400 Bad Request */
+    static class SeekCursorException extends EntityException {
+        SeekCursorException(String str) { super(str) }
+        SeekCursorException(String str, Throwable nested) { super(str, nested) }
+    }
+    protected Map<String, Object> parseSeekCursor(EntityDefinition localEd) {
+        Map cursorMap
+        try {
+            cursorMap = ContextJavaUtil.jacksonMapper.readValue(Base64.getUrlDecoder().decode(seekCursor), Map.class)
+        } catch (Exception e) {
+            throw new SeekCursorException("Invalid seek cursor for find on ${entityName}", e)
+        }
+        List cursorOrderBy = (List) cursorMap.get("o")
+        List valueStrList = (List) cursorMap.get("v")
+        if (cursorOrderBy != orderByFields || valueStrList == null || valueStrList.size() != orderByFields.size())
+            throw new SeekCursorException("Seek cursor is for a different order by ${cursorOrderBy} than ${orderByFields} for find on ${entityName}")
+        Map<String, Object> lastValues = new HashMap<>()
+        int obSize = orderByFields.size()
+        for (int i = 0; i < obSize; i++) {
+            String fieldName = new FieldOrderOptions((String) orderByFields.get(i)).fieldName
+            FieldInfo fi = localEd.getFieldInfo(fieldName)
+            if (fi == null) throw new EntityException("Error in find, field ${fieldName} does not exist in entity ${localEd.getFullEntityName()}")
+            lastValues.put(fieldName, convertSeekValue(fi, (String) valueStrList.get(i)))
+        }
+        return lastValues
+    }
+    /** Convert a String from makeSeekCursor(); not locale specific like FieldInfo.convertFromString(), Timestamp is millis */
+    protected static Object convertSeekValue(FieldInfo fi, String valueStr) {
+        if (valueStr == null) return null
+        try {
+            switch (fi.typeValue) {
+                case 2: return new Timestamp(Long.parseLong(valueStr))
+                case 3: return java.sql.Time.valueOf(valueStr)
+                case 4: return java.sql.Date.valueOf(valueStr)
+                case 5: return Integer.valueOf(valueStr)
+                case 6: return Long.valueOf(valueStr)
+                case 7: return Float.valueOf(valueStr)
+                case 8: return Double.valueOf(valueStr)
+                case 9: return new BigDecimal(valueStr)
+                case 10: return Boolean.valueOf(valueStr)
+                default: return valueStr
+            }
+        } catch (IllegalArgumentException e) {
+            throw new SeekCursorException("Invalid seek value ${valueStr} for field ${fi.entityName}.${fi.name}", e)
+        }
+    }
+
     @Override
     EntityFind forUpdate(boolean forUpdate) {
         this.forUpdate = forUpdate
@@ -623,6 +797,9 @@ abstract class EntityFindBase implements EntityFind {
         return this
     }
     @Override boolean getForUpdate() { return this.forUpdate }
+    @Override
+    EntityFind skipLocked(boolean skipLocked) { this.skipLocked = skipLocked; return this }
+    @Override boolean getSkipLocked() { return this.skipLocked }
 
     // ======================== JDBC Options ==============================
 
@@ -658,6 +835,7 @@ abstract class EntityFindBase implements EntityFind {
         if (dynamicView != null) return false
         if (havingEntityCondition != null) return false
         if (limit != null || offset != null) return false
+        if (seekAfterValues != null || seekCursor != null) return false
         if (forUpdate) return false
         if (useCache != null) {
             boolean useCacheLocal = useCache.booleanValue()
@@ -672,7 +850,7 @@ abstract class EntityFindBase implements EntityFind {
     String toString() {
         return "Find: ${entityName} WHERE [${singleCondField?:''}:${singleCondValue?:''}] [${simpleAndMap}] [${whereEntityCondition}] HAVING [${havingEntityCondition}] " +
                 "SELECT [${fieldsToSelect}] ORDER BY [${orderByFields}] CACHE [${useCache}] DISTINCT [${distinct}] " +
-                "OFFSET [${offset}] LIMIT [${limit}] FOR UPDATE [${forUpdate}]"
+                "OFFSET [${offset}] LIMIT [${limit}] SEEK [${seekAfterValues ?: (seekCursor ?: '')}] FOR UPDATE [${forUpdate}]"
     }
 
     private static String makeErrorMsg(String baseMsg, String expandMsg, EntityConditionImplBase cond, EntityDefinition ed, ExecutionContextImpl ec) {
@@ -829,6 +1007,14 @@ abstract class EntityFindBase implements EntityFind {
                 ed.getCacheOne(efi.getEntityCache()) : (Cache<EntityCondition, EntityValueBase>) null
         EntityValueBase cacheHit = (EntityValueBase) null
         if (doCache && txcValue == null && !forUpdate) cacheHit = (EntityValueBase) entityOneCache.get(whereCondition)
+        // on a miss only one thread queries for the condition, others wait for it and get from the cache
+        CountDownLatch loadLatch = (CountDownLatch) null
+        long loadStartNanos = 0L
+        if (doCache && txcValue == null && !forUpdate && cacheHit == null) {
+            loadLatch = efi.getEntityCache().beginLoad(entityOneCache, whereCondition)
+            loadStartNanos = System.nanoTime()
+            if (loadLatch == null) cacheHit = (EntityValueBase) entityOneCache.get(whereCondition)
+        }
 
         // we always want fieldInfoArray populated so that we know the order of the results coming back
         int ftsSize = fieldsToSelect != null ? fieldsToSelect.size() : 0
@@ -927,7 +1113,8 @@ abstract class EntityFindBase implements EntityFind {
         } else if (cacheHit != null) {
             if (cacheHit instanceof EntityCache.EmptyRecord) newEntityValue = (EntityValueBase) null
             else newEntityValue = cacheHit
-        } else {
+            efi.getEntityCache().checkRefresh(ed, whereCondition, entityOneCache, false)
+        } else try {
             // for find one we'll always use the basic result set type and concurrency:
             this.resultSetType = ResultSet.TYPE_FORWARD_ONLY
             this.resultSetConcurrency = ResultSet.CONCUR_READ_ONLY
@@ -958,6 +1145,8 @@ abstract class EntityFindBase implements EntityFind {
 
             // put it in whether null or not (already know cacheHit is null)
             if (doCache) efi.getEntityCache().putInOneCache(ed, whereCondition, newEntityValue, entityOneCache)
+        } finally {
+            if (loadLatch != null) efi.getEntityCache().endLoad(entityOneCache, whereCondition, loadLatch, loadStartNanos)
         }
 
         // if (logger.traceEnabled) logger.trace("Find one on entity [${ed.fullEntityName}] with condition [${whereCondition}] found value [${newEntityValue}]")
@@ -1000,7 +1189,9 @@ abstract class EntityFindBase implements EntityFind {
                     ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_VIEW, "list")
             aefi.pushInternal(aei, !ed.entityInfo.authorizeSkipView, false)
             try {
-                return listInternal(ec, ed)
+                EntityList el = listInternal(ec, ed)
+                if (asyncCount != null) countFromPartialList(el.size())
+                return el
             } finally {
                 aefi.pop(aei)
             }
@@ -1021,6 +1212,7 @@ abstract class EntityFindBase implements EntityFind {
             aefi.pushInternal(aei, !ed.entityInfo.authorizeSkipView, false)
             try {
                 EntityList el = listInternal(ec, ed)
+                if (asyncCount != null) countFromPartialList(el.size())
                 return el.getMasterValueList(name)
             } finally {
                 // pop the ArtifactExecutionInfo
@@ -1086,6 +1278,14 @@ abstract class EntityFindBase implements EntityFind {
         EntityListImpl cacheList = (EntityListImpl) null
         if (doEntityCache && txcEli == null && !forUpdate)
             cacheList = efi.getEntityCache().getFromListCache(ed, whereCondition, orderByExpanded, entityListCache)
+        // on a miss only one thread queries for the condition, others wait for it and get from the cache
+        CountDownLatch loadLatch = (CountDownLatch) null
+        long loadStartNanos = 0L
+        if (doEntityCache && txcEli == null && !forUpdate && cacheList == null) {
+            loadLatch = efi.getEntityCache().beginLoad(entityListCache, whereCondition)
+            loadStartNanos = System.nanoTime()
+            if (loadLatch == null) cacheList = efi.getEntityCache().getFromListCache(ed, whereCondition, orderByExpanded, entityListCache)
+        }
 
         EntityListImpl el
         if (txcEli != null) {
@@ -1093,7 +1293,8 @@ abstract class EntityFindBase implements EntityFind {
             // if (ed.getFullEntityName().contains("OrderItem")) logger.warn("======== Got OrderItem from txCache ${el.size()} results where: ${whereCondition}")
         } else if (cacheList != null) {
             el = cacheList
-        } else {
+            efi.getEntityCache().checkRefresh(ed, whereCondition, entityListCache, true)
+        } else try {
             // order by fields need to be selected (at least on some databases, Derby is one of them)
             int orderByExpandedSize = orderByExpanded.size()
             if (getDistinct() && fieldsToSelect != null && fieldsToSelect.size() > 0 && orderByExpandedSize > 0) {
@@ -1176,6 +1377,8 @@ abstract class EntityFindBase implements EntityFind {
 
             // if (ed.getFullEntityName().contains("OrderItem")) logger.warn("======== Got OrderItem from DATABASE ${el.size()} results where: ${whereCondition}")
             // logger.warn("======== Got ${ed.getFullEntityName()} from DATABASE ${el.size()} results where: ${whereCondition}")
+        } finally {
+            if (loadLatch != null) efi.getEntityCache().endLoad(entityListCache, whereCondition, loadLatch, loadStartNanos)
         }
 
         // run the final rules
@@ -1311,7 +1514,44 @@ abstract class EntityFindBase implements EntityFind {
             ArrayList<String> orderByExpanded, FieldInfo[] fieldInfoArray, FieldOrderOptions[] fieldOptionsArray) throws SQLException
 
     @Override
-    long count() throws EntityException {
+    long count() throws EntityException { return count(asyncAllowEstimate) }
+    @Override
+    long count(boolean allowEstimate) throws EntityException {
+        if (asyncCount != null) {
+            CompletableFuture<Long> curAsyncCount = asyncCount
+            asyncCount = (CompletableFuture<Long>) null
+            try {
+                return curAsyncCount.join()
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause()
+                if (cause instanceof EntityException) throw (EntityException) cause
+                throw new EntityException("Error getting count of " + entityName, cause)
+            }
+        }
+        return countFuture(allowEstimate, false).join()
+    }
+    @Override
+    EntityFind countAsync(boolean allowEstimate) {
+        asyncAllowEstimate = allowEstimate
+        // null if the count can't run on another thread, then count() counts on this thread only if called
+        asyncCount = countFuture(allowEstimate, true)
+        return this
+    }
+    /** After a list with a countAsync() count running: if the list has fewer than limit values it has the last of them,
+     * so the count is known and the count query is not needed; cancel it (if not started it won't run) */
+    protected void countFromPartialList(int listSize) {
+        if (asyncCount.isDone() || limit == null || seekCursor != null || shouldCache()) return
+        int curOffset = offset != null ? offset.intValue() : 0
+        // an empty page after the last doesn't say how many there are
+        if (listSize >= limit.intValue() || (listSize == 0 && curOffset > 0)) return
+        asyncCount.cancel(false)
+        asyncCount = CompletableFuture.completedFuture((long) (curOffset + listSize))
+        countEstimated = false
+    }
+    @Override
+    boolean isCountEstimated() { return countEstimated }
+
+    protected CompletableFuture<Long> countFuture(boolean allowEstimate, boolean async) throws EntityException {
         ExecutionContextImpl ec = efi.ecfi.getEci()
         ArtifactExecutionFacadeImpl aefi = ec.artifactExecutionFacade
         boolean enableAuthz = disableAuthz ? !ec.artifactExecutionFacade.disableAuthz() : false
@@ -1322,7 +1562,7 @@ abstract class EntityFindBase implements EntityFind {
                     ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_VIEW, "count")
             aefi.pushInternal(aei, !ed.entityInfo.authorizeSkipView, false)
             try {
-                return countInternal(ec, ed)
+                return countInternal(ec, ed, allowEstimate, async)
             } finally {
                 aefi.pop(aei)
             }
@@ -1330,8 +1570,13 @@ abstract class EntityFindBase implements EntityFind {
             if (enableAuthz) ec.artifactExecutionFacade.enableAuthz()
         }
     }
-    protected long countInternal(ExecutionContextImpl ec, EntityDefinition ed) throws EntityException, SQLException {
-        if (requireSearchFormParameters && !hasSearchFormParameters) return 0L
+    /** Count on this thread, or when async is true start the count query on another thread with countExtendedAsync(); the
+     * returned future is already done except for an async count query. When async is true and the count query can't be
+     * run on another thread returns null without counting. */
+    protected CompletableFuture<Long> countInternal(ExecutionContextImpl ec, EntityDefinition ed, boolean allowEstimate,
+                                                    boolean async) throws EntityException, SQLException {
+        countEstimated = false
+        if (requireSearchFormParameters && !hasSearchFormParameters) return CompletableFuture.completedFuture(0L)
 
         EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo
         boolean isViewEntity = entityInfo.isView
@@ -1342,10 +1587,10 @@ abstract class EntityFindBase implements EntityFind {
         boolean doCache = shouldCache()
 
         // NOTE: artifactExecutionFacade.filterFindForUser() no longer called here, called in EntityFindBuilder after trimming if needed for view-entity
-        if (doCache) {
-            // don't cache if there are any applicable filter conditions
+        if (doCache || allowEstimate) {
+            // don't cache or estimate if there are any applicable filter conditions
             ArrayList findFilterList = ec.artifactExecutionFacade.getFindFiltersForUser(ed, null)
-            if (findFilterList != null && findFilterList.size() > 0) doCache = false
+            if (findFilterList != null && findFilterList.size() > 0) { doCache = false; allowEstimate = false }
         }
 
         EntityConditionImplBase whereCondition = getWhereEntityConditionInternal(ed)
@@ -1353,6 +1598,15 @@ abstract class EntityFindBase implements EntityFind {
         if (whereCondition == null) doCache = false
         // NOTE: don't cache if there is a having condition, for now just support where
 
+        // estimate from database statistics only for a whole table, for large tables where a count is slow
+        if (allowEstimate && whereCondition == null && havingEntityCondition == null && !isViewEntity && !getDistinct()) {
+            Long estimate = efi.getEntityDbMeta().getTableRowEstimate(ed)
+            if (estimate != null && estimate.longValue() >= efi.countEstimateMin) {
+                countEstimated = true
+                return CompletableFuture.completedFuture(estimate)
+            }
+        }
+
         Cache<EntityCondition, Long> entityCountCache = doCache ? ed.getCacheCount(efi.getEntityCache()) : (Cache) null
         Long cacheCount = (Long) null
         if (doCache) cacheCount = (Long) entityCountCache.get(whereCondition)
@@ -1411,6 +1665,34 @@ abstract class EntityFindBase implements EntityFind {
                 havingCondition = EntityConditionFactoryImpl.makeConditionImpl(havingCondition, EntityCondition.AND, viewHaving)
             }
 
+            if (async) {
+                CompletableFuture<Long> countFuture
+                try { countFuture = countExtendedAsync(queryWhereCondition, havingCondition, fieldInfoArray, fieldOptionsArray) }
+                catch (SQLException e) { throw new EntitySqlException(makeErrorMsg("Error finding count of", COUNT_ERROR, queryWhereCondition, ed, ec), e) }
+                if (countFuture != null) {
+                    final EntityConditionImplBase errorCondition = queryWhereCondition
+                    final Cache<EntityCondition, Long> asyncCountCache = entityCountCache
+                    final EntityConditionImplBase cacheCondition = whereCondition
+                    CompletableFuture<Long> resultFuture = new CompletableFuture<>()
+                    // cancelled when not needed after all (see countFromPartialList()), don't run the query if not started
+                    resultFuture.whenComplete({ Long result, Throwable t -> if (resultFuture.isCancelled()) countFuture.cancel(false) })
+                    countFuture.whenComplete({ Long asyncCount, Throwable t ->
+                        if (t != null) {
+                            Throwable cause = t.getCause() != null ? t.getCause() : t
+                            resultFuture.completeExceptionally(cause instanceof SQLException ?
+                                    new EntitySqlException(makeErrorMsg("Error finding count of", COUNT_ERROR, errorCondition, ed, null), (SQLException) cause) :
+                                    new EntityException(makeErrorMsg("Error finding count of", COUNT_ERROR, errorCondition, ed, null), cause))
+                        } else {
+                            if (asyncCountCache != null) asyncCountCache.put(cacheCondition, asyncCount)
+                            resultFuture.complete(asyncCount)
+                        }
+                    })
+                    return resultFuture
+                }
+                // can't count on another thread, count() will count here if it is called
+                return (CompletableFuture<Long>) null
+            }
+
             // call the abstract method
             try { count = countExtended(queryWhereCondition, havingCondition, fieldInfoArray, fieldOptionsArray) }
             catch (SQLException e) { throw new EntitySqlException(makeErrorMsg("Error finding count of", COUNT_ERROR, queryWhereCondition, ed, ec), e) }
@@ -1421,9 +1703,12 @@ abstract class EntityFindBase implements EntityFind {
 
         // find EECA rules deprecated, not worth performance hit: efi.runEecaRules(ed.getFullEntityName(), simpleAndMap, "find-count", false)
 
-        return count
+        return CompletableFuture.completedFuture(count)
     }
 
+    /** Start the count query on another thread and return its Future, or null to count on this thread with countExtended() */
+    protected CompletableFuture<Long> countExtendedAsync(EntityConditionImplBase whereCondition, EntityConditionImplBase havingCondition,
+            FieldInfo[] fieldInfoArray, FieldOrderOptions[] fieldOptionsArray) throws SQLException { return null }
     abstract long countExtended(EntityConditionImplBase whereCondition, EntityConditionImplBase havingCondition,
                                 FieldInfo[] fieldInfoArray, FieldOrderOptions[] fieldOptionsArray) throws SQLException
 
@@ -1437,12 +1722,15 @@ abstract class EntityFindBase implements EntityFind {
         }
     }
     protected long updateAllInternal(Map<String, Object> fieldsToSet) {
-        // NOTE: this code isn't very efficient, but will do the trick and cause all EECAs to be fired
-        // NOTE: consider expanding this to do a bulk update in the DB if there are no EECAs for the entity
+        // NOTE: if there are EECAs, audit logs, etc for the entity this updates each value so they all run, otherwise
+        //     see mutateAllSetBased()
 
         EntityDefinition ed = getEntityDef()
         if (ed.entityInfo.createOnly) throw new EntityException("Entity ${ed.getFullEntityName()} is create-only (immutable), cannot be updated.")
 
+        Long setBasedCount = mutateAllSetBased(ed, fieldsToSet)
+        if (setBasedCount != null) return setBasedCount.longValue()
+
         this.useCache(false)
         long totalUpdated = 0
         iterator().withCloseable ({eli ->
@@ -1469,38 +1757,92 @@ abstract class EntityFindBase implements EntityFind {
         }
     }
     protected long deleteAllInternal() {
-        // NOTE: this code isn't very efficient (though eli.remove() is a little bit more), but will do the trick and cause all EECAs to be fired
+        // NOTE: if there are EECAs, DataFeeds, etc for the entity this deletes each value so they all run, otherwise
+        //     see mutateAllSetBased()
 
         EntityDefinition ed = getEntityDef()
         if (ed.entityInfo.createOnly) throw new EntityException("Entity ${ed.getFullEntityName()} is create-only (immutable), cannot be deleted.")
 
-        // if there are no EECAs for the entity OR there is a TransactionCache in place just call ev.delete() on each
+        Long setBasedCount = mutateAllSetBased(ed, null)
+        if (setBasedCount != null) return setBasedCount.longValue()
+
         // NOTE DEJ 20200716 always use EV delete, not all JDBC drivers support ResultSet.deleteRow()... like MySQL Connector/J 8.0.20
-        // boolean useEvDelete = txCache != null || efi.hasEecaRules(ed.getFullEntityName())
-        boolean useEvDelete = true
+        // iterate instead of getting a list to avoid OutOfMemoryError, same as updateAll()
         this.useCache(false)
         long totalDeleted = 0
-        if (useEvDelete) {
-            // TODO: use EntityListIterator to avoid OutOfMemoryError
-            EntityList el = list()
-            int elSize = el.size()
-            for (int i = 0; i < elSize; i++) {
-                EntityValue ev = (EntityValue) el.get(i)
+        iterator().withCloseable ({eli ->
+            EntityValue ev
+            while ((ev = eli.next()) != null) {
                 ev.delete()
                 totalDeleted++
             }
-        } else {
-            this.resultSetConcurrency(ResultSet.CONCUR_UPDATABLE)
-            iterator().withCloseable ({eli->
+        })
+        return totalDeleted
+    }
 
-                while (eli.next() != null) {
-                    // no longer need to clear cache, eli.remove() does that
-                    eli.remove()
-                    totalDeleted++
-                }
-            })
+    /** For updateAll() (fieldsToSet not null) and deleteAll(): when nothing needs to be done for each record (no EECA
+     * rules, audit log, DataFeed, TransactionCache, record level authz filters, lock tracking, or distributed cache
+     * invalidate without dci-batch-messages) update or delete with
+     * set-based SQL through mutateAllExtended(). Entity caches are cleared for the whole entity. Returns null if not done.
+     *
+     * NOTE: the count returned for an update includes records that already had the values set. */
+    protected Long mutateAllSetBased(EntityDefinition ed, Map<String, Object> fieldsToSet) {
+        EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo
+        if (entityInfo.isView || limit != null || offset != null || havingEntityCondition != null) return null
+        boolean isUpdate = fieldsToSet != null
+        String entityName = entityInfo.fullEntityName
+        ExecutionContextImpl ec = efi.ecfi.getEci()
+        ArtifactExecutionFacadeImpl aefi = ec.artifactExecutionFacade
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade
+        if (tfi.getTransactionCache() != null || tfi.getUseLockTrack()) return null
+        if (!efi.getEntityCache().canClearEntityDistributed()) return null
+        if (efi.hasEecaRules(entityName) && !aefi.entityEcaDisabled()) return null
+        if (isUpdate && entityInfo.needsAuditLog && !aefi.entityAuditLogDisabled()) return null
+        if (!aefi.entityDataFeedDisabled() && efi.getEntityDataFeed().getDataFeedEntityInfoList(entityName).size() > 0) return null
+        ArrayList findFilterList = aefi.getFindFiltersForUser(ed, null)
+        if (findFilterList != null && findFilterList.size() > 0) return null
+
+        FieldInfo[] setFieldArray = (FieldInfo[]) null
+        ArrayList<Object> setValueList = (ArrayList<Object>) null
+        if (isUpdate) {
+            ArrayList<FieldInfo> setFieldList = new ArrayList<>(fieldsToSet.size() + 1)
+            setValueList = new ArrayList<>(fieldsToSet.size() + 1)
+            for (Map.Entry<String, Object> entry in fieldsToSet.entrySet()) {
+                FieldInfo fi = ed.getFieldInfo(entry.getKey())
+                if (fi == null) continue
+                // PK changes and create-only fields are handled (or rejected) by update() on each value
+                if (fi.isPk || fi.createOnly) return null
+                setFieldList.add(fi)
+                setValueList.add(entry.getValue())
+            }
+            if (setFieldList.size() == 0) return null
+            FieldInfo lastUpdatedStampInfo = entityInfo.lastUpdatedStampInfo
+            if (lastUpdatedStampInfo != null && !fieldsToSet.containsKey(lastUpdatedStampInfo.name)) {
+                Long txStartTime = tfi.getCurrentTransactionStartTime()
+                setFieldList.add(lastUpdatedStampInfo)
+                setValueList.add(new Timestamp(txStartTime != null && txStartTime > 0 ? txStartTime : System.currentTimeMillis()))
+            }
+            setFieldArray = setFieldList.toArray(new FieldInfo[setFieldList.size()])
         }
-        return totalDeleted
+
+        ArtifactExecutionInfoImpl aei = new ArtifactExecutionInfoImpl(entityName, ArtifactExecutionInfo.AT_ENTITY,
+                isUpdate ? ArtifactExecutionInfo.AUTHZA_UPDATE : ArtifactExecutionInfo.AUTHZA_DELETE, isUpdate ? "updateAll" : "deleteAll")
+        aefi.pushInternal(aei, !entityInfo.authorizeSkipTrue, false)
+        try {
+            Long count
+            try { count = mutateAllExtended(getWhereEntityConditionInternal(ed), setFieldArray, setValueList) }
+            catch (SQLException e) { throw new EntitySqlException(makeErrorMsg(isUpdate ? "Error updating all" : "Error deleting all",
+                    isUpdate ? UPDATE_ALL_ERROR : DELETE_ALL_ERROR, getWhereEntityConditionInternal(ed), ed, ec), e) }
+            if (count != null) efi.getEntityCache().clearCacheForEntityWrite(ed)
+            return count
+        } finally {
+            aefi.pop(aei)
+        }
+    }
+    /** Set-based update (setFieldArray not null, with setValues in the same order) or delete of records matching the condition in the datasource,
+     * returns null if not supported so updateAll() or deleteAll() will update or delete each value */
+    Long mutateAllExtended(EntityConditionImplBase whereCondition, FieldInfo[] setFieldArray, List<Object> setValues) throws SQLException {
+        return null
     }
 
     @Override
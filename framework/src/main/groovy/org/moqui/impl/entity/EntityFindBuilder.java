@@ -17,6 +17,8 @@ import org.moqui.BaseArtifactException;
 import org.moqui.entity.EntityCondition;
 import org.moqui.entity.EntityException;
 import org.moqui.impl.entity.condition.EntityConditionImplBase;
+import org.moqui.impl.entity.condition.FieldValueCondition;
+import org.moqui.impl.entity.condition.ListCondition;
 import org.moqui.impl.entity.EntityJavaUtil.FieldOrderOptions;
 import org.moqui.util.MNode;
 import org.slf4j.Logger;
@@ -25,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
@@ -36,6 +39,7 @@ public class EntityFindBuilder extends EntityQueryBuilder {
     private EntityFindBase entityFindBase;
     private EntityConditionImplBase whereCondition;
     private FieldInfo[] fieldInfoArray;
+    private ArrayList<String> orderByFieldList = null;
 
     public EntityFindBuilder(EntityDefinition entityDefinition, EntityFindBase entityFindBase,
                              EntityConditionImplBase whereCondition, FieldInfo[] fieldInfoArray) {
@@ -50,6 +54,59 @@ public class EntityFindBuilder extends EntityQueryBuilder {
 
     public void makeDistinct() { sqlTopLevel.append("DISTINCT "); }
 
+    /** For find one of all fields on a non-view entity by primary key use the SQL template from EntityInfo instead of
+     * building the SQL. Returns false, with nothing changed, if the find is not that shape. */
+    public boolean makeFindOneByPkSql() {
+        EntityJavaUtil.EntityInfo entityInfo = mainEntityDefinition.entityInfo;
+        if (entityInfo.isView || fieldInfoArray != entityInfo.allFieldInfoArray) return false;
+        FieldInfo[] pkFieldArray = entityInfo.pkFieldInfoArray;
+        Object[] pkValues = getPkValues(whereCondition, pkFieldArray);
+        if (pkValues == null) return false;
+        // same as in makeSqlFromClause() for non-view entities, if there are filters build the SQL as usual
+        ArrayList<EntityConditionImplBase> filterCondList = efi.ecfi.getEci().artifactExecutionFacade.filterFindForUser(mainEntityDefinition, null);
+        if (filterCondList != null && filterCondList.size() > 0) return false;
+
+        useSql(entityInfo.getSelectAllByPkSql());
+        for (int i = 0; i < pkFieldArray.length; i++)
+            parameters.add(new EntityJavaUtil.EntityConditionParameter(pkFieldArray[i], pkValues[i], this));
+        return true;
+    }
+    /** Get values in pkFieldArray order if the condition is exactly an equals on each PK field, otherwise null */
+    private static Object[] getPkValues(EntityConditionImplBase condition, FieldInfo[] pkFieldArray) {
+        int pkSize = pkFieldArray.length;
+        if (pkSize == 0) return null;
+        Object[] pkValues = new Object[pkSize];
+        if (condition instanceof FieldValueCondition) {
+            if (pkSize != 1 || !setPkValue((FieldValueCondition) condition, pkFieldArray, pkValues)) return null;
+        } else if (condition instanceof ListCondition) {
+            ListCondition listCond = (ListCondition) condition;
+            if (listCond.getOperator() != EntityCondition.JoinOperator.AND) return null;
+            ArrayList<EntityConditionImplBase> condList = listCond.getConditionList();
+            if (condList.size() != pkSize) return null;
+            for (int i = 0; i < pkSize; i++) {
+                EntityConditionImplBase cond = condList.get(i);
+                if (!(cond instanceof FieldValueCondition) || !setPkValue((FieldValueCondition) cond, pkFieldArray, pkValues)) return null;
+            }
+        } else {
+            return null;
+        }
+        return pkValues;
+    }
+    private static boolean setPkValue(FieldValueCondition fvc, FieldInfo[] pkFieldArray, Object[] pkValues) {
+        if (fvc.getOperator() != EntityCondition.ComparisonOperator.EQUALS || fvc.getIgnoreCase()) return false;
+        Object value = fvc.getValue();
+        if (value == null || value instanceof Collection) return false;
+        String fieldName = fvc.getFieldName();
+        for (int i = 0; i < pkFieldArray.length; i++) {
+            if (!pkFieldArray[i].name.equals(fieldName)) continue;
+            // same field twice means some other field is missing
+            if (pkValues[i] != null) return false;
+            pkValues[i] = value;
+            return true;
+        }
+        return false;
+    }
+
     public void makeCountFunction(FieldOrderOptions[] fieldOptionsArray, boolean isDistinct, boolean isGroupBy) {
         int fiaLength = fieldInfoArray.length;
         if (isGroupBy || (isDistinct && fiaLength > 0)) {
@@ -703,6 +760,7 @@ public class EntityFindBuilder extends EntityQueryBuilder {
     }
 
     public void makeOrderByClause(ArrayList<String> orderByFieldList, boolean hasLimitOffset) {
+        this.orderByFieldList = orderByFieldList;
         int obflSize = orderByFieldList.size();
         if (obflSize == 0) {
             if (hasLimitOffset) sqlTopLevel.append(" ORDER BY 1");
@@ -736,6 +794,11 @@ public class EntityFindBuilder extends EntityQueryBuilder {
             }
         }
     }
+    @Override
+    void recordIndexUsage(EntityIndexAdvisor indexAdvisor, long queryTime) {
+        indexAdvisor.record(mainEntityDefinition, whereCondition, orderByFieldList, queryTime);
+    }
+
     public void addLimitOffset(Integer limit, Integer offset) {
         if (limit == null && offset == null) return;
 
@@ -759,7 +822,8 @@ public class EntityFindBuilder extends EntityQueryBuilder {
     /** Adds FOR UPDATE, should be added to end of query */
     public void makeForUpdate() {
         MNode databaseNode = efi.getDatabaseNode(mainEntityDefinition.getEntityGroupName());
-        String forUpdateStr = databaseNode.attribute("for-update");
+        String forUpdateStr = entityFindBase.getSkipLocked() ? databaseNode.attribute("for-update-skip-locked") : null;
+        if (forUpdateStr == null || forUpdateStr.isEmpty()) forUpdateStr = databaseNode.attribute("for-update");
         if (forUpdateStr != null && forUpdateStr.length() > 0) {
             sqlTopLevel.append(" ").append(forUpdateStr);
         } else {
@@ -770,7 +834,7 @@ public class EntityFindBuilder extends EntityQueryBuilder {
     @Override
     public PreparedStatement makePreparedStatement() {
         if (connection == null) throw new IllegalStateException("Cannot make PreparedStatement, no Connection in place");
-        finalSql = sqlTopLevel.toString();
+        if (finalSql == null) finalSql = sqlTopLevel.toString();
         // if (this.mainEntityDefinition.getEntityName().contains("FooBar")) logger.warn("========= making find PreparedStatement for SQL: " + finalSql + "; parameters: " + parameters);
         if (isDebugEnabled) logger.debug("making find PreparedStatement for SQL: " + finalSql);
         try {
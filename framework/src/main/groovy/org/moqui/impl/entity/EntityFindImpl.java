@@ -15,18 +15,25 @@ package org.moqui.impl.entity;
 
 import org.moqui.entity.EntityDynamicView;
 import org.moqui.entity.EntityListIterator;
+import org.moqui.impl.context.TransactionFacadeImpl;
 import org.moqui.impl.entity.condition.EntityConditionImplBase;
+import org.moqui.impl.entity.EntityJavaUtil.EntityConditionParameter;
 import org.moqui.impl.entity.EntityJavaUtil.FieldOrderOptions;
 import org.moqui.util.LiteStringMap;
 import org.moqui.util.MNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class EntityFindImpl extends EntityFindBase {
     protected static final Logger logger = LoggerFactory.getLogger(EntityFindImpl.class);
@@ -55,17 +62,20 @@ public class EntityFindImpl extends EntityFindBase {
         // flag as a find one, small changes to internal behavior to reduce overhead
         efb.isFindOne();
 
-        // SELECT fields
-        efb.makeSqlSelectFields(fieldInfoArray, fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
-        // FROM Clause
-        efb.makeSqlFromClause();
-        // WHERE clause only for one/pk query
-        efb.makeWhereClause();
-        // GROUP BY clause
-        efb.makeGroupByClause();
-        // NOTE 20200707 don't do this, databases such as Oracle (error ORA-02014) do not allow use of limit/offset with for update: LIMIT/OFFSET clause - for find one always limit to 1: efb.addLimitOffset(1, 0);
-        // FOR UPDATE
-        if (getForUpdate()) efb.makeForUpdate();
+        // for the common case of all fields by PK use the SQL template, otherwise build the SQL
+        if (fieldOptionsArray != null || getForUpdate() || !efb.makeFindOneByPkSql()) {
+            // SELECT fields
+            efb.makeSqlSelectFields(fieldInfoArray, fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
+            // FROM Clause
+            efb.makeSqlFromClause();
+            // WHERE clause only for one/pk query
+            efb.makeWhereClause();
+            // GROUP BY clause
+            efb.makeGroupByClause();
+            // NOTE 20200707 don't do this, databases such as Oracle (error ORA-02014) do not allow use of limit/offset with for update: LIMIT/OFFSET clause - for find one always limit to 1: efb.addLimitOffset(1, 0);
+            // FOR UPDATE
+            if (getForUpdate()) efb.makeForUpdate();
+        }
 
         // run the SQL now that it is built
         EntityValueBase newEntityValue = null;
@@ -75,13 +85,14 @@ public class EntityFindImpl extends EntityFindBase {
             // if this is a view-entity and any table in it exists check/create all or will fail with optional members, etc
             if (ed.isViewEntity) efi.getEntityDbMeta().checkTableRuntime(ed);
 
-            efb.makeConnection(useClone);
+            efb.makeFindConnection(useClone, getForUpdate());
             efb.makePreparedStatement();
             efb.setPreparedStatementValues();
 
             final String condSql = isTraceEnabled && whereCondition != null ? whereCondition.toString() : null;
             ResultSet rs = efb.executeQuery();
             if (rs.next()) {
+                if (efb.queryShape != null) efb.queryShape.addRows(1);
                 newEntityValue = new EntityValueImpl(ed, efi);
                 LiteStringMap<Object> valueMap = newEntityValue.valueMapInternal;
                 int size = fieldInfoArray.length;
@@ -143,12 +154,13 @@ public class EntityFindImpl extends EntityFindBase {
             // if this is a view-entity and any table in it exists check/create all or will fail with optional members, etc
             if (ed.isViewEntity) efi.getEntityDbMeta().checkTableRuntime(ed);
 
-            Connection con = efb.makeConnection(useClone);
+            Connection con = efb.makeFindConnection(useClone, getForUpdate());
             efb.makePreparedStatement();
             efb.setPreparedStatementValues();
 
             ResultSet rs = efb.executeQuery();
             elii = new EntityListIteratorImpl(con, rs, ed, fieldInfoArray, efi, txCache, whereCondition, orderByExpanded);
+            elii.setQueryShape(efb.queryShape);
             // ResultSet will be closed in the EntityListIterator
             efb.releaseAll();
             queryTextList.add(efb.finalSql);
@@ -171,6 +183,61 @@ public class EntityFindImpl extends EntityFindBase {
         // table doesn't exist, just return 0
         if (!ed.tableExistsDbMetaOnly()) return 0;
 
+        EntityFindBuilder efb = makeCountBuilder(ed, whereCondition, havingCondition, fieldInfoArray, fieldOptionsArray);
+        // don't check create, above tableExists check is done:
+        // efi.getEntityDbMeta().checkTableRuntime(ed)
+        // if this is a view-entity and any table in it exists check/create all or will fail with optional members, etc
+        if (ed.isViewEntity) efi.getEntityDbMeta().checkTableRuntime(ed);
+
+        efb.makeFindConnection(useClone, getForUpdate());
+        long count = runCount(efb);
+        queryTextList.add(efb.finalSql);
+        return count;
+    }
+
+    /** Build the count SQL on this thread (user find filters, etc) and run it on the statementExecutor with its own
+     * connection, when that connection would see the same data: not for update and no writes to the group or
+     * TransactionCache in the current transaction. */
+    @Override
+    protected CompletableFuture<Long> countExtendedAsync(EntityConditionImplBase whereCondition, EntityConditionImplBase havingCondition,
+                                                         FieldInfo[] fieldInfoArray, FieldOrderOptions... fieldOptionsArray) throws SQLException {
+        EntityDefinition ed = getEntityDef();
+        if (getForUpdate() || !ed.tableExistsDbMetaOnly()) return null;
+        String groupName = ed.getEntityGroupName();
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
+        if (tfi.hasGroupWrite(groupName) || tfi.isTransactionCacheActive()) return null;
+        // if the executor is backed up don't wait for it
+        if (efi.statementExecutor.getQueue().remainingCapacity() < asyncCountMinCapacity) return null;
+
+        String readGroupName = useClone ? efi.getDatasourceCloneName(groupName) : efi.readRouter.getReadGroupName(groupName, false);
+        DataSource ds = efi.getDatasourceFactory(readGroupName).getDataSource();
+        if (ds == null) return null;
+
+        EntityFindBuilder efb = makeCountBuilder(ed, whereCondition, havingCondition, fieldInfoArray, fieldOptionsArray);
+        if (ed.isViewEntity) efi.getEntityDbMeta().checkTableRuntime(ed);
+        // already on the statementExecutor, and the caller can time out waiting on the Future
+        efb.execWithTimeout = false;
+        efb.finalSql = efb.sqlTopLevel.toString();
+        queryTextList.add(efb.finalSql);
+
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                // no transaction on this thread so not enlisted, like a connection for a find outside a transaction
+                try (Connection con = ds.getConnection()) {
+                    efb.useConnection(con);
+                    return runCount(efb);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, efi.statementExecutor);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+    private static final int asyncCountMinCapacity = 100;
+
+    private EntityFindBuilder makeCountBuilder(EntityDefinition ed, EntityConditionImplBase whereCondition, EntityConditionImplBase havingCondition,
+                                               FieldInfo[] fieldInfoArray, FieldOrderOptions[] fieldOptionsArray) {
         EntityFindBuilder efb = new EntityFindBuilder(ed, this, whereCondition, fieldInfoArray);
 
         ArrayList<MNode> entityConditionList = ed.internalEntityNode.children("entity-condition");
@@ -190,22 +257,18 @@ public class EntityFindImpl extends EntityFindBase {
         efb.makeHavingClause(havingCondition);
 
         efb.closeCountSubSelect(fieldInfoArray.length, isDistinct, isGroupBy);
-
+        return efb;
+    }
+    private long runCount(EntityFindBuilder efb) throws SQLException {
         // run the SQL now that it is built
         long count = 0;
         try {
-            // don't check create, above tableExists check is done:
-            // efi.getEntityDbMeta().checkTableRuntime(ed)
-            // if this is a view-entity and any table in it exists check/create all or will fail with optional members, etc
-            if (ed.isViewEntity) efi.getEntityDbMeta().checkTableRuntime(ed);
-
-            efb.makeConnection(useClone);
             efb.makePreparedStatement();
             efb.setPreparedStatementValues();
 
             ResultSet rs = efb.executeQuery();
             if (rs.next()) count = rs.getLong(1);
-            queryTextList.add(efb.finalSql);
+            if (efb.queryShape != null) efb.queryShape.addRows(1);
         } finally {
             try { efb.closeAll(); }
             catch (SQLException sqle) { logger.error("Error closing query", sqle); }
@@ -213,4 +276,122 @@ public class EntityFindImpl extends EntityFindBase {
 
         return count;
     }
+
+    /** Records per statement for set-based updateAll() and deleteAll(), to bound lock time and undo/log size */
+    private static final int mutateChunkSize = 5000;
+
+    /** Update or delete in chunks by ranges of the first PK field: find the field value for the last record in the next
+     * chunk, then update or delete records matching the condition in the range. If there is no transaction in place each
+     * chunk is done in its own transaction. */
+    @Override
+    public Long mutateAllExtended(EntityConditionImplBase whereCondition, FieldInfo[] setFieldArray, List<Object> setValues) throws SQLException {
+        EntityDefinition ed = getEntityDef();
+        // table doesn't exist, nothing to update or delete
+        if (!ed.tableExistsDbMetaOnly()) return 0L;
+
+        FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
+        FieldInfo chunkField = pkFieldArray.length > 0 ? pkFieldArray[0] : null;
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
+        boolean txPerChunk = !tfi.isTransactionInPlace();
+
+        long totalCount = 0;
+        Object lowerBound = null;
+        while (true) {
+            boolean beganTransaction = txPerChunk && tfi.begin(null);
+            Object upperBound = null;
+            try {
+                if (chunkField != null) upperBound = findChunkBound(whereCondition, chunkField, lowerBound);
+                totalCount += mutateChunk(whereCondition, setFieldArray, setValues, chunkField, lowerBound, upperBound);
+            } catch (Throwable t) {
+                tfi.rollback(beganTransaction, "Error in " + (setFieldArray != null ? "update" : "delete") + " all of " + ed.getFullEntityName(), t);
+                throw t;
+            } finally {
+                tfi.commit(beganTransaction);
+            }
+            if (upperBound == null) break;
+            lowerBound = upperBound;
+        }
+        return totalCount;
+    }
+
+    /** Get the chunk field value of the last record in the next chunk after lowerBound, null if this is the last chunk */
+    private Object findChunkBound(EntityConditionImplBase whereCondition, FieldInfo chunkField, Object lowerBound) throws SQLException {
+        EntityDefinition ed = getEntityDef();
+        EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
+        StringBuilder sql = eqb.sqlTopLevel;
+        String colName = chunkField.getFullColumnName();
+        sql.append("SELECT ").append(colName).append(" FROM ").append(ed.getFullTableName());
+        appendChunkWhere(eqb, whereCondition, chunkField, lowerBound, null);
+        sql.append(" ORDER BY ").append(colName);
+        try {
+            eqb.makeConnection(false);
+            eqb.makePreparedStatement();
+            eqb.ps.setMaxRows(mutateChunkSize);
+            eqb.setPreparedStatementValues();
+            ResultSet rs = eqb.executeQuery();
+            int rowCount = 0;
+            LiteStringMap<Object> valueMap = new LiteStringMap<>(1);
+            while (rs.next()) {
+                rowCount++;
+                // only need the last value, but the ResultSet may be forward only
+                if (rowCount == mutateChunkSize) chunkField.getResultSetValue(rs, 1, valueMap, efi);
+            }
+            return rowCount < mutateChunkSize ? null : valueMap.get(chunkField.name);
+        } finally {
+            try { eqb.closeAll(); }
+            catch (SQLException sqle) { logger.error("Error closing query", sqle); }
+        }
+    }
+
+    private int mutateChunk(EntityConditionImplBase whereCondition, FieldInfo[] setFieldArray, List<Object> setValues,
+                            FieldInfo chunkField, Object lowerBound, Object upperBound) throws SQLException {
+        EntityDefinition ed = getEntityDef();
+        EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
+        StringBuilder sql = eqb.sqlTopLevel;
+        if (setFieldArray != null) {
+            sql.append("UPDATE ").append(ed.getFullTableName()).append(" SET ");
+            for (int i = 0; i < setFieldArray.length; i++) {
+                FieldInfo fi = setFieldArray[i];
+                if (i > 0) sql.append(", ");
+                sql.append(fi.getFullColumnName()).append("=?");
+                eqb.parameters.add(new EntityConditionParameter(fi, setValues.get(i), eqb));
+            }
+        } else {
+            sql.append("DELETE FROM ").append(ed.getFullTableName());
+        }
+        appendChunkWhere(eqb, whereCondition, chunkField, lowerBound, upperBound);
+        try {
+            efi.getEntityDbMeta().checkTableRuntime(ed);
+            eqb.makeConnection(false);
+            eqb.makePreparedStatement();
+            eqb.setPreparedStatementValues();
+            int count = eqb.executeUpdate();
+            queryTextList.add(eqb.finalSql);
+            return count;
+        } finally {
+            try { eqb.closeAll(); }
+            catch (SQLException sqle) { logger.error("Error closing statement", sqle); }
+        }
+    }
+
+    private static void appendChunkWhere(EntityQueryBuilder eqb, EntityConditionImplBase whereCondition, FieldInfo chunkField,
+                                         Object lowerBound, Object upperBound) {
+        StringBuilder sql = eqb.sqlTopLevel;
+        boolean hasWhere = false;
+        if (whereCondition != null) {
+            sql.append(" WHERE (");
+            whereCondition.makeSqlWhere(eqb, null);
+            sql.append(")");
+            hasWhere = true;
+        }
+        if (lowerBound != null) {
+            sql.append(hasWhere ? " AND " : " WHERE ").append(chunkField.getFullColumnName()).append(" > ?");
+            eqb.parameters.add(new EntityConditionParameter(chunkField, lowerBound, eqb));
+            hasWhere = true;
+        }
+        if (upperBound != null) {
+            sql.append(hasWhere ? " AND " : " WHERE ").append(chunkField.getFullColumnName()).append(" <= ?");
+            eqb.parameters.add(new EntityConditionParameter(chunkField, upperBound, eqb));
+        }
+    }
 }
@@ -0,0 +1,332 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityCondition.ComparisonOperator;
+import org.moqui.entity.EntityCondition.JoinOperator;
+import org.moqui.entity.EntityException;
+import org.moqui.impl.entity.EntityJavaUtil.RelationshipInfo;
+import org.moqui.impl.entity.condition.BasicJoinCondition;
+import org.moqui.impl.entity.condition.EntityConditionImplBase;
+import org.moqui.impl.entity.condition.FieldValueCondition;
+import org.moqui.impl.entity.condition.ListCondition;
+import org.moqui.impl.entity.condition.WhereCondition;
+import org.moqui.util.MNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index recommendations from the field patterns of finds actually run, for the entity-facade index-advisor option.
+ * EntityFindBuilder calls record() after each query on a non-view entity with the fields in its where condition and
+ * order by; these are kept by pattern (equality fields, range fields, order by fields) with a count and total time.
+ *
+ * getRecommendations() compares each pattern with the indexes declared for the entity (primary key, index elements, and
+ * the automatic foreign key indexes) and for patterns where no index can be used for all of the equality fields plus a
+ * range or order by field suggests one, ranked by an estimated benefit from the hit count and the table's row count
+ * (see EntityDbMeta.getTableRowEstimate()). The CREATE INDEX statement is included, and createRecommendedIndexes() can
+ * run it through EntityDbMeta for databases that are not for production (instance_purpose).
+ *
+ * Only fields in AND conditions with =, IN, or IS NULL are treated as equality fields; fields in OR conditions, ignore
+ * case conditions, NOT conditions, and conditions on related entities are not considered for an index.
+ */
+public class EntityIndexAdvisor {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityIndexAdvisor.class);
+    /** Max number of field patterns to keep, after this new patterns are not recorded */
+    static final int maxPatterns = 5000;
+
+    private final EntityFacadeImpl efi;
+    private final ConcurrentHashMap<String, FieldPattern> patternByKey = new ConcurrentHashMap<>();
+    private volatile long statsStartTime = System.currentTimeMillis();
+
+    EntityIndexAdvisor(EntityFacadeImpl efi) { this.efi = efi; }
+
+    public long getStatsStartTime() { return statsStartTime; }
+    public int getPatternCount() { return patternByKey.size(); }
+
+    /** Record a query on a non-view entity, called by EntityFindBuilder after the query is run */
+    void record(EntityDefinition ed, EntityConditionImplBase whereCondition, ArrayList<String> orderByFieldList, long queryTime) {
+        if (ed.entityInfo.isView) return;
+        int orderBySize = orderByFieldList != null ? orderByFieldList.size() : 0;
+        if (whereCondition == null && orderBySize == 0) return;
+
+        LinkedHashSet<String> eqFields = new LinkedHashSet<>();
+        LinkedHashSet<String> rangeFields = new LinkedHashSet<>();
+        if (whereCondition != null) addConditionFields(whereCondition, eqFields, rangeFields);
+        rangeFields.removeAll(eqFields);
+        ArrayList<String> orderFields = new ArrayList<>(orderBySize);
+        for (int i = 0; i < orderBySize; i++) {
+            String orderByField = orderByFieldList.get(i);
+            if (orderByField == null || orderByField.isEmpty()) continue;
+            String fieldName = new EntityJavaUtil.FieldOrderOptions(orderByField).getFieldName();
+            if (!eqFields.contains(fieldName) && !orderFields.contains(fieldName)) orderFields.add(fieldName);
+        }
+        if (eqFields.isEmpty() && rangeFields.isEmpty() && orderFields.isEmpty()) return;
+
+        String fullEntityName = ed.getFullEntityName();
+        StringBuilder keyBuilder = new StringBuilder(fullEntityName).append('|');
+        for (String fieldName : eqFields) keyBuilder.append(fieldName).append(',');
+        keyBuilder.append('|');
+        for (String fieldName : rangeFields) keyBuilder.append(fieldName).append(',');
+        keyBuilder.append('|');
+        for (String fieldName : orderFields) keyBuilder.append(fieldName).append(',');
+        String key = keyBuilder.toString();
+
+        FieldPattern pattern = patternByKey.get(key);
+        if (pattern == null) {
+            if (patternByKey.size() >= maxPatterns) return;
+            pattern = patternByKey.computeIfAbsent(key, k -> new FieldPattern(fullEntityName, eqFields, rangeFields, orderFields));
+        }
+        pattern.hitCount.increment();
+        pattern.totalTimeNanos.add(queryTime);
+    }
+
+    private static void addConditionFields(EntityConditionImplBase cond, Set<String> eqFields, Set<String> rangeFields) {
+        if (cond instanceof ListCondition) {
+            ListCondition listCond = (ListCondition) cond;
+            // for OR an index on one field doesn't help unless all are indexed, so don't consider them
+            if (listCond.getOperator() != JoinOperator.AND) return;
+            ArrayList<EntityConditionImplBase> condList = listCond.getConditionList();
+            for (int i = 0; i < condList.size(); i++) addConditionFields(condList.get(i), eqFields, rangeFields);
+        } else if (cond instanceof BasicJoinCondition) {
+            BasicJoinCondition joinCond = (BasicJoinCondition) cond;
+            if (joinCond.getOperator() != JoinOperator.AND) return;
+            addConditionFields(joinCond.getLhs(), eqFields, rangeFields);
+            addConditionFields(joinCond.getRhs(), eqFields, rangeFields);
+        } else if (cond instanceof FieldValueCondition) {
+            FieldValueCondition fvCond = (FieldValueCondition) cond;
+            // with ignore case the column is in a function so a plain index is not used
+            if (fvCond.getIgnoreCase()) return;
+            ComparisonOperator operator = fvCond.getOperator();
+            switch (operator) {
+                case EQUALS: case IN: case IS_NULL: eqFields.add(fvCond.getFieldName()); break;
+                case LESS_THAN: case GREATER_THAN: case LESS_THAN_EQUAL_TO: case GREATER_THAN_EQUAL_TO: case BETWEEN:
+                    rangeFields.add(fvCond.getFieldName()); break;
+                case LIKE:
+                    // only a LIKE with a fixed prefix can use an index
+                    Object value = fvCond.getValue();
+                    if (value instanceof CharSequence && value.toString().length() > 0 && value.toString().charAt(0) != '%')
+                        rangeFields.add(fvCond.getFieldName());
+                    break;
+                default: break;
+            }
+        } else if (!(cond instanceof WhereCondition)) {
+            // DateCondition, FieldToFieldCondition, etc; fields used in range comparisons
+            HashSet<String> entityAliasSet = new HashSet<>();
+            cond.getAllAliases(entityAliasSet, rangeFields);
+        }
+    }
+
+    /** Index recommendations with the most estimated benefit first, for patterns with at least minHits queries */
+    public ArrayList<Map<String, Object>> getRecommendations(long minHits, int maxResults) {
+        HashMap<String, ArrayList<IndexColumns>> indexesByEntity = new HashMap<>();
+        HashMap<String, Long> rowsByEntity = new HashMap<>();
+        // patterns with the same candidate index are combined
+        LinkedHashMap<String, Map<String, Object>> recByIndex = new LinkedHashMap<>();
+        for (FieldPattern pattern : patternByKey.values()) {
+            long hitCount = pattern.hitCount.sum();
+            if (hitCount < minHits) continue;
+            EntityDefinition ed = efi.getEntityDefinition(pattern.entityName);
+            if (ed == null) continue;
+            // a find by the full primary key is for a single record
+            if (pattern.eqFields.containsAll(ed.getPkFieldNames())) continue;
+
+            ArrayList<String> candidate = pattern.getCandidateFields();
+            ArrayList<IndexColumns> indexList = indexesByEntity.computeIfAbsent(pattern.entityName, k -> getDeclaredIndexes(ed));
+            IndexColumns bestIndex = null;
+            int bestUsable = 0;
+            for (IndexColumns index : indexList) {
+                int usable = pattern.usableColumns(index.fieldNames);
+                if (usable > bestUsable) { bestUsable = usable; bestIndex = index; }
+            }
+            if (bestUsable >= candidate.size()) continue;
+
+            Long rowEstimate = rowsByEntity.computeIfAbsent(pattern.entityName, k -> getRowEstimate(ed));
+            long rows = rowEstimate != null && rowEstimate > 0 ? rowEstimate : 1L;
+            // relative ranking, not a number of rows: more hits, bigger tables, and fewer usable index columns are worse
+            BigDecimal benefit = BigDecimal.valueOf(hitCount).multiply(BigDecimal.valueOf(rows))
+                    .multiply(BigDecimal.valueOf(candidate.size() - bestUsable))
+                    .divide(BigDecimal.valueOf(candidate.size()), 0, RoundingMode.HALF_UP);
+
+            String recKey = pattern.entityName + candidate.toString();
+            Map<String, Object> rec = recByIndex.get(recKey);
+            if (rec == null) {
+                rec = new LinkedHashMap<>();
+                String indexName = makeIndexName(ed, candidate);
+                rec.put("entityName", pattern.entityName);
+                rec.put("indexName", indexName);
+                rec.put("fieldNames", candidate);
+                rec.put("existingIndexName", bestIndex != null ? bestIndex.indexName : null);
+                rec.put("usableColumns", bestUsable);
+                rec.put("rowEstimate", rowEstimate);
+                rec.put("hitCount", 0L);
+                rec.put("totalTimeMillis", BigDecimal.ZERO);
+                rec.put("estimatedBenefit", BigDecimal.ZERO);
+                rec.put("patterns", new ArrayList<Map<String, Object>>());
+                rec.put("createSql", efi.getEntityDbMeta().makeCreateIndexSql(ed, indexName, candidate));
+                recByIndex.put(recKey, rec);
+            }
+            BigDecimal totalTimeMillis = new BigDecimal(pattern.totalTimeNanos.sum()).movePointLeft(6).setScale(2, RoundingMode.HALF_UP);
+            rec.put("hitCount", (Long) rec.get("hitCount") + hitCount);
+            rec.put("totalTimeMillis", ((BigDecimal) rec.get("totalTimeMillis")).add(totalTimeMillis));
+            rec.put("estimatedBenefit", ((BigDecimal) rec.get("estimatedBenefit")).add(benefit));
+            @SuppressWarnings("unchecked") List<Map<String, Object>> patternList = (List<Map<String, Object>>) rec.get("patterns");
+            Map<String, Object> patternInfo = new LinkedHashMap<>();
+            patternInfo.put("equalityFields", new ArrayList<>(pattern.eqFields));
+            patternInfo.put("rangeFields", new ArrayList<>(pattern.rangeFields));
+            patternInfo.put("orderByFields", pattern.orderFields);
+            patternInfo.put("hitCount", hitCount);
+            patternInfo.put("totalTimeMillis", totalTimeMillis);
+            patternList.add(patternInfo);
+        }
+
+        ArrayList<Map<String, Object>> recList = new ArrayList<>(recByIndex.values());
+        recList.sort((a, b) -> ((BigDecimal) b.get("estimatedBenefit")).compareTo((BigDecimal) a.get("estimatedBenefit")));
+        if (maxResults > 0 && recList.size() > maxResults) return new ArrayList<>(recList.subList(0, maxResults));
+        return recList;
+    }
+
+    /** Create the top recommended indexes, only allowed when instance_purpose is not production */
+    public ArrayList<Map<String, Object>> createRecommendedIndexes(long minHits, int maxIndexes) {
+        if ("production".equals(System.getProperty("instance_purpose")))
+            throw new EntityException("Not creating recommended indexes in a production instance, use the createSql to add indexes to entity definitions or the database");
+        ArrayList<Map<String, Object>> createdList = new ArrayList<>();
+        for (Map<String, Object> rec : getRecommendations(minHits, maxIndexes)) {
+            EntityDefinition ed = efi.getEntityDefinition((String) rec.get("entityName"));
+            String indexName = (String) rec.get("indexName");
+            @SuppressWarnings("unchecked") List<String> fieldNames = (List<String>) rec.get("fieldNames");
+            if (efi.getEntityDbMeta().createIndex(ed, indexName, fieldNames)) {
+                logger.info("Created recommended index " + indexName + " on " + ed.getFullEntityName() + " " + fieldNames);
+                createdList.add(rec);
+            }
+        }
+        // find patterns change with the new indexes, start over
+        if (!createdList.isEmpty()) clear();
+        return createdList;
+    }
+
+    public void clear() {
+        patternByKey.clear();
+        statsStartTime = System.currentTimeMillis();
+    }
+
+    private ArrayList<IndexColumns> getDeclaredIndexes(EntityDefinition ed) {
+        ArrayList<IndexColumns> indexList = new ArrayList<>();
+        indexList.add(new IndexColumns("PRIMARY", ed.getPkFieldNames()));
+        for (MNode indexNode : ed.getEntityNode().children("index")) {
+            ArrayList<String> fieldNames = new ArrayList<>();
+            for (MNode indexFieldNode : indexNode.children("index-field")) fieldNames.add(indexFieldNode.attribute("name"));
+            indexList.add(new IndexColumns(indexNode.attribute("name"), fieldNames));
+        }
+        MNode databaseNode = efi.getDatabaseNode(ed.getEntityGroupName());
+        if (databaseNode != null && !"false".equals(databaseNode.attribute("use-foreign-key-indexes"))) {
+            int constraintNameClipLength = getConstraintNameClipLength(databaseNode);
+            for (RelationshipInfo relInfo : ed.getRelationshipsInfo(false)) {
+                if (!"one".equals(relInfo.type)) continue;
+                indexList.add(new IndexColumns(EntityDbMeta.makeFkIndexName(ed, relInfo, constraintNameClipLength),
+                        new ArrayList<>(relInfo.keyMap.keySet())));
+            }
+        }
+        return indexList;
+    }
+
+    private Long getRowEstimate(EntityDefinition ed) {
+        Long estimate = efi.getEntityDbMeta().getTableRowEstimate(ed);
+        if (estimate != null) return estimate;
+        // no statistics query for the database, count the records
+        try {
+            return efi.find(ed.getFullEntityName()).disableAuthz().useCache(false).count();
+        } catch (Exception e) {
+            logger.warn("Could not count records for " + ed.getFullEntityName() + " for index recommendations: " + e.toString());
+            return null;
+        }
+    }
+
+    private String makeIndexName(EntityDefinition ed, List<String> fieldNames) {
+        StringBuilder indexName = new StringBuilder(ed.entityInfo.internalEntityName);
+        for (String fieldName : fieldNames)
+            indexName.append(Character.toUpperCase(fieldName.charAt(0))).append(fieldName, 1, fieldName.length());
+        EntityDbMeta.shrinkName(indexName, getConstraintNameClipLength(efi.getDatabaseNode(ed.getEntityGroupName())) - 4);
+        indexName.insert(0, "IDXA");
+        return indexName.toString();
+    }
+    private static int getConstraintNameClipLength(MNode databaseNode) {
+        String clipAttr = databaseNode != null ? databaseNode.attribute("constraint-name-clip-length") : null;
+        return clipAttr != null && !clipAttr.isEmpty() ? Integer.parseInt(clipAttr) : 30;
+    }
+
+    private static class IndexColumns {
+        final String indexName;
+        final List<String> fieldNames;
+        IndexColumns(String indexName, List<String> fieldNames) { this.indexName = indexName; this.fieldNames = fieldNames; }
+    }
+
+    private static class FieldPattern {
+        final String entityName;
+        final Set<String> eqFields, rangeFields;
+        final ArrayList<String> orderFields;
+        final LongAdder hitCount = new LongAdder();
+        final LongAdder totalTimeNanos = new LongAdder();
+
+        FieldPattern(String entityName, Set<String> eqFields, Set<String> rangeFields, ArrayList<String> orderFields) {
+            this.entityName = entityName;
+            this.eqFields = eqFields;
+            this.rangeFields = rangeFields;
+            this.orderFields = orderFields;
+        }
+
+        /** Columns for an index for this pattern: the equality fields, then one range field or the order by fields */
+        ArrayList<String> getCandidateFields() {
+            ArrayList<String> candidate = new ArrayList<>(eqFields);
+            candidate.addAll(getTailFields());
+            return candidate;
+        }
+        List<String> getTailFields() {
+            if (!rangeFields.isEmpty()) return Collections.singletonList(rangeFields.iterator().next());
+            return orderFields;
+        }
+
+        /** Number of leading columns of an index that can be used for this pattern, up to getCandidateFields().size() */
+        int usableColumns(List<String> indexFields) {
+            int usable = 0;
+            int eqLeft = eqFields.size();
+            int indexSize = indexFields.size();
+            int i = 0;
+            while (i < indexSize && eqLeft > 0 && eqFields.contains(indexFields.get(i))) { usable++; eqLeft--; i++; }
+            // after equality columns a range column can be used, or the order by columns in order to avoid a sort
+            if (eqLeft == 0) {
+                if (!rangeFields.isEmpty()) {
+                    if (i < indexSize && rangeFields.contains(indexFields.get(i))) usable++;
+                } else {
+                    int j = 0;
+                    while (i < indexSize && j < orderFields.size() && orderFields.get(j).equals(indexFields.get(i))) { usable++; i++; j++; }
+                }
+            }
+            return usable;
+        }
+    }
+}
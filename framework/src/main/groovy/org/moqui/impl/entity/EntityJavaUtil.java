@@ -14,7 +14,6 @@
 package org.moqui.impl.entity;
 
 import org.moqui.BaseException;
-import org.moqui.context.ArtifactExecutionInfo;
 import org.moqui.entity.EntityCondition;
 import org.moqui.entity.EntityDatasourceFactory;
 import org.moqui.entity.EntityException;
@@ -34,9 +33,9 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
 import javax.xml.bind.DatatypeConverter;
 
-import java.math.BigDecimal;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class EntityJavaUtil {
     protected final static Logger logger = LoggerFactory.getLogger(EntityJavaUtil.class);
@@ -279,6 +278,12 @@ public class EntityJavaUtil {
         public final String allFieldsSqlSelect;
         final Map<String, String> pkFieldDefaults, nonPkFieldDefaults;
 
+        // SQL for common CRUD statement shapes, built on first use; insert and update are by the set of fields included
+        private String deleteByPkSql = null, selectAllByPkSql = null;
+        private final ConcurrentHashMap<BitSet, String> insertSqlByFields = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<BitSet, String> updateSqlByFields = new ConcurrentHashMap<>();
+        private static final int maxSqlShapes = 64;
+
 
         EntityInfo(EntityDefinition ed, boolean memberNeverCache) {
             this.ed = ed;
@@ -415,6 +420,157 @@ public class EntityJavaUtil {
             }
         }
 
+        /** SQL to delete a record by primary key, with a parameter for each field in pkFieldInfoArray */
+        String getDeleteByPkSql() {
+            if (deleteByPkSql != null) return deleteByPkSql;
+            StringBuilder sql = new StringBuilder("DELETE FROM ").append(fullTableName);
+            appendPkWhere(sql);
+            deleteByPkSql = sql.toString();
+            return deleteByPkSql;
+        }
+        /** SQL to select all fields by primary key, only for non-view entities (null for view-entity) */
+        String getSelectAllByPkSql() {
+            if (isView) return null;
+            if (selectAllByPkSql != null) return selectAllByPkSql;
+            StringBuilder sql = new StringBuilder("SELECT ").append(allFieldsSqlSelect).append(" FROM ").append(fullTableName);
+            appendPkWhere(sql);
+            selectAllByPkSql = sql.toString();
+            return selectAllByPkSql;
+        }
+        private void appendPkWhere(StringBuilder sql) {
+            sql.append(" WHERE ");
+            for (int i = 0; i < pkFieldInfoArray.length; i++) {
+                if (i > 0) sql.append(" AND ");
+                sql.append(pkFieldInfoArray[i].getFullColumnName()).append("=?");
+            }
+        }
+        /** SQL to insert a record with the fields in the array (which may have trailing nulls) */
+        String getInsertSql(FieldInfo[] fieldInfoArray) {
+            BitSet fieldsKey = makeFieldsKey(fieldInfoArray);
+            String sqlStr = fieldsKey != null ? insertSqlByFields.get(fieldsKey) : null;
+            if (sqlStr != null) return sqlStr;
+
+            StringBuilder sql = new StringBuilder(200).append("INSERT INTO ").append(fullTableName).append(" (");
+            StringBuilder values = new StringBuilder(fieldInfoArray.length * 3);
+            for (int i = 0; i < fieldInfoArray.length; i++) {
+                FieldInfo fieldInfo = fieldInfoArray[i];
+                if (fieldInfo == null) break;
+                if (i > 0) {
+                    sql.append(", ");
+                    values.append(", ");
+                }
+                sql.append(fieldInfo.getFullColumnName());
+                values.append("?");
+            }
+            sql.append(") VALUES (").append(values).append(")");
+            sqlStr = sql.toString();
+            if (fieldsKey != null && insertSqlByFields.size() < maxSqlShapes) insertSqlByFields.putIfAbsent(fieldsKey, sqlStr);
+            return sqlStr;
+        }
+        /** SQL to update the fields in the array (which may have trailing nulls) by primary key, parameters are the fields
+         * then the fields in pkFieldInfoArray */
+        String getUpdateByPkSql(FieldInfo[] nonPkFieldArray) {
+            BitSet fieldsKey = makeFieldsKey(nonPkFieldArray);
+            String sqlStr = fieldsKey != null ? updateSqlByFields.get(fieldsKey) : null;
+            if (sqlStr != null) return sqlStr;
+
+            StringBuilder sql = new StringBuilder(200).append("UPDATE ").append(fullTableName).append(" SET ");
+            for (int i = 0; i < nonPkFieldArray.length; i++) {
+                FieldInfo fieldInfo = nonPkFieldArray[i];
+                if (fieldInfo == null) break;
+                if (i > 0) sql.append(", ");
+                sql.append(fieldInfo.getFullColumnName()).append("=?");
+            }
+            appendPkWhere(sql);
+            sqlStr = sql.toString();
+            if (fieldsKey != null && updateSqlByFields.size() < maxSqlShapes) updateSqlByFields.putIfAbsent(fieldsKey, sqlStr);
+            return sqlStr;
+        }
+        /** SQL to insert rowCount records with the fields in the array (which may have trailing nulls), a multi-row INSERT
+         * if rowCount is more than 1. If upsertStyle is not null the SQL updates the fields for records that already exist,
+         * in the syntax for the database.@upsert-style value. Parameters are the fields for each row. */
+        String makeBulkInsertSql(FieldInfo[] fieldInfoArray, int rowCount, String upsertStyle) {
+            boolean mergeKey = "merge-key".equals(upsertStyle);
+            StringBuilder sql = new StringBuilder(200 + rowCount * fieldInfoArray.length * 3);
+            sql.append(mergeKey ? "MERGE INTO " : "INSERT INTO ").append(fullTableName).append(" (");
+            StringBuilder rowSql = new StringBuilder(fieldInfoArray.length * 3).append("(");
+            for (int i = 0; i < fieldInfoArray.length; i++) {
+                FieldInfo fieldInfo = fieldInfoArray[i];
+                if (fieldInfo == null) break;
+                if (i > 0) {
+                    sql.append(", ");
+                    rowSql.append(", ");
+                }
+                sql.append(fieldInfo.getFullColumnName());
+                rowSql.append("?");
+            }
+            rowSql.append(")");
+            sql.append(")");
+            if (mergeKey) {
+                sql.append(" KEY (");
+                appendPkColumns(sql);
+                sql.append(")");
+            }
+            sql.append(" VALUES ");
+            for (int r = 0; r < rowCount; r++) {
+                if (r > 0) sql.append(", ");
+                sql.append(rowSql);
+            }
+
+            if ("on-conflict".equals(upsertStyle)) {
+                sql.append(" ON CONFLICT (");
+                appendPkColumns(sql);
+                sql.append(")");
+                boolean first = true;
+                for (int i = 0; i < fieldInfoArray.length; i++) {
+                    FieldInfo fieldInfo = fieldInfoArray[i];
+                    if (fieldInfo == null) break;
+                    if (fieldInfo.isPk) continue;
+                    String colName = fieldInfo.getFullColumnName();
+                    sql.append(first ? " DO UPDATE SET " : ", ").append(colName).append("=EXCLUDED.").append(colName);
+                    first = false;
+                }
+                if (first) sql.append(" DO NOTHING");
+            } else if ("on-duplicate-key".equals(upsertStyle)) {
+                sql.append(" ON DUPLICATE KEY UPDATE ");
+                boolean first = true;
+                for (int i = 0; i < fieldInfoArray.length; i++) {
+                    FieldInfo fieldInfo = fieldInfoArray[i];
+                    if (fieldInfo == null) break;
+                    if (fieldInfo.isPk) continue;
+                    String colName = fieldInfo.getFullColumnName();
+                    if (!first) sql.append(", ");
+                    sql.append(colName).append("=VALUES(").append(colName).append(")");
+                    first = false;
+                }
+                // nothing to update, set a PK field to itself so existing records are left as-is
+                if (first) {
+                    String colName = pkFieldInfoArray[0].getFullColumnName();
+                    sql.append(colName).append("=").append(colName);
+                }
+            }
+            return sql.toString();
+        }
+        private void appendPkColumns(StringBuilder sql) {
+            for (int i = 0; i < pkFieldInfoArray.length; i++) {
+                if (i > 0) sql.append(", ");
+                sql.append(pkFieldInfoArray[i].getFullColumnName());
+            }
+        }
+        /** Key for the set of fields, null if not in field index order (the usual order) as then the set doesn't determine the SQL */
+        private BitSet makeFieldsKey(FieldInfo[] fieldInfoArray) {
+            BitSet fieldsKey = new BitSet(allFieldInfoArray.length);
+            int lastIndex = -1;
+            for (int i = 0; i < fieldInfoArray.length; i++) {
+                FieldInfo fieldInfo = fieldInfoArray[i];
+                if (fieldInfo == null) break;
+                if (fieldInfo.index <= lastIndex) return null;
+                lastIndex = fieldInfo.index;
+                fieldsKey.set(fieldInfo.index);
+            }
+            return fieldsKey;
+        }
+
         void setFields(Map<String, Object> src, Map<String, Object> dest, boolean setIfEmpty, String namePrefix, Boolean pks) {
             if (src == null || dest == null) return;
 
@@ -722,58 +878,6 @@ public class EntityJavaUtil {
         public String toString() { return fieldInfo.name + ':' + value; }
     }
 
-    public static class QueryStatsInfo {
-        private String entityName;
-        private String sql;
-        private long hitCount = 0, errorCount = 0;
-        private long minTimeNanos = Long.MAX_VALUE, maxTimeNanos = 0, totalTimeNanos = 0, totalSquaredTime = 0;
-        private Map<String, Integer> artifactCounts = new HashMap<>();
-        public QueryStatsInfo(String entityName, String sql) {
-            this.entityName = entityName;
-            this.sql = sql;
-        }
-        public void countHit(EntityFacadeImpl efi, long runTimeNanos, boolean isError) {
-            hitCount++;
-            if (isError) errorCount++;
-            if (runTimeNanos < minTimeNanos) minTimeNanos = runTimeNanos;
-            if (runTimeNanos > maxTimeNanos) maxTimeNanos = runTimeNanos;
-            totalTimeNanos += runTimeNanos;
-            totalSquaredTime += runTimeNanos * runTimeNanos;
-            // this gets much more expensive, consider commenting in the future
-            ArtifactExecutionInfo aei = efi.ecfi.getEci().artifactExecutionFacade.peek();
-            if (aei != null) aei = aei.getParent();
-            if (aei != null) {
-                String artifactName = aei.getName();
-                Integer artifactCount = artifactCounts.get(artifactName);
-                artifactCounts.put(artifactName, artifactCount != null ? artifactCount + 1 : 1);
-            }
-        }
-        public String getEntityName() { return entityName; }
-        public String getSql() { return sql; }
-        // public long getHitCount() { return hitCount; }
-        // public long getErrorCount() { return errorCount; }
-        // public long getMinTimeNanos() { return minTimeNanos; }
-        // public long getMaxTimeNanos() { return maxTimeNanos; }
-        // public long getTotalTimeNanos() { return totalTimeNanos; }
-        // public long getTotalSquaredTime() { return totalSquaredTime; }
-        double getAverage() { return hitCount > 0 ? totalTimeNanos / hitCount : 0; }
-        double getStdDev() {
-            if (hitCount < 2) return 0;
-            return Math.sqrt(Math.abs(totalSquaredTime - ((totalTimeNanos * totalTimeNanos) / hitCount)) / (hitCount - 1L));
-        }
-        final static long nanosDivisor = 1000;
-        public Map<String, Object> makeDisplayMap() {
-            Map<String, Object> dm = new HashMap<>();
-            dm.put("entityName", entityName); dm.put("sql", sql);
-            dm.put("hitCount", hitCount); dm.put("errorCount", errorCount);
-            dm.put("minTime", new BigDecimal(minTimeNanos/nanosDivisor)); dm.put("maxTime", new BigDecimal(maxTimeNanos/nanosDivisor));
-            dm.put("totalTime", new BigDecimal(totalTimeNanos/nanosDivisor)); dm.put("totalSquaredTime", new BigDecimal(totalSquaredTime/nanosDivisor));
-            dm.put("average", new BigDecimal(getAverage()/nanosDivisor)); dm.put("stdDev", new BigDecimal(getStdDev()/nanosDivisor));
-            dm.put("artifactCounts", new HashMap<>(artifactCounts));
-            return dm;
-        }
-    }
-
     public enum WriteMode { CREATE, UPDATE, DELETE }
     public static class EntityWriteInfo {
         public WriteMode writeMode;
@@ -0,0 +1,179 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity
+
+import groovy.transform.CompileStatic
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityCondition.ComparisonOperator
+import org.moqui.entity.EntityCondition.JoinOperator
+import org.moqui.impl.entity.condition.BasicJoinCondition
+import org.moqui.impl.entity.condition.EntityConditionImplBase
+import org.moqui.impl.entity.condition.FieldValueCondition
+import org.moqui.impl.entity.condition.ListCondition
+
+import javax.cache.Cache
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * Invalidation index for the list cache of an entity. Cached conditions are bucketed by one field they constrain with an
+ * equals comparison (like productStoreId = X) so that clearing for a written value only looks at conditions for the
+ * value's field values instead of every cached condition. Conditions with no such constraint go in a fallback set that
+ * is checked for every write.
+ *
+ * Candidates returned may not match, callers still need to call mapMatches(); the index only avoids conditions that
+ * cannot match. Entries evicted or expired from the list cache are pruned lazily, see rebuildIfStale().
+ *
+ * The index must never be missing a condition that is in the list cache, so conditions are added before the cache put
+ * with the put lock held (see addAndPut()), and a rebuild builds a new index off to the side with the put lock held
+ * exclusively and then swaps it in, so concurrent invalidations always see a complete index.
+ */
+@CompileStatic
+class EntityListCacheIndex {
+    private static final Object NULL_VALUE = new Object()
+
+    private volatile IndexState state = new IndexState()
+    /** Held shared from adding a condition to the index until it is in the list cache, exclusive for rebuild and clear */
+    private final ReentrantReadWriteLock putLock = new ReentrantReadWriteLock()
+
+    /** Add the condition to the index and then put it in the list cache */
+    void addAndPut(Cache<EntityCondition, EntityListImpl> entityListCache, EntityCondition ec, EntityListImpl el) {
+        ReentrantReadWriteLock.ReadLock readLock = putLock.readLock()
+        readLock.lock()
+        try {
+            state.add(ec)
+            entityListCache.put(ec, el)
+        } finally {
+            readLock.unlock()
+        }
+    }
+    /** Add a condition already in the list cache, like after a refresh replaced the entry */
+    void add(EntityCondition ec) { state.add(ec) }
+    void remove(EntityCondition ec) { state.remove(ec) }
+
+    /** Get conditions that may match the value Map: the fallback set plus buckets for the value's indexed field values */
+    ArrayList<EntityCondition> getCandidates(Map<String, Object> valueMap) { return state.getCandidates(valueMap) }
+
+    int size() { return state.indexedCount.get() }
+
+    /** Clear the list cache and the index together so a concurrent put can't leave a cached condition out of the index */
+    void clear(Cache<EntityCondition, EntityListImpl> entityListCache) {
+        ReentrantReadWriteLock.WriteLock writeLock = putLock.writeLock()
+        writeLock.lock()
+        try {
+            entityListCache.clear()
+            state = new IndexState()
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    /** If much larger than the list cache (from entries evicted, expired, or cleared there) rebuild from the cache keys */
+    void rebuildIfStale(Cache<EntityCondition, EntityListImpl> entityListCache, int cacheSize) {
+        if (size() <= (cacheSize * 2) + 1024) return
+        ReentrantReadWriteLock.WriteLock writeLock = putLock.writeLock()
+        // if another thread is rebuilding, or puts are in progress, let a later put do it
+        if (!writeLock.tryLock()) return
+        try {
+            if (size() <= (cacheSize * 2) + 1024) return
+            IndexState newState = new IndexState()
+            Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
+            while (elcIterator.hasNext()) {
+                Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
+                if (entry != null) newState.add((EntityCondition) entry.getKey())
+            }
+            state = newState
+        } finally {
+            writeLock.unlock()
+        }
+    }
+
+    private static class IndexState {
+        /** equality field name to field value to conditions */
+        final ConcurrentHashMap<String, ConcurrentHashMap<Object, Set<EntityCondition>>> fieldBuckets = new ConcurrentHashMap<>()
+        final Set<EntityCondition> fallbackSet = ConcurrentHashMap.newKeySet()
+        final AtomicInteger indexedCount = new AtomicInteger()
+
+        void add(EntityCondition ec) {
+            FieldValueCondition fvc = findEqualsCondition(ec)
+            boolean added
+            if (fvc == null) {
+                added = fallbackSet.add(ec)
+            } else {
+                ConcurrentHashMap<Object, Set<EntityCondition>> valueBuckets = fieldBuckets.get(fvc.getFieldName())
+                if (valueBuckets == null) valueBuckets = fieldBuckets.computeIfAbsent(fvc.getFieldName(), { new ConcurrentHashMap<>() })
+                Object bucketKey = fvc.getValue() != null ? fvc.getValue() : NULL_VALUE
+                Set<EntityCondition> bucket = valueBuckets.get(bucketKey)
+                if (bucket == null) bucket = valueBuckets.computeIfAbsent(bucketKey, { ConcurrentHashMap.newKeySet() })
+                added = bucket.add(ec)
+            }
+            if (added) indexedCount.incrementAndGet()
+        }
+
+        void remove(EntityCondition ec) {
+            FieldValueCondition fvc = findEqualsCondition(ec)
+            boolean removed
+            if (fvc == null) {
+                removed = fallbackSet.remove(ec)
+            } else {
+                ConcurrentHashMap<Object, Set<EntityCondition>> valueBuckets = fieldBuckets.get(fvc.getFieldName())
+                if (valueBuckets == null) return
+                Object bucketKey = fvc.getValue() != null ? fvc.getValue() : NULL_VALUE
+                Set<EntityCondition> bucket = valueBuckets.get(bucketKey)
+                if (bucket == null) return
+                removed = bucket.remove(ec)
+                if (bucket.isEmpty()) valueBuckets.remove(bucketKey, bucket)
+            }
+            if (removed) indexedCount.decrementAndGet()
+        }
+
+        ArrayList<EntityCondition> getCandidates(Map<String, Object> valueMap) {
+            ArrayList<EntityCondition> candidates = new ArrayList<>(fallbackSet)
+            for (Map.Entry<String, ConcurrentHashMap<Object, Set<EntityCondition>>> fieldEntry in fieldBuckets.entrySet()) {
+                Object fieldValue = valueMap.get(fieldEntry.getKey())
+                Set<EntityCondition> bucket = fieldEntry.getValue().get(fieldValue != null ? fieldValue : NULL_VALUE)
+                if (bucket != null) candidates.addAll(bucket)
+            }
+            return candidates
+        }
+    }
+
+    /** Find a field = String (or null) constraint that must be true for the condition to match, or null if none */
+    static FieldValueCondition findEqualsCondition(EntityCondition ec) {
+        if (ec instanceof FieldValueCondition) {
+            FieldValueCondition fvc = (FieldValueCondition) ec
+            // only String values, other types like numbers may be equal by Groovy compare but not by equals() and hashCode()
+            if (fvc.getOperator() == ComparisonOperator.EQUALS && !fvc.getIgnoreCase() &&
+                    (fvc.getValue() == null || fvc.getValue() instanceof String)) return fvc
+            return null
+        } else if (ec instanceof ListCondition) {
+            ListCondition lc = (ListCondition) ec
+            if (lc.getOperator() != JoinOperator.AND) return null
+            ArrayList<EntityConditionImplBase> condList = lc.getConditionList()
+            int condListSize = condList.size()
+            for (int i = 0; i < condListSize; i++) {
+                FieldValueCondition fvc = findEqualsCondition((EntityCondition) condList.get(i))
+                if (fvc != null) return fvc
+            }
+            return null
+        } else if (ec instanceof BasicJoinCondition) {
+            BasicJoinCondition bjc = (BasicJoinCondition) ec
+            if (bjc.getOperator() != JoinOperator.AND) return null
+            FieldValueCondition fvc = findEqualsCondition(bjc.getLhs())
+            return fvc != null ? fvc : findEqualsCondition(bjc.getRhs())
+        }
+        return null
+    }
+}
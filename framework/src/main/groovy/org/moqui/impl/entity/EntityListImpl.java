@@ -442,9 +442,26 @@ public class EntityListImpl implements EntityList {
         return plainRelList;
     }
     @Override public List<Map<String, Object>> getMasterValueList(String name) {
-        List<Map<String, Object>> masterRelList = new ArrayList<>(valueList.size());
-        for (EntityValue ev : valueList) masterRelList.add(ev.getMasterValueMap(name));
-        return masterRelList;
+        int valueListSize = valueList.size();
+        if (valueListSize == 0) return new ArrayList<>();
+        // all values of the same entity (the usual case) go through EntityMasterLoader to find details for all at once
+        EntityDefinition ed = valueList.get(0) instanceof EntityValueBase ? ((EntityValueBase) valueList.get(0)).getEntityDefinition() : null;
+        ArrayList<EntityValueBase> evbList = ed != null ? new ArrayList<>(valueListSize) : null;
+        for (int i = 0; evbList != null && i < valueListSize; i++) {
+            EntityValue ev = valueList.get(i);
+            if (ev instanceof EntityValueBase && ((EntityValueBase) ev).getEntityDefinition() == ed) evbList.add((EntityValueBase) ev);
+            else evbList = null;
+        }
+        if (evbList == null) {
+            List<Map<String, Object>> masterRelList = new ArrayList<>(valueListSize);
+            for (EntityValue ev : valueList) masterRelList.add(ev.getMasterValueMap(name));
+            return masterRelList;
+        }
+
+        EntityDefinition.MasterDefinition masterDefinition = ed.getMasterDefinition(name);
+        if (masterDefinition == null)
+            throw new EntityException("No master definition found for name [" + name + "] in entity [" + ed.getFullEntityName() + "]");
+        return new EntityMasterLoader(getEfi()).makeMasterValueList(evbList, masterDefinition.getDetailList(), null, null);
     }
     @Override public ArrayList<Map<String, Object>> getValueMapList() {
         int elSize = valueList.size();
@@ -21,6 +21,7 @@ import org.moqui.impl.entity.EntityJavaUtil.FindAugmentInfo;
 import org.moqui.impl.entity.condition.EntityConditionImplBase;
 import org.moqui.util.CollectionUtilities;
 import org.moqui.util.LiteStringMap;
+import org.moqui.util.MNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +30,7 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Map;
 
 public class EntityListIteratorImpl implements EntityListIterator {
     protected static final Logger logger = LoggerFactory.getLogger(EntityListIteratorImpl.class);
@@ -49,6 +51,13 @@ public class EntityListIteratorImpl implements EntityListIterator {
     protected boolean closed = false;
     private StackTraceElement[] constructStack = null;
     private final ArrayList<ArtifactExecutionInfo> artifactStack;
+    /** Reused row view for nextRow(true), or template for a new view per row */
+    private EntityRowView rowView = null;
+    /** View from nextRow(false) for the current row, detached when the cursor moves */
+    private EntityRowView lastRowView = null;
+    /** For query-stats, rows read are added when closed */
+    private EntityQueryStats.QueryShape queryShape = null;
+    private long rowsRead = 0;
 
     public EntityListIteratorImpl(Connection con, ResultSet rs, EntityDefinition entityDefinition, FieldInfo[] fieldInfoArray,
             EntityFacadeImpl efi, TransactionCache txCache, EntityConditionImplBase queryCondition, ArrayList<String> obf) {
@@ -87,10 +96,14 @@ public class EntityListIteratorImpl implements EntityListIterator {
          */
     }
 
+    void setQueryShape(EntityQueryStats.QueryShape queryShape) { this.queryShape = queryShape; }
+
     @Override public void close() {
         if (this.closed) {
             logger.warn("EntityListIterator for entity [" + this.entityDefinition.getFullEntityName() + "] is already closed, not closing again");
         } else {
+            detachRowView();
+            if (queryShape != null) queryShape.addRows(rowsRead);
             if (rs != null) {
                 try { rs.close(); }
                 catch (SQLException e) { throw new EntityException("Could not close ResultSet in EntityListIterator", e); }
@@ -114,17 +127,20 @@ public class EntityListIteratorImpl implements EntityListIterator {
     }
 
     @Override public void afterLast() {
+        detachRowView();
         try { rs.afterLast();  }
         catch (SQLException e) { throw new EntityException("Error moving EntityListIterator to afterLast", e); }
         txcListIndex = txcListSize;
     }
     @Override public void beforeFirst() {
+        detachRowView();
         txcListIndex = -1;
         try { rs.beforeFirst(); }
         catch (SQLException e) { throw new EntityException("Error moving EntityListIterator to beforeFirst", e); }
     }
 
     @Override public boolean last() {
+        detachRowView();
         if (txcListSize > 0) {
             try { rs.afterLast(); }
             catch (SQLException e) { throw new EntityException("Error moving EntityListIterator to last", e); }
@@ -136,6 +152,7 @@ public class EntityListIteratorImpl implements EntityListIterator {
         }
     }
     @Override public boolean first() {
+        detachRowView();
         txcListIndex = -1;
         try { return rs.first(); }
         catch (SQLException e) { throw new EntityException("Error moving EntityListIterator to first", e); }
@@ -169,12 +186,14 @@ public class EntityListIteratorImpl implements EntityListIterator {
     @Override public boolean absolute(final int rowNum) {
         // TODO: somehow implement this for txcList? would need to know how many rows after last we tried to go
         if (txcListSize > 0) throw new EntityException("Cannot go to absolute row number when transaction cache is in place and there are augmenting creates; disable the tx cache before this operation");
+        detachRowView();
         try { return rs.absolute(rowNum); }
         catch (SQLException e) { throw new EntityException("Error going to absolute row number " + rowNum, e); }
     }
     @Override public boolean relative(final int rows) {
         // TODO: somehow implement this for txcList? would need to know how many rows after last we tried to go
         if (txcListSize > 0) throw new EntityException("Cannot go to relative row number when transaction cache is in place and there are augmenting creates; disable the tx cache before this operation");
+        detachRowView();
         try { return rs.relative(rows); }
         catch (SQLException e) { throw new EntityException("Error moving relative rows " + rows, e); }
     }
@@ -205,6 +224,7 @@ public class EntityListIteratorImpl implements EntityListIterator {
     }
 
     @Override public EntityValue next() {
+        detachRowView();
         // first try the txcList if we are in it
         if (txcListIndex >= 0) {
             if (txcListIndex >= txcListSize) return null;
@@ -215,6 +235,7 @@ public class EntityListIteratorImpl implements EntityListIterator {
         // not in txcList, try the DB
         try {
             if (rs.next()) {
+                rowsRead++;
                 EntityValueBase evb = currentEntityValueBase();
                 if (txCache != null) {
                     EntityJavaUtil.WriteMode writeMode = txCache.checkUpdateValue(evb, findAugmentInfo);
@@ -237,7 +258,49 @@ public class EntityListIteratorImpl implements EntityListIterator {
     }
     @Override public int nextIndex() { return currentIndex() + 1; }
 
+    @Override public Map<String, Object> nextRow(boolean reuse) {
+        // with a TransactionCache values from the DB may be updated, deleted, or added to so use full values
+        if (txCache != null || txcListIndex >= 0) return next();
+        detachRowView();
+        try {
+            if (!rs.next()) return null;
+        } catch (SQLException e) {
+            throw new EntityException("Error getting next result", e);
+        }
+        haveMadeValue = true;
+        rowsRead++;
+
+        if (rowView == null) {
+            rowView = new EntityRowView(efi, entityDefinition, fieldInfoArray, rs);
+        } else {
+            rowView.nextRow();
+        }
+        if (reuse) return rowView;
+        lastRowView = new EntityRowView(rowView, rs);
+        return lastRowView;
+    }
+    /** True if nextRow() has the same values as next().getMap(): all selected fields are plain columns, none localized,
+     * and no pq-expression aliases (evaluated only by EntityValue get() and getMap()) */
+    public boolean isRowViewPlain() {
+        for (int i = 0; i < fieldInfoListSize; i++) {
+            FieldInfo fi = fieldInfoArray[i];
+            if (fi == null) break;
+            if (!fi.isSimple) return false;
+        }
+        if (entityDefinition.isViewEntity) {
+            Map<String, MNode> pqExpressionNodeMap = entityDefinition.getPqExpressionNodeMap();
+            if (pqExpressionNodeMap != null && !pqExpressionNodeMap.isEmpty()) return false;
+        }
+        return true;
+    }
+    private void detachRowView() {
+        if (lastRowView == null) return;
+        lastRowView.detach();
+        lastRowView = null;
+    }
+
     @Override public EntityValue previous() {
+        detachRowView();
         // first try the txcList if we are in it
         if (txcListIndex >= 0) {
             txcListIndex--;
@@ -308,6 +371,7 @@ public class EntityListIteratorImpl implements EntityListIterator {
 
             // get the first as the current one
             list.add(this.currentEntityValue());
+            rowsRead++;
 
             int numberSoFar = 1;
             EntityValue nextValue;
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 class EntityListIteratorWrapper implements EntityListIterator {
     protected static final Logger logger = LoggerFactory.getLogger(EntityListIteratorWrapper.class);
@@ -102,6 +103,8 @@ class EntityListIteratorWrapper implements EntityListIterator {
         if (internalIndex >= valueList.size()) return null;
         return currentEntityValue();
     }
+    /** Values are already in memory, no row view */
+    @Override public Map<String, Object> nextRow(boolean reuse) { return next(); }
     @Override public int nextIndex() { return internalIndex + 1; }
 
     @Override public EntityValue previous() {
@@ -0,0 +1,216 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityCondition.ComparisonOperator;
+import org.moqui.entity.EntityCondition.JoinOperator;
+import org.moqui.entity.EntityException;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds master value Maps (see EntityValue.getMasterValueMap() and EntityList.getMasterValueList()) for a list of values
+ * of the same entity. Instead of a find per value for each detail relationship this does one find per relationship per
+ * level of the master definition with an IN condition on the relationship key (OR of key field conditions for multi-field
+ * keys), chunked for large lists, then matches the related values to their parents in memory.
+ *
+ * Related values for each parent are ordered by the related entity's primary key. Relationships to entities cached by
+ * default, and parent values with a null key field, use a find per value like findRelated() so results are the same as
+ * for that path.
+ */
+public class EntityMasterLoader {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityMasterLoader.class);
+    /** Max values in an IN condition, less than the lowest common limit (1000 for Oracle) */
+    private static final int maxInValues = 1000;
+    /** Max key tuples in an OR condition for multi-field keys */
+    private static final int maxOrKeys = 200;
+
+    private final EntityFacadeImpl efi;
+
+    public EntityMasterLoader(EntityFacadeImpl efi) { this.efi = efi; }
+
+    /** Make a master value Map for each value, in the same order; all values must be for the same entity */
+    public List<Map<String, Object>> makeMasterValueList(List<EntityValueBase> valueList, ArrayList<EntityDefinition.MasterDetail> detailList,
+                                                         Set<String> parentPkFields, EntityJavaUtil.RelationshipInfo parentRelInfo) {
+        int valueListSize = valueList.size();
+        List<Map<String, Object>> vMapList = new ArrayList<>(valueListSize);
+        for (int i = 0; i < valueListSize; i++) vMapList.add(valueList.get(i).makeMasterBaseMap(parentPkFields, parentRelInfo));
+        if (valueListSize == 0 || detailList == null || detailList.isEmpty()) return vMapList;
+
+        EntityDefinition ed = valueList.get(0).getEntityDefinition();
+        Set<String> curPkFields = new HashSet<>(ed.getPkFieldNames());
+        // keep track of all parent PK field names, even not part of this entity's PK, they will be inherited when read
+        if (parentPkFields != null) curPkFields.addAll(parentPkFields);
+
+        int detailListSize = detailList.size();
+        for (int di = 0; di < detailListSize; di++) {
+            EntityDefinition.MasterDetail detail = detailList.get(di);
+            EntityJavaUtil.RelationshipInfo relInfo = detail.getRelInfo();
+            final String relAlias = relInfo.shortAlias;
+            String entryName = relAlias != null && !relAlias.isEmpty() ? relAlias : relInfo.relationshipName;
+
+            ArrayList<ArrayList<EntityValueBase>> relatedByValue = findRelatedForList(valueList, relInfo);
+
+            // all related values for the next level in one list so each detail of the next level is one find too
+            ArrayList<EntityValueBase> allRelated = new ArrayList<>();
+            for (int i = 0; i < valueListSize; i++) {
+                ArrayList<EntityValueBase> relList = relatedByValue.get(i);
+                if (relList == null || relList.isEmpty()) continue;
+                if (relInfo.isTypeOne) allRelated.add(relList.get(0));
+                else allRelated.addAll(relList);
+            }
+            if (allRelated.isEmpty()) continue;
+            List<Map<String, Object>> relMapList = makeMasterValueList(allRelated, detail.getDetailList(), curPkFields, relInfo);
+
+            int relMapIndex = 0;
+            for (int i = 0; i < valueListSize; i++) {
+                ArrayList<EntityValueBase> relList = relatedByValue.get(i);
+                if (relList == null || relList.isEmpty()) continue;
+                if (relInfo.isTypeOne) {
+                    vMapList.get(i).put(entryName, relMapList.get(relMapIndex++));
+                } else {
+                    int relListSize = relList.size();
+                    List<Map<String, Object>> plainRelList = new ArrayList<>(relListSize);
+                    for (int ri = 0; ri < relListSize; ri++) plainRelList.add(relMapList.get(relMapIndex++));
+                    vMapList.get(i).put(entryName, plainRelList);
+                }
+            }
+        }
+
+        return vMapList;
+    }
+
+    /** Get related values for each value by index; null for none, for type one relationships at most one */
+    ArrayList<ArrayList<EntityValueBase>> findRelatedForList(List<EntityValueBase> valueList, EntityJavaUtil.RelationshipInfo relInfo) {
+        Map<String, String> keyMap = relInfo.keyMap;
+        if (keyMap == null || keyMap.size() == 0) throw new EntityException("Relationship " + relInfo.relationshipName + " in entity " + relInfo.fromEd.getFullEntityName() + " has no key-map sub-elements and no default values");
+        int keyCount = keyMap.size();
+        String[] fieldNames = new String[keyCount];
+        String[] relatedNames = new String[keyCount];
+        int ki = 0;
+        for (Map.Entry<String, String> entry : keyMap.entrySet()) {
+            fieldNames[ki] = entry.getKey();
+            relatedNames[ki] = entry.getValue();
+            ki++;
+        }
+
+        int valueListSize = valueList.size();
+        ArrayList<ArrayList<EntityValueBase>> relatedByValue = new ArrayList<>(valueListSize);
+        // for entities cached by default a find per value is mostly cache hits, don't bypass the cache
+        boolean perValue = "true".equals(relInfo.relatedEd.entityInfo.useCache);
+
+        // key (field value, or List of values for multi-field keys) to indexes of values with it, in order of first use
+        LinkedHashMap<Object, ArrayList<Integer>> indexesByKey = new LinkedHashMap<>();
+        for (int i = 0; i < valueListSize; i++) {
+            EntityValueBase evb = valueList.get(i);
+            Object key = perValue ? null : makeKey(evb, fieldNames);
+            if (key == null) {
+                // a null key field is an is null condition for findRelated(), leave that to it
+                relatedByValue.add(findRelatedSingle(evb, relInfo));
+                continue;
+            }
+            relatedByValue.add(null);
+            ArrayList<Integer> indexes = indexesByKey.get(key);
+            if (indexes == null) { indexes = new ArrayList<>(1); indexesByKey.put(key, indexes); }
+            indexes.add(i);
+        }
+        if (indexesByKey.isEmpty()) return relatedByValue;
+
+        ArrayList<Object> keyList = new ArrayList<>(indexesByKey.keySet());
+        int keyListSize = keyList.size();
+        int chunkSize = keyCount == 1 ? maxInValues : maxOrKeys;
+        for (int chunkStart = 0; chunkStart < keyListSize; chunkStart += chunkSize) {
+            List<Object> chunkKeys = keyList.subList(chunkStart, Math.min(chunkStart + chunkSize, keyListSize));
+            EntityList relList = findRelatedChunk(relInfo, relatedNames, chunkKeys);
+            int relListSize = relList.size();
+            for (int ri = 0; ri < relListSize; ri++) {
+                EntityValueBase relEvb = (EntityValueBase) relList.get(ri);
+                ArrayList<Integer> indexes = indexesByKey.get(makeKey(relEvb, relatedNames));
+                if (indexes == null) continue;
+                int indexesSize = indexes.size();
+                for (int ii = 0; ii < indexesSize; ii++) {
+                    int index = indexes.get(ii);
+                    ArrayList<EntityValueBase> curList = relatedByValue.get(index);
+                    if (curList == null) { curList = new ArrayList<>(); relatedByValue.set(index, curList); }
+                    // for type one only the first, same as one() with a condition on non-PK fields
+                    if (relInfo.isTypeOne && !curList.isEmpty()) continue;
+                    curList.add(relEvb);
+                }
+            }
+        }
+        if (logger.isTraceEnabled()) logger.trace("Found " + relInfo.relationshipName + " for " + valueListSize + " " +
+                relInfo.fromEd.getFullEntityName() + " values with " + indexesByKey.size() + " keys");
+
+        return relatedByValue;
+    }
+
+    private EntityList findRelatedChunk(EntityJavaUtil.RelationshipInfo relInfo, String[] relatedNames, List<Object> chunkKeys) {
+        EntityFind find = efi.find(relInfo.relatedEntityName);
+        if (relInfo.keyValueMap != null) {
+            for (Map.Entry<String, String> keyValueEntry : relInfo.keyValueMap.entrySet())
+                find.condition(keyValueEntry.getKey(), keyValueEntry.getValue());
+        }
+        if (relatedNames.length == 1) {
+            find.condition(relatedNames[0], ComparisonOperator.IN, chunkKeys);
+        } else {
+            EntityConditionFactoryImpl ecfi = efi.getConditionFactoryImpl();
+            int chunkKeysSize = chunkKeys.size();
+            List<EntityCondition> orList = new ArrayList<>(chunkKeysSize);
+            for (int i = 0; i < chunkKeysSize; i++) {
+                List<?> keyValues = (List<?>) chunkKeys.get(i);
+                Map<String, Object> keyCondMap = new HashMap<>();
+                for (int ki = 0; ki < relatedNames.length; ki++) keyCondMap.put(relatedNames[ki], keyValues.get(ki));
+                orList.add(ecfi.makeCondition(keyCondMap));
+            }
+            find.condition(ecfi.makeCondition(orList, JoinOperator.OR));
+        }
+        return find.orderBy(relInfo.relatedEd.getPkFieldNames()).useCache(false).forUpdate(false).list();
+    }
+
+    private static ArrayList<EntityValueBase> findRelatedSingle(EntityValueBase evb, EntityJavaUtil.RelationshipInfo relInfo) {
+        ArrayList<EntityValueBase> relList = new ArrayList<>();
+        if (relInfo.isTypeOne) {
+            EntityValue relEv = evb.findRelatedOne(relInfo.relationshipName, null, false);
+            if (relEv != null) relList.add((EntityValueBase) relEv);
+        } else {
+            EntityList relEl = evb.findRelated(relInfo.relationshipName, null, null, null, false);
+            if (relEl != null) for (EntityValue relEv : relEl) relList.add((EntityValueBase) relEv);
+        }
+        return relList;
+    }
+
+    /** Key for matching parent and related values, the field value for one field or a List of values; null if any is null */
+    private static Object makeKey(EntityValueBase evb, String[] fieldNames) {
+        if (fieldNames.length == 1) return evb.valueMapInternal.getByString(fieldNames[0]);
+        ArrayList<Object> key = new ArrayList<>(fieldNames.length);
+        for (int i = 0; i < fieldNames.length; i++) {
+            Object fieldValue = evb.valueMapInternal.getByString(fieldNames[i]);
+            if (fieldValue == null) return null;
+            key.add(fieldValue);
+        }
+        return key;
+    }
+}
@@ -66,6 +66,13 @@ public class EntityQueryBuilder implements Runnable {
         connection = efi.getConnection(mainEntityDefinition.getEntityGroupName(), useClone);
         return connection;
     }
+    /** For finds: a clone if useClone, otherwise the group or a clone of it based on datasource.@read-clones (see EntityReadRouter) */
+    Connection makeFindConnection(boolean useClone, boolean forUpdate) {
+        String groupName = mainEntityDefinition.getEntityGroupName();
+        if (useClone) connection = efi.getConnection(groupName, true);
+        else connection = efi.getConnection(efi.readRouter.getReadGroupName(groupName, forUpdate), false);
+        return connection;
+    }
 
     void useConnection(Connection c) {
         connection = c;
@@ -74,6 +81,10 @@ public class EntityQueryBuilder implements Runnable {
 
     public void isFindOne() { isFindOne = true; }
 
+    /** Use SQL from a template (like EntityInfo.getInsertSql()) instead of building it in sqlTopLevel; parameters are still
+     * added as usual */
+    void useSql(String sql) { finalSql = sql; }
+
     protected static void handleSqlException(Exception e, String sql) {
         throw new EntityException("SQL Exception with statement:" + sql + "; " + e.toString(), e);
     }
@@ -81,7 +92,7 @@ public class EntityQueryBuilder implements Runnable {
     public PreparedStatement makePreparedStatement() {
         if (connection == null)
             throw new IllegalStateException("Cannot make PreparedStatement, no Connection in place");
-        finalSql = sqlTopLevel.toString();
+        if (finalSql == null) finalSql = sqlTopLevel.toString();
         // if (this.mainEntityDefinition.getFullEntityName().contains("foo")) logger.warn("========= making crud PreparedStatement for SQL: ${sql}")
         if (isDebugEnabled) logger.debug("making crud PreparedStatement for SQL: " + finalSql);
         try {
@@ -94,6 +105,8 @@ public class EntityQueryBuilder implements Runnable {
     }
 
     // ======== execute methods + Runnable
+    /** Stats for the SQL shape, set by executeQuery() when query-stats is on so rows read can be added */
+    EntityQueryStats.QueryShape queryShape = null;
     Throwable uncaughtThrowable = null;
     Boolean execQuery = null;
     int rowsUpdated = -1;
@@ -122,8 +135,9 @@ public class EntityQueryBuilder implements Runnable {
     ResultSet executeQuery() throws SQLException {
         if (ps == null) throw new IllegalStateException("Cannot Execute Query, no PreparedStatement in place");
         boolean isError = false;
-        boolean queryStats = !isFindOne && efi.getQueryStats();
-        long beforeQuery = queryStats ? System.nanoTime() : 0;
+        boolean queryStats = efi.getQueryStats();
+        EntityIndexAdvisor indexAdvisor = efi.indexAdvisor;
+        long beforeQuery = queryStats || indexAdvisor != null ? System.nanoTime() : 0;
 
         execQuery = true;
         if (execWithTimeout) {
@@ -149,14 +163,20 @@ public class EntityQueryBuilder implements Runnable {
                 }
             }
         } finally {
-            if (queryStats) efi.saveQueryStats(mainEntityDefinition, finalSql, System.nanoTime() - beforeQuery, isError);
+            long queryTime = beforeQuery != 0 ? System.nanoTime() - beforeQuery : 0;
+            if (queryStats) queryShape = efi.saveQueryStats(mainEntityDefinition, finalSql, queryTime, isError, parameters);
+            if (indexAdvisor != null && !isError) recordIndexUsage(indexAdvisor, queryTime);
         }
 
         return rs;
     }
+    /** For the index advisor, overridden by EntityFindBuilder which knows the conditions and order by */
+    void recordIndexUsage(EntityIndexAdvisor indexAdvisor, long queryTime) { }
 
     int executeUpdate() throws SQLException {
         if (ps == null) throw new IllegalStateException("Cannot Execute Update, no PreparedStatement in place");
+        // finds on this group in the transaction must see this write, don't route them to a clone
+        efi.ecfi.transactionFacade.registerGroupWrite(mainEntityDefinition.getEntityGroupName());
         // NOTE 20200704: removed query stat tracking for updates
         // boolean isError = false;
         // boolean queryStats = efi.getQueryStats();
@@ -298,4 +318,13 @@ public class EntityQueryBuilder implements Runnable {
             parameters.add(new EntityJavaUtil.EntityConditionParameter(fieldInfo, valueMapInternal.getByIString(fieldInfo.name, fieldInfo.index), this));
         }
     }
+    /** Add parameters for fields without adding to the SQL, for use with useSql() */
+    public void addFieldParameters(FieldInfo[] fieldArray, LiteStringMap<Object> valueMapInternal) {
+        int size = fieldArray.length;
+        for (int i = 0; i < size; i++) {
+            FieldInfo fieldInfo = fieldArray[i];
+            if (fieldInfo == null) break;
+            parameters.add(new EntityJavaUtil.EntityConditionParameter(fieldInfo, valueMapInternal.getByIString(fieldInfo.name, fieldInfo.index), this));
+        }
+    }
 }
@@ -0,0 +1,407 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.context.ArtifactExecutionInfo;
+import org.moqui.impl.context.ExecutionContextFactoryImpl;
+import org.moqui.impl.context.ExecutionContextImpl;
+import org.moqui.impl.context.TransactionFacadeImpl;
+import org.moqui.impl.entity.EntityJavaUtil.EntityConditionParameter;
+import org.moqui.jcache.MLatencyHistogram;
+import org.moqui.util.CollectionUtilities;
+import org.moqui.util.MNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Query statistics by SQL shape for the entity-facade query-stats option. SQL is normalized to a shape (literals and
+ * parameter lists replaced, whitespace collapsed, see normalizeSql()) so the same query with different IN list sizes,
+ * literal values, etc is counted once. Stats are in a ConcurrentHashMap with counters that don't lock so this can be
+ * left on in production; the number of shapes is limited by query-stats-max-shapes and after that new shapes are counted
+ * in a single overflow shape.
+ *
+ * For each shape there is the count, errors, rows, total and max time, and a histogram of times for percentiles (within
+ * 25%). When query-stats-explain-ms is set the first query of a shape over that time is run with the database
+ * explain-prefix (like "EXPLAIN ") in the background and the plan is kept with the shape. When query-stats-persist is
+ * true the top shapes by time in each server-stats bin are saved in QueryStatsBin records, similar to ArtifactHitBin.
+ */
+public class EntityQueryStats {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityQueryStats.class);
+    static final String otherShapeSql = "[other]";
+    /** Number of shapes with the most time in a bin to persist */
+    static final int persistTopShapes = 100;
+    /** Don't capture the plan for a shape again until this long after the last one */
+    static final long explainAgainMillis = 3600_000L;
+
+    private static final Pattern inListPattern = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern rowListPattern = Pattern.compile("\\(\\?\\.\\.\\.\\)(\\s*,\\s*\\(\\?\\.\\.\\.\\))+");
+
+    private final EntityFacadeImpl efi;
+    private final int maxShapes;
+    private final long explainNanos;
+    /** Shape by raw SQL so each SQL string is normalized once, limited to a multiple of maxShapes */
+    private final ConcurrentHashMap<String, QueryShape> shapeBySql = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, QueryShape> shapeByNormalSql = new ConcurrentHashMap<>();
+    private final QueryShape otherShape = new QueryShape("", otherShapeSql, null);
+    private volatile long statsStartTime = System.currentTimeMillis();
+    private long binStartTime = statsStartTime;
+
+    EntityQueryStats(EntityFacadeImpl efi, MNode entityFacadeNode) {
+        this.efi = efi;
+        String maxShapesAttr = entityFacadeNode.attribute("query-stats-max-shapes");
+        maxShapes = maxShapesAttr != null && !maxShapesAttr.isEmpty() ? Integer.parseInt(maxShapesAttr) : 1000;
+        String explainMsAttr = entityFacadeNode.attribute("query-stats-explain-ms");
+        explainNanos = explainMsAttr != null && !explainMsAttr.isEmpty() ? Long.parseLong(explainMsAttr) * 1000000L : 0L;
+    }
+
+    /** Count a query run; returns the shape so rows can be added with QueryShape.addRows() */
+    QueryShape record(EntityDefinition ed, String sql, long runTimeNanos, boolean isError, ArrayList<EntityConditionParameter> parameters) {
+        QueryShape shape = getShape(ed, sql);
+        if (shape.record(efi, runTimeNanos, isError) && explainNanos > 0 && runTimeNanos >= explainNanos && !isError &&
+                shape.groupName != null) startExplain(shape, sql, parameters);
+        return shape;
+    }
+
+    QueryShape getShape(EntityDefinition ed, String sql) {
+        QueryShape shape = shapeBySql.get(sql);
+        if (shape != null) return shape;
+
+        String normalSql = normalizeSql(sql);
+        shape = shapeByNormalSql.get(normalSql);
+        if (shape == null) {
+            if (shapeByNormalSql.size() >= maxShapes) {
+                shape = otherShape;
+            } else {
+                shape = shapeByNormalSql.computeIfAbsent(normalSql,
+                        key -> new QueryShape(ed.getFullEntityName(), key, ed.getEntityGroupName()));
+            }
+        }
+        // SQL that varies by more than the shape (like literals in SQL from sqlFind) could fill this, if so just normalize every time
+        if (shapeBySql.size() < maxShapes * 4) shapeBySql.put(sql, shape);
+        return shape;
+    }
+
+    /** Normalize SQL to a shape: string and number literals to ?, lists of ? (like IN lists) to (?...), whitespace collapsed */
+    public static String normalizeSql(String sql) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean lastSpace = false;
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!lastSpace && sb.length() > 0) sb.append(' ');
+                lastSpace = true;
+                continue;
+            }
+            lastSpace = false;
+            if (c == '\'') {
+                // string literal, '' is an escaped quote
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') i++;
+                        else break;
+                    }
+                    i++;
+                }
+                sb.append('?');
+            } else if (c == '"') {
+                // quoted identifier, keep as is
+                int end = sql.indexOf('"', i + 1);
+                if (end < 0) end = length - 1;
+                sb.append(sql, i, end + 1);
+                i = end;
+            } else if ((c >= '0' && c <= '9') && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)))) {
+                // number literal not part of an identifier (like TABLE1 or alias T2)
+                while (i + 1 < length && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) i++;
+                sb.append('?');
+            } else {
+                sb.append(c);
+            }
+        }
+        int sbLength = sb.length();
+        if (sbLength > 0 && sb.charAt(sbLength - 1) == ' ') sb.setLength(sbLength - 1);
+
+        String normalSql = sb.toString();
+        if (normalSql.indexOf(',') >= 0) {
+            normalSql = inListPattern.matcher(normalSql).replaceAll("(?...)");
+            normalSql = rowListPattern.matcher(normalSql).replaceAll("(?...)...");
+        }
+        return normalSql;
+    }
+    private static boolean isIdentifierChar(char c) { return Character.isLetterOrDigit(c) || c == '_' || c == '$'; }
+
+    private void startExplain(QueryShape shape, String sql, ArrayList<EntityConditionParameter> parameters) {
+        long now = System.currentTimeMillis();
+        if (shape.explainTime > 0 && now - shape.explainTime < explainAgainMillis) return;
+        String trimSql = sql.trim();
+        if (trimSql.length() < 6 || !trimSql.substring(0, 6).equalsIgnoreCase("SELECT")) return;
+        // without the parameter values (like from sqlFind()) can't run it
+        if (parameters == null && trimSql.indexOf('?') >= 0) return;
+        MNode databaseNode = efi.getDatabaseNode(shape.groupName);
+        String explainPrefix = databaseNode != null ? databaseNode.attribute("explain-prefix") : null;
+        if (explainPrefix == null || explainPrefix.isEmpty()) return;
+        if (!shape.explaining.compareAndSet(false, true)) return;
+
+        // copy the parameter values, the EntityQueryBuilder may be reused or cleared before the explain runs
+        int paramSize = parameters != null ? parameters.size() : 0;
+        FieldInfo[] paramFields = new FieldInfo[paramSize];
+        Object[] paramValues = new Object[paramSize];
+        for (int i = 0; i < paramSize; i++) {
+            EntityConditionParameter ecp = parameters.get(i);
+            paramFields[i] = ecp.getFieldInfo();
+            paramValues[i] = ecp.getValue();
+        }
+        EntityDefinition ed = efi.getEntityDefinition(shape.entityName);
+        String explainSql = explainPrefix + trimSql;
+        try {
+            // on a thread with no transaction, and don't hold up the query
+            efi.statementExecutor.execute(() -> runExplain(shape, ed, explainSql, paramFields, paramValues));
+        } catch (Throwable t) {
+            shape.explaining.set(false);
+            logger.warn("Could not start explain for query on " + shape.entityName + ": " + t.toString());
+        }
+    }
+    private void runExplain(QueryShape shape, EntityDefinition ed, String explainSql, FieldInfo[] paramFields, Object[] paramValues) {
+        try {
+            DataSource ds = efi.getDatasourceFactory(shape.groupName).getDataSource();
+            StringBuilder planSb = new StringBuilder();
+            try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(explainSql)) {
+                for (int i = 0; i < paramFields.length; i++) paramFields[i].setPreparedStatementValue(ps, i + 1, paramValues[i], ed, efi);
+                try (ResultSet rs = ps.executeQuery()) {
+                    int columnCount = rs.getMetaData().getColumnCount();
+                    int lines = 0;
+                    while (rs.next() && lines < 200) {
+                        for (int c = 1; c <= columnCount; c++) {
+                            if (c > 1) planSb.append(" | ");
+                            planSb.append(rs.getString(c));
+                        }
+                        planSb.append('\n');
+                        lines++;
+                    }
+                }
+            }
+            shape.explainPlan = planSb.toString();
+            logger.info("Captured plan for slow query on " + shape.entityName + " (max " + (shape.latency.getMaxNanos() / 1000000) + "ms): " + shape.sqlShape + "\n" + shape.explainPlan);
+        } catch (Throwable t) {
+            shape.explainPlan = "Error getting plan: " + t.toString();
+            logger.warn("Error getting plan for query on " + shape.entityName + " with SQL " + explainSql + ": " + t.toString());
+        } finally {
+            shape.explainTime = System.currentTimeMillis();
+            shape.explaining.set(false);
+        }
+    }
+
+    /** Display Maps for shapes matching the filters (case insensitive regular expressions), ordered and limited to maxResults if greater than 0 */
+    ArrayList<Map<String, Object>> getStatsList(String orderByField, String entityFilter, String sqlFilter, int maxResults) {
+        ArrayList<QueryShape> shapeList = new ArrayList<>(shapeByNormalSql.values());
+        if (otherShape.latency.getCount() > 0) shapeList.add(otherShape);
+        boolean hasEntityFilter = entityFilter != null && entityFilter.length() > 0;
+        boolean hasSqlFilter = sqlFilter != null && sqlFilter.length() > 0;
+        Pattern entityPattern = hasEntityFilter ? Pattern.compile(".*" + entityFilter + ".*", Pattern.CASE_INSENSITIVE) : null;
+        Pattern sqlPattern = hasSqlFilter ? Pattern.compile(".*" + sqlFilter + ".*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL) : null;
+
+        ArrayList<Map<String, Object>> qsl = new ArrayList<>(shapeList.size());
+        for (int i = 0; i < shapeList.size(); i++) {
+            QueryShape shape = shapeList.get(i);
+            if (hasEntityFilter && !entityPattern.matcher(shape.entityName).matches()) continue;
+            if (hasSqlFilter && !sqlPattern.matcher(shape.sqlShape).matches()) continue;
+            qsl.add(shape.makeDisplayMap());
+        }
+        CollectionUtilities.orderMapList(qsl, Arrays.asList(orderByField != null && !orderByField.isEmpty() ? orderByField : "-totalTime"));
+        if (maxResults > 0 && qsl.size() > maxResults) return new ArrayList<>(qsl.subList(0, maxResults));
+        return qsl;
+    }
+    long getStatsStartTime() { return statsStartTime; }
+    int getShapeCount() { return shapeByNormalSql.size(); }
+
+    void clear() {
+        shapeBySql.clear();
+        shapeByNormalSql.clear();
+        otherShape.clear();
+        statsStartTime = System.currentTimeMillis();
+    }
+
+    /** Save a QueryStatsBin for each of the shapes with the most time since the last call; scheduled every server-stats bin-length-seconds */
+    synchronized void persistBin() {
+        long binEndTime = System.currentTimeMillis();
+        ArrayList<QueryShape> shapeList = new ArrayList<>(shapeByNormalSql.values());
+        shapeList.add(otherShape);
+        ArrayList<BinDelta> deltaList = new ArrayList<>();
+        for (int i = 0; i < shapeList.size(); i++) {
+            BinDelta delta = shapeList.get(i).takeBinDelta();
+            if (delta != null) deltaList.add(delta);
+        }
+        long binStart = binStartTime;
+        binStartTime = binEndTime;
+        if (deltaList.isEmpty()) return;
+
+        deltaList.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+        List<BinDelta> topList = deltaList.size() > persistTopShapes ? deltaList.subList(0, persistTopShapes) : deltaList;
+        ExecutionContextFactoryImpl ecfi = efi.ecfi;
+        String serverIpAddress = ecfi.getLocalhostAddress() != null ? ecfi.getLocalhostAddress().getHostAddress() : "127.0.0.1";
+        String serverHostName = ecfi.getLocalhostAddress() != null ? ecfi.getLocalhostAddress().getHostName() : "localhost";
+        Timestamp binStartTs = new Timestamp(binStart), binEndTs = new Timestamp(binEndTime);
+
+        // runs on a scheduled executor thread, get and destroy an ExecutionContext for it like DeferredHitInfoFlush
+        ExecutionContextImpl eci = ecfi.getEci();
+        eci.artifactExecutionFacade.disableAuthz();
+        // all in one transaction like the runUseOrBegin() in DeferredHitInfoFlush, not one per record
+        TransactionFacadeImpl tfi = ecfi.transactionFacade;
+        boolean beganTransaction = false;
+        try {
+            beganTransaction = tfi.begin(60);
+            try {
+                for (BinDelta delta : topList) {
+                    EntityValueBase qsb = (EntityValueBase) efi.makeValue("moqui.server.QueryStatsBin");
+                    qsb.put("entityName", delta.shape.entityName);
+                    qsb.put("sqlShape", delta.shape.sqlShape);
+                    qsb.put("serverIpAddress", serverIpAddress);
+                    qsb.put("serverHostName", serverHostName);
+                    qsb.put("binStartDateTime", binStartTs);
+                    qsb.put("binEndDateTime", binEndTs);
+                    qsb.put("hitCount", delta.hitCount);
+                    qsb.put("errorCount", delta.errorCount);
+                    qsb.put("rowCount", delta.rowCount);
+                    qsb.put("totalTimeMillis", nanosToMillis(delta.totalNanos));
+                    qsb.put("maxTimeMillis", nanosToMillis(delta.maxNanos));
+                    qsb.put("p99TimeMillis", nanosToMillis(delta.p99Nanos));
+                    qsb.put("maxTimeArtifact", delta.shape.maxArtifact);
+                    qsb.put("explainPlan", delta.shape.explainPlan);
+                    qsb.setSequencedIdPrimary().create();
+                }
+            } catch (Throwable t) {
+                tfi.rollback(beganTransaction, "Error saving QueryStatsBin records", t);
+                throw t;
+            } finally {
+                if (tfi.isTransactionInPlace()) tfi.commit(beganTransaction);
+            }
+        } catch (Throwable t) {
+            logger.error("Error saving QueryStatsBin records", t);
+        } finally {
+            eci.destroy();
+        }
+    }
+    static BigDecimal nanosToMillis(long nanos) { return new BigDecimal(nanos).movePointLeft(6).setScale(6, RoundingMode.HALF_UP); }
+
+    public static class QueryShape {
+        final String entityName, sqlShape, groupName;
+        final LongAdder errorCount = new LongAdder(), rowCount = new LongAdder();
+        /** Query times, with the hit count, total and max time */
+        final MLatencyHistogram latency = new MLatencyHistogram();
+        final AtomicLong binMaxNanos = new AtomicLong(0);
+        final AtomicBoolean explaining = new AtomicBoolean(false);
+        volatile String maxArtifact = null;
+        volatile String explainPlan = null;
+        volatile long explainTime = 0;
+        // totals at the last persisted bin, only used in persistBin() which is synchronized
+        private long binHitCount = 0, binErrorCount = 0, binRowCount = 0, binTotalNanos = 0;
+        private long[] binHistogram = null;
+
+        QueryShape(String entityName, String sqlShape, String groupName) {
+            this.entityName = entityName;
+            this.sqlShape = sqlShape;
+            this.groupName = groupName;
+        }
+
+        /** Returns true if this is a new max time for the shape */
+        boolean record(EntityFacadeImpl efi, long runTimeNanos, boolean isError) {
+            if (isError) errorCount.increment();
+            long maxBefore = latency.getMaxNanos();
+            latency.record(runTimeNanos);
+            binMaxNanos.accumulateAndGet(runTimeNanos, Math::max);
+            // with concurrent records of new max times more than one may get the artifact, fine for monitoring
+            if (runTimeNanos <= maxBefore || latency.getMaxNanos() != runTimeNanos) return false;
+            // only on a new max, the artifact that ran the slowest query so far; none for queries on a thread with no
+            // ExecutionContext (like EntityFind.countAsync()), don't make one
+            ExecutionContextImpl eci = efi.ecfi.activeContext.get();
+            ArtifactExecutionInfo aei = eci != null ? eci.artifactExecutionFacade.peek() : null;
+            if (aei != null && aei.getParent() != null) aei = aei.getParent();
+            if (aei != null) maxArtifact = aei.getName();
+            return true;
+        }
+        /** Add rows read by a query of this shape, called when done reading (like when an EntityListIterator is closed) */
+        public void addRows(long rows) { if (rows > 0) rowCount.add(rows); }
+
+        public String getEntityName() { return entityName; }
+        public String getSqlShape() { return sqlShape; }
+
+        BinDelta takeBinDelta() {
+            long hits = latency.getCount();
+            if (hits == binHitCount) return null;
+            long[] histNow = latency.getBucketSnapshot();
+            BinDelta delta = new BinDelta(this);
+            delta.hitCount = hits - binHitCount;
+            long errors = errorCount.sum(), rows = rowCount.sum(), total = latency.getTotalNanos();
+            delta.errorCount = errors - binErrorCount;
+            delta.rowCount = rows - binRowCount;
+            delta.totalNanos = total - binTotalNanos;
+            delta.maxNanos = binMaxNanos.getAndSet(0);
+            long[] histDelta = new long[histNow.length];
+            for (int i = 0; i < histNow.length; i++) histDelta[i] = histNow[i] - (binHistogram != null ? binHistogram[i] : 0);
+            delta.p99Nanos = Math.min(MLatencyHistogram.percentileNanos(histDelta, 99.0), delta.maxNanos);
+            binHitCount = hits; binErrorCount = errors; binRowCount = rows; binTotalNanos = total; binHistogram = histNow;
+            return delta;
+        }
+
+        void clear() {
+            errorCount.reset(); rowCount.reset(); latency.clear();
+            binMaxNanos.set(0);
+            maxArtifact = null;
+            binHitCount = 0; binErrorCount = 0; binRowCount = 0; binTotalNanos = 0; binHistogram = null;
+        }
+
+        final static long nanosDivisor = 1000;
+        public Map<String, Object> makeDisplayMap() {
+            long hits = latency.getCount();
+            long total = latency.getTotalNanos(), max = latency.getMaxNanos();
+            Map<String, Object> dm = new HashMap<>();
+            dm.put("entityName", entityName); dm.put("sql", sqlShape);
+            dm.put("hitCount", hits); dm.put("errorCount", errorCount.sum()); dm.put("rowCount", rowCount.sum());
+            // times in microseconds
+            dm.put("totalTime", new BigDecimal(total / nanosDivisor)); dm.put("maxTime", new BigDecimal(max / nanosDivisor));
+            dm.put("average", new BigDecimal(hits > 0 ? (total / hits) / nanosDivisor : 0));
+            dm.put("p50Time", new BigDecimal(latency.getPercentileNanos(50.0) / nanosDivisor));
+            dm.put("p99Time", new BigDecimal(latency.getPercentileNanos(99.0) / nanosDivisor));
+            dm.put("rowsPerHit", hits > 0 ? new BigDecimal(rowCount.sum()).divide(new BigDecimal(hits), 2, RoundingMode.HALF_UP) : BigDecimal.ZERO);
+            dm.put("maxTimeArtifact", maxArtifact);
+            dm.put("explainPlan", explainPlan);
+            return dm;
+        }
+    }
+
+    static class BinDelta {
+        final QueryShape shape;
+        long hitCount, errorCount, rowCount, totalNanos, maxNanos, p99Nanos;
+        BinDelta(QueryShape shape) { this.shape = shape; }
+    }
+}
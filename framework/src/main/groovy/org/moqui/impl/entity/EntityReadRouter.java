@@ -0,0 +1,209 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityDatasourceFactory;
+import org.moqui.impl.context.TransactionFacadeImpl;
+import org.moqui.util.MNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes entity finds (one, list, iterator, count) for a datasource with read-clones=true to its clone datasources
+ * (group-name like "transactional#replica1") instead of the primary, when that is safe:
+ *
+ * - not for update
+ * - nothing written to the group in the current transaction (see TransactionFacadeImpl.registerGroupWrite()) and no
+ *   active TransactionCache, so reads in a transaction see its own writes
+ * - the clone is not behind the primary by more than its clone-max-lag seconds, checked with its clone-lag-query in the
+ *   background at most every lagCheckMillis; if the check fails or hasn't been done yet the primary is used
+ *
+ * Counts of finds by route are kept for each group, see getRouteInfo().
+ */
+public class EntityReadRouter {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityReadRouter.class);
+    private static final long lagCheckMillis = 5000;
+
+    private final EntityFacadeImpl efi;
+    private final HashMap<String, GroupRoute> routeByGroup = new HashMap<>();
+
+    EntityReadRouter(EntityFacadeImpl efi) { this.efi = efi; }
+
+    /** Call after datasources are initialized to find groups with read-clones=true and their clones */
+    void init(Map<String, EntityDatasourceFactory> datasourceFactoryByGroupMap) {
+        for (String groupName : datasourceFactoryByGroupMap.keySet()) {
+            if (groupName.contains("#")) continue;
+            MNode datasourceNode = efi.getDatasourceNode(groupName);
+            if (datasourceNode == null || !"true".equals(datasourceNode.attribute("read-clones"))) continue;
+
+            GroupRoute route = new GroupRoute(groupName);
+            String clonePrefix = groupName + "#";
+            for (Map.Entry<String, EntityDatasourceFactory> edfEntry : datasourceFactoryByGroupMap.entrySet()) {
+                String cloneName = edfEntry.getKey();
+                if (!cloneName.startsWith(clonePrefix)) continue;
+                MNode cloneNode = efi.getDatasourceNode(cloneName);
+                String maxLagAttr = cloneNode != null ? cloneNode.attribute("clone-max-lag") : null;
+                int maxLag = maxLagAttr != null && !maxLagAttr.isEmpty() ? Integer.parseInt(maxLagAttr) : 0;
+                String lagQuery = cloneNode != null ? cloneNode.attribute("clone-lag-query") : null;
+                route.cloneList.add(new CloneInfo(cloneName, edfEntry.getValue(), maxLag, lagQuery));
+            }
+            if (route.cloneList.isEmpty()) {
+                logger.warn("Datasource " + groupName + " has read-clones=true but no clone datasources (group-name starting with " + clonePrefix + "), finds will use the primary");
+                continue;
+            }
+            routeByGroup.put(groupName, route);
+            logger.info("Routing finds for datasource " + groupName + " to clones " + route.getCloneNames() + " when not in a write transaction");
+        }
+    }
+
+    /** Get the group name to use for a find, a clone of the entity's group or the group itself */
+    String getReadGroupName(String groupName, boolean forUpdate) {
+        GroupRoute route = routeByGroup.get(groupName);
+        if (route == null) return groupName;
+
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
+        if (forUpdate) {
+            // locks are on the primary, and later reads in the transaction should see what the lock was for
+            tfi.registerGroupWrite(groupName);
+            route.primaryForUpdate.increment();
+            return groupName;
+        }
+        if (tfi.hasGroupWrite(groupName) || tfi.isTransactionCacheActive()) {
+            route.primaryInTx.increment();
+            return groupName;
+        }
+
+        CloneInfo clone = route.pickClone();
+        if (clone == null) {
+            route.primaryLagged.increment();
+            return groupName;
+        }
+        clone.reads.increment();
+        return clone.groupName;
+    }
+
+    /** Counts of finds by route for a group with read-clones, null for other groups; for the datasource info in the system app */
+    Map<String, Object> getRouteInfo(String groupName) {
+        GroupRoute route = routeByGroup.get(groupName);
+        if (route == null) return null;
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("primaryForUpdate", route.primaryForUpdate.sum());
+        info.put("primaryInTx", route.primaryInTx.sum());
+        info.put("primaryLagged", route.primaryLagged.sum());
+        ArrayList<Map<String, Object>> cloneInfoList = new ArrayList<>();
+        for (CloneInfo clone : route.cloneList) {
+            Map<String, Object> cloneInfo = new LinkedHashMap<>();
+            cloneInfo.put("group", clone.groupName);
+            cloneInfo.put("reads", clone.reads.sum());
+            cloneInfo.put("available", clone.available);
+            cloneInfo.put("lagSeconds", clone.lastLag);
+            cloneInfo.put("maxLagSeconds", clone.maxLag);
+            cloneInfoList.add(cloneInfo);
+        }
+        info.put("clones", cloneInfoList);
+        return info;
+    }
+
+    private class GroupRoute {
+        final String groupName;
+        final ArrayList<CloneInfo> cloneList = new ArrayList<>();
+        final LongAdder primaryForUpdate = new LongAdder(), primaryInTx = new LongAdder(), primaryLagged = new LongAdder();
+
+        GroupRoute(String groupName) { this.groupName = groupName; }
+
+        CloneInfo pickClone() {
+            int cloneListSize = cloneList.size();
+            // start at a random clone to spread load, use the first one available
+            int start = cloneListSize > 1 ? ThreadLocalRandom.current().nextInt(cloneListSize) : 0;
+            for (int i = 0; i < cloneListSize; i++) {
+                CloneInfo clone = cloneList.get((start + i) % cloneListSize);
+                clone.checkLag();
+                if (clone.available) return clone;
+            }
+            return null;
+        }
+        ArrayList<String> getCloneNames() {
+            ArrayList<String> names = new ArrayList<>(cloneList.size());
+            for (CloneInfo clone : cloneList) names.add(clone.groupName);
+            return names;
+        }
+    }
+
+    private class CloneInfo {
+        final String groupName;
+        final EntityDatasourceFactory edf;
+        final int maxLag;
+        final String lagQuery;
+        final LongAdder reads = new LongAdder();
+        final AtomicBoolean checking = new AtomicBoolean(false);
+        volatile boolean available;
+        volatile double lastLag = 0;
+        volatile long lastCheckTime = 0;
+
+        CloneInfo(String groupName, EntityDatasourceFactory edf, int maxLag, String lagQuery) {
+            this.groupName = groupName;
+            this.edf = edf;
+            this.lagQuery = lagQuery != null && !lagQuery.isEmpty() ? lagQuery : null;
+            this.maxLag = maxLag;
+            // with no lag limit or query always available, otherwise not until checked
+            available = maxLag <= 0 || this.lagQuery == null;
+        }
+
+        void checkLag() {
+            if (maxLag <= 0 || lagQuery == null) return;
+            if (System.currentTimeMillis() - lastCheckTime < lagCheckMillis) return;
+            if (!checking.compareAndSet(false, true)) return;
+            // check in the background, on a thread with no transaction, and don't hold up the find
+            try {
+                efi.statementExecutor.execute(this::runLagCheck);
+            } catch (Throwable t) {
+                checking.set(false);
+                logger.warn("Could not start lag check for datasource " + groupName + ": " + t.toString());
+            }
+        }
+        private void runLagCheck() {
+            try {
+                DataSource ds = edf.getDataSource();
+                double lag = -1;
+                try (Connection con = ds.getConnection(); Statement stmt = con.createStatement();
+                     ResultSet rs = stmt.executeQuery(lagQuery)) {
+                    // a null lag (like from pg_last_xact_replay_timestamp() with no replay yet) is treated as no lag
+                    if (rs.next()) { lag = rs.getDouble(1); if (rs.wasNull()) lag = 0; }
+                }
+                lastLag = lag;
+                boolean nowAvailable = lag >= 0 && lag <= maxLag;
+                if (nowAvailable != available) logger.info("Datasource clone " + groupName + " now " + (nowAvailable ? "available" : "not available") + " for reads, lag " + lag + "s max " + maxLag + "s");
+                available = nowAvailable;
+            } catch (Throwable t) {
+                if (available) logger.warn("Lag check failed for datasource clone " + groupName + ", not using for reads: " + t.toString());
+                available = false;
+            } finally {
+                lastCheckTime = System.currentTimeMillis();
+                checking.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityValue;
+
+import java.sql.ResultSet;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only Map view of the current row of an EntityListIteratorImpl ResultSet, for EntityListIterator.nextRow(). Only
+ * selected fields are in the Map. Each column is read from the ResultSet and converted (FieldInfo.getResultSetValue())
+ * the first time it is used for a row and kept in an array by column, so fields that are not used are not read.
+ *
+ * A view reused across rows is only valid until the iterator moves. A view that is not reused reads its remaining columns
+ * when the iterator moves (see detach()) so it stays valid, but then there is less benefit over next().
+ */
+public class EntityRowView extends AbstractMap<String, Object> {
+    private final EntityFacadeImpl efi;
+    private final EntityDefinition ed;
+    private final FieldInfo[] fieldInfoArray;
+    private final int columnCount;
+    /** Column (zero based) by FieldInfo.index, -1 for fields not selected */
+    private final int[] columnByFieldIndex;
+    private final Object[] values;
+    private final long[] loadedRow;
+
+    private ResultSet rs;
+    private long rowId = 1;
+    private EntrySet entrySet = null;
+
+    EntityRowView(EntityFacadeImpl efi, EntityDefinition ed, FieldInfo[] fieldInfoArray, ResultSet rs) {
+        this.efi = efi;
+        this.ed = ed;
+        this.fieldInfoArray = fieldInfoArray;
+        this.rs = rs;
+        int count = 0;
+        while (count < fieldInfoArray.length && fieldInfoArray[count] != null) count++;
+        columnCount = count;
+        columnByFieldIndex = new int[ed.entityInfo.allFieldInfoArray.length];
+        Arrays.fill(columnByFieldIndex, -1);
+        for (int i = 0; i < columnCount; i++) {
+            int fieldIndex = fieldInfoArray[i].index;
+            if (fieldIndex >= 0 && fieldIndex < columnByFieldIndex.length) columnByFieldIndex[fieldIndex] = i;
+        }
+        values = new Object[columnCount];
+        loadedRow = new long[columnCount];
+    }
+
+    /** Like another view with the same columns, for a new view per row without the setup */
+    EntityRowView(EntityRowView template, ResultSet rs) {
+        this.efi = template.efi;
+        this.ed = template.ed;
+        this.fieldInfoArray = template.fieldInfoArray;
+        this.rs = rs;
+        columnCount = template.columnCount;
+        columnByFieldIndex = template.columnByFieldIndex;
+        values = new Object[columnCount];
+        loadedRow = new long[columnCount];
+    }
+
+    /** Called by the iterator when the ResultSet is on a new row */
+    void nextRow() { rowId++; }
+    /** Read all columns not yet read for the current row, then don't use the ResultSet again */
+    void detach() {
+        if (rs == null) return;
+        for (int i = 0; i < columnCount; i++) getColumn(i);
+        rs = null;
+    }
+
+    public String getEntityName() { return ed.getFullEntityName(); }
+    public EntityDefinition getEntityDefinition() { return ed; }
+
+    /** Make an EntityValue with the selected fields of this row, reads all columns */
+    public EntityValue makeEntityValue() {
+        EntityValueImpl newEntityValue = new EntityValueImpl(ed, efi);
+        for (int i = 0; i < columnCount; i++) {
+            FieldInfo fi = fieldInfoArray[i];
+            newEntityValue.valueMapInternal.putByIString(fi.name, getColumn(i), fi.index);
+        }
+        newEntityValue.setSyncedWithDb();
+        return newEntityValue;
+    }
+
+    private Object getColumn(int column) {
+        if (loadedRow[column] != rowId) {
+            if (rs == null) return values[column];
+            values[column] = fieldInfoArray[column].getResultSetValue(rs, column + 1, efi);
+            loadedRow[column] = rowId;
+        }
+        return values[column];
+    }
+    private int findColumn(Object key) {
+        if (!(key instanceof String)) return -1;
+        FieldInfo fi = ed.getFieldInfo((String) key);
+        if (fi == null || fi.index < 0 || fi.index >= columnByFieldIndex.length) return -1;
+        return columnByFieldIndex[fi.index];
+    }
+
+    @Override public Object get(Object key) {
+        int column = findColumn(key);
+        return column >= 0 ? getColumn(column) : null;
+    }
+    @Override public boolean containsKey(Object key) { return findColumn(key) >= 0; }
+    @Override public int size() { return columnCount; }
+    @Override public boolean isEmpty() { return columnCount == 0; }
+
+    @Override public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) entrySet = new EntrySet();
+        return entrySet;
+    }
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+        @Override public int size() { return columnCount; }
+        @Override public Iterator<Map.Entry<String, Object>> iterator() {
+            return new Iterator<Map.Entry<String, Object>>() {
+                int column = 0;
+                @Override public boolean hasNext() { return column < columnCount; }
+                @Override public Map.Entry<String, Object> next() {
+                    if (column >= columnCount) throw new NoSuchElementException();
+                    Map.Entry<String, Object> entry = new SimpleImmutableEntry<>(fieldInfoArray[column].name, getColumn(column));
+                    column++;
+                    return entry;
+                }
+            };
+        }
+    }
+
+    @Override public String toString() { return "[" + ed.getFullEntityName() + ": " + super.toString() + "]"; }
+}
@@ -0,0 +1,167 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import org.moqui.context.TransactionFacade;
+import org.moqui.entity.EntityFind;
+import org.moqui.entity.EntityListIterator;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the values from an EntityListIterator one at a time as a JSON array without getting a full EntityList or List
+ * of Maps first, so memory use does not depend on the number of values. The JsonGenerator is flushed every flushRows
+ * values so output goes to the client as it is written and a slow reader holds back the database read.
+ *
+ * This is a Jackson JsonSerializable so it can be the response object or a value in it, like for the REST API, and
+ * Jackson will stream the values. The EntityListIterator is closed when done writing; if not written (like on an error
+ * before sending a response) call close().
+ *
+ * Use iterate() to get the iterator in a transaction: some JDBC drivers (PostgreSQL) ignore the fetch size and read all
+ * rows into memory when the connection is in auto-commit mode. The transaction is committed in close().
+ */
+public class EntityStreamWriter implements JsonSerializable, Closeable {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityStreamWriter.class);
+
+    /** Transaction timeout (seconds) for iterate(), long enough for a slow client to read a large result */
+    public static final int STREAM_TX_TIMEOUT = 3600;
+
+    private final EntityListIterator eli;
+    private final TransactionFacade transactionFacade;
+    private final boolean beganTransaction;
+    private int dependentLevels = -1;
+    private int flushRows = 100;
+    private boolean closed = false;
+    private long valuesWritten = 0;
+
+    public EntityStreamWriter(EntityListIterator eli) { this(eli, null, false); }
+    protected EntityStreamWriter(EntityListIterator eli, TransactionFacade transactionFacade, boolean beganTransaction) {
+        this.eli = eli;
+        this.transactionFacade = transactionFacade;
+        this.beganTransaction = beganTransaction;
+    }
+
+    /** Begin a transaction if none is in place and get an iterator from the find in it, so the fetch size is used */
+    public static EntityStreamWriter iterate(EntityFind ef, TransactionFacade transactionFacade) {
+        boolean beganTransaction = transactionFacade.begin(STREAM_TX_TIMEOUT);
+        try {
+            return new EntityStreamWriter(ef.iterator(), transactionFacade, beganTransaction);
+        } catch (Throwable t) {
+            transactionFacade.rollback(beganTransaction, "Error getting iterator to stream values", t);
+            throw t;
+        }
+    }
+
+    /** Write getPlainValueMap(dependentLevels) for each value, with _entity and dependents; default is getMap() without nulls */
+    public EntityStreamWriter plainValueMaps(int dependentLevels) { this.dependentLevels = dependentLevels; return this; }
+    /** Flush the Writer (or JsonGenerator) after this many values, default 100 */
+    public EntityStreamWriter flushRows(int flushRows) { this.flushRows = flushRows; return this; }
+
+    public long getValuesWritten() { return valuesWritten; }
+
+    @Override
+    public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        try {
+            gen.writeStartArray();
+            if (dependentLevels >= 0) {
+                EntityValue ev;
+                while ((ev = eli.next()) != null) {
+                    serializers.defaultSerializeValue(ev.getPlainValueMap(dependentLevels), gen);
+                    valuesWritten++;
+                    if (valuesWritten % flushRows == 0) gen.flush();
+                }
+            } else if (eli instanceof EntityListIteratorImpl && ((EntityListIteratorImpl) eli).isRowViewPlain()) {
+                // fields only, write from a reused row view instead of making an EntityValue per record
+                Map<String, Object> row;
+                while ((row = eli.nextRow(true)) != null) {
+                    // with a TransactionCache nextRow() returns EntityValue objects, use getMap() like below
+                    writeFields(row instanceof EntityValue ? ((EntityValue) row).getMap() : row, gen, serializers);
+                    valuesWritten++;
+                    if (valuesWritten % flushRows == 0) gen.flush();
+                }
+            } else {
+                // localized fields or pq-expression aliases, need getMap() of an EntityValue
+                EntityValue ev;
+                while ((ev = eli.next()) != null) {
+                    writeFields(ev.getMap(), gen, serializers);
+                    valuesWritten++;
+                    if (valuesWritten % flushRows == 0) gen.flush();
+                }
+            }
+            gen.writeEndArray();
+        } finally {
+            close();
+        }
+    }
+    private static void writeFields(Map<String, Object> row, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            Object fieldValue = entry.getValue();
+            if (fieldValue == null) continue;
+            gen.writeFieldName(entry.getKey());
+            serializers.defaultSerializeValue(fieldValue, gen);
+        }
+        gen.writeEndObject();
+    }
+    /** Read all values into a List of the Maps that would be written, for when not writing JSON (like in a ScreenTest
+     * with skipJsonSerialize); closes the iterator and ends the transaction like writing does. */
+    public ArrayList<Map<String, Object>> toList() {
+        ArrayList<Map<String, Object>> valueList = new ArrayList<>();
+        try {
+            EntityValue ev;
+            while ((ev = eli.next()) != null) {
+                if (dependentLevels >= 0) {
+                    valueList.add(ev.getPlainValueMap(dependentLevels));
+                } else {
+                    Map<String, Object> valueMap = new LinkedHashMap<>();
+                    for (Map.Entry<String, Object> entry : ev.getMap().entrySet())
+                        if (entry.getValue() != null) valueMap.put(entry.getKey(), entry.getValue());
+                    valueList.add(valueMap);
+                }
+                valuesWritten++;
+            }
+        } finally {
+            close();
+        }
+        return valueList;
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer) throws IOException {
+        serialize(gen, serializers);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            eli.close();
+        } finally {
+            // read only, so commit even if not all values were written
+            if (beganTransaction) transactionFacade.commit(true);
+        }
+    }
+}
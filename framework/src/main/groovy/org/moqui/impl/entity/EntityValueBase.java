@@ -110,6 +110,8 @@ public abstract class EntityValueBase implements EntityValue {
         }
     }
 
+    /** Set before readExternal() when there is no static reference in Moqui.java yet, like restoring cache snapshots on init */
+    void setEntityFacadeTransient(EntityFacadeImpl efip) { efiTransient = efip; }
     protected EntityFacadeImpl getEntityFacadeImpl() {
         // handle null after deserialize; this requires a static reference in Moqui.java or we'll get an error
         if (efiTransient == null) {
@@ -1238,10 +1240,13 @@ public abstract class EntityValueBase implements EntityValue {
         EntityDefinition.MasterDefinition masterDefinition = getEntityDefinition().getMasterDefinition(name);
         if (masterDefinition == null)
             throw new EntityException("No master definition found for name [" + name + "] in entity [" + entityName + "]");
-        return internalMasterValueMap(masterDefinition.getDetailList(), null, null);
+        ArrayList<EntityValueBase> valueList = new ArrayList<>(1);
+        valueList.add(this);
+        return new EntityMasterLoader(getEntityFacadeImpl()).makeMasterValueList(valueList, masterDefinition.getDetailList(), null, null).get(0);
     }
 
-    private Map<String, Object> internalMasterValueMap(ArrayList<EntityDefinition.MasterDetail> detailList, Set<String> parentPkFields, EntityJavaUtil.RelationshipInfo parentRelInfo) {
+    /** Plain Map of this value for a master value Map, without detail entries which are added by EntityMasterLoader */
+    Map<String, Object> makeMasterBaseMap(Set<String> parentPkFields, EntityJavaUtil.RelationshipInfo parentRelInfo) {
         Map<String, Object> vMap = new HashMap<>(valueMapInternal);
         CollectionUtilities.removeNullsFromMap(vMap);
         if (parentPkFields != null) {
@@ -1255,40 +1260,7 @@ public abstract class EntityValueBase implements EntityValue {
                 for (String pkField : parentPkFields) vMap.remove(pkField);
             }
         }
-        EntityDefinition ed = getEntityDefinition();
-        vMap.put("_entity", ed.getShortOrFullEntityName());
-
-        if (detailList != null && !detailList.isEmpty()) {
-            Set<String> curPkFields = new HashSet<>(ed.getPkFieldNames());
-            // keep track of all parent PK field names, even not part of this entity's PK, they will be inherited when read
-            if (parentPkFields != null) curPkFields.addAll(parentPkFields);
-
-            int detailListSize = detailList.size();
-            for (int i = 0; i < detailListSize; i++) {
-                EntityDefinition.MasterDetail detail = detailList.get(i);
-
-                EntityJavaUtil.RelationshipInfo relInfo = detail.getRelInfo();
-                String relationshipName = relInfo.relationshipName;
-                final String relAlias = relInfo.shortAlias;
-                String entryName = relAlias != null && !relAlias.isEmpty() ? relAlias : relationshipName;
-                if (relInfo.isTypeOne) {
-                    EntityValue relEv = findRelatedOne(relationshipName, null, false);
-                    if (relEv != null) vMap.put(entryName, ((EntityValueBase) relEv).internalMasterValueMap(detail.getDetailList(), curPkFields, relInfo));
-                } else {
-                    EntityList relList = findRelated(relationshipName, null, null, null, false);
-                    if (relList != null && !relList.isEmpty()) {
-                        List<Map> plainRelList = new ArrayList<>();
-                        int relListSize = relList.size();
-                        for (int rlIndex = 0; rlIndex < relListSize; rlIndex++) {
-                            EntityValue relEv = relList.get(rlIndex);
-                            plainRelList.add(((EntityValueBase) relEv).internalMasterValueMap(detail.getDetailList(), curPkFields, relInfo));
-                        }
-                        vMap.put(entryName, plainRelList);
-                    }
-                }
-            }
-        }
-
+        vMap.put("_entity", getEntityDefinition().getShortOrFullEntityName());
         return vMap;
     }
 
@@ -1443,7 +1415,7 @@ public abstract class EntityValueBase implements EntityValue {
         return errorMessage;
     }
 
-    private void registerMutateLock() {
+    void registerMutateLock() {
         final EntityFacadeImpl efi = getEntityFacadeImpl();
         final TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
         if (!tfi.getUseLockTrack()) return;
@@ -1552,8 +1524,25 @@ public abstract class EntityValueBase implements EntityValue {
     }
 
     public void basicCreate(Connection con) throws SQLException {
+        FieldInfo[] fieldArray = makeCreateFieldArray();
+
+        // if enabled register locks before operation
+        registerMutateLock();
+
+        createExtended(fieldArray, con);
+    }
+    /** For bulk create or upsert (see EntityBulkWriter) set field defaults and lastUpdatedStamp, like create() and update().
+     * For upsert only PK defaults are set, a non-PK default would overwrite the existing value in the update. */
+    void prepareBulkWrite(ExecutionContextImpl ec, Timestamp lastUpdatedStamp, boolean upsert) {
         EntityDefinition ed = getEntityDefinition();
-        FieldInfo[] allFieldArray = ed.entityInfo.allFieldInfoArray;
+        if (ed.entityInfo.hasFieldDefaults) checkSetFieldDefaults(ed, ec, upsert ? Boolean.TRUE : null);
+        FieldInfo lastUpdatedStampInfo = ed.entityInfo.lastUpdatedStampInfo;
+        if (lastUpdatedStampInfo != null && (upsert || valueMapInternal.getByIString(lastUpdatedStampInfo.name, lastUpdatedStampInfo.index) == null))
+            valueMapInternal.putByIString(lastUpdatedStampInfo.name, lastUpdatedStamp, lastUpdatedStampInfo.index);
+    }
+    /** Fields with a value to insert, in field index order; may have null values after valid ones */
+    FieldInfo[] makeCreateFieldArray() {
+        FieldInfo[] allFieldArray = getEntityDefinition().entityInfo.allFieldInfoArray;
         FieldInfo[] fieldArray = new FieldInfo[allFieldArray.length];
         int size = allFieldArray.length;
         int fieldArrayIndex = 0;
@@ -1564,11 +1553,7 @@ public abstract class EntityValueBase implements EntityValue {
                 fieldArrayIndex++;
             }
         }
-
-        // if enabled register locks before operation
-        registerMutateLock();
-
-        createExtended(fieldArray, con);
+        return fieldArray;
     }
 
     /**
@@ -1716,7 +1701,16 @@ public abstract class EntityValueBase implements EntityValue {
         */
 
         FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
-        FieldInfo[] allNonPkFieldArray = ed.entityInfo.nonPkFieldInfoArray;
+        FieldInfo[] nonPkFieldArray = makeUpdateFieldArray();
+
+        // if enabled register locks before operation
+        registerMutateLock();
+
+        updateExtended(pkFieldArray, nonPkFieldArray, con);
+    }
+    /** Modified non-PK fields to update, in field index order; may have null values after valid ones */
+    FieldInfo[] makeUpdateFieldArray() {
+        FieldInfo[] allNonPkFieldArray = getEntityDefinition().entityInfo.nonPkFieldInfoArray;
         FieldInfo[] nonPkFieldArray = new FieldInfo[allNonPkFieldArray.length];
         int size = allNonPkFieldArray.length;
         int nonPkFieldArrayIndex = 0;
@@ -1727,11 +1721,7 @@ public abstract class EntityValueBase implements EntityValue {
                 nonPkFieldArrayIndex++;
             }
         }
-
-        // if enabled register locks before operation
-        registerMutateLock();
-
-        updateExtended(pkFieldArray, nonPkFieldArray, con);
+        return nonPkFieldArray;
     }
 
     /**
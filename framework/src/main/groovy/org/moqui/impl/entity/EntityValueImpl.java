@@ -52,7 +52,6 @@ public class EntityValueImpl extends EntityValueBase {
         return newObj;
     }
 
-    @SuppressWarnings("MismatchedQueryAndUpdateOfStringBuilder")
     @Override
     public void createExtended(FieldInfo[] fieldInfoArray, Connection con) throws SQLException {
         EntityDefinition ed = getEntityDefinition();
@@ -60,25 +59,8 @@ public class EntityValueImpl extends EntityValueBase {
         if (ed.isViewEntity) throw new EntityException("Create not yet implemented for view-entity");
 
         EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
-        StringBuilder sql = eqb.sqlTopLevel;
-        sql.append("INSERT INTO ").append(ed.getFullTableName()).append(" (");
-
+        eqb.useSql(ed.entityInfo.getInsertSql(fieldInfoArray));
         int size = fieldInfoArray.length;
-        StringBuilder values = new StringBuilder(size*3);
-
-        for (int i = 0; i < size; i++) {
-            FieldInfo fieldInfo = fieldInfoArray[i];
-            if (fieldInfo == null) break;
-            if (i > 0) {
-                sql.append(", ");
-                values.append(", ");
-            }
-
-            sql.append(fieldInfo.getFullColumnName());
-            values.append("?");
-        }
-
-        sql.append(") VALUES (").append(values.toString()).append(")");
 
         try {
             efi.getEntityDbMeta().checkTableRuntime(ed);
@@ -115,20 +97,26 @@ public class EntityValueImpl extends EntityValueBase {
         if (ed.isViewEntity) throw new EntityException("Update not yet implemented for view-entity");
 
         final EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
-        ArrayList<EntityConditionParameter> parameters = eqb.parameters;
-        StringBuilder sql = eqb.sqlTopLevel;
-        sql.append("UPDATE ").append(ed.getFullTableName()).append(" SET ");
-
-        int size = nonPkFieldArray.length;
-        for (int i = 0; i < size; i++) {
-            FieldInfo fieldInfo = nonPkFieldArray[i];
-            if (fieldInfo == null) break;
-            if (i > 0) sql.append(", ");
-            sql.append(fieldInfo.getFullColumnName()).append("=?");
-            parameters.add(new EntityConditionParameter(fieldInfo, valueMapInternal.getByIString(fieldInfo.name, fieldInfo.index), eqb));
-        }
+        if (pkFieldArray == ed.entityInfo.pkFieldInfoArray) {
+            eqb.useSql(ed.entityInfo.getUpdateByPkSql(nonPkFieldArray));
+            eqb.addFieldParameters(nonPkFieldArray, valueMapInternal);
+            eqb.addFieldParameters(pkFieldArray, valueMapInternal);
+        } else {
+            ArrayList<EntityConditionParameter> parameters = eqb.parameters;
+            StringBuilder sql = eqb.sqlTopLevel;
+            sql.append("UPDATE ").append(ed.getFullTableName()).append(" SET ");
+
+            int size = nonPkFieldArray.length;
+            for (int i = 0; i < size; i++) {
+                FieldInfo fieldInfo = nonPkFieldArray[i];
+                if (fieldInfo == null) break;
+                if (i > 0) sql.append(", ");
+                sql.append(fieldInfo.getFullColumnName()).append("=?");
+                parameters.add(new EntityConditionParameter(fieldInfo, valueMapInternal.getByIString(fieldInfo.name, fieldInfo.index), eqb));
+            }
 
-        eqb.addWhereClause(pkFieldArray, valueMapInternal);
+            eqb.addWhereClause(pkFieldArray, valueMapInternal);
+        }
 
         try {
             efi.getEntityDbMeta().checkTableRuntime(ed);
@@ -140,7 +128,7 @@ public class EntityValueImpl extends EntityValueBase {
 
             // if (ed.entityName == "Subscription") logger.warn("Update ${this.toString()} tx ${efi.getEcfi().transaction.getTransactionManager().getTransaction()} con ${eqb.connection}")
             if (eqb.executeUpdate() == 0)
-                throw new EntityException("Tried to update a value that does not exist [" + this.toString() + "]. SQL used was " + eqb.sqlTopLevel.toString() + ", parameters were " + eqb.parameters.toString());
+                throw new EntityException("Tried to update a value that does not exist [" + this.toString() + "]. SQL used was " + eqb.finalSql + ", parameters were " + eqb.parameters.toString());
             setSyncedWithDb();
         } catch (SQLException e) {
             String txName = "[could not get]";
@@ -154,7 +142,6 @@ public class EntityValueImpl extends EntityValueBase {
         }
     }
 
-    @SuppressWarnings("MismatchedQueryAndUpdateOfStringBuilder")
     @Override
     public void deleteExtended(Connection con) throws SQLException {
         EntityDefinition ed = getEntityDefinition();
@@ -162,11 +149,8 @@ public class EntityValueImpl extends EntityValueBase {
         if (ed.isViewEntity) throw new EntityException("Delete not implemented for view-entity");
 
         EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
-        StringBuilder sql = eqb.sqlTopLevel;
-        sql.append("DELETE FROM ").append(ed.getFullTableName());
-
-        FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
-        eqb.addWhereClause(pkFieldArray, valueMapInternal);
+        eqb.useSql(ed.entityInfo.getDeleteByPkSql());
+        eqb.addFieldParameters(ed.entityInfo.pkFieldInfoArray, valueMapInternal);
 
         try {
             efi.getEntityDbMeta().checkTableRuntime(ed);
@@ -205,19 +189,25 @@ public class EntityValueImpl extends EntityValueBase {
         // NOTE: even if there are no non-pk fields do a refresh in order to see if the record exists or not
 
         EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
-        ArrayList<EntityConditionParameter> parameters = eqb.parameters;
-        StringBuilder sql = eqb.sqlTopLevel;
-        sql.append("SELECT ");
-        eqb.makeSqlSelectFields(allFieldArray, null, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
-
-        sql.append(" FROM ").append(ed.getFullTableName()).append(" WHERE ");
-
-        int sizePk = pkFieldArray.length;
-        for (int i = 0; i < sizePk; i++) {
-            FieldInfo fi = pkFieldArray[i];
-            if (i > 0) sql.append(" AND ");
-            sql.append(fi.getFullColumnName()).append("=?");
-            parameters.add(new EntityConditionParameter(fi, valueMapInternal.getByIString(fi.name, fi.index), eqb));
+        String selectAllByPkSql = entityInfo.getSelectAllByPkSql();
+        if (selectAllByPkSql != null) {
+            eqb.useSql(selectAllByPkSql);
+            eqb.addFieldParameters(pkFieldArray, valueMapInternal);
+        } else {
+            ArrayList<EntityConditionParameter> parameters = eqb.parameters;
+            StringBuilder sql = eqb.sqlTopLevel;
+            sql.append("SELECT ");
+            eqb.makeSqlSelectFields(allFieldArray, null, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
+
+            sql.append(" FROM ").append(ed.getFullTableName()).append(" WHERE ");
+
+            int sizePk = pkFieldArray.length;
+            for (int i = 0; i < sizePk; i++) {
+                FieldInfo fi = pkFieldArray[i];
+                if (i > 0) sql.append(" AND ");
+                sql.append(fi.getFullColumnName()).append("=?");
+                parameters.add(new EntityConditionParameter(fi, valueMapInternal.getByIString(fi.name, fi.index), eqb));
+            }
         }
 
         boolean retVal = false;
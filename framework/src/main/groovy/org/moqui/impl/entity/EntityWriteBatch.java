@@ -0,0 +1,181 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityException;
+import org.moqui.impl.entity.EntityJavaUtil.WriteMode;
+import org.moqui.util.LiteStringMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+/**
+ * Writes values on a single Connection using JDBC batches (addBatch/executeBatch) for consecutive writes with the same
+ * SQL, like creates of one entity with the same fields. Writes are sent to the database in the order added: a write with
+ * different SQL executes the current batch first. Values that can't be batched (not a JDBC datasource, view-entity, update
+ * with no modified fields) are written one at a time.
+ *
+ * This only does the SQL, like basicCreate()/basicUpdate()/deleteExtended(); EECA rules, audit logs, and so on are done
+ * by the caller when the write is requested. Used by the TransactionCache to flush its writes.
+ */
+public class EntityWriteBatch {
+    protected static final Logger logger = LoggerFactory.getLogger(EntityWriteBatch.class);
+
+    private final EntityFacadeImpl efi;
+    private final Connection con;
+    private final int maxBatchSize;
+
+    private PreparedStatement ps = null;
+    private String curSql = null;
+    private EntityDefinition curEd = null;
+    private WriteMode curMode = null;
+    private final ArrayList<EntityValueBase> curValues = new ArrayList<>();
+
+    private int batchCount = 0;
+    private int singleCount = 0;
+
+    /** @param maxBatchSize Execute the current batch when it has this many values; if 1 or less write each value alone */
+    public EntityWriteBatch(EntityFacadeImpl efi, Connection con, int maxBatchSize) {
+        this.efi = efi;
+        this.con = con;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void add(EntityValueBase evb, WriteMode writeMode) throws SQLException {
+        EntityDefinition ed = evb.getEntityDefinition();
+        EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo;
+        // finds on this group later in the transaction must see this write (like after the TransactionCache is flushed
+        //     and disabled), don't route them to a clone; batched writes don't go through EntityQueryBuilder.executeUpdate()
+        efi.ecfi.transactionFacade.registerGroupWrite(entityInfo.groupName);
+        if (maxBatchSize <= 1 || entityInfo.isView || !(evb instanceof EntityValueImpl)) {
+            writeSingle(evb, writeMode);
+            return;
+        }
+
+        FieldInfo[] fieldArray = null;
+        String sql;
+        if (writeMode == WriteMode.CREATE) {
+            fieldArray = evb.makeCreateFieldArray();
+            sql = entityInfo.getInsertSql(fieldArray);
+        } else if (writeMode == WriteMode.UPDATE) {
+            fieldArray = evb.makeUpdateFieldArray();
+            if (fieldArray.length == 0 || fieldArray[0] == null) {
+                writeSingle(evb, writeMode);
+                return;
+            }
+            sql = entityInfo.getUpdateByPkSql(fieldArray);
+        } else {
+            sql = entityInfo.getDeleteByPkSql();
+        }
+
+        if (ps == null || ed != curEd || !sql.equals(curSql)) {
+            executeBatch();
+            efi.getEntityDbMeta().checkTableRuntime(ed);
+            ps = con.prepareStatement(sql);
+            curSql = sql;
+            curEd = ed;
+            curMode = writeMode;
+        }
+
+        // if enabled register locks before operation, same as basicCreate() and basicUpdate()
+        evb.registerMutateLock();
+
+        LiteStringMap<Object> valueMap = evb.valueMapInternal;
+        int paramIndex = 1;
+        if (fieldArray != null) for (int i = 0; i < fieldArray.length; i++) {
+            FieldInfo fi = fieldArray[i];
+            if (fi == null) break;
+            fi.setPreparedStatementValue(ps, paramIndex++, valueMap.getByIString(fi.name, fi.index), ed, efi);
+        }
+        if (writeMode != WriteMode.CREATE) {
+            FieldInfo[] pkFieldArray = entityInfo.pkFieldInfoArray;
+            for (int i = 0; i < pkFieldArray.length; i++) {
+                FieldInfo fi = pkFieldArray[i];
+                fi.setPreparedStatementValue(ps, paramIndex++, valueMap.getByIString(fi.name, fi.index), ed, efi);
+            }
+        }
+        ps.addBatch();
+        curValues.add(evb);
+
+        if (curValues.size() >= maxBatchSize) executeBatch();
+    }
+
+    /** Execute the current batch, if there is one. Call before using the Connection for anything else. */
+    public void flush() throws SQLException { executeBatch(); }
+
+    /** Close the current statement without executing it, for cleanup after an error */
+    public void close() {
+        if (ps == null) return;
+        try { ps.close(); }
+        catch (SQLException e) { logger.warn("Error closing batch statement for SQL " + curSql + ": " + e.toString()); }
+        ps = null;
+        curSql = null;
+        curEd = null;
+        curMode = null;
+        curValues.clear();
+    }
+
+    public int getBatchCount() { return batchCount; }
+    public int getSingleCount() { return singleCount; }
+
+    private void writeSingle(EntityValueBase evb, WriteMode writeMode) throws SQLException {
+        executeBatch();
+        if (writeMode == WriteMode.CREATE) evb.basicCreate(con);
+        else if (writeMode == WriteMode.DELETE) evb.deleteExtended(con);
+        else evb.basicUpdate(con);
+        singleCount++;
+    }
+
+    private void executeBatch() throws SQLException {
+        if (ps == null) return;
+        try {
+            int valuesSize = curValues.size();
+            if (valuesSize == 0) return;
+            int[] counts;
+            try {
+                counts = ps.executeBatch();
+            } catch (BatchUpdateException e) {
+                int[] partCounts = e.getUpdateCounts();
+                int failedIndex = partCounts != null ? partCounts.length : -1;
+                String failedValue = failedIndex >= 0 && failedIndex < valuesSize ? curValues.get(failedIndex).toString() : "[unknown]";
+                // the next exception often has the actual cause, like for PostgreSQL
+                SQLException next = e.getNextException();
+                logger.warn("Error in batch of " + valuesSize + " " + curMode + " for " + curEd.getFullEntityName() +
+                        ", first failed value " + failedValue + ": " + e.toString() + (next != null ? " caused by " + next.toString() : ""));
+                throw e;
+            }
+            batchCount++;
+
+            for (int i = 0; i < valuesSize; i++) {
+                EntityValueBase evb = curValues.get(i);
+                // some drivers return SUCCESS_NO_INFO for each value, nothing to check then
+                int count = i < counts.length ? counts[i] : Statement.SUCCESS_NO_INFO;
+                if (count == 0) {
+                    if (curMode == WriteMode.UPDATE)
+                        throw new EntityException("Tried to update a value that does not exist [" + evb.toString() + "]. SQL used was " + curSql);
+                    if (curMode == WriteMode.DELETE) logger.info("Tried to delete a value that does not exist " + evb.toString());
+                }
+                if (curMode != WriteMode.DELETE) evb.setSyncedWithDb();
+            }
+        } finally {
+            close();
+        }
+    }
+}
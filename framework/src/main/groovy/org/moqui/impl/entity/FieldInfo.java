@@ -288,6 +288,10 @@ public class FieldInfo {
     }
 
     void getResultSetValue(ResultSet rs, int index, LiteStringMap<Object> valueMap, EntityFacadeImpl efi) throws EntityException {
+        valueMap.putByIString(this.name, getResultSetValue(rs, index, efi), this.index);
+    }
+    /** Get the value for this field from the current row of the ResultSet, converted (and decrypted) like for an EntityValue */
+    Object getResultSetValue(ResultSet rs, int index, EntityFacadeImpl efi) throws EntityException {
         if (typeValue == -1) throw new EntityException("No typeValue found for " + entityName + "." + name);
 
         Object value = null;
@@ -414,7 +418,7 @@ public class FieldInfo {
             }
         }
 
-        valueMap.putByIString(this.name, value, this.index);
+        return value;
     }
 
     private static final boolean checkPreparedStatementValueType = false;
@@ -430,6 +430,8 @@ public class ElasticEntityListIterator implements EntityListIterator {
             }
         }
     }
+    /** Documents are already parsed to Maps, no row view */
+    @Override public Map<String, Object> nextRow(boolean reuse) { return next(); }
     @Override public int nextIndex() { return currentIndex() + 1; }
 
     @Override public EntityValue previous() {
@@ -19,6 +19,7 @@ import org.moqui.BaseArtifactException
 import org.moqui.resource.ResourceReference
 import org.moqui.screen.ScreenFacade
 import org.moqui.screen.ScreenRender
+import org.moqui.impl.context.ContextJavaUtil.CacheSnapshotRestorer
 import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.screen.ScreenDefinition.SubscreensItem
 import org.moqui.impl.screen.ScreenDefinition.TransitionItem
@@ -85,6 +86,10 @@ class ScreenFacadeImpl implements ScreenFacade {
             alwaysStandaloneByRenderMode.put(type, outputNode.attribute("always-standalone") == "true")
             skipActionsByRenderMode.put(type, outputNode.attribute("skip-actions") == "true")
         }
+
+        // screen.location snapshots only have keys, load the screens used before shutdown
+        ecfi.cacheFacade.registerSnapshotRestorer("screen.location", { String cacheName, Object key, Object value ->
+            getScreenDefinition((String) key) } as CacheSnapshotRestorer)
     }
 
     ExecutionContextFactoryImpl getEcfi() { return ecfi }
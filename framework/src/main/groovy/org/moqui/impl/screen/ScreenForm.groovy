@@ -2068,10 +2068,17 @@ class ScreenForm {
 
                 // logger.warn("TOREMOVE form-list.entity-find: ${ef.toString()}\ndisplayedFieldSet: ${displayedFieldSet}")
 
+                // for pagination start the count so it runs at the same time as the list query; if the list is less than a
+                //     page list() cancels it, the count is known then
+                MNode sfiNode = entityFindNode.first("search-form-inputs")
+                boolean doPaginate = sfiNode != null && !"false".equals(sfiNode.attribute("paginate"))
+                boolean useCache = ef.shouldCache()
+                if (doPaginate && !useCache && ef.getLimit() != null)
+                    ef.countAsync("true".equals(sfiNode.attribute("count-estimate")))
+
                 // run the query
                 EntityList efList = ef.list()
                 // if cached do the date filter after query
-                boolean useCache = ef.shouldCache()
                 if (useCache) for (MNode df in entityFindNode.children("date-filter")) {
                     Timestamp validDate = (Timestamp) null
                     String validDateAttr = df.attribute("valid-date")
@@ -2085,10 +2092,9 @@ class ScreenForm {
                 context.put(listName.concat("_xafind"), ef)
 
                 // handle pagination, etc parameters like XML Actions entity-find
-                MNode sfiNode = entityFindNode.first("search-form-inputs")
-                boolean doPaginate = sfiNode != null && !"false".equals(sfiNode.attribute("paginate"))
                 if (doPaginate) {
                     long count, pageSize, pageIndex
+                    boolean countEstimated = false
                     if (ef.getLimit() == null) {
                         count = efList.size()
                         pageSize = count > 20 ? count : 20
@@ -2101,9 +2107,15 @@ class ScreenForm {
                     } else {
                         pageIndex = ef.pageIndex
                         pageSize = ef.pageSize
-                        // this can be expensive, only get count if efList size is equal to pageSize (can skip if no paginate needed)
-                        if (efList.size() < pageSize) count = efList.size() + pageSize * pageIndex
-                        else count = ef.count()
+                        // only use count if efList size is equal to pageSize (can skip if no paginate needed)
+                        if (efList.size() < pageSize) {
+                            count = efList.size() + pageSize * pageIndex
+                        } else {
+                            count = ef.count()
+                            countEstimated = ef.isCountEstimated()
+                            // an estimate may be less than the rows so far
+                            if (countEstimated && count < efList.size() + pageSize * pageIndex) count = efList.size() + pageSize * pageIndex
+                        }
                     }
                     long maxIndex = (new BigDecimal(count-1)).divide(new BigDecimal(pageSize), 0, RoundingMode.DOWN).longValue()
                     long pageRangeLow = (pageIndex * pageSize) + 1
@@ -2112,6 +2124,7 @@ class ScreenForm {
                     // logger.info("count ${count} pageSize ${pageSize} maxIndex ${maxIndex} pageRangeLow ${pageRangeLow} pageRangeHigh ${pageRangeHigh}")
 
                     context.put(listName.concat("Count"), count)
+                    context.put(listName.concat("CountEstimated"), countEstimated)
                     context.put(listName.concat("PageIndex"), pageIndex)
                     context.put(listName.concat("PageSize"), pageSize)
                     context.put(listName.concat("PageMaxIndex"), maxIndex)
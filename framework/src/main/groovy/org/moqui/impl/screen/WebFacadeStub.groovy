@@ -137,7 +137,8 @@ class WebFacadeStub implements WebFacade {
 
     @Override void sendJsonResponse(Object responseObj) {
         if (skipJsonSerialize) {
-            responseJsonObj = responseObj
+            // read any streamed entity values now so the cursor and transaction aren't left open
+            responseJsonObj = WebFacadeImpl.materializeStreamWriters(responseObj)
         } else {
             WebFacadeImpl.sendJsonResponseInternal(responseObj, ecfi.getEci(), httpServletRequest, httpServletResponse, requestAttributes)
         }
@@ -0,0 +1,438 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.service
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityList
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.service.ServiceException
+import org.moqui.util.MNode
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.transaction.Status
+import javax.transaction.Synchronization
+import java.sql.Timestamp
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Runs async service calls made with ServiceCallAsync.persist(true). The call is saved as an AsyncServiceCall record in
+ * the caller's transaction so it is only run if that commits, and isn't lost if the server goes down before it runs.
+ *
+ * Records are claimed in batches, locked with select for update (skipping those locked by other servers where the
+ * database supports it) and still pending, so only one server runs each call, and run on the worker pool up to
+ * max-concurrent for the queue. Results are only recorded by the server with the claim. Calls that succeed are deleted in batches on the
+ * next pass; calls that fail are retried with exponential backoff until max-attempts and then left in the dead letter
+ * status. Delivery is at least once: a call claimed by a server that goes down is run again after async-queue-claim-timeout.
+ *
+ * Calls for queues with no async-queue element use the default queue settings; these queues are found from pending
+ * records when polling so calls saved before a restart are still run.
+ */
+@CompileStatic
+class AsyncServiceQueue implements Runnable {
+    protected final static Logger logger = LoggerFactory.getLogger(AsyncServiceQueue.class)
+    static final String CALL_ENTITY = "moqui.service.async.AsyncServiceCall"
+    static final String DEFAULT_QUEUE = "default"
+
+    protected final ExecutionContextFactoryImpl ecfi
+    protected final ConcurrentHashMap<String, QueueInfo> queueByName = new ConcurrentHashMap<>()
+    protected final MNode defaultQueueNode
+    /** Prefix for claimOwner, unique to this server instance (ServiceFacadeImpl.nodeId) */
+    final String ownerId
+    final long claimTimeoutMillis
+    protected final AtomicLong claimSequence = new AtomicLong(0)
+    protected final AtomicBoolean polling = new AtomicBoolean(false)
+    protected final AtomicBoolean pollRequested = new AtomicBoolean(false)
+    /** Calls that succeeded, deleted in a batch on the next pass */
+    protected final ConcurrentLinkedQueue<AckInfo> ackQueue = new ConcurrentLinkedQueue<>()
+    /** Reclaim expired claims and find queues with pending calls on the first poll, then every minute or claim timeout */
+    protected volatile long lastReclaimTime = 0L
+
+    AsyncServiceQueue(ExecutionContextFactoryImpl ecfi, MNode serviceFacadeNode, String ownerId) {
+        this.ecfi = ecfi
+        this.ownerId = ownerId
+        claimTimeoutMillis = ((serviceFacadeNode.attribute("async-queue-claim-timeout") ?: "3600") as long) * 1000L
+
+        MNode defaultNode = null
+        for (MNode queueNode in serviceFacadeNode.children("async-queue")) {
+            String name = queueNode.attribute("name")
+            if (DEFAULT_QUEUE.equals(name)) defaultNode = queueNode
+            queueByName.put(name, new QueueInfo(name, queueNode, null))
+        }
+        if (defaultNode == null) {
+            defaultNode = new MNode("async-queue", [name:DEFAULT_QUEUE] as Map<String, String>)
+            queueByName.put(DEFAULT_QUEUE, new QueueInfo(DEFAULT_QUEUE, defaultNode, null))
+        }
+        defaultQueueNode = defaultNode
+    }
+
+    /** Get the queue, queues not configured with an async-queue element use the settings of the default queue */
+    QueueInfo getQueue(String queueName) {
+        if (queueName == null || queueName.isEmpty()) queueName = DEFAULT_QUEUE
+        QueueInfo queueInfo = queueByName.get(queueName)
+        if (queueInfo == null) queueInfo = queueByName.computeIfAbsent(queueName, { String name -> new QueueInfo(name, null, defaultQueueNode) })
+        return queueInfo
+    }
+
+    /** Save an AsyncServiceCall record in the current transaction (or its own if there is none) and run it after commit */
+    String enqueue(ExecutionContextImpl eci, String serviceName, Map<String, Object> parameters, String queueName) {
+        QueueInfo queueInfo = getQueue(queueName)
+        String parametersString
+        try {
+            parametersString = parameters ? JsonOutput.toJson(parameters) : null
+        } catch (Throwable t) {
+            throw new ServiceException("Parameters for persisted async call to ${serviceName} could not be converted to JSON", t)
+        }
+
+        String asyncCallId = null
+        boolean beganTransaction = ecfi.transactionFacade.begin(null)
+        try {
+            EntityValue asyncCall = ecfi.entityFacade.makeValue(CALL_ENTITY)
+            asyncCall.setAll([queueName:queueInfo.name, serviceName:serviceName, parameters:parametersString,
+                    username:eci.userFacade.username, statusId:"AscPending", attemptCount:0L,
+                    nextAttemptTime:new Timestamp(System.currentTimeMillis()), createdDate:eci.userFacade.nowTimestamp] as Map<String, Object>)
+            asyncCall.setSequencedIdPrimary().create()
+            asyncCallId = (String) asyncCall.getNoCheckSimple("asyncCallId")
+            // run soon after commit instead of waiting for the next poll
+            ecfi.transactionFacade.registerSynchronization(new EnqueueSynchronization(this))
+        } catch (Throwable t) {
+            ecfi.transactionFacade.rollback(beganTransaction, "Error saving persisted async call to ${serviceName}", t)
+            throw t
+        }
+        ecfi.transactionFacade.commit(beganTransaction)
+        queueInfo.enqueued.increment()
+        return asyncCallId
+    }
+
+    /** Poll soon on a worker thread, if a poll is running it will check again when done */
+    void wake() {
+        pollRequested.set(true)
+        if (polling.get()) return
+        try {
+            ecfi.workerPool.execute({ poll() } as Runnable)
+        } catch (Throwable t) {
+            // if the worker pool is full or shut down the next scheduled poll will get it
+            if (logger.isTraceEnabled()) logger.trace("Could not start async queue poll: ${t.toString()}")
+        }
+    }
+
+    /** Scheduled poll, every service-facade.@async-queue-poll seconds */
+    @Override void run() { poll() }
+
+    void poll() {
+        if (!polling.compareAndSet(false, true)) return
+        try {
+            while (true) {
+                pollRequested.set(false)
+                pollOnce()
+                if (!pollRequested.get()) break
+            }
+        } catch (Throwable t) {
+            logger.error("Error polling async service queue", t)
+        } finally {
+            polling.set(false)
+        }
+        // a wake() between the last check and clearing polling
+        if (pollRequested.get()) wake()
+    }
+
+    protected void pollOnce() {
+        ExecutionContextImpl eci = ecfi.getEci()
+        eci.artifactExecution.disableAuthz()
+        try {
+            flushAcks()
+
+            long nowMillis = System.currentTimeMillis()
+            if (nowMillis - lastReclaimTime > Math.min(claimTimeoutMillis, 60000L)) {
+                lastReclaimTime = nowMillis
+                reclaimExpired(nowMillis)
+                addPendingQueues()
+            }
+
+            for (QueueInfo queueInfo in queueByName.values()) {
+                int freeSlots = queueInfo.maxConcurrent - queueInfo.running.get()
+                if (freeSlots <= 0) continue
+                List<EntityValue> claimedList = claimBatch(queueInfo, Math.min(freeSlots, queueInfo.batchSize), nowMillis)
+                queueInfo.morePending = claimedList.size() >= Math.min(freeSlots, queueInfo.batchSize)
+                for (EntityValue asyncCall in claimedList) {
+                    queueInfo.running.incrementAndGet()
+                    queueInfo.claimed.increment()
+                    try {
+                        ecfi.workerPool.execute(new AsyncCallRunnable(this, queueInfo, asyncCall))
+                    } catch (Throwable t) {
+                        // not run, make it pending again
+                        queueInfo.running.decrementAndGet()
+                        logger.warn("Could not run async call ${asyncCall.getNoCheckSimple('asyncCallId')} in queue ${queueInfo.name}, will try again: ${t.toString()}")
+                        updateCall(asyncCall, [statusId:"AscPending", claimOwner:null, claimTime:null] as Map<String, Object>)
+                    }
+                }
+            }
+        } finally {
+            eci.destroy()
+        }
+    }
+
+    protected List<EntityValue> claimBatch(QueueInfo queueInfo, int limit, long nowMillis) {
+        EntityFacadeImpl efi = ecfi.entityFacade
+        Timestamp nowTimestamp = new Timestamp(nowMillis)
+        return (List<EntityValue>) ecfi.transactionFacade.runUseOrBegin(null, "Error claiming async service calls", {
+            EntityList pendingList = efi.find(CALL_ENTITY).selectField("asyncCallId")
+                    .condition("queueName", queueInfo.name).condition("statusId", "AscPending")
+                    .condition("nextAttemptTime", EntityCondition.LESS_THAN_EQUAL_TO, nowTimestamp)
+                    .orderBy("nextAttemptTime").limit(limit).useCache(false).disableAuthz().list()
+            if (pendingList.size() == 0) return new ArrayList<EntityValue>()
+            List<String> idList = new ArrayList<>(pendingList.size())
+            for (EntityValue pending in pendingList) idList.add((String) pending.getNoCheckSimple("asyncCallId"))
+
+            // lock those still pending, leaving out (or waiting for) those another server is claiming; no order by or limit
+            //     here as some databases don't allow them with for update
+            EntityList lockedList = efi.find(CALL_ENTITY).selectField("asyncCallId").condition("asyncCallId", EntityCondition.IN, idList)
+                    .condition("statusId", "AscPending").forUpdate(true).skipLocked(true).useCache(false).disableAuthz().list()
+            if (lockedList.size() == 0) return new ArrayList<EntityValue>()
+            List<String> lockedIdList = new ArrayList<>(lockedList.size())
+            for (EntityValue locked in lockedList) lockedIdList.add((String) locked.getNoCheckSimple("asyncCallId"))
+
+            // locked so no other server can change them; still conditioned on pending as a database may return a record
+            //     as it was before waiting for the lock
+            String claimOwner = ownerId + ":" + claimSequence.incrementAndGet()
+            long updated = efi.find(CALL_ENTITY).condition("asyncCallId", EntityCondition.IN, lockedIdList)
+                    .condition("statusId", "AscPending").disableAuthz()
+                    .updateAll([statusId:"AscRunning", claimOwner:claimOwner, claimTime:nowTimestamp] as Map<String, Object>)
+            if (updated == 0L) return new ArrayList<EntityValue>()
+            return (List<EntityValue>) efi.find(CALL_ENTITY).condition("claimOwner", claimOwner)
+                    .useCache(false).disableAuthz().list()
+        })
+    }
+
+    /** Add queues with pending calls not configured and not used since start, like calls saved before a restart */
+    protected void addPendingQueues() {
+        EntityList queueNameList = ecfi.entityFacade.find(CALL_ENTITY).selectField("queueName")
+                .condition("statusId", "AscPending").distinct(true).useCache(false).disableAuthz().list()
+        for (EntityValue queueNameValue in queueNameList) getQueue((String) queueNameValue.getNoCheckSimple("queueName"))
+    }
+
+    protected void reclaimExpired(long nowMillis) {
+        long reclaimed = (Long) ecfi.transactionFacade.runUseOrBegin(null, "Error reclaiming expired async service calls", {
+            return ecfi.entityFacade.find(CALL_ENTITY).condition("statusId", "AscRunning")
+                    .condition("claimTime", EntityCondition.LESS_THAN, new Timestamp(nowMillis - claimTimeoutMillis))
+                    .disableAuthz().updateAll([statusId:"AscPending", claimOwner:null, claimTime:null] as Map<String, Object>)
+        })
+        if (reclaimed > 0L) logger.warn("Reclaimed ${reclaimed} async service calls claimed more than ${claimTimeoutMillis/1000}s ago, will run again")
+    }
+
+    /** Delete succeeded calls still claimed by this server, in batches of up to 500 */
+    void flushAcks() {
+        while (!ackQueue.isEmpty()) {
+            List<AckInfo> ackList = new ArrayList<>()
+            AckInfo ackInfo
+            while (ackList.size() < 500 && (ackInfo = ackQueue.poll()) != null) ackList.add(ackInfo)
+            if (ackList.size() == 0) break
+            // calls claimed in the same batch have the same claimOwner
+            Map<String, List<String>> idsByClaimOwner = new HashMap<>()
+            for (AckInfo ack in ackList) idsByClaimOwner.computeIfAbsent(ack.claimOwner, { new ArrayList<String>() }).add(ack.asyncCallId)
+            try {
+                ecfi.transactionFacade.runUseOrBegin(null, "Error deleting completed async service calls", {
+                    for (Map.Entry<String, List<String>> entry in idsByClaimOwner.entrySet())
+                        ecfi.entityFacade.find(CALL_ENTITY).condition("asyncCallId", EntityCondition.IN, entry.getValue())
+                                .condition("claimOwner", entry.getKey()).disableAuthz().deleteAll()
+                    return null
+                })
+            } catch (Throwable t) {
+                // still AscRunning so if not deleted later they are reclaimed and run again after the claim timeout
+                logger.error("Error deleting ${ackList.size()} completed async service calls, trying again on next poll", t)
+                ackQueue.addAll(ackList)
+                break
+            }
+        }
+    }
+
+    /** Update a claimed call if still claimed by this server, not if reclaimed after the claim timeout (maybe by another server) */
+    protected void updateCall(EntityValue asyncCall, Map<String, Object> fields) {
+        String asyncCallId = (String) asyncCall.getNoCheckSimple("asyncCallId")
+        long updated = (Long) ecfi.transactionFacade.runUseOrBegin(null, "Error updating async service call ${asyncCallId}", {
+            return ecfi.entityFacade.find(CALL_ENTITY).condition("asyncCallId", asyncCallId)
+                    .condition("claimOwner", asyncCall.getNoCheckSimple("claimOwner")).disableAuthz().updateAll(fields)
+        })
+        if (updated == 0L) logger.warn("Async service call ${asyncCallId} no longer claimed by ${asyncCall.getNoCheckSimple('claimOwner')}, not updated")
+    }
+
+    protected void callDone(QueueInfo queueInfo, EntityValue asyncCall, String errorText, long runTime) {
+        String asyncCallId = (String) asyncCall.getNoCheckSimple("asyncCallId")
+        queueInfo.runTime.add(runTime)
+        try {
+            if (errorText == null) {
+                queueInfo.succeeded.increment()
+                ackQueue.add(new AckInfo(asyncCallId, (String) asyncCall.getNoCheckSimple("claimOwner")))
+            } else {
+                long attemptCount = ((asyncCall.getNoCheckSimple("attemptCount") ?: 0L) as long) + 1L
+                if (errorText.length() > 4000) errorText = errorText.substring(0, 4000)
+                if (attemptCount >= queueInfo.maxAttempts) {
+                    queueInfo.deadLettered.increment()
+                    logger.error("Async service call ${asyncCallId} to ${asyncCall.getNoCheckSimple('serviceName')} failed ${attemptCount} times, moving to dead letter: ${errorText}")
+                    updateCall(asyncCall, [statusId:"AscDeadLetter", attemptCount:attemptCount, lastError:errorText,
+                            claimOwner:null, claimTime:null] as Map<String, Object>)
+                } else {
+                    queueInfo.retried.increment()
+                    long delayMillis = Math.min(queueInfo.retrySeconds * 1000L * (1L << (int) Math.min(attemptCount - 1L, 20L)), queueInfo.retryMaxSeconds * 1000L)
+                    logger.warn("Async service call ${asyncCallId} to ${asyncCall.getNoCheckSimple('serviceName')} failed (attempt ${attemptCount}), retrying in ${delayMillis/1000}s: ${errorText}")
+                    updateCall(asyncCall, [statusId:"AscPending", attemptCount:attemptCount, lastError:errorText,
+                            nextAttemptTime:new Timestamp(System.currentTimeMillis() + delayMillis),
+                            claimOwner:null, claimTime:null] as Map<String, Object>)
+                }
+            }
+        } catch (Throwable t) {
+            logger.error("Error recording result of async service call ${asyncCallId}, will run again after claim timeout", t)
+        } finally {
+            queueInfo.running.decrementAndGet()
+        }
+        // claim more now if there were more than fit in the last batch, or enough succeeded to delete
+        if (queueInfo.morePending || ackQueue.size() >= queueInfo.batchSize) wake()
+    }
+
+    void destroy() { flushAcks() }
+
+    /** Stats for each queue since start or the last clearStats(): counts, average run time, and calls per second */
+    List<Map<String, Object>> getStatsList() {
+        List<Map<String, Object>> statsList = new ArrayList<>()
+        long nowMillis = System.currentTimeMillis()
+        for (QueueInfo queueInfo in new TreeMap<String, QueueInfo>(queueByName).values()) {
+            long succeeded = queueInfo.succeeded.sum()
+            long completed = succeeded + queueInfo.retried.sum() + queueInfo.deadLettered.sum()
+            long runTime = queueInfo.runTime.sum()
+            double elapsedSeconds = (nowMillis - queueInfo.statsStartTime) / 1000.0d
+            statsList.add([queueName:queueInfo.name, maxConcurrent:queueInfo.maxConcurrent, running:queueInfo.running.get(),
+                    enqueued:queueInfo.enqueued.sum(), claimed:queueInfo.claimed.sum(), succeeded:succeeded,
+                    retried:queueInfo.retried.sum(), deadLettered:queueInfo.deadLettered.sum(),
+                    averageRunTime:(completed > 0 ? runTime / completed : 0L),
+                    succeededPerSecond:(elapsedSeconds > 0 ? succeeded / elapsedSeconds : 0.0d),
+                    statsStartTime:new Timestamp(queueInfo.statsStartTime)] as Map<String, Object>)
+        }
+        return statsList
+    }
+    void clearStats() { for (QueueInfo queueInfo in queueByName.values()) queueInfo.clearStats() }
+
+    static class QueueInfo {
+        final String name
+        final int maxConcurrent, batchSize, maxAttempts
+        final long retrySeconds, retryMaxSeconds
+        final AtomicInteger running = new AtomicInteger(0)
+        volatile boolean morePending = false
+
+        final LongAdder enqueued = new LongAdder(), claimed = new LongAdder(), succeeded = new LongAdder(),
+                retried = new LongAdder(), deadLettered = new LongAdder(), runTime = new LongAdder()
+        volatile long statsStartTime = System.currentTimeMillis()
+
+        QueueInfo(String name, MNode queueNode, MNode defaultNode) {
+            this.name = name
+            MNode confNode = queueNode ?: defaultNode
+            maxConcurrent = (confNode.attribute("max-concurrent") ?: "8") as int
+            batchSize = (confNode.attribute("batch-size") ?: "20") as int
+            maxAttempts = (confNode.attribute("max-attempts") ?: "5") as int
+            retrySeconds = (confNode.attribute("retry-seconds") ?: "30") as long
+            retryMaxSeconds = (confNode.attribute("retry-max-seconds") ?: "3600") as long
+        }
+
+        void clearStats() {
+            enqueued.reset(); claimed.reset(); succeeded.reset(); retried.reset(); deadLettered.reset(); runTime.reset()
+            statsStartTime = System.currentTimeMillis()
+        }
+    }
+
+    static class AckInfo {
+        final String asyncCallId, claimOwner
+        AckInfo(String asyncCallId, String claimOwner) { this.asyncCallId = asyncCallId; this.claimOwner = claimOwner }
+    }
+
+    static class AsyncCallRunnable implements Runnable {
+        protected final AsyncServiceQueue asyncQueue
+        protected final QueueInfo queueInfo
+        protected final EntityValue asyncCall
+
+        AsyncCallRunnable(AsyncServiceQueue asyncQueue, QueueInfo queueInfo, EntityValue asyncCall) {
+            this.asyncQueue = asyncQueue
+            this.queueInfo = queueInfo
+            this.asyncCall = asyncCall
+        }
+
+        @Override
+        void run() {
+            ExecutionContextFactoryImpl ecfi = asyncQueue.ecfi
+            String serviceName = (String) asyncCall.getNoCheckSimple("serviceName")
+            long startTime = System.currentTimeMillis()
+            String errorText = null
+            ExecutionContextImpl threadEci = (ExecutionContextImpl) null
+            try {
+                threadEci = ecfi.getEci()
+                String username = (String) asyncCall.getNoCheckSimple("username")
+                if (username != null && username.length() > 0) {
+                    threadEci.userFacade.internalLoginUser(username, false)
+                } else {
+                    threadEci.userFacade.loginAnonymousIfNoUser()
+                }
+
+                String parametersString = (String) asyncCall.getNoCheckSimple("parameters")
+                Map<String, Object> parameters = parametersString ?
+                        new HashMap<String, Object>((Map<String, Object>) new JsonSlurper().parseText(parametersString)) : new HashMap<String, Object>()
+
+                Semaphore asyncLimiter = threadEci.serviceFacade.getServiceDefinition(serviceName)?.asyncLimiter
+                if (asyncLimiter != null) asyncLimiter.acquire()
+                try {
+                    // NOTE: authz is disabled because authz is checked before queueing
+                    threadEci.serviceFacade.sync().name(serviceName).parameters(parameters).disableAuthz().call()
+                } finally {
+                    if (asyncLimiter != null) asyncLimiter.release()
+                }
+                if (threadEci.messageFacade.hasError()) {
+                    errorText = threadEci.messageFacade.getErrorsString()
+                    threadEci.messageFacade.clearErrors()
+                }
+            } catch (Throwable t) {
+                errorText = t.toString()
+            } finally {
+                if (threadEci != null) {
+                    try { threadEci.destroy() }
+                    catch (Throwable t) { logger.error("Error destroying ExecutionContext after async service call ${serviceName}", t) }
+                }
+            }
+
+            // record result with a fresh ExecutionContext, the service call's may have an error or rollback state
+            ExecutionContextImpl resultEci = ecfi.getEci()
+            resultEci.artifactExecution.disableAuthz()
+            try {
+                asyncQueue.callDone(queueInfo, asyncCall, errorText, System.currentTimeMillis() - startTime)
+            } finally {
+                resultEci.destroy()
+            }
+        }
+    }
+
+    static class EnqueueSynchronization implements Synchronization {
+        protected final AsyncServiceQueue asyncQueue
+        EnqueueSynchronization(AsyncServiceQueue asyncQueue) { this.asyncQueue = asyncQueue }
+        @Override void beforeCompletion() { }
+        @Override void afterCompletion(int status) { if (status == Status.STATUS_COMMITTED) asyncQueue.wake() }
+    }
+}
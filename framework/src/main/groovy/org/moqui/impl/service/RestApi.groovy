@@ -26,6 +26,8 @@ import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.impl.context.UserFacadeImpl
 import org.moqui.impl.entity.EntityDefinition
+import org.moqui.impl.entity.EntityFindBase
+import org.moqui.impl.entity.EntityStreamWriter
 import org.moqui.impl.entity.FieldInfo
 import org.moqui.impl.util.RestSchemaUtil
 import org.moqui.jcache.MCache
@@ -122,7 +124,8 @@ class RestApi {
                                        'X-Page-Size':[type:'integer', description:"Number of results per page"],
                                        'X-Page-Max-Index':[type:'integer', description:"Highest page index given page size and count of results"],
                                        'X-Page-Range-Low':[type:'integer', description:"Index of first result in page"],
-                                       'X-Page-Range-High':[type:'integer', description:"Index of last result in page"]] as Map<String, Object>
+                                       'X-Page-Range-High':[type:'integer', description:"Index of last result in page"],
+                                       'X-Page-Cursor':[type:'string', description:"With pageCursor, cursor for the next page if this page is full"]] as Map<String, Object>
         rootMap.put('traits', [[paged:[queryParameters:RestSchemaUtil.ramlPaginationParameters, headers:headers]],
             [service:[responses:[401:[description:"Authentication required"], 403:[description:"Access Forbidden (no authz)"],
                                  429:[description:"Too Many Requests (tarpit)"], 500:[description:"General Error"]]]],
@@ -411,6 +414,18 @@ class RestApi {
                     // we don't want to go overboard with these requests, never do an unlimited find, if no limit use 100
                     if (!ef.getLimit() && !"true".equals(ec.context.get("pageNoLimit"))) ef.limit(100)
 
+                    String pageCursor = (String) ec.context.get("pageCursor")
+                    if (pageCursor) {
+                        // seek pagination, no count so each page costs the same no matter how deep
+                        ((EntityFindBase) ef).seekPageCursor(pageCursor)
+                        List<Map<String, Object>> resultList = masterName ? ef.listMaster(masterName) : ef.list().getValueMapList()
+                        Map<String, Object> headers = ['X-Page-Size':ef.getPageSize()] as Map<String, Object>
+                        Integer limit = ef.getLimit()
+                        if (limit != null && resultList.size() >= limit)
+                            headers.put('X-Page-Cursor', ef.makeSeekCursor(resultList.get(resultList.size() - 1)))
+                        return new RestResult(resultList, headers)
+                    }
+
                     int count = ef.count() as int
                     int pageIndex = ef.getPageIndex()
                     int pageSize = ef.getPageSize()
@@ -423,6 +438,9 @@ class RestApi {
 
                     if (masterName) {
                         return new RestResult(ef.listMaster(masterName), headers)
+                    } else if (ec.context.get("_requestBodyJsonList") == null && !ec.transaction.isTransactionInPlace()) {
+                        // stream values from an iterator as the response is written instead of getting the full list first
+                        return new RestResult(EntityStreamWriter.iterate(ef, ec.transaction), headers)
                     } else {
                         return new RestResult(ef.list().getValueMapList(), headers)
                     }
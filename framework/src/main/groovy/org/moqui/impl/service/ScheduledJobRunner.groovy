@@ -31,11 +31,16 @@ import org.moqui.util.MNode
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import javax.transaction.Status
+import javax.transaction.Synchronization
 import java.sql.Timestamp
 import java.time.Instant
 import java.time.ZoneId
 import java.time.ZonedDateTime
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 /**
  * Runs scheduled jobs as defined in ServiceJob records with a cronExpression. Cron expression uses Quartz flavored syntax.
@@ -47,23 +52,48 @@ import java.util.concurrent.ThreadPoolExecutor
  *     https://www.quartz-scheduler.org/api/2.2.1/org/quartz/CronExpression.html
  *
  * Handy cron strings: [0 0 2 * * ?] every night at 2:00 am, [0 0/15 * * * ?] every 15 minutes, [0 0/2 * * * ?] every 2 minutes
+ *
+ * The next run time of each job is calculated when the job is loaded and after it runs, and jobs are kept in order of
+ * next run time so a run only looks at jobs that are due, and the runner is scheduled to wake up when the next one is.
+ * Jobs are loaded again when a ServiceJob is changed (see Service.eecas.xml), and every scheduled-job-check-time the
+ * count and last updated stamp of ServiceJob records are checked to pick up changes from other servers.
  */
 @CompileStatic
 class ScheduledJobRunner implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(ScheduledJobRunner.class)
     private final ExecutionContextFactoryImpl ecfi
+    /** Claims jobs with leases if service-facade.@job-lease-time is set, otherwise null */
+    private final ServiceJobLeases jobLeases
 
     private final static CronDefinition cronDefinition = CronDefinitionBuilder.instanceDefinitionFor(CronType.QUARTZ)
     private final static CronParser parser = new CronParser(cronDefinition)
-    private final static Map<String, Cron> cronByExpression = new HashMap<>()
+    private final static Map<String, Cron> cronByExpression = new ConcurrentHashMap<>()
+    /** When all job slots are in use check again after this long instead of waiting for the next due job */
+    private final static long slotRetryMillis = 5000L
+    /** With job leases how long to wait before claiming a due job for each job already running on this server */
+    private final static long claimDeferMillis = 100L
     private long lastExecuteTime = 0
     private int jobQueueMax = 0, executeCount = 0, totalJobsRun = 0, lastJobsActive = 0, lastJobsPaused = 0
 
+    /** Schedule for each ServiceJob with a cronExpression, and the active ones ordered by next run time; only changed in run() */
+    private HashMap<String, JobSchedule> scheduleByJobName = (HashMap<String, JobSchedule>) null
+    private final TreeSet<JobSchedule> dueSet = new TreeSet<>(new JobScheduleComparator())
+    /** To notice ServiceJob changes from other servers (or not through the entity facade) with two small queries */
+    private long changeCheckMillis, nextChangeCheckTime = 0, lastJobCount = -1
+    private Timestamp lastJobUpdatedStamp = (Timestamp) null
+    /** Jobs changed locally (ServiceJob EECA), reloaded on the next run */
+    protected final Set<String> dirtyJobNames = ConcurrentHashMap.newKeySet()
+    private final Object wakeLock = new Object()
+    private ScheduledFuture wakeFuture = (ScheduledFuture) null
+    private long wakeAtMillis = Long.MAX_VALUE
+
     ScheduledJobRunner(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
+        jobLeases = ecfi.serviceFacade.jobLeases
 
         MNode serviceFacadeNode = ecfi.confXmlRoot.first("service-facade")
         jobQueueMax = (serviceFacadeNode.attribute("job-queue-max") ?: "0") as int
+        changeCheckMillis = ((serviceFacadeNode.attribute("scheduled-job-check-time") ?: "60") as long) * 1000L
     }
 
     // NOTE: these are called in the service job screens
@@ -72,6 +102,25 @@ class ScheduledJobRunner implements Runnable {
     int getTotalJobsRun() { totalJobsRun }
     int getLastJobsActive() { lastJobsActive }
     int getLastJobsPaused() { lastJobsPaused }
+    /** Next time the job will be run on this server, null if not scheduled (paused, no more runs, etc) or not loaded yet */
+    synchronized Timestamp getNextRunTime(String jobName) {
+        JobSchedule js = scheduleByJobName?.get(jobName)
+        return js != null && js.nextRunMillis > 0 ? new Timestamp(js.nextRunMillis) : (Timestamp) null
+    }
+
+    /** Called when a ServiceJob is created, updated, or deleted (see Service.eecas.xml), reloads the job after commit */
+    void invalidateJob(String jobName) {
+        if (jobName == null) return
+        if (ecfi.transactionFacade.isTransactionInPlace()) {
+            ecfi.transactionFacade.registerSynchronization(new InvalidateSynchronization(this, jobName))
+        } else {
+            markDirty(jobName)
+        }
+    }
+    protected void markDirty(String jobName) {
+        dirtyJobNames.add(jobName)
+        scheduleWake(System.currentTimeMillis())
+    }
 
     @Override
     synchronized void run() {
@@ -82,10 +131,10 @@ class ScheduledJobRunner implements Runnable {
         }
     }
     void runInternal() {
-        ZonedDateTime now = ZonedDateTime.now()
-        long nowMillis = now.toInstant().toEpochMilli()
+        long nowMillis = System.currentTimeMillis()
+        ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), ZoneId.systemDefault())
         Timestamp nowTimestamp = new Timestamp(nowMillis)
-        int jobsRun = 0, jobsActive = 0, jobsPaused = 0, jobsReadyNotRun = 0
+        int jobsRun = 0, jobsReadyNotRun = 0
 
         // Get ExecutionContext, just for disable authz
         ExecutionContextImpl eci = ecfi.getEci()
@@ -103,154 +152,57 @@ class ScheduledJobRunner implements Runnable {
                 }
             }
 
+            // load all jobs the first time and when ServiceJob records changed, otherwise just those changed locally
+            if (scheduleByJobName == null || nowMillis >= nextChangeCheckTime) {
+                nextChangeCheckTime = nowMillis + changeCheckMillis
+                // check before loading so changes made while loading are seen on the next check
+                boolean changed = jobsChanged(efi)
+                if (scheduleByJobName == null || changed) loadAllJobs(efi, now)
+            }
+            if (!dirtyJobNames.isEmpty()) {
+                for (String jobName in new ArrayList<String>(dirtyJobNames)) {
+                    dirtyJobNames.remove(jobName)
+                    reloadJob(efi, jobName, now)
+                }
+            }
+
             // look at jobWorkerPool to see how many jobs we can run: (jobQueueMax + poolMax) - (active + queueSize)
             int jobSlots = jobQueueMax + jobWorkerPool.getMaximumPoolSize()
             int jobsRunning = jobWorkerPool.getActiveCount() + jobWorkerPool.queue.size()
             int jobSlotsAvailable = jobSlots - jobsRunning
-            // if we can't handle any more jobs
-            if (jobSlotsAvailable <= 0) {
-                logger.info("ScheduledJobRunner doing nothing, already ${jobsRunning} of ${jobSlots} jobs running")
-            }
 
-            // find scheduled jobs
-            EntityList serviceJobList = efi.find("moqui.service.job.ServiceJob").useCache(false)
-                    .condition("cronExpression", EntityCondition.ComparisonOperator.NOT_EQUAL, null)
-                    .orderBy("priority").orderBy("jobName").list()
-            serviceJobList.filterByDate("fromDate", "thruDate", nowTimestamp)
-            int serviceJobListSize = serviceJobList.size()
-            for (int i = 0; i < serviceJobListSize; i++) {
-                EntityValue serviceJob = (EntityValue) serviceJobList.get(i)
-                String jobName = (String) serviceJob.jobName
-                // a job is ACTIVE if the paused field is null or 'N', so skip for any other value for paused (Y, T, whatever)
-                if (serviceJob.paused != null && !"N".equals(serviceJob.paused)) {
-                    jobsPaused++
-                    continue
-                }
-                if (serviceJob.repeatCount != null) {
-                    long repeatCount = ((Long) serviceJob.repeatCount).longValue()
-                    long runCount = efi.find("moqui.service.job.ServiceJobRun").condition("jobName", jobName).useCache(false).count()
-                    if (runCount >= repeatCount) {
-                        // pause the job and set thruDate for faster future filtering
-                        ecfi.service.sync().name("update", "moqui.service.job.ServiceJob")
-                                .parameters([jobName: jobName, paused:'Y', thruDate:nowTimestamp] as Map<String, Object>)
-                                .disableAuthz().call()
-                        continue
-                    }
-                }
-                jobsActive++
-
-                String jobRunId
-                EntityValue serviceJobRun
-                EntityValue serviceJobRunLock
-                Timestamp lastRunTime
-                // get a lock, see if another instance is running the job
-                // now we need to run in a transaction; note that this is running in a executor service thread, no tx should ever be in place
-                boolean beganTransaction = ecfi.transaction.begin(null)
-                try {
-                    serviceJobRunLock = efi.find("moqui.service.job.ServiceJobRunLock")
-                            .condition("jobName", jobName).forUpdate(true).one()
-                    lastRunTime = (Timestamp) serviceJobRunLock?.lastRunTime
-                    ZonedDateTime lastRunDt = (lastRunTime != (Timestamp) null) ?
-                            ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastRunTime.getTime()), now.getZone()) : null
-                    if (serviceJobRunLock != null && serviceJobRunLock.jobRunId != null && lastRunDt != null) {
-                        // for failure with no lock reset: run recovery, based on expireLockTime (default to 1440 minutes)
-                        Long expireLockTime = (Long) serviceJob.expireLockTime
-                        if (expireLockTime == null) expireLockTime = 1440L
-                        ZonedDateTime lockCheckTime = now.minusMinutes(expireLockTime.intValue())
-                        if (lastRunDt.isBefore(lockCheckTime)) {
-                            // recover failed job without lock reset, run it if schedule says to
-                            logger.warn("Lock expired: found lock for job ${jobName} from ${lastRunDt}, more than ${expireLockTime} minutes old, ignoring lock")
-                            serviceJobRunLock.set("jobRunId", null).update()
-                        } else {
-                            // normal lock, skip this job
-                            logger.info("Lock found for job ${jobName} from ${lastRunDt} run ID ${serviceJobRunLock.jobRunId}, not running")
-                            continue
-                        }
-                    }
-
-                    // calculate time it should have run last
-                    String cronExpression = (String) serviceJob.getNoCheckSimple("cronExpression")
-                    ExecutionTime executionTime = getExecutionTime(cronExpression)
-                    ZonedDateTime lastSchedule = executionTime.lastExecution(now).get()
-                    if (lastSchedule != null && lastRunDt != null) {
-                        // if the time it should have run last is before the time it ran last don't run it
-                        if (lastSchedule.isBefore(lastRunDt)) continue
-                    }
-
-                    // if the last run had an error check the minRetryTime, don't run if hasn't been long enough
-                    EntityValue lastJobRun = efi.find("moqui.service.job.ServiceJobRun").condition("jobName", jobName)
-                            .orderBy("-startTime").limit(1).useCache(false).list().getFirst()
-                    if (lastJobRun != null && "Y".equals(lastJobRun.hasError)) {
-                        Timestamp lastErrorTime = (Timestamp) lastJobRun.endTime ?: (Timestamp) lastJobRun.startTime
-                        if (lastErrorTime != (Timestamp) null) {
-                            ZonedDateTime lastErrorDt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastErrorTime.getTime()), now.getZone())
-                            Long minRetryTime = (Long) serviceJob.minRetryTime ?: 5L
-                            ZonedDateTime retryCheckTime = now.minusMinutes(minRetryTime.intValue())
-                            // if last error time after retry check time don't run the job
-                            if (lastErrorDt.isAfter(retryCheckTime)) {
-                                logger.info("Not retrying job ${jobName} after error, before ${minRetryTime} min retry minutes (error run at ${lastErrorDt})")
-                                continue
-                            }
-                        }
-                    }
-
-                    // if no more job slots available continue, don't break because we want to loop through all to get jobsPaused, jobsActive, etc
-                    if (jobSlotsAvailable <= 0) {
-                        jobsReadyNotRun++
-                        continue
-                    }
-
-                    // create a job run and lock it
-                    serviceJobRun = efi.makeValue("moqui.service.job.ServiceJobRun")
-                            .set("jobName", jobName).setSequencedIdPrimary().create()
-                    jobRunId = (String) serviceJobRun.getNoCheckSimple("jobRunId")
-
-                    if (serviceJobRunLock == null) {
-                        serviceJobRunLock = efi.makeValue("moqui.service.job.ServiceJobRunLock").set("jobName", jobName)
-                                .set("jobRunId", jobRunId).set("lastRunTime", nowTimestamp).create()
-                    } else {
-                        serviceJobRunLock.set("jobRunId", jobRunId).set("lastRunTime", nowTimestamp).update()
-                    }
-
-                    logger.info("Running job ${jobName} run ${jobRunId} (last run ${lastRunTime}, schedule ${lastSchedule})")
-                } catch (Throwable t) {
-                    String errMsg = "Error getting and checking service job run lock"
-                    ecfi.transaction.rollback(beganTransaction, errMsg, t)
-                    logger.error(errMsg, t)
-                    continue
-                } finally {
-                    ecfi.transaction.commit(beganTransaction)
-                }
+            // run jobs that are due, by next run time then priority; nothing else is looked at until the next due time
+            ArrayList<JobSchedule> rescheduleList = new ArrayList<>()
+            while (!dueSet.isEmpty()) {
+                JobSchedule js = dueSet.first()
+                if (js.nextRunMillis > nowMillis) break
+                dueSet.pollFirst()
 
-                jobsRun++
-                jobSlotsAvailable--
+                // if no more job slots available try again soon, don't run more than the worker pool can handle
                 if (jobSlotsAvailable <= 0) {
-                    logger.info("ScheduledJobRunner out of job slots after running ${jobsRun} jobs, ${jobSlots} jobs running, evaluated ${i} of ${serviceJobListSize} ServiceJob records")
+                    jobsReadyNotRun++
+                    js.nextRunMillis = nowMillis + slotRetryMillis
+                    rescheduleList.add(js)
+                    continue
                 }
 
-                // at this point jobRunId and serviceJobRunLock should not be null
-                ServiceCallJobImpl serviceCallJob = new ServiceCallJobImpl(jobName, ecfi.serviceFacade)
-                // use the job run we created
-                serviceCallJob.withJobRunId(jobRunId)
-                serviceCallJob.withLastRunTime(lastRunTime)
-                // clear the lock when finished
-                serviceCallJob.clearLock()
-                // always run locally to use service job's worker pool and keep queue of pending jobs in the database
-                serviceCallJob.localOnly(true)
-                // run it, will run async
-                try {
-                    serviceCallJob.run()
-                } catch (Throwable t) {
-                    logger.error("Error running scheduled job ${jobName}", t)
-                    ecfi.transactionFacade.runUseOrBegin(null, "Error clearing lock and saving error on scheduled job run error", {
-                        serviceJobRunLock.set("jobRunId", null).update()
-                        serviceJobRun.set("hasError", "Y").set("errors", t.toString()).set("startTime", nowTimestamp)
-                                .set("endTime", nowTimestamp).update()
-                    })
+                // with leases a busy server waits a little so servers with fewer jobs running claim it first
+                int slotsUsed = jobSlots - jobSlotsAvailable
+                if (jobLeases != null && slotsUsed > 0 && !js.claimDeferred) {
+                    js.claimDeferred = true
+                    js.nextRunMillis = nowMillis + Math.min(slotsUsed * claimDeferMillis, 2000L)
+                    rescheduleList.add(js)
+                    continue
                 }
 
-                // end of for loop
+                if (runJob(efi, js, now, nowTimestamp)) {
+                    jobsRun++
+                    jobSlotsAvailable--
+                    if (jobSlotsAvailable <= 0) logger.info("ScheduledJobRunner out of job slots after running ${jobsRun} jobs, ${jobSlots} jobs running")
+                }
+                if (js.nextRunMillis > 0) rescheduleList.add(js)
             }
+            dueSet.addAll(rescheduleList)
         } catch (Throwable t) {
             logger.error("Uncaught error in scheduled job runner", t)
         } finally {
@@ -258,20 +210,320 @@ class ScheduledJobRunner implements Runnable {
             eci.destroy()
         }
 
+        // wake up when the next job is due, the scheduled-job-check-time run looks for changes
+        if (!dueSet.isEmpty()) scheduleWake(dueSet.first().nextRunMillis)
+
         // update job runner stats
         lastExecuteTime = nowMillis
         executeCount++
         totalJobsRun += jobsRun
-        lastJobsActive = jobsActive
-        lastJobsPaused = jobsPaused
 
         int jobSlots = jobQueueMax + jobWorkerPool.getMaximumPoolSize()
         int jobsRunning = jobWorkerPool.getActiveCount() + jobWorkerPool.queue.size()
 
         if (jobsRun > 0 || logger.isTraceEnabled()) {
-            String infoStr = "Ran ${jobsRun} Service Jobs starting ${now} - active: ${jobsActive}, paused: ${jobsPaused}; on this server using ${jobsRunning} of ${jobSlots} job slots"
+            String infoStr = "Ran ${jobsRun} Service Jobs starting ${now} - active: ${lastJobsActive}, paused: ${lastJobsPaused}; on this server using ${jobsRunning} of ${jobSlots} job slots"
             if (jobsReadyNotRun > 0) infoStr += ", ${jobsReadyNotRun} jobs ready but not run (insufficient job slots)"
             logger.info(infoStr)
+        } else if (jobsReadyNotRun > 0) {
+            logger.info("ScheduledJobRunner doing nothing, already ${jobsRunning} of ${jobSlots} jobs running, ${jobsReadyNotRun} jobs ready but not run")
+        }
+    }
+
+    /** Run a due job if the lock allows and it wasn't already run for this schedule (like by another server). Sets
+     * nextRunMillis for the next time to look at the job, 0 to not schedule it again. Returns true if run. */
+    protected boolean runJob(EntityFacadeImpl efi, JobSchedule js, ZonedDateTime now, Timestamp nowTimestamp) {
+        String jobName = js.jobName
+        long nowMillis = nowTimestamp.getTime()
+        if (js.thruMillis > 0 && nowMillis >= js.thruMillis) { js.nextRunMillis = 0; return false }
+        if (jobLeases != null) js.claimDeferred = false
+        if (js.repeatCount != null) {
+            // count runs once, then count locally; counted again below if the job was run on another server
+            if (js.runCount < 0) js.runCount = efi.find("moqui.service.job.ServiceJobRun").condition("jobName", jobName).useCache(false).count()
+            if (js.runCount >= js.repeatCount.longValue()) {
+                // pause the job and set thruDate for faster future filtering
+                ecfi.service.sync().name("update", "moqui.service.job.ServiceJob")
+                        .parameters([jobName: jobName, paused:'Y', thruDate:nowTimestamp] as Map<String, Object>)
+                        .disableAuthz().call()
+                js.nextRunMillis = 0
+                return false
+            }
+        }
+        if (jobLeases != null) return runJobLeased(efi, js, now, nowTimestamp)
+
+        String jobRunId
+        EntityValue serviceJobRun
+        EntityValue serviceJobRunLock
+        Timestamp lastRunTime
+        ZonedDateTime lastSchedule = (ZonedDateTime) null
+        // get a lock, see if another instance is running the job
+        // now we need to run in a transaction; note that this is running in a executor service thread, no tx should ever be in place
+        boolean beganTransaction = ecfi.transaction.begin(null)
+        try {
+            serviceJobRunLock = efi.find("moqui.service.job.ServiceJobRunLock")
+                    .condition("jobName", jobName).forUpdate(true).one()
+            lastRunTime = (Timestamp) serviceJobRunLock?.lastRunTime
+            if (lastRunTime != (Timestamp) null && lastRunTime.getTime() > js.lastRunMillis) {
+                // run since we last knew, by another server or an explicit run, so the local run count is out of date
+                js.lastRunMillis = lastRunTime.getTime()
+                if (js.repeatCount != null) js.runCount = -1
+            }
+            ZonedDateTime lastRunDt = (lastRunTime != (Timestamp) null) ?
+                    ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastRunTime.getTime()), now.getZone()) : null
+            if (serviceJobRunLock != null && serviceJobRunLock.jobRunId != null && lastRunDt != null) {
+                // for failure with no lock reset: run recovery, based on expireLockTime (default to 1440 minutes)
+                ZonedDateTime lockCheckTime = now.minusMinutes(js.expireLockTime)
+                if (lastRunDt.isBefore(lockCheckTime)) {
+                    // recover failed job without lock reset, run it if schedule says to
+                    logger.warn("Lock expired: found lock for job ${jobName} from ${lastRunDt}, more than ${js.expireLockTime} minutes old, ignoring lock")
+                    serviceJobRunLock.set("jobRunId", null).update()
+                } else {
+                    // normal lock, skip this job until the lock expires or the next scheduled time
+                    logger.info("Lock found for job ${jobName} from ${lastRunDt} run ID ${serviceJobRunLock.jobRunId}, not running")
+                    js.nextRunMillis = Math.min(nextExecutionMillis(js, now) ?: Long.MAX_VALUE, lastRunDt.plusMinutes(js.expireLockTime).toInstant().toEpochMilli() + 1000L)
+                    return false
+                }
+            }
+
+            // calculate time it should have run last, if the time it should have run last is before the time it ran last don't run it
+            lastSchedule = js.executionTime.lastExecution(now).orElse(null)
+            if (lastSchedule == null || (lastRunDt != null && lastSchedule.isBefore(lastRunDt))) {
+                js.nextRunMillis = nextExecutionMillis(js, now)
+                return false
+            }
+
+            // if the last run had an error check the minRetryTime, don't run if hasn't been long enough
+            if (isRetryTooSoon(efi, js, now)) return false
+
+            // create a job run and lock it
+            serviceJobRun = efi.makeValue("moqui.service.job.ServiceJobRun")
+                    .set("jobName", jobName).setSequencedIdPrimary().create()
+            jobRunId = (String) serviceJobRun.getNoCheckSimple("jobRunId")
+
+            if (serviceJobRunLock == null) {
+                serviceJobRunLock = efi.makeValue("moqui.service.job.ServiceJobRunLock").set("jobName", jobName)
+                        .set("jobRunId", jobRunId).set("lastRunTime", nowTimestamp).create()
+            } else {
+                serviceJobRunLock.set("jobRunId", jobRunId).set("lastRunTime", nowTimestamp).update()
+            }
+
+            logger.info("Running job ${jobName} run ${jobRunId} (last run ${lastRunTime}, schedule ${lastSchedule})")
+        } catch (Throwable t) {
+            String errMsg = "Error getting and checking service job run lock"
+            ecfi.transaction.rollback(beganTransaction, errMsg, t)
+            logger.error(errMsg, t)
+            js.nextRunMillis = nowMillis + changeCheckMillis
+            return false
+        } finally {
+            ecfi.transaction.commit(beganTransaction)
+        }
+
+        // at this point jobRunId and serviceJobRunLock should not be null
+        startJob(js, jobRunId, lastRunTime, now, nowTimestamp)
+        return true
+    }
+
+    /** With service-facade.@job-lease-time claim the job with a lease instead of locking the ServiceJobRunLock record */
+    protected boolean runJobLeased(EntityFacadeImpl efi, JobSchedule js, ZonedDateTime now, Timestamp nowTimestamp) {
+        String jobName = js.jobName
+        long nowMillis = nowTimestamp.getTime()
+        EntityValue serviceJobRunLock = jobLeases.findLock(jobName)
+        Timestamp lastRunTime = (Timestamp) serviceJobRunLock?.lastRunTime
+        if (lastRunTime != (Timestamp) null && lastRunTime.getTime() > js.lastRunMillis) {
+            // run since we last knew, by another server or an explicit run, so the local run count is out of date
+            js.lastRunMillis = lastRunTime.getTime()
+            if (js.repeatCount != null) js.runCount = -1
+        }
+
+        boolean leaseExpired = false
+        if (ServiceJobLeases.isLeased(serviceJobRunLock, nowMillis)) {
+            // running on another server, look again when the lease would expire if not extended
+            Timestamp leaseExpireTime = (Timestamp) serviceJobRunLock.leaseExpireTime
+            js.nextRunMillis = Math.min(nextExecutionMillis(js, now) ?: Long.MAX_VALUE, leaseExpireTime.getTime() + 1000L)
+            return false
+        } else if (serviceJobRunLock?.leaseOwner != null) {
+            // server running it went down or stopped extending the lease, run it again now
+            leaseExpired = true
+        } else if (serviceJobRunLock?.jobRunId != null) {
+            // locked without a lease (before job-lease-time was set) so use expireLockTime like a lock
+            if (nowMillis < js.lastRunMillis + js.expireLockTime * 60000L) {
+                js.nextRunMillis = Math.min(nextExecutionMillis(js, now) ?: Long.MAX_VALUE, js.lastRunMillis + js.expireLockTime * 60000L + 1000L)
+                return false
+            }
+        }
+
+        ZonedDateTime lastSchedule = js.executionTime.lastExecution(now).orElse(null)
+        if (!leaseExpired && (lastSchedule == null || (lastRunTime != (Timestamp) null && lastSchedule.toInstant().toEpochMilli() < lastRunTime.getTime()))) {
+            js.nextRunMillis = nextExecutionMillis(js, now)
+            return false
+        }
+        if (isRetryTooSoon(efi, js, now)) return false
+
+        String jobRunId = jobLeases.claim(jobName, serviceJobRunLock, nowTimestamp)
+        if (jobRunId == null) {
+            // another server claimed it first
+            js.nextRunMillis = nextExecutionMillis(js, now)
+            return false
+        }
+        logger.info("Running job ${jobName} run ${jobRunId} with lease for ${jobLeases.ownerId} (last run ${lastRunTime}, schedule ${lastSchedule})")
+        startJob(js, jobRunId, lastRunTime, now, nowTimestamp)
+        return true
+    }
+
+    /** If the last run had an error and it is before minRetryTime sets nextRunMillis to when it can be retried */
+    protected boolean isRetryTooSoon(EntityFacadeImpl efi, JobSchedule js, ZonedDateTime now) {
+        EntityValue lastJobRun = efi.find("moqui.service.job.ServiceJobRun").condition("jobName", js.jobName)
+                .orderBy("-startTime").limit(1).useCache(false).list().getFirst()
+        if (lastJobRun == null || !"Y".equals(lastJobRun.hasError)) return false
+        Timestamp lastErrorTime = (Timestamp) lastJobRun.endTime ?: (Timestamp) lastJobRun.startTime
+        if (lastErrorTime == (Timestamp) null) return false
+        ZonedDateTime lastErrorDt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastErrorTime.getTime()), now.getZone())
+        ZonedDateTime retryCheckTime = now.minusMinutes(js.minRetryTime)
+        // if last error time after retry check time don't run the job, look again when it can be retried
+        if (!lastErrorDt.isAfter(retryCheckTime)) return false
+        logger.info("Not retrying job ${js.jobName} after error, before ${js.minRetryTime} min retry minutes (error run at ${lastErrorDt})")
+        js.nextRunMillis = lastErrorDt.plusMinutes(js.minRetryTime).toInstant().toEpochMilli() + 1000L
+        return true
+    }
+
+    protected void startJob(JobSchedule js, String jobRunId, Timestamp lastRunTime, ZonedDateTime now, Timestamp nowTimestamp) {
+        String jobName = js.jobName
+        js.lastRunMillis = nowTimestamp.getTime()
+        if (js.runCount >= 0) js.runCount++
+        js.nextRunMillis = nextExecutionMillis(js, now)
+
+        ServiceCallJobImpl serviceCallJob = new ServiceCallJobImpl(jobName, ecfi.serviceFacade)
+        // use the job run we created
+        serviceCallJob.withJobRunId(jobRunId)
+        serviceCallJob.withLastRunTime(lastRunTime)
+        // clear the lock (or release the lease) when finished
+        serviceCallJob.clearLock()
+        if (jobLeases != null) serviceCallJob.withLeaseOwner(jobLeases.ownerId)
+        // always run locally to use service job's worker pool and keep queue of pending jobs in the database
+        serviceCallJob.localOnly(true)
+        // run it, will run async
+        try {
+            serviceCallJob.run()
+        } catch (Throwable t) {
+            logger.error("Error running scheduled job ${jobName}", t)
+            ecfi.transactionFacade.runUseOrBegin(null, "Error clearing lock and saving error on scheduled job run error", {
+                if (jobLeases != null) {
+                    jobLeases.release(jobName, jobRunId, false, null)
+                } else {
+                    ecfi.entityFacade.find("moqui.service.job.ServiceJobRunLock").condition("jobName", jobName)
+                            .updateAll([jobRunId:null] as Map<String, Object>)
+                }
+                ecfi.entityFacade.find("moqui.service.job.ServiceJobRun").condition("jobRunId", jobRunId)
+                        .updateAll([hasError:"Y", errors:t.toString(), startTime:nowTimestamp, endTime:nowTimestamp] as Map<String, Object>)
+            })
+        }
+    }
+
+    /** Count and last updated stamp of ServiceJob records with a cronExpression, true if different from the last check */
+    protected boolean jobsChanged(EntityFacadeImpl efi) {
+        long jobCount = efi.find("moqui.service.job.ServiceJob").useCache(false)
+                .condition("cronExpression", EntityCondition.ComparisonOperator.NOT_EQUAL, null).count()
+        EntityValue lastUpdated = efi.find("moqui.service.job.ServiceJob").selectField("lastUpdatedStamp").useCache(false)
+                .orderBy("-lastUpdatedStamp").limit(1).list().getFirst()
+        Timestamp jobUpdatedStamp = (Timestamp) lastUpdated?.getNoCheckSimple("lastUpdatedStamp")
+        boolean changed = jobCount != lastJobCount || jobUpdatedStamp != lastJobUpdatedStamp
+        lastJobCount = jobCount
+        lastJobUpdatedStamp = jobUpdatedStamp
+        return changed
+    }
+
+    protected void loadAllJobs(EntityFacadeImpl efi, ZonedDateTime now) {
+        EntityList serviceJobList = efi.find("moqui.service.job.ServiceJob").useCache(false)
+                .condition("cronExpression", EntityCondition.ComparisonOperator.NOT_EQUAL, null).list()
+        EntityList lockList = efi.find("moqui.service.job.ServiceJobRunLock").useCache(false).list()
+        Map<String, Timestamp> lastRunByJobName = new HashMap<>()
+        for (EntityValue lock in lockList) lastRunByJobName.put((String) lock.getNoCheckSimple("jobName"), (Timestamp) lock.getNoCheckSimple("lastRunTime"))
+
+        HashMap<String, JobSchedule> newScheduleMap = new HashMap<>()
+        dueSet.clear()
+        for (EntityValue serviceJob in serviceJobList) {
+            String jobName = (String) serviceJob.getNoCheckSimple("jobName")
+            JobSchedule js = makeSchedule(serviceJob, lastRunByJobName.get(jobName), now)
+            // keep the local run count if the job was already loaded and the repeat count didn't change
+            JobSchedule oldJs = scheduleByJobName?.get(jobName)
+            if (oldJs != null && oldJs.repeatCount == js.repeatCount && oldJs.lastRunMillis == js.lastRunMillis) js.runCount = oldJs.runCount
+            newScheduleMap.put(jobName, js)
+            if (js.nextRunMillis > 0) dueSet.add(js)
+        }
+        scheduleByJobName = newScheduleMap
+        updateJobCounts()
+        if (logger.isInfoEnabled()) logger.info("Loaded schedules for ${newScheduleMap.size()} Service Jobs, ${lastJobsActive} active, ${lastJobsPaused} paused")
+    }
+
+    protected void reloadJob(EntityFacadeImpl efi, String jobName, ZonedDateTime now) {
+        JobSchedule oldJs = scheduleByJobName.remove(jobName)
+        if (oldJs != null) dueSet.remove(oldJs)
+        EntityValue serviceJob = efi.find("moqui.service.job.ServiceJob").condition("jobName", jobName).useCache(false).one()
+        if (serviceJob != null && serviceJob.getNoCheckSimple("cronExpression") != null) {
+            EntityValue lock = efi.find("moqui.service.job.ServiceJobRunLock").condition("jobName", jobName).useCache(false).one()
+            JobSchedule js = makeSchedule(serviceJob, (Timestamp) lock?.getNoCheckSimple("lastRunTime"), now)
+            scheduleByJobName.put(jobName, js)
+            if (js.nextRunMillis > 0) dueSet.add(js)
+        }
+        updateJobCounts()
+    }
+
+    protected void updateJobCounts() {
+        int jobsActive = 0, jobsPaused = 0
+        for (JobSchedule js in scheduleByJobName.values()) { if (js.paused) jobsPaused++ else jobsActive++ }
+        lastJobsActive = jobsActive
+        lastJobsPaused = jobsPaused
+    }
+
+    protected JobSchedule makeSchedule(EntityValue serviceJob, Timestamp lastRunTime, ZonedDateTime now) {
+        JobSchedule js = new JobSchedule(serviceJob)
+        if (lastRunTime != (Timestamp) null) js.lastRunMillis = lastRunTime.getTime()
+        // a job is ACTIVE if the paused field is null or 'N', so skip for any other value for paused (Y, T, whatever)
+        if (js.paused) return js
+        try {
+            js.executionTime = getExecutionTime(js.cronExpression)
+        } catch (Throwable t) {
+            logger.error("Error parsing cron expression ${js.cronExpression} for job ${js.jobName}, not scheduling", t)
+            return js
+        }
+
+        long nowMillis = now.toInstant().toEpochMilli()
+        if (js.fromMillis > nowMillis) {
+            // not active yet, first schedule at or after fromDate
+            js.nextRunMillis = nextExecutionMillis(js, ZonedDateTime.ofInstant(Instant.ofEpochMilli(js.fromMillis - 1L), now.getZone()))
+        } else if (js.thruMillis > 0 && js.thruMillis <= nowMillis) {
+            js.nextRunMillis = 0
+        } else {
+            // never run or missed a scheduled run (like while the server was down) so due now, otherwise the next scheduled time
+            ZonedDateTime lastSchedule = js.executionTime.lastExecution(now).orElse(null)
+            if (lastSchedule != null && (js.lastRunMillis == 0L || js.lastRunMillis < lastSchedule.toInstant().toEpochMilli())) {
+                js.nextRunMillis = nowMillis
+            } else {
+                js.nextRunMillis = nextExecutionMillis(js, now)
+            }
+        }
+        return js
+    }
+
+    protected static long nextExecutionMillis(JobSchedule js, ZonedDateTime after) {
+        ZonedDateTime next = js.executionTime.nextExecution(after).orElse(null)
+        if (next == null) return 0
+        long nextMillis = next.toInstant().toEpochMilli()
+        if (js.thruMillis > 0 && nextMillis >= js.thruMillis) return 0
+        return nextMillis
+    }
+
+    /** Run at atMillis, unless already set to run before then */
+    protected void scheduleWake(long atMillis) {
+        synchronized (wakeLock) {
+            // a wake that is already due may be the one running now, so only keep a pending wake that is still to come
+            if (wakeFuture != null && !wakeFuture.isDone() && wakeAtMillis > System.currentTimeMillis()) {
+                if (wakeAtMillis <= atMillis) return
+                wakeFuture.cancel(false)
+            }
+            wakeAtMillis = atMillis
+            long delay = atMillis - System.currentTimeMillis()
+            wakeFuture = ecfi.scheduledExecutor.schedule(new DueWake(this), delay > 0 ? delay : 0L, TimeUnit.MILLISECONDS)
         }
     }
 
@@ -323,4 +575,56 @@ class ScheduledJobRunner implements Runnable {
             }
         }
     }
+
+    static class JobSchedule {
+        final String jobName, cronExpression
+        final boolean paused
+        final long priority, fromMillis, thruMillis, expireLockTime, minRetryTime
+        final Long repeatCount
+        ExecutionTime executionTime = (ExecutionTime) null
+        long nextRunMillis = 0, lastRunMillis = 0
+        /** Runs of the job, -1 if not counted yet; only used with repeatCount */
+        long runCount = -1
+        /** With job leases true if already waited for less busy servers to claim the job */
+        boolean claimDeferred = false
+
+        JobSchedule(EntityValue serviceJob) {
+            jobName = (String) serviceJob.getNoCheckSimple("jobName")
+            cronExpression = (String) serviceJob.getNoCheckSimple("cronExpression")
+            Object pausedObj = serviceJob.getNoCheckSimple("paused")
+            paused = pausedObj != null && !"N".equals(pausedObj)
+            priority = (Long) serviceJob.getNoCheckSimple("priority") ?: Long.MAX_VALUE
+            Timestamp fromDate = (Timestamp) serviceJob.getNoCheckSimple("fromDate")
+            fromMillis = fromDate != (Timestamp) null ? fromDate.getTime() : 0L
+            Timestamp thruDate = (Timestamp) serviceJob.getNoCheckSimple("thruDate")
+            thruMillis = thruDate != (Timestamp) null ? thruDate.getTime() : 0L
+            expireLockTime = (Long) serviceJob.getNoCheckSimple("expireLockTime") ?: 1440L
+            minRetryTime = (Long) serviceJob.getNoCheckSimple("minRetryTime") ?: 5L
+            repeatCount = (Long) serviceJob.getNoCheckSimple("repeatCount")
+        }
+    }
+    static class JobScheduleComparator implements Comparator<JobSchedule> {
+        @Override int compare(JobSchedule js1, JobSchedule js2) {
+            int result = Long.compare(js1.nextRunMillis, js2.nextRunMillis)
+            if (result != 0) return result
+            result = Long.compare(js1.priority, js2.priority)
+            if (result != 0) return result
+            return js1.jobName.compareTo(js2.jobName)
+        }
+    }
+
+    static class DueWake implements Runnable {
+        final ScheduledJobRunner jobRunner
+        DueWake(ScheduledJobRunner jobRunner) { this.jobRunner = jobRunner }
+        @Override void run() { jobRunner.run() }
+    }
+    static class InvalidateSynchronization implements Synchronization {
+        final ScheduledJobRunner jobRunner
+        final String jobName
+        InvalidateSynchronization(ScheduledJobRunner jobRunner, String jobName) { this.jobRunner = jobRunner; this.jobName = jobName }
+        @Override void beforeCompletion() { }
+        @Override void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED) jobRunner.markDirty(jobName)
+        }
+    }
 }
@@ -25,12 +25,15 @@ import org.slf4j.LoggerFactory
 
 import java.util.concurrent.Callable
 import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
 
 @CompileStatic
 class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
     protected final static Logger logger = LoggerFactory.getLogger(ServiceCallAsyncImpl.class)
 
     protected boolean distribute = false
+    protected boolean persist = false
+    protected String queueName = (String) null
 
     ServiceCallAsyncImpl(ServiceFacadeImpl sfi) {
         super(sfi)
@@ -50,6 +53,10 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
 
     @Override
     ServiceCallAsync distribute(boolean dist) { this.distribute = dist; return this }
+    @Override
+    ServiceCallAsync persist(boolean persist) { this.persist = persist; return this }
+    @Override
+    ServiceCallAsync queue(String queueName) { this.queueName = queueName; return this }
 
     @Override
     void call() {
@@ -57,6 +64,11 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
         ExecutionContextImpl eci = ecfi.getEci()
         validateCall(eci)
 
+        if (persist) {
+            sfi.asyncQueue.enqueue(eci, serviceName, parameters, queueName)
+            return
+        }
+
         AsyncServiceRunnable runnable = new AsyncServiceRunnable(eci, serviceName, parameters)
         if (distribute && sfi.distributedExecutorService != null) {
             sfi.distributedExecutorService.execute(runnable)
@@ -67,6 +79,7 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
 
     @Override
     Future<Map<String, Object>> callFuture() throws ServiceException {
+        if (persist) throw new ServiceException("callFuture() not supported for persisted async call to ${serviceName}, use call()")
         ExecutionContextFactoryImpl ecfi = sfi.ecfi
         ExecutionContextImpl eci = ecfi.getEci()
         validateCall(eci)
@@ -169,9 +182,16 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
                     parmsToUse.putAll(parameters)
                 }
 
-                // NOTE: authz is disabled because authz is checked before queueing
-                Map<String, Object> result = threadEci.serviceFacade.sync().name(serviceName).parameters(parmsToUse).disableAuthz().call()
-                return result
+                // with async-max-concurrent wait for a slot, cheap on a virtual thread (worker-virtual)
+                Semaphore asyncLimiter = threadEci.serviceFacade.getServiceDefinition(serviceName)?.asyncLimiter
+                if (asyncLimiter != null) asyncLimiter.acquire()
+                try {
+                    // NOTE: authz is disabled because authz is checked before queueing
+                    Map<String, Object> result = threadEci.serviceFacade.sync().name(serviceName).parameters(parmsToUse).disableAuthz().call()
+                    return result
+                } finally {
+                    if (asyncLimiter != null) asyncLimiter.release()
+                }
             } catch (Throwable t) {
                 logger.error("Error in async service", t)
                 throw t
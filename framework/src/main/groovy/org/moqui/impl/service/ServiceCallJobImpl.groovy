@@ -32,6 +32,7 @@ import java.sql.Timestamp
 import java.util.concurrent.Callable
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 
@@ -45,6 +46,7 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
     private String withJobRunId = (String) null
     private Timestamp lastRunTime = (Timestamp) null
     private boolean clearLock = false
+    private String leaseOwner = (String) null
     private boolean localOnly = false
 
     ServiceCallJobImpl(String jobName, ServiceFacadeImpl sfi) {
@@ -73,6 +75,8 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
     ServiceCallJobImpl withJobRunId(String jobRunId) { withJobRunId = jobRunId; return this }
     ServiceCallJobImpl withLastRunTime(Timestamp lastRunTime) { this.lastRunTime = lastRunTime; return this }
     ServiceCallJobImpl clearLock() { clearLock = true; return this }
+    /** With clearLock() release the lease held by this owner (see ServiceJobLeases) instead of clearing the lock */
+    ServiceCallJobImpl withLeaseOwner(String leaseOwner) { this.leaseOwner = leaseOwner; return this }
 
     @Override
     String run() throws ServiceException {
@@ -94,6 +98,7 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
 
         // run it
         ServiceJobCallable callable = new ServiceJobCallable(eci, serviceJob, jobRunId, lastRunTime, clearLock, parameters)
+        callable.leaseOwner = leaseOwner
         if (sfi.distributedExecutorService == null || localOnly || "Y".equals(serviceJob.localOnly)) {
             runFuture = sfi.jobWorkerPool.submit(callable)
         } else {
@@ -136,6 +141,7 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
         Map<String, Object> parameters
         Timestamp lastRunTime = (Timestamp) null
         boolean clearLock
+        String leaseOwner = (String) null
         int transactionTimeout
 
         // default constructor for deserialization only!
@@ -168,6 +174,7 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
             out.writeUTF(jobRunId) // never null
             out.writeObject(lastRunTime) // might be null
             out.writeBoolean(clearLock)
+            out.writeObject(leaseOwner) // might be null
             out.writeInt(transactionTimeout)
             out.writeObject(parameters)
         }
@@ -182,6 +189,7 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
             jobRunId = objectInput.readUTF()
             lastRunTime = (Timestamp) objectInput.readObject()
             clearLock = objectInput.readBoolean()
+            leaseOwner = (String) objectInput.readObject()
             transactionTimeout = objectInput.readInt()
             parameters = (Map<String, Object>) objectInput.readObject()
         }
@@ -240,12 +248,19 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
 
                 // NOTE: authz is disabled because authz is checked before queueing
                 Map<String, Object> results = new HashMap<>()
+                // with async-max-concurrent wait for a slot, cheap on a virtual thread (job-virtual)
+                Semaphore asyncLimiter = ecfi.serviceFacade.getServiceDefinition(serviceName)?.asyncLimiter
+                boolean limiterAcquired = false
                 try {
+                    // acquire in the try so if interrupted while waiting the run is still ended and the lock released, as an error
+                    if (asyncLimiter != null) { asyncLimiter.acquire(); limiterAcquired = true }
                     results = ecfi.serviceFacade.sync().name(serviceName).parameters(parameters)
                             .transactionTimeout(transactionTimeout).disableAuthz().call()
                 } catch (Throwable t) {
                     logger.error("Error in service job call", t)
                     threadEci.messageFacade.addError(t.toString())
+                } finally {
+                    if (limiterAcquired) asyncLimiter.release()
                 }
 
                 // set endTime, results, messages, errors on ServiceJobRun
@@ -273,7 +288,15 @@ class ServiceCallJobImpl extends ServiceCallImpl implements ServiceCallJob {
                 if (hasError) threadEci.messageFacade.clearErrors()
 
                 // clear the ServiceJobRunLock if there is one
-                if (clearLock) {
+                if (clearLock && leaseOwner != null) {
+                    // release the lease, only if still held by this server; if there was an error set lastRunTime to previous
+                    ServiceJobLeases jobLeases = ecfi.serviceFacade.jobLeases
+                    if (jobLeases != null && leaseOwner == jobLeases.ownerId) {
+                        jobLeases.release(jobName, jobRunId, hasError, lastRunTime)
+                    } else {
+                        logger.warn("Service job ${jobName} run ${jobRunId} lease owner ${leaseOwner} is not this server, not releasing lease")
+                    }
+                } else if (clearLock) {
                     ServiceCallSync scs = ecfi.serviceFacade.sync().name("update", "moqui.service.job.ServiceJobRunLock")
                             .parameter("jobName", jobName).parameter("jobRunId", null)
                             .disableAuthz()
@@ -279,9 +279,10 @@ public class ServiceCallSyncImpl extends ServiceCallImpl implements ServiceCallS
         }
 
         // handle sd.serviceNode."@semaphore"; do this BEFORE local transaction created, etc so waiting for this doesn't cause TX timeout
+        ServiceSemaphoreLocks.Holder semaphoreHolder = null;
         if (sd.hasSemaphore) {
             try {
-                checkAddSemaphore(eci, currentParameters, true);
+                semaphoreHolder = checkAddSemaphore(eci, currentParameters);
             } catch (Throwable t) {
                 eci.artifactExecutionFacade.pop(aei);
                 throw t;
@@ -402,7 +403,7 @@ public class ServiceCallSyncImpl extends ServiceCallImpl implements ServiceCallS
             return result;
         } finally {
             // clear the semaphore
-            if (sd.hasSemaphore) clearSemaphore(eci, currentParameters);
+            if (sd.hasSemaphore) clearSemaphore(eci, currentParameters, semaphoreHolder);
 
             try {
                 if (suspendedTransaction) tf.resume();
@@ -430,18 +431,30 @@ public class ServiceCallSyncImpl extends ServiceCallImpl implements ServiceCallS
 
     }
 
-    @SuppressWarnings("unused")
-    private void clearSemaphore(final ExecutionContextImpl eci, Map<String, Object> currentParameters) {
-        final String semaphoreName = sd.semaphoreName != null && !sd.semaphoreName.isEmpty() ? sd.semaphoreName : serviceName;
+    private String getSemaphoreParameterValue(Map<String, Object> currentParameters) {
         String semParameter = sd.semaphoreParameter;
-        String parameterValue;
-        if (semParameter == null || semParameter.isEmpty()) {
-            parameterValue = "_NA_";
-        } else {
-            Object parmObj = currentParameters.get(semParameter);
-            parameterValue = parmObj != null ? parmObj.toString() : "_NULL_";
-        }
+        if (semParameter == null || semParameter.isEmpty()) return "_NA_";
+        Object parmObj = currentParameters.get(semParameter);
+        return parmObj != null ? parmObj.toString() : "_NULL_";
+    }
+
+    private void clearSemaphore(final ExecutionContextImpl eci, Map<String, Object> currentParameters, ServiceSemaphoreLocks.Holder semaphoreHolder) {
+        final String semaphoreName = sd.semaphoreName != null && !sd.semaphoreName.isEmpty() ? sd.semaphoreName : serviceName;
+        final String parameterValue = getSemaphoreParameterValue(currentParameters);
 
+        String semaphoreMode = sfi.semaphoreMode;
+        if ("local".equals(semaphoreMode)) {
+            sfi.semaphoreLocks.release(semaphoreName, parameterValue, semaphoreHolder);
+            return;
+        }
+        try {
+            clearSemaphoreDb(eci, semaphoreName, parameterValue);
+        } finally {
+            // for local-db release after the record is cleared so the next local thread doesn't wait on the record
+            if (semaphoreHolder != null) sfi.semaphoreLocks.release(semaphoreName, parameterValue, semaphoreHolder);
+        }
+    }
+    private void clearSemaphoreDb(final ExecutionContextImpl eci, final String semaphoreName, final String parameterValue) {
         eci.transactionFacade.runRequireNew(null, "Error in clear service semaphore", new Closure<EntityValue>(this, this) {
             EntityValue doCall(Object it) {
                 boolean authzDisabled = eci.artifactExecutionFacade.disableAuthz();
@@ -463,22 +476,36 @@ public class ServiceCallSyncImpl extends ServiceCallImpl implements ServiceCallS
         segemented lock (bad in practice, good test with transacitonal ID):
             <service verb="place" noun="Order" semaphore="wait" semaphore-name="TestOrder" semaphore-parameter="orderId">
      */
-    @SuppressWarnings("unused")
-    private void checkAddSemaphore(final ExecutionContextImpl eci, Map<String, Object> currentParameters, boolean allowRetry) {
-        final String semaphore = sd.semaphore;
+    private ServiceSemaphoreLocks.Holder checkAddSemaphore(final ExecutionContextImpl eci, Map<String, Object> currentParameters) {
         final String semaphoreName = sd.semaphoreName != null && !sd.semaphoreName.isEmpty() ? sd.semaphoreName : serviceName;
-        String semaphoreParameter = sd.semaphoreParameter;
-        final String parameterValue;
-        if (semaphoreParameter == null || semaphoreParameter.isEmpty()) {
-            parameterValue = "_NA_";
-        } else {
-            Object parmObj = currentParameters.get(semaphoreParameter);
-            parameterValue = parmObj != null ? parmObj.toString() : "_NULL_";
+        final String parameterValue = getSemaphoreParameterValue(currentParameters);
+
+        String semaphoreMode = sfi.semaphoreMode;
+        if ("db".equals(semaphoreMode)) {
+            checkAddSemaphoreDb(eci, semaphoreName, parameterValue, sd.semaphoreTimeoutTime, true);
+            return null;
         }
 
+        // local and local-db: first wait in memory, for local-db then only one thread per server waits on the record
+        final long acquireStart = System.currentTimeMillis();
+        ServiceSemaphoreLocks.Holder semaphoreHolder = sfi.semaphoreLocks.acquire(semaphoreName, parameterValue,
+                "fail".equals(sd.semaphore), sd.semaphoreTimeoutTime, sd.semaphoreIgnoreMillis, Thread.currentThread().getName());
+        if ("local".equals(semaphoreMode)) return semaphoreHolder;
+        try {
+            // wait on the record only for what is left of semaphore-timeout after waiting for the local lock
+            long timeoutLeft = sd.semaphoreTimeoutTime - (System.currentTimeMillis() - acquireStart);
+            checkAddSemaphoreDb(eci, semaphoreName, parameterValue, Math.max(timeoutLeft, 0L), true);
+        } catch (Throwable t) {
+            sfi.semaphoreLocks.release(semaphoreName, parameterValue, semaphoreHolder);
+            throw t;
+        }
+        return semaphoreHolder;
+    }
+    private void checkAddSemaphoreDb(final ExecutionContextImpl eci, final String semaphoreName, final String parameterValue,
+                                     final long semaphoreTimeoutTime, boolean allowRetry) {
+        final String semaphore = sd.semaphore;
         final long semaphoreIgnoreMillis = sd.semaphoreIgnoreMillis;
         final long semaphoreSleepTime = sd.semaphoreSleepTime;
-        final long semaphoreTimeoutTime = sd.semaphoreTimeoutTime;
         final int txTimeout = Math.toIntExact(sd.semaphoreTimeoutTime / 1000) * 2;
 
         // NOTE: get Thread name outside runRequireNew otherwise will always be RequireNewTx
@@ -562,7 +589,7 @@ public class ServiceCallSyncImpl extends ServiceCallImpl implements ServiceCallS
         });
 
         if (allowRetry && retrySemaphore.get()) {
-            checkAddSemaphore(eci, currentParameters, false);
+            checkAddSemaphoreDb(eci, semaphoreName, parameterValue, semaphoreTimeoutTime, false);
         }
     }
 
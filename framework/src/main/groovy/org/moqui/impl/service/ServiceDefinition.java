@@ -34,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 public class ServiceDefinition {
     protected static final Logger logger = LoggerFactory.getLogger(ServiceDefinition.class);
@@ -77,6 +78,8 @@ public class ServiceDefinition {
     public final boolean hasSemaphore;
     public final String semaphore, semaphoreName, semaphoreParameter;
     public final long semaphoreIgnoreMillis, semaphoreSleepTime, semaphoreTimeoutTime;
+    /** Limit on async calls and job runs of this service running at once from async-max-concurrent, null for no limit */
+    public final Semaphore asyncLimiter;
 
     public ServiceDefinition(ServiceFacadeImpl sfi, String path, MNode sn) {
         this.sfi = sfi;
@@ -208,6 +211,11 @@ public class ServiceDefinition {
         if (timeoutAttr == null || timeoutAttr.isEmpty()) timeoutAttr = "120";
         semaphoreTimeoutTime = Long.parseLong(timeoutAttr) * 1000;
 
+        String asyncMaxAttr = serviceNode.attribute("async-max-concurrent");
+        int asyncMax = asyncMaxAttr != null && !asyncMaxAttr.isEmpty() ? Integer.parseInt(asyncMaxAttr) : 0;
+        // from the facade, not a new one per definition, so running calls count after the definition is reloaded
+        asyncLimiter = asyncMax > 0 ? sfi.getAsyncLimiter(serviceName, asyncMax) : null;
+
         // validate defaults to true
         validate = !"false".equals(serviceNode.attribute("validate"));
         allowRemote = "true".equals(serviceNode.attribute("allow-remote"));
@@ -59,12 +59,23 @@ class ServiceFacadeImpl implements ServiceFacade {
 
     private ScheduledJobRunner jobRunner = null
     public final ThreadPoolExecutor jobWorkerPool
+    /** service-facade.@semaphore-mode: db, local, or local-db */
+    public final String semaphoreMode
+    public final ServiceSemaphoreLocks semaphoreLocks = new ServiceSemaphoreLocks()
+    /** Identifies this server for persisted async call claims and service job leases, unique per instance */
+    public final String nodeId
+    /** Runs async calls made with persist(true) */
+    public final AsyncServiceQueue asyncQueue
+    /** Scheduled job claims with leases if service-facade.@job-lease-time is set, otherwise null */
+    public final ServiceJobLeases jobLeases
     private LoadRunner loadRunner = null
 
     /** Distributed ExecutorService for async services, etc */
     protected ExecutorService distributedExecutorService = null
 
     protected final ConcurrentMap<String, List<ServiceCallback>> callbackRegistry = new ConcurrentHashMap<>()
+    /** Limiters for service.@async-max-concurrent by service name, here so a reloaded ServiceDefinition uses the same one */
+    protected final ConcurrentHashMap<String, AsyncLimiter> asyncLimiterByName = new ConcurrentHashMap<>()
 
     ServiceFacadeImpl(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
@@ -83,12 +94,49 @@ class ServiceFacadeImpl implements ServiceFacade {
         restApi = new RestApi(ecfi)
 
         jobWorkerPool = makeWorkerPool()
+        semaphoreMode = serviceFacadeNode.attribute("semaphore-mode") ?: "db"
+        if (semaphoreMode != "db") logger.info("Using in memory service semaphores, semaphore-mode ${semaphoreMode}")
+        String hostName = "localhost"
+        try { hostName = InetAddress.getLocalHost().getHostName() } catch (UnknownHostException e) { logger.warn("Could not get host name for node ID: ${e.toString()}") }
+        nodeId = hostName + ":" + UUID.randomUUID().toString().substring(0, 8)
+        asyncQueue = new AsyncServiceQueue(ecfi, serviceFacadeNode, nodeId)
+        long jobLeaseTime = (serviceFacadeNode.attribute("job-lease-time") ?: "0") as long
+        jobLeases = jobLeaseTime > 0L ? new ServiceJobLeases(ecfi, nodeId, jobLeaseTime * 1000L) : (ServiceJobLeases) null
+    }
+
+    /** Get the limiter for service async-max-concurrent, with the limit changed to maxConcurrent if it was different */
+    AsyncLimiter getAsyncLimiter(String serviceName, int maxConcurrent) {
+        AsyncLimiter limiter = asyncLimiterByName.computeIfAbsent(serviceName, { String key -> new AsyncLimiter(maxConcurrent) })
+        limiter.setMaxConcurrent(maxConcurrent)
+        return limiter
+    }
+    /** Fair Semaphore for async-max-concurrent that can change its limit when running, for a service definition reload */
+    static class AsyncLimiter extends Semaphore {
+        private int maxConcurrent
+        AsyncLimiter(int maxConcurrent) { super(maxConcurrent, true); this.maxConcurrent = maxConcurrent }
+        int getMaxConcurrent() { return maxConcurrent }
+        synchronized void setMaxConcurrent(int newMax) {
+            int diff = newMax - maxConcurrent
+            // with a lower limit permits may go negative until enough running calls are done
+            if (diff > 0) release(diff) else if (diff < 0) reducePermits(-diff)
+            maxConcurrent = newMax
+        }
     }
 
     private ThreadPoolExecutor makeWorkerPool() {
         MNode serviceFacadeNode = ecfi.confXmlRoot.first("service-facade")
 
         int jobQueueMax = (serviceFacadeNode.attribute("job-queue-max") ?: "0") as int
+        if (serviceFacadeNode.attribute("job-virtual") == "true") {
+            // a virtual thread per job up to job-virtual-max, jobs waiting on I/O don't hold a platform thread
+            int virtualMax = (serviceFacadeNode.attribute("job-virtual-max") ?: "1000") as int
+            logger.info("Initializing Service Job ThreadPoolExecutor with virtual threads: queue limit ${jobQueueMax}, virtual-max ${virtualMax}")
+            BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>(jobQueueMax < virtualMax ? virtualMax : jobQueueMax)
+            ThreadPoolExecutor virtualPool = new ContextJavaUtil.WorkerThreadPoolExecutor(ecfi, virtualMax, virtualMax, 60,
+                    TimeUnit.SECONDS, workQueue, new ContextJavaUtil.VirtualThreadFactory("MoquiJobV-"))
+            virtualPool.allowCoreThreadTimeOut(true)
+            return virtualPool
+        }
         int coreSize = (serviceFacadeNode.attribute("job-pool-core") ?: "2") as int
         int maxSize = (serviceFacadeNode.attribute("job-pool-max") ?: "8") as int
         int availableProcessorsSize = Runtime.getRuntime().availableProcessors() * 2
@@ -137,11 +185,26 @@ class ServiceFacadeImpl implements ServiceFacade {
             logger.info("Starting Scheduled Service Job Runner, checking for jobs every ${jobRunnerRate} seconds after a ${initialDelay} second initial delay")
             jobRunner = new ScheduledJobRunner(ecfi)
             ecfi.scheduleAtFixedRate(jobRunner, initialDelay, jobRunnerRate)
+            if (jobLeases != null) {
+                // extend leases for running jobs well before they expire
+                long heartbeatRate = Math.max(1L, (long) (jobLeases.leaseMillis / 3000L))
+                logger.info("Claiming scheduled jobs with leases as ${nodeId}, lease time ${jobLeases.leaseMillis / 1000}s, heartbeat every ${heartbeatRate}s")
+                ecfi.scheduleAtFixedRate(jobLeases, heartbeatRate, heartbeatRate)
+            }
         } else {
             logger.warn("Not starting Scheduled Service Job Runner (config:${jobRunnerRate})")
             jobRunner = null
         }
 
+        // poll for persisted async calls from other servers, retries, and any not run after commit (server went down)
+        long asyncQueuePoll = (serviceFacadeNode.attribute("async-queue-poll") ?: "10") as long
+        if (asyncQueuePoll > 0L) {
+            logger.info("Starting Async Service Queue, checking for persisted calls every ${asyncQueuePoll} seconds")
+            ecfi.scheduleAtFixedRate(asyncQueue, asyncQueuePoll, asyncQueuePoll)
+        } else {
+            logger.warn("Not polling Async Service Queue (config:${asyncQueuePoll}), persisted async calls only run after commit on the server that made them")
+        }
+
     }
 
     void setDistributedExecutorService(ExecutorService executorService) {
@@ -161,6 +224,8 @@ class ServiceFacadeImpl implements ServiceFacade {
     }
 
     void destroy() {
+        // delete persisted async calls that succeeded, otherwise they are run again after the claim timeout
+        try { asyncQueue.flushAcks() } catch (Throwable t) { logger.warn("Error deleting completed async service calls on destroy: ${t.toString()}") }
         // destroy all service runners
         for (ServiceRunner sr in serviceRunners.values()) sr.destroy()
     }
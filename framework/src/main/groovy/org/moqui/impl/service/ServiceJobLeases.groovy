@@ -0,0 +1,168 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.service
+
+import groovy.transform.CompileStatic
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityList
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.sql.Timestamp
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Lease based claims of scheduled service jobs for service-facade.@job-lease-time, instead of a ServiceJobRunLock record
+ * locked for the whole job run. A server claims a due job by locking the ServiceJobRunLock record (select for update) just
+ * long enough to check that the lastRunTime and lease are what it saw and set its own lease, so if several servers try
+ * at once only the first one changes it and only that server runs the job. While the job runs the lease is extended every third of the lease time (run() is scheduled for this); if the
+ * server goes down the lease expires and the next server to check the job claims it and runs it again.
+ *
+ * The ownerId identifies the server (ServiceFacadeImpl.nodeId), so more than one instance with different owners can be
+ * used against the same database to test claims between servers.
+ */
+@CompileStatic
+class ServiceJobLeases implements Runnable {
+    protected final static Logger logger = LoggerFactory.getLogger(ServiceJobLeases.class)
+    static final String LOCK_ENTITY = "moqui.service.job.ServiceJobRunLock"
+
+    protected final ExecutionContextFactoryImpl ecfi
+    final String ownerId
+    final long leaseMillis
+    /** jobRunId by jobName for leases held by this server */
+    protected final ConcurrentHashMap<String, String> runIdByJobName = new ConcurrentHashMap<>()
+
+    ServiceJobLeases(ExecutionContextFactoryImpl ecfi, String ownerId, long leaseMillis) {
+        this.ecfi = ecfi
+        this.ownerId = ownerId
+        this.leaseMillis = leaseMillis
+    }
+
+    Set<String> getLeasedJobNames() { return Collections.unmodifiableSet(runIdByJobName.keySet()) }
+
+    /** Lease state for a job without locking, pass to claim() */
+    EntityValue findLock(String jobName) {
+        return ecfi.entityFacade.find(LOCK_ENTITY).condition("jobName", jobName).useCache(false).disableAuthz().one()
+    }
+
+    /** True if the lock has a lease that hasn't expired */
+    static boolean isLeased(EntityValue lock, long nowMillis) {
+        if (lock == null || lock.getNoCheckSimple("leaseOwner") == null) return false
+        Timestamp leaseExpireTime = (Timestamp) lock.getNoCheckSimple("leaseExpireTime")
+        return leaseExpireTime != (Timestamp) null && leaseExpireTime.getTime() > nowMillis
+    }
+
+    /** Claim the job if the lock is unchanged since seenLock was read (null if there was no lock record) and has no
+     * current lease. Creates the ServiceJobRun and returns its jobRunId, or null if another server claimed it first. */
+    String claim(String jobName, EntityValue seenLock, Timestamp nowTimestamp) {
+        EntityFacadeImpl efi = ecfi.entityFacade
+        if (isLeased(seenLock, nowTimestamp.getTime())) return null
+        String expiredOwner = (String) seenLock?.getNoCheckSimple("leaseOwner")
+        String expiredRunId = expiredOwner != null ? (String) seenLock.getNoCheckSimple("jobRunId") : (String) null
+
+        EntityValue serviceJobRun = efi.makeValue("moqui.service.job.ServiceJobRun").set("jobName", jobName).setSequencedIdPrimary()
+        String jobRunId = (String) serviceJobRun.getNoCheckSimple("jobRunId")
+        Timestamp leaseExpireTime = new Timestamp(nowTimestamp.getTime() + leaseMillis)
+        Map<String, Object> leaseFields = [jobRunId:jobRunId, lastRunTime:nowTimestamp, leaseOwner:ownerId,
+                leaseExpireTime:leaseExpireTime] as Map<String, Object>
+        try {
+            boolean claimed = (Boolean) ecfi.transactionFacade.runUseOrBegin(null, "Error claiming service job ${jobName}", {
+                if (seenLock == null) {
+                    // if another server creates it first this fails on the primary key
+                    efi.makeValue(LOCK_ENTITY).set("jobName", jobName).setAll(leaseFields).create()
+                } else {
+                    // lock the record and compare in the transaction, updateAll() is only one conditional UPDATE when
+                    //     no per-record work is needed (not with distributed cache invalidate, EECA rules, etc)
+                    EntityValue lock = efi.find(LOCK_ENTITY).condition("jobName", jobName).forUpdate(true)
+                            .useCache(false).disableAuthz().one()
+                    if (lock == null || !Objects.equals(lock.getNoCheckSimple("lastRunTime"), seenLock.getNoCheckSimple("lastRunTime")) ||
+                            !Objects.equals(lock.getNoCheckSimple("leaseOwner"), expiredOwner) ||
+                            !Objects.equals(lock.getNoCheckSimple("leaseExpireTime"), seenLock.getNoCheckSimple("leaseExpireTime"))) return false
+                    lock.setAll(leaseFields).update()
+                }
+                serviceJobRun.create()
+                return true
+            })
+            if (!claimed) return null
+        } catch (Throwable t) {
+            // generally another server created the lock record first
+            if (logger.isDebugEnabled()) logger.debug("Claim of service job ${jobName} by ${ownerId} failed: ${t.toString()}")
+            return null
+        }
+
+        runIdByJobName.put(jobName, jobRunId)
+        if (expiredOwner != null) {
+            logger.warn("Claimed service job ${jobName} from ${expiredOwner}, lease expired at ${seenLock.getNoCheckSimple('leaseExpireTime')}")
+            if (expiredRunId != null) ecfi.transactionFacade.runUseOrBegin(null, "Error updating expired service job run ${expiredRunId}", {
+                return efi.find("moqui.service.job.ServiceJobRun").condition("jobRunId", expiredRunId)
+                        .condition("endTime", null).disableAuthz().updateAll([endTime:nowTimestamp, hasError:"Y",
+                            errors:"Lease held by ${expiredOwner} expired, run again as ${jobRunId}".toString()] as Map<String, Object>)
+            })
+        }
+        return jobRunId
+    }
+
+    /** Extend leases for jobs running on this server, returns the number extended */
+    int heartbeat() {
+        if (runIdByJobName.isEmpty()) return 0
+        List<String> jobNames = new ArrayList<>(runIdByJobName.keySet())
+        EntityFacadeImpl efi = ecfi.entityFacade
+        long nowMillis = System.currentTimeMillis()
+        long updated = (Long) ecfi.transactionFacade.runUseOrBegin(null, "Error extending service job leases", {
+            return efi.find(LOCK_ENTITY).condition("jobName", EntityCondition.IN, jobNames).condition("leaseOwner", ownerId)
+                    .disableAuthz().updateAll([leaseExpireTime:new Timestamp(nowMillis + leaseMillis)] as Map<String, Object>)
+        })
+        if (updated < jobNames.size()) {
+            // not extended because another server claimed it after the lease expired (like a long GC pause), or released
+            EntityList heldList = efi.find(LOCK_ENTITY).condition("jobName", EntityCondition.IN, jobNames)
+                    .condition("leaseOwner", ownerId).selectField("jobName").useCache(false).disableAuthz().list()
+            Set<String> heldNames = new HashSet<>()
+            for (EntityValue held in heldList) heldNames.add((String) held.getNoCheckSimple("jobName"))
+            for (String jobName in jobNames) if (!heldNames.contains(jobName) && runIdByJobName.remove(jobName) != null)
+                logger.warn("Lost lease for service job ${jobName} on ${ownerId}, may have been claimed by another server")
+        }
+        return (int) updated
+    }
+
+    /** Release the lease when the job is done; if restoreLastRunTime sets lastRunTime to lastRunTime (on error, to run again) */
+    boolean release(String jobName, String jobRunId, boolean restoreLastRunTime, Timestamp lastRunTime) {
+        runIdByJobName.remove(jobName, jobRunId)
+        Map<String, Object> fields = [jobRunId:null, leaseOwner:null, leaseExpireTime:null] as Map<String, Object>
+        if (restoreLastRunTime) fields.put("lastRunTime", lastRunTime)
+        long updated = (Long) ecfi.transactionFacade.runUseOrBegin(null, "Error releasing service job lease for ${jobName}", {
+            return ecfi.entityFacade.find(LOCK_ENTITY).condition("jobName", jobName).condition("leaseOwner", ownerId)
+                    .condition("jobRunId", jobRunId).disableAuthz().updateAll(fields)
+        })
+        if (updated == 0L) logger.warn("Lease for service job ${jobName} run ${jobRunId} no longer held by ${ownerId} on release")
+        return updated > 0L
+    }
+
+    /** Heartbeat, scheduled every third of job-lease-time */
+    @Override
+    void run() {
+        ExecutionContextImpl eci = ecfi.getEci()
+        eci.artifactExecution.disableAuthz()
+        try {
+            heartbeat()
+        } catch (Throwable t) {
+            logger.error("Error extending service job leases", t)
+        } finally {
+            eci.destroy()
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.service;
+
+import org.moqui.service.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In memory service semaphores for service-facade.@semaphore-mode local and local-db, instead of (or before) polling
+ * ServiceParameterSemaphore records. There is a lock for each semaphore name and parameter value, in a ConcurrentHashMap
+ * so different semaphores don't contend, and the lock is removed when no thread holds or waits for it. Waiting threads
+ * get the lock in order (fair) as soon as it is released instead of sleeping semaphore-sleep between checks.
+ *
+ * Like the database records a lock held longer than semaphore-ignore is taken over by the next thread that wants it;
+ * release() by the thread that had it then does nothing.
+ */
+public class ServiceSemaphoreLocks {
+    protected static final Logger logger = LoggerFactory.getLogger(ServiceSemaphoreLocks.class);
+
+    private final ConcurrentHashMap<String, LockEntry> lockByKey = new ConcurrentHashMap<>();
+
+    /** Get the lock for a semaphore name and parameter value, returns a Holder to pass to release().
+     * @param failOnConflict true for semaphore=fail, throw an exception if already locked instead of waiting */
+    Holder acquire(String semaphoreName, String parameterValue, boolean failOnConflict, long timeoutMillis,
+                   long ignoreMillis, String lockThreadName) {
+        String key = semaphoreName + '\u0000' + parameterValue;
+        LockEntry entry = lockByKey.compute(key, (k, e) -> { if (e == null) e = new LockEntry(); e.users++; return e; });
+        boolean acquired = false;
+        try {
+            long startTime = System.currentTimeMillis();
+            long deadline = startTime + timeoutMillis;
+            // first try without waiting, still in order behind any waiting threads
+            long waitMillis = 0;
+            while (true) {
+                try {
+                    if (entry.permit.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                        Holder holder = new Holder(lockThreadName, System.currentTimeMillis());
+                        entry.holderRef.set(holder);
+                        acquired = true;
+                        return holder;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceException("Interrupted waiting for service semaphore " + semaphoreName + " with parameter value [" + parameterValue + "]", e);
+                }
+
+                // take over a lock held too long, the old holder's release will do nothing
+                Holder curHolder = entry.holderRef.get();
+                long now = System.currentTimeMillis();
+                if (curHolder != null && now > curHolder.lockTime + ignoreMillis) {
+                    Holder holder = new Holder(lockThreadName, now);
+                    if (entry.holderRef.compareAndSet(curHolder, holder)) {
+                        logger.warn("Service semaphore " + semaphoreName + " with parameter value [" + parameterValue + "] locked by thread [" +
+                                curHolder.threadName + "] at " + new Timestamp(curHolder.lockTime) + " for more than " + (ignoreMillis / 1000) + " seconds, ignoring");
+                        acquired = true;
+                        return holder;
+                    }
+                    waitMillis = 0;
+                    continue;
+                }
+
+                if (failOnConflict) throw new ServiceException("An instance of service semaphore " + semaphoreName + " with parameter value " +
+                        "[" + parameterValue + "] is already running (thread [" + (curHolder != null ? curHolder.threadName : "") +
+                        "], locked at " + (curHolder != null ? new Timestamp(curHolder.lockTime) : "") + ") and it is setup to fail on semaphore conflict.");
+                if (now >= deadline) throw new ServiceException("An instance of service semaphore " + semaphoreName + " with parameter value [" +
+                        parameterValue + "] is already running (thread [" + (curHolder != null ? curHolder.threadName : "") +
+                        "], locked at " + (curHolder != null ? new Timestamp(curHolder.lockTime) : "") + ") and it is setup to wait on semaphore conflict, but the semaphore did not clear in " +
+                        (timeoutMillis / 1000) + " seconds.");
+
+                // wait until released, the timeout, or the current holder is past semaphore-ignore
+                waitMillis = deadline - now;
+                if (curHolder != null) waitMillis = Math.min(waitMillis, curHolder.lockTime + ignoreMillis - now + 1);
+                if (waitMillis < 1) waitMillis = 1;
+            }
+        } finally {
+            if (!acquired) removeUser(key);
+        }
+    }
+
+    void release(String semaphoreName, String parameterValue, Holder holder) {
+        if (holder == null) return;
+        String key = semaphoreName + '\u0000' + parameterValue;
+        LockEntry entry = lockByKey.get(key);
+        if (entry == null) return;
+        // if taken over (held past semaphore-ignore) the permit now belongs to the new holder
+        if (entry.holderRef.compareAndSet(holder, null)) entry.permit.release();
+        removeUser(key);
+    }
+
+    private void removeUser(String key) {
+        lockByKey.computeIfPresent(key, (k, e) -> --e.users <= 0 ? null : e);
+    }
+
+    static final class Holder {
+        final String threadName;
+        final long lockTime;
+        Holder(String threadName, long lockTime) { this.threadName = threadName; this.lockTime = lockTime; }
+    }
+
+    private static final class LockEntry {
+        final Semaphore permit = new Semaphore(1, true);
+        final AtomicReference<Holder> holderRef = new AtomicReference<>();
+        /** Threads holding or waiting, only changed in ConcurrentHashMap.compute() for the key */
+        int users = 0;
+    }
+}
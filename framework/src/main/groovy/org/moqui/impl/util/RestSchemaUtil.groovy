@@ -57,6 +57,7 @@ class RestSchemaUtil {
              pageSize:[type:'number', format:'int32', description:'Number of records per page (default 100)'],
              orderByField:[type:'string', description:'Field name to order by (or comma separated names)'],
              pageNoLimit:[type:'string', description:'If true don\'t limit page size (no pagination)'],
+             pageCursor:[type:'string', description:'Seek pagination instead of pageIndex: start for the first page, then the X-Page-Cursor header value'],
              dependentLevels:[type:'number', format:'int32', description:'Levels of dependent child records to include']
             ]
     static final Map jsonPaginationParameters = [type:'object', properties: jsonPaginationProperties]
@@ -66,6 +67,7 @@ class RestSchemaUtil {
              [name:'pageSize', in:'query', required:false, type:'number', format:'int32', description:'Number of records per page (default 100)'],
              [name:'orderByField', in:'query', required:false, type:'string', description:'Field name to order by (or comma separated names)'],
              [name:'pageNoLimit', in:'query', required:false, type:'string', description:'If true don\'t limit page size (no pagination)'],
+             [name:'pageCursor', in:'query', required:false, type:'string', description:'Seek pagination instead of pageIndex: start for the first page, then the X-Page-Cursor header value'],
              [name:'dependentLevels', in:'query', required:false, type:'number', format:'int32', description:'Levels of dependent child records to include']
             ] as List<Map>
 
@@ -75,6 +77,7 @@ class RestSchemaUtil {
              pageSize:[type:'number', default:100, description:'Number of records per page (default 100)'],
              orderByField:[type:'string', description:'Field name to order by (or comma separated names)'],
              pageNoLimit:[type:'string', description:'If true don\'t limit page size (no pagination)'],
+             pageCursor:[type:'string', description:'Seek pagination instead of pageIndex: start for the first page, then the X-Page-Cursor header value'],
              dependentLevels:[type:'number', description:'Levels of dependent child records to include']
             ]
     static final Map<String, String> fieldTypeRamlMap = [
@@ -80,6 +80,17 @@ public interface EntityDataLoader {
      */
     EntityDataLoader dummyFks(boolean dummyFks);
 
+    /** Load with this many worker threads instead of one transaction per file on the current thread (default 1). Files
+     * are still read in order, values are written in transactions of chunkSize values on threads for this load. Values of an
+     * entity wait for values read before them of entities it has foreign keys to, and values with the same primary key are
+     * written in the order read. Values with nested related values and service calls wait for all before them and are
+     * loaded on the current thread. Only applies to load(), not check() or list().
+     * @return Reference to this for convenience.
+     */
+    EntityDataLoader threads(int threads);
+    /** With threads(), the number of values per transaction on a worker thread; default 1000 */
+    EntityDataLoader chunkSize(int chunkSize);
+
     /** Files with no actions (or no messages for check) are logged in the check and load message list by default,
      * set to false to not add messages for them */
     EntityDataLoader messageNoActionFiles(boolean messageNoActionFiles);
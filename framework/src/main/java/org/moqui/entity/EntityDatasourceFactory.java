@@ -26,6 +26,10 @@ public interface EntityDatasourceFactory {
     EntityValue makeEntityValue(String entityName);
     EntityFind makeEntityFind(String entityName);
     void createBulk(List<EntityValue> valueList);
+    /** Create or update each value, by default with createOrUpdate(); datasources may implement this in bulk */
+    default void upsertBulk(List<EntityValue> valueList) {
+        for (EntityValue ev : valueList) ev.createOrUpdate();
+    }
 
     /** Return the JDBC DataSource, if applicable. Return null if no JDBC DataSource exists for this Entity Datasource. */
     DataSource getDataSource();
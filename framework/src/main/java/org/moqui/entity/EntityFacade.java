@@ -57,6 +57,9 @@ public interface EntityFacade {
 
     /** Bulk create EntityValue records. All values must be for the same entity. */
     void createBulk(List<EntityValue> valueList);
+    /** Bulk create or update (by primary key) EntityValue records, like createOrUpdate() for each but without a find
+     * for each where the database supports it. All values must be for the same entity. */
+    void upsertBulk(List<EntityValue> valueList);
 
     /** Meant for processing entity REST requests, but useful more generally as a simple way to perform entity operations.
      *
@@ -195,6 +195,21 @@ public interface EntityFind extends java.io.Serializable, SimpleEtl.Extractor {
     /** For use with searchFormInputs when paginated. Equals limit (default 20; exists for consistency/convenience along with getPageIndex()). */
     int getPageSize();
 
+    /** Keyset (seek) pagination: only find values after the one with these values for the order by fields, in the order
+     * by direction. Uses a condition like (a > ?) OR (a = ? AND b > ?) instead of an offset so each page costs the same with
+     * an index on the order by fields. The order by fields should be unique together (like ending with the primary key).
+     * Non-PK order by fields may be null, they are handled with IS NULL conditions for the NULLS LAST (default) or NULLS
+     * FIRST position; on databases with never-nulls only PK fields may be used. Use instead of offset(), not with it.
+     *
+     * @param lastValues Map with values for all order by fields, usually the last value of the previous page
+     * @return Returns this for chaining of method calls.
+     */
+    EntityFind seekAfter(Map<String, Object> lastValues);
+    /** Same as seekAfter() with an opaque cursor String from makeSeekCursor(), for passing to and from clients */
+    EntityFind seekCursor(String cursor);
+    /** Make a cursor String for seekCursor() from the order by field values of a value (or Map), usually the last in a page */
+    String makeSeekCursor(Map<String, Object> lastValue);
+
     /** Lock the selected record so only this transaction can change it until it is ended.
      * If this is set when the find is done the useCache setting will be ignored as this will always get the data from
      *     the database.
@@ -204,6 +219,11 @@ public interface EntityFind extends java.io.Serializable, SimpleEtl.Extractor {
      */
     EntityFind forUpdate(boolean forUpdate);
     boolean getForUpdate();
+    /** With forUpdate(true) leave out records locked by other transactions instead of waiting for them, like for claiming
+     * queued work with more than one server. Only if the database supports it (database.@for-update-skip-locked),
+     * otherwise waits like forUpdate alone. Default is false. */
+    EntityFind skipLocked(boolean skipLocked);
+    boolean getSkipLocked();
 
     // ======================== JDBC Options ==============================
 
@@ -296,6 +316,19 @@ public interface EntityFind extends java.io.Serializable, SimpleEtl.Extractor {
 
     /** Runs a find with current options to get a count of matching records. */
     long count() throws EntityException;
+    /** Like count() but if allowEstimate is true and there are no conditions (including entity filters for the user), use
+     * the row count estimate from database statistics (database.@count-estimate-sql) if it is at least
+     * entity-facade.@count-estimate-min, where an exact count takes a while. See isCountEstimated(). */
+    long count(boolean allowEstimate) throws EntityException;
+    /** Start a count, like count(allowEstimate), on another thread with its own connection so it runs at the same time as
+     * list() or iterator() on this find, as for a paginated list; the next count() gets the result, waiting for it if
+     * needed. Call after all conditions are set. If list() with a limit gets fewer values than the limit the count is
+     * known from the list and the count query is cancelled. For update, or if there are writes to the entity's group or
+     * a TransactionCache in the current transaction (which another connection would not see), this does nothing and the
+     * next count() counts on this thread. */
+    EntityFind countAsync(boolean allowEstimate);
+    /** True if the last count was an estimate from database statistics, see count(boolean) */
+    boolean isCountEstimated();
 
     /** Update a set of values that match a condition.
      *
@@ -15,6 +15,7 @@ package org.moqui.entity;
 
 import java.io.Writer;
 import java.util.ListIterator;
+import java.util.Map;
 
 /**
  * Entity Cursor List Iterator for Handling Cursored Database Results
@@ -87,6 +88,20 @@ public interface EntityListIterator extends ListIterator<EntityValue>, AutoClose
      */
     @Override EntityValue next();
 
+    /** Moves the cursor to the next position like next() and returns a read-only Map with the selected fields for that
+     * position, or null if there is no next. Unlike next() this doesn't make an EntityValue, and fields are read from
+     * the database result and converted when first used so fields not used are not read. Use this to scan many records
+     * when only some fields are needed or the values are not kept, like for exports. Values are as in the database, so
+     * fields with enable-localization are not localized and view entity aliases with a pq-expression are not included.
+     *
+     * For implementations that don't support it, or if there is a transaction cache that may change the results, this
+     * returns the same EntityValue as next().
+     *
+     * @param reuse If true return the same Map object for each row, only valid until the cursor moves (next(), etc);
+     *     if false the Map is valid after the cursor moves, but is a new object per row and has all fields read then
+     */
+    Map<String, Object> nextRow(boolean reuse);
+
     /** Returns the index of the next result, but does not guarantee that there will be a next result */
     @Override int nextIndex();
 
@@ -30,6 +30,7 @@ import javax.cache.processor.EntryProcessorResult;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,8 +58,23 @@ public class MCache<K, V> implements Cache<K, V> {
     private final boolean hasExpiry;
     private boolean isClosed = false;
 
-    private EvictRunnable evictRunnable = null;
+    private int maxEntries = 0;
+    private long maxWeight = 0;
+    private MWeigher<K, V> weigher = null;
+    private final AtomicLong totalWeight = new AtomicLong(0);
+    private long maxCheckSeconds = 30;
+    private String evictionPolicyName = MCacheConfiguration.EVICT_LFU;
+    private MEvictionPolicy<K, V> evictionPolicy = null;
+    // track last access time on get even without expiry, for eviction policies that use it
+    private boolean trackAccessTime = false;
     private ScheduledFuture<?> evictFuture = null;
+    // second tier for entries evicted from the heap tier, only if offHeapMaxBytes configured
+    private MOffHeapStore<K> offHeapStore = null;
+    private MCacheSerializer<V> offHeapSerializer = null;
+    private boolean offHeapErrorLogged = false;
+
+    private long refreshAfterMillis = 0;
+    private final ConcurrentHashMap<K, MEntry<K, V>> refreshClaims = new ConcurrentHashMap<>();
 
     private static class WorkerThreadFactory implements ThreadFactory {
         private final ThreadGroup workerGroup = new ThreadGroup("MCacheEvict");
@@ -69,6 +85,7 @@ public class MCache<K, V> implements Cache<K, V> {
     static { workerPool.setRemoveOnCancelPolicy(true); }
 
     /** Supports a few configurations but both manager and configuration can be null. */
+    @SuppressWarnings("this-escape")
     public MCache(String name, CacheManager manager, Configuration<K, V> configuration) {
         this.name = name;
         this.manager = manager;
@@ -97,34 +114,62 @@ public class MCache<K, V> implements Cache<K, V> {
             if (configuration instanceof MCacheConfiguration) {
                 MCacheConfiguration<K, V> mCacheConf = (MCacheConfiguration<K, V>) configuration;
 
-                if (mCacheConf.maxEntries > 0) {
-                    evictRunnable = new EvictRunnable(this, mCacheConf.maxEntries);
-                    evictFuture = workerPool.scheduleWithFixedDelay(evictRunnable, 30, mCacheConf.maxCheckSeconds, TimeUnit.SECONDS);
+                maxEntries = mCacheConf.maxEntries;
+                maxCheckSeconds = mCacheConf.maxCheckSeconds;
+                evictionPolicyName = mCacheConf.evictionPolicy;
+                maxWeight = mCacheConf.maxWeight;
+                if (maxWeight > 0) weigher = mCacheConf.weigher != null ? mCacheConf.weigher : new MSizeWeigher<>();
+                if (mCacheConf.offHeapMaxBytes > 0) {
+                    offHeapStore = new MOffHeapStore<>(mCacheConf.offHeapMaxBytes);
+                    offHeapSerializer = mCacheConf.offHeapSerializer != null ? mCacheConf.offHeapSerializer : new MCompactSerializer<>();
                 }
+                refreshAfterMillis = mCacheConf.refreshAfterMillis;
             }
         }
         hasExpiry = accessDuration != null || creationDuration != null || updateDuration != null;
+        // the eviction policy and evict worker get this but don't use it until there are entries or after a delay
+        initEviction(30);
     }
 
-    public synchronized void setMaxEntries(int elements) {
-        if (elements == 0) {
-            if (evictRunnable != null) {
-                evictRunnable = null;
+    /** Create or remove the eviction policy and its scheduled worker (if the policy doesn't evict inline) based on current bounds */
+    private synchronized void initEviction(long initialDelaySeconds) {
+        boolean bounded = maxEntries > 0 || (maxWeight > 0 && weigher != null);
+        if (!bounded) {
+            evictionPolicy = null;
+            if (evictFuture != null) {
                 evictFuture.cancel(false);
                 evictFuture = null;
             }
-        } else {
-            if (evictRunnable != null) {
-                evictRunnable.maxEntries = elements;
+            return;
+        }
+
+        if (evictionPolicy == null) {
+            if (MCacheConfiguration.EVICT_TINY_LFU.equals(evictionPolicyName)) {
+                evictionPolicy = new MTinyLfuEvictionPolicy<>(this, maxEntries);
             } else {
-                evictRunnable = new EvictRunnable(this, elements);
-                long maxCheckSeconds = 30;
-                if (configuration instanceof MCacheConfiguration) maxCheckSeconds = ((MCacheConfiguration) configuration).maxCheckSeconds;
-                evictFuture = workerPool.scheduleWithFixedDelay(evictRunnable, 1, maxCheckSeconds, TimeUnit.SECONDS);
+                evictionPolicy = new MSortedEvictionPolicy<>(this, MCacheConfiguration.EVICT_LRU.equals(evictionPolicyName));
             }
         }
+        trackAccessTime = !MCacheConfiguration.EVICT_LFU.equals(evictionPolicyName);
+        if (evictionPolicy.isScheduled() && evictFuture == null)
+            evictFuture = workerPool.scheduleWithFixedDelay(new EvictRunnable(this), initialDelaySeconds, maxCheckSeconds, TimeUnit.SECONDS);
     }
-    public int getMaxEntries() { return evictRunnable != null ? evictRunnable.maxEntries : 0; }
+
+    public synchronized void setMaxEntries(int elements) {
+        maxEntries = elements;
+        initEviction(1);
+    }
+    public int getMaxEntries() { return maxEntries; }
+    /** Max total weight of entries, 0 if not bounded by weight */
+    public long getMaxWeight() { return weigher != null ? maxWeight : 0; }
+    /** Current total weight of entries as calculated by the weigher, approximate under concurrent updates; 0 if there is no weigher */
+    public long getWeight() { return totalWeight.get(); }
+    public String getEvictionPolicyName() { return evictionPolicy != null ? evictionPolicy.getName() : evictionPolicyName; }
+    /** Number of entries in the off-heap tier, 0 if there is no off-heap tier */
+    public int getOffHeapSize() { return offHeapStore != null ? offHeapStore.size() : 0; }
+    /** Bytes used by live entries in the off-heap tier */
+    public long getOffHeapBytes() { return offHeapStore != null ? offHeapStore.getUsedBytes() : 0; }
+    public long getOffHeapMaxBytes() { return offHeapStore != null ? offHeapStore.getMaxBytes() : 0; }
 
     @Override
     public String getName() { return name; }
@@ -153,56 +198,61 @@ public class MCache<K, V> implements Cache<K, V> {
     public MEntry<K, V> getEntryNoCheck(K key) {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
+        if (evictionPolicy != null) evictionPolicy.recordAccess(key);
         MEntry<K, V> entry = entryStore.get(key);
+        if (entry == null && offHeapStore != null) entry = promoteEntry(key);
         if (entry != null) {
-            if (statsEnabled) { stats.gets++; stats.hits++; }
+            if (statsEnabled) stats.countHit();
             long accessTime = System.currentTimeMillis();
             entry.accessCount++; if (accessTime > entry.lastAccessTime) entry.lastAccessTime = accessTime;
         } else {
-            if (statsEnabled) { stats.gets++; stats.misses++; }
+            if (statsEnabled) stats.countMiss();
         }
         return entry;
     }
     private MEntry<K, V> getEntryInternal(final K key, final ExpiryPolicy policy, final Long expireBeforeTime, long currentTime) {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
+        if (evictionPolicy != null) evictionPolicy.recordAccess(key);
         MEntry<K, V> entry = entryStore.get(key);
+        if (entry == null && offHeapStore != null) entry = promoteEntry(key);
 
         if (entry != null) {
             if (policy != null) {
                 if (currentTime == 0) currentTime = System.currentTimeMillis();
                 if (entry.isExpired(currentTime, policy)) {
-                    entryStore.remove(key);
+                    removeEntry(key);
                     entry = null;
                     if (statsEnabled) stats.countExpire();
                 }
             } else if (hasExpiry) {
                 if (currentTime == 0) currentTime = System.currentTimeMillis();
                 if (entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-                    entryStore.remove(key);
+                    removeEntry(key);
                     entry = null;
                     if (statsEnabled) stats.countExpire();
                 }
             }
 
             if (expireBeforeTime != null && entry != null && entry.lastUpdatedTime < expireBeforeTime) {
-                entryStore.remove(key);
+                removeEntry(key);
                 entry = null;
                 if (statsEnabled) stats.countExpire();
             }
 
             if (entry != null) {
-                if (statsEnabled) { stats.gets++; stats.hits++; }
+                if (statsEnabled) stats.countHit();
                 entry.accessCount++;
                 // at this point if an ad-hoc policy is used or hasExpiry == true currentTime will be set, otherwise will be 0
                 // meaning we don't need to track the lastAccessTime (only thing we need System.currentTimeMillis() for)
                 // if (currentTime == 0) currentTime = System.currentTimeMillis();
+                if (currentTime == 0 && trackAccessTime) currentTime = System.currentTimeMillis();
                 if (currentTime > entry.lastAccessTime) entry.lastAccessTime = currentTime;
             } else {
-                if (statsEnabled) { stats.gets++; stats.misses++; }
+                if (statsEnabled) stats.countMiss();
             }
         } else {
-            if (statsEnabled) { stats.gets++; stats.misses++; }
+            if (statsEnabled) stats.countMiss();
         }
 
         return entry;
@@ -211,19 +261,23 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
         MEntry<K, V> entry = entryStore.get(key);
+        if (entry == null && offHeapStore != null) entry = promoteEntry(key);
         if (hasExpiry && entry != null && entry.isExpired(accessDuration, creationDuration, updateDuration)) {
-            entryStore.remove(key);
+            removeEntry(key);
             entry = null;
             if (statsEnabled) stats.countExpire();
         }
         return entry;
     }
-    private MEntry<K, V> getCheckExpired(K key, long currentTime) {
+    private MEntry<K, V> getCheckExpired(K key, long currentTime) { return getCheckExpired(key, currentTime, true); }
+    /** With promote false an entry in the off-heap tier is not moved back to the heap tier, for puts that will replace it anyway */
+    private MEntry<K, V> getCheckExpired(K key, long currentTime, boolean promote) {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
         MEntry<K, V> entry = entryStore.get(key);
+        if (promote && entry == null && offHeapStore != null) entry = promoteEntry(key);
         if (hasExpiry && entry != null && entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-            entryStore.remove(key);
+            removeEntry(key);
             entry = null;
             if (statsEnabled) stats.countExpire();
         }
@@ -250,14 +304,15 @@ public class MCache<K, V> implements Cache<K, V> {
     public void put(K key, V value) {
         long currentTime = System.currentTimeMillis();
         // get entry, count hit/miss
-        MEntry<K, V> entry = getCheckExpired(key, currentTime);
+        MEntry<K, V> entry = getCheckExpired(key, currentTime, false);
         if (entry != null) {
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            reweighEntry(entry);
+            if (statsEnabled) stats.countPut();
         } else {
             entry = new MEntry<>(key, value, currentTime);
-            entryStore.put(key, entry);
-            if (statsEnabled) stats.puts++;
+            putEntry(entry);
+            if (statsEnabled) stats.countPut();
         }
     }
     @Override
@@ -268,12 +323,13 @@ public class MCache<K, V> implements Cache<K, V> {
         if (entry != null) {
             V oldValue = entry.value;
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            reweighEntry(entry);
+            if (statsEnabled) stats.countPut();
             return oldValue;
         } else {
             entry = new MEntry<>(key, value, currentTime);
-            entryStore.put(key, entry);
-            if (statsEnabled) stats.puts++;
+            putEntry(entry);
+            if (statsEnabled) stats.countPut();
             return null;
         }
     }
@@ -291,9 +347,12 @@ public class MCache<K, V> implements Cache<K, V> {
             return false;
         } else {
             entry = new MEntry<>(key, value, currentTime);
+            if (weigher != null) entry.weight = weigher.weigh(key, value);
             MEntry<K, V> existingValue = entryStore.putIfAbsent(key, entry);
             if (existingValue == null) {
-                if (statsEnabled) stats.puts++;
+                if (weigher != null) totalWeight.addAndGet(entry.weight);
+                if (evictionPolicy != null) evictionPolicy.afterAdd(entry);
+                if (statsEnabled) stats.countPut();
                 return true;
             } else {
                 return false;
@@ -303,9 +362,9 @@ public class MCache<K, V> implements Cache<K, V> {
 
     @Override
     public boolean remove(K key) {
-        MEntry<K, V> entry = getCheckExpired(key);
-        if (entry != null) {
-            entryStore.remove(key);
+        MEntry<K, V> entry = offHeapStore != null ? entryStore.get(key) : getCheckExpired(key);
+        if (entry != null || (offHeapStore != null && offHeapStore.containsKey(key))) {
+            removeEntry(key);
             if (statsEnabled) stats.countRemoval();
             return true;
         } else {
@@ -321,6 +380,7 @@ public class MCache<K, V> implements Cache<K, V> {
             if (remove) {
                 // remove with dummy MEntry instance for comparison to ensure still equals
                 remove = entryStore.remove(key, new MEntry<>(key, oldValue));
+                if (remove && weigher != null) totalWeight.addAndGet(-entry.weight);
                 if (remove && statsEnabled) stats.countRemoval();
             }
             return remove;
@@ -335,7 +395,7 @@ public class MCache<K, V> implements Cache<K, V> {
         MEntry<K, V> entry = getEntryInternal(key, null, null, 0);
         if (entry != null) {
             V oldValue = entry.value;
-            entryStore.remove(key);
+            removeEntry(key);
             if (statsEnabled) stats.countRemoval();
             return oldValue;
         }
@@ -349,7 +409,8 @@ public class MCache<K, V> implements Cache<K, V> {
 
         if (entry != null) {
             boolean replaced = entry.setValueIfEquals(oldValue, newValue, currentTime);
-            if (replaced) if (statsEnabled) stats.puts++;
+            if (replaced) reweighEntry(entry);
+            if (replaced) if (statsEnabled) stats.countPut();
             return replaced;
         } else {
             return false;
@@ -363,7 +424,8 @@ public class MCache<K, V> implements Cache<K, V> {
 
         if (entry != null) {
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            reweighEntry(entry);
+            if (statsEnabled) stats.countPut();
             return true;
         } else {
             return false;
@@ -378,7 +440,8 @@ public class MCache<K, V> implements Cache<K, V> {
         if (entry != null) {
             V oldValue = entry.value;
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            reweighEntry(entry);
+            if (statsEnabled) stats.countPut();
             return oldValue;
         } else {
             return null;
@@ -396,6 +459,9 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         int size = entryStore.size();
         entryStore.clear();
+        totalWeight.set(0);
+        if (evictionPolicy != null) evictionPolicy.clear();
+        if (offHeapStore != null) offHeapStore.clear();
         if (statsEnabled) stats.countBulkRemoval(size);
     }
 
@@ -404,6 +470,9 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         // don't track removals or do anything else, removeAll does that
         entryStore.clear();
+        totalWeight.set(0);
+        if (evictionPolicy != null) evictionPolicy.clear();
+        if (offHeapStore != null) offHeapStore.clear();
     }
 
     @Override
@@ -442,6 +511,12 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is already closed");
         isClosed = true;
         entryStore.clear();
+        totalWeight.set(0);
+        if (offHeapStore != null) offHeapStore.close();
+        if (evictFuture != null) {
+            evictFuture.cancel(false);
+            evictFuture = null;
+        }
     }
     @Override
     public boolean isClosed() { return isClosed; }
@@ -464,17 +539,23 @@ public class MCache<K, V> implements Cache<K, V> {
         final ArrayList<MEntry<K, V>> entryList;
         final int maxIndex;
         int curIndex = -1;
+        // entries in the off-heap tier are iterated after those in the heap tier, values are deserialized only if getValue() is called
+        final ArrayList<MOffHeapStore.Slot<K>> offHeapSlotList;
+        final int offHeapMaxIndex;
+        int offHeapCurIndex = -1;
         MEntry<K, V> curEntry = null;
 
         CacheIterator(MCache<K, V> mCache) {
             this.mCache = mCache;
             entryList = new ArrayList<>(mCache.entryStore.values());
             maxIndex = entryList.size() - 1;
+            offHeapSlotList = mCache.offHeapStore != null ? mCache.offHeapStore.getSlotList() : null;
+            offHeapMaxIndex = offHeapSlotList != null ? offHeapSlotList.size() - 1 : -1;
             initialTime = System.currentTimeMillis();
         }
 
         @Override
-        public boolean hasNext() { return curIndex < maxIndex; }
+        public boolean hasNext() { return curIndex < maxIndex || offHeapCurIndex < offHeapMaxIndex; }
 
         @Override
         public Entry<K, V> next() {
@@ -485,11 +566,24 @@ public class MCache<K, V> implements Cache<K, V> {
                 if (curEntry.isExpired) {
                     curEntry = null;
                 } else if (mCache.hasExpiry && curEntry.isExpired(initialTime, mCache.accessDuration, mCache.creationDuration, mCache.updateDuration)) {
-                    mCache.entryStore.remove(curEntry.getKey());
+                    mCache.removeEntry(curEntry.getKey());
+                    if (mCache.statsEnabled) mCache.stats.countExpire();
+                    curEntry = null;
+                } else {
+                    if (mCache.statsEnabled) mCache.stats.countHit();
+                    break;
+                }
+            }
+            if (curEntry == null) while (offHeapCurIndex < offHeapMaxIndex) {
+                offHeapCurIndex++;
+                MOffHeapStore.Slot<K> slot = offHeapSlotList.get(offHeapCurIndex);
+                if (!slot.live) continue;
+                curEntry = new OffHeapEntry<>(mCache, slot.key, slot.createdTime, slot.lastUpdatedTime);
+                if (mCache.hasExpiry && curEntry.isExpired(initialTime, mCache.accessDuration, mCache.creationDuration, mCache.updateDuration)) {
+                    mCache.removeEntry(slot.key);
                     if (mCache.statsEnabled) mCache.stats.countExpire();
                     curEntry = null;
                 } else {
-                    if (mCache.statsEnabled)  { mCache.stats.gets++; mCache.stats.hits++; }
                     break;
                 }
             }
@@ -499,7 +593,7 @@ public class MCache<K, V> implements Cache<K, V> {
         @Override
         public void remove() {
             if (curEntry != null) {
-                mCache.entryStore.remove(curEntry.getKey());
+                mCache.removeEntry(curEntry.getKey());
                 if (mCache.statsEnabled) mCache.stats.countRemoval();
                 curEntry = null;
             }
@@ -518,7 +612,7 @@ public class MCache<K, V> implements Cache<K, V> {
             MEntry<K, V> entry = getCheckExpired(key, currentTime);
             if (entry != null) {
                 entryList.add(entry);
-                if (statsEnabled) { stats.gets++; stats.hits++; }
+                if (statsEnabled) stats.countHit();
                 entry.accessCount++; if (currentTime > entry.lastAccessTime) entry.lastAccessTime = currentTime;
             }
         }
@@ -535,7 +629,7 @@ public class MCache<K, V> implements Cache<K, V> {
             K key = keyList.get(i);
             MEntry<K, V> entry = entryStore.get(key);
             if (entry != null && entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-                entryStore.remove(key);
+                removeEntry(key);
                 if (statsEnabled) stats.countExpire();
                 expireCount++;
             }
@@ -550,48 +644,214 @@ public class MCache<K, V> implements Cache<K, V> {
     public Duration getCreationDuration() { return creationDuration; }
     public Duration getUpdateDuration() { return updateDuration; }
 
-    private static class EvictRunnable<K, V> implements Runnable {
-        static AccessComparator comparator = new AccessComparator();
-        MCache cache;
-        int maxEntries;
-        EvictRunnable(MCache mc, int entries) { cache = mc; maxEntries = entries; }
-        @Override
-        @SuppressWarnings("unchecked")
-        public void run() {
-            if (maxEntries == 0) return;
-            int entriesToEvict = cache.entryStore.size() - maxEntries;
-            if (entriesToEvict <= 0) return;
-
-            long startTime = System.currentTimeMillis();
-
-            Collection<MEntry> entrySet = (Collection<MEntry>) cache.entryStore.values();
-            PriorityQueue<MEntry> priorityQueue = new PriorityQueue<>(entrySet.size(), comparator);
-            priorityQueue.addAll(entrySet);
-
-            int entriesEvicted = 0;
-            while (entriesToEvict > 0 && priorityQueue.size() > 0) {
-                MEntry curEntry = priorityQueue.poll();
-                // if an entry was expired after pulling the initial value set
-                if (curEntry.isExpired) continue;
-                cache.entryStore.remove(curEntry.getKey());
-                cache.stats.evictions++;
-                entriesEvicted++;
-                entriesToEvict--;
+    /** Remove an entry for any reason other than eviction, keeping total weight in sync */
+    @SuppressWarnings("unchecked")
+    private MEntry<K, V> removeEntry(K key) {
+        MEntry<K, V> removed;
+        if (offHeapStore != null) {
+            // remove from both tiers atomically for the key, see promoteEntry()
+            final Object[] removedHolder = new Object[1];
+            entryStore.compute(key, (k, cur) -> {
+                offHeapStore.delete(k);
+                removedHolder[0] = cur;
+                return null;
+            });
+            removed = (MEntry<K, V>) removedHolder[0];
+        } else {
+            removed = entryStore.remove(key);
+        }
+        if (removed != null && weigher != null) totalWeight.addAndGet(-removed.weight);
+        return removed;
+    }
+    /** Add a new entry (replacing any existing), keeping total weight in sync and letting the eviction policy know about it */
+    @SuppressWarnings("unchecked")
+    private void putEntry(MEntry<K, V> entry) {
+        if (weigher != null) entry.weight = weigher.weigh(entry.getKey(), entry.value);
+        MEntry<K, V> oldEntry;
+        if (offHeapStore != null) {
+            final Object[] oldHolder = new Object[1];
+            entryStore.compute(entry.getKey(), (k, cur) -> {
+                offHeapStore.delete(k);
+                oldHolder[0] = cur;
+                return entry;
+            });
+            oldEntry = (MEntry<K, V>) oldHolder[0];
+        } else {
+            oldEntry = entryStore.put(entry.getKey(), entry);
+        }
+        if (weigher != null) totalWeight.addAndGet(oldEntry != null ? entry.weight - oldEntry.weight : entry.weight);
+        if (evictionPolicy != null) evictionPolicy.afterAdd(entry);
+    }
+    /** After the value of an existing entry is set update its weight, evicting inline if it grew past max weight */
+    private void reweighEntry(MEntry<K, V> entry) {
+        if (weigher == null) return;
+        totalWeight.addAndGet(entry.updateWeight(weigher.weigh(entry.getKey(), entry.value)));
+        if (evictionPolicy != null && !evictionPolicy.isScheduled() && isOverBounds()) {
+            long startNanos = System.nanoTime();
+            evictionPolicy.evict();
+            stats.recordEvictRun(System.nanoTime() - startNanos);
+        }
+    }
+
+    /* ========== Refresh-ahead ========== */
+
+    /** Age in milliseconds after which an entry is due for refresh, 0 if refresh-ahead is not enabled */
+    public long getRefreshAfterMillis() { return refreshAfterMillis; }
+
+    /**
+     * If the heap entry for the key is older than refresh-after and no refresh for it is running claim it for refresh.
+     * Returns the claimed entry, which the caller must pass to completeRefresh() or cancelRefresh(), or null if no refresh
+     * is needed. Entries in the off-heap tier are not refreshed, they are promoted on get and refreshed on a later get.
+     */
+    public MEntry<K, V> claimRefresh(K key) {
+        if (refreshAfterMillis <= 0) return null;
+        MEntry<K, V> entry = entryStore.get(key);
+        if (entry == null || entry.isExpired) return null;
+        if (System.currentTimeMillis() - entry.lastUpdatedTime < refreshAfterMillis) return null;
+        if (refreshClaims.putIfAbsent(key, entry) != null) return null;
+        return entry;
+    }
+    /**
+     * Replace the claimed entry with a new entry for the value, resetting the created and updated times (and so expiry).
+     * If the entry was removed or replaced since it was claimed (like cleared for a write) the value is not put, so a
+     * refresh never brings back a value that was invalidated while loading. Returns true if the value was put.
+     */
+    public boolean completeRefresh(K key, MEntry<K, V> claimed, V value) {
+        refreshClaims.remove(key, claimed);
+        MEntry<K, V> newEntry = new MEntry<>(key, value, System.currentTimeMillis());
+        if (weigher != null) newEntry.weight = weigher.weigh(key, value);
+        // MEntry.equals() compares values, so compare by identity in compute to make sure the entry is the one claimed
+        MEntry<K, V> result = entryStore.computeIfPresent(key, (k, cur) -> cur == claimed ? newEntry : cur);
+        if (result != newEntry) return false;
+        if (weigher != null) totalWeight.addAndGet(newEntry.weight - claimed.weight);
+        if (evictionPolicy != null) evictionPolicy.afterAdd(newEntry);
+        if (statsEnabled) stats.countRefresh();
+        return true;
+    }
+    /** Release a claim from claimRefresh() without changing the entry, like when the reload failed */
+    public void cancelRefresh(K key, MEntry<K, V> claimed) { refreshClaims.remove(key, claimed); }
+
+    /* ========== Off-heap tier ========== */
+
+    /** On a heap tier miss look in the off-heap tier, if found deserialize and move back to the heap tier. Done in a
+     * compute on the heap tier map so that it is atomic with concurrent puts, removes, and demotions for the same key. */
+    @SuppressWarnings("unchecked")
+    private MEntry<K, V> promoteEntry(K key) {
+        final Object[] promoted = new Object[1];
+        MEntry<K, V> entry = entryStore.computeIfAbsent(key, k -> {
+            MOffHeapStore.Stored stored = offHeapStore.remove(k);
+            if (stored == null) return null;
+            V value;
+            try {
+                value = offHeapSerializer.deserialize(stored.bytes);
+            } catch (Exception e) {
+                logOffHeapError("deserializing", k, e);
+                return null;
             }
-            long timeElapsed = System.currentTimeMillis() - startTime;
-            logger.info("Evicted " + entriesEvicted + " entries in " + timeElapsed + "ms from cache " + cache.name);
+            MEntry<K, V> newEntry = new MEntry<>(k, value, stored.createdTime, stored.lastUpdatedTime, System.currentTimeMillis());
+            if (weigher != null) newEntry.weight = weigher.weigh(k, value);
+            promoted[0] = newEntry;
+            return newEntry;
+        });
+        if (entry != null && entry == promoted[0]) {
+            if (statsEnabled) stats.countOffHeapHit();
+            if (weigher != null) totalWeight.addAndGet(entry.weight);
+            if (evictionPolicy != null) evictionPolicy.afterAdd(entry);
+        } else if (entry == null) {
+            if (statsEnabled) stats.countOffHeapMiss();
         }
+        return entry;
     }
-    private static class AccessComparator implements Comparator<MEntry> {
-        @Override
-        public int compare(MEntry e1, MEntry e2) {
-            if (e1.accessCount == e2.accessCount) {
-                if (e1.lastAccessTime == e2.lastAccessTime) return 0;
-                else return e1.lastAccessTime > e2.lastAccessTime ? 1 : -1;
-            } else {
-                return e1.accessCount > e2.accessCount ? 1 : -1;
+    /** Evict from the heap tier to the off-heap tier; serialize outside the lock, then remove and store atomically for the key */
+    private boolean demoteEntry(final MEntry<K, V> entry) {
+        byte[] bytes = null;
+        try {
+            bytes = offHeapSerializer.serialize(entry.value);
+        } catch (Exception e) {
+            logOffHeapError("serializing", entry.getKey(), e);
+        }
+        final byte[] valueBytes = bytes;
+        final boolean[] removed = { false };
+        entryStore.computeIfPresent(entry.getKey(), (k, cur) -> {
+            if (cur != entry) return cur;
+            removed[0] = true;
+            if (valueBytes != null) {
+                int overwritten = offHeapStore.put(k, valueBytes, entry.getCreatedTime(), entry.lastUpdatedTime);
+                if (overwritten >= 0) {
+                    stats.countOffHeapPut(overwritten);
+                }
             }
+            return null;
+        });
+        if (!removed[0]) return false;
+        if (weigher != null) totalWeight.addAndGet(-entry.weight);
+        stats.countEviction();
+        return true;
+    }
+    private V readOffHeapValue(K key) {
+        MOffHeapStore.Stored stored = offHeapStore != null ? offHeapStore.get(key) : null;
+        if (stored == null) return null;
+        try {
+            return offHeapSerializer.deserialize(stored.bytes);
+        } catch (Exception e) {
+            logOffHeapError("deserializing", key, e);
+            return null;
+        }
+    }
+    private void logOffHeapError(String operation, Object key, Exception e) {
+        // log the first error in full, after that only at debug level as this could be a lot of noise
+        if (!offHeapErrorLogged) {
+            offHeapErrorLogged = true;
+            logger.warn("Error " + operation + " off-heap value for key " + key + " in cache " + name + ", entry not kept off-heap (further errors logged at debug level)", e);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Error " + operation + " off-heap value for key " + key + " in cache " + name, e);
         }
     }
 
+    /** Entry in the off-heap tier returned by the iterator, value is deserialized on demand */
+    private static class OffHeapEntry<K, V> extends MEntry<K, V> {
+        private final MCache<K, V> mCache;
+        OffHeapEntry(MCache<K, V> mCache, K key, long createdTime, long lastUpdatedTime) {
+            super(key, null, createdTime, lastUpdatedTime, lastUpdatedTime);
+            this.mCache = mCache;
+        }
+        @Override
+        public V getValue() {
+            if (value == null) value = mCache.readOffHeapValue(getKey());
+            return value;
+        }
+    }
+
+    /* ========== Methods for MEvictionPolicy implementations ========== */
+
+    boolean isOverBounds() {
+        return (maxEntries > 0 && entryStore.size() > maxEntries) || (maxWeight > 0 && weigher != null && totalWeight.get() > maxWeight);
+    }
+    boolean isCurrentEntry(MEntry<K, V> entry) { return entryStore.get(entry.getKey()) == entry; }
+    Collection<MEntry<K, V>> entryValues() { return entryStore.values(); }
+    /** Remove the entry if still in the cache and count an eviction, returns false if it was already removed */
+    boolean evictEntry(MEntry<K, V> entry) {
+        if (offHeapStore != null && !entry.isExpired) return demoteEntry(entry);
+        // NOTE: MEntry.equals() compares values so this may remove a replacement entry with an equal value, fine for eviction
+        if (!entryStore.remove(entry.getKey(), entry)) return false;
+        if (weigher != null) totalWeight.addAndGet(-entry.weight);
+        stats.countEviction();
+        return true;
+    }
+
+    private static class EvictRunnable implements Runnable {
+        final MCache<?, ?> cache;
+        EvictRunnable(MCache<?, ?> mc) { cache = mc; }
+        @Override
+        public void run() {
+            MEvictionPolicy<?, ?> policy = cache.evictionPolicy;
+            if (policy == null || !cache.isOverBounds()) return;
+
+            long startNanos = System.nanoTime();
+            int entriesEvicted = policy.evict();
+            long elapsedNanos = System.nanoTime() - startNanos;
+            cache.stats.recordEvictRun(elapsedNanos);
+            logger.info("Evicted " + entriesEvicted + " entries in " + (elapsedNanos / 1000000) + "ms from cache " + cache.name + " with policy " + policy.getName());
+        }
+    }
 }
@@ -26,10 +26,24 @@ public class MCacheConfiguration<K, V> extends MutableConfiguration<K, V> {
         super(conf);
     }
 
+    /** Evict least frequently used (by access count) entries, in a scheduled worker */
+    public static final String EVICT_LFU = "least-frequently-used";
+    /** Evict least recently used (by last access time) entries, in a scheduled worker */
+    public static final String EVICT_LRU = "least-recently-used";
+    /** W-TinyLFU style frequency sketch admission with inline eviction on put, see MTinyLfuEvictionPolicy */
+    public static final String EVICT_TINY_LFU = "tiny-lfu";
+
     int maxEntries = 0;
     long maxCheckSeconds = 30;
+    String evictionPolicy = EVICT_LFU;
+    long maxWeight = 0;
+    transient MWeigher<K, V> weigher = null;
+    long offHeapMaxBytes = 0;
+    transient MCacheSerializer<V> offHeapSerializer = null;
+    long refreshAfterMillis = 0;
 
-    /** Set maximum number of entries in the cache, 0 means no limit (default). Limit is enforced in a scheduled worker, not on put operations. */
+    /** Set maximum number of entries in the cache, 0 means no limit (default). For the scheduled eviction policies the limit is
+     * enforced in a scheduled worker, not on put operations; for tiny-lfu it is enforced on put. */
     public MCacheConfiguration<K, V> setMaxEntries(int elements) {
         maxEntries = elements;
         return this;
@@ -47,4 +61,63 @@ public class MCacheConfiguration<K, V> extends MutableConfiguration<K, V> {
     public long getMaxCheckSeconds() {
         return maxCheckSeconds;
     }
+
+    /** Set the eviction policy used when max entries or max weight is set, one of the EVICT_* constants; defaults to EVICT_LFU */
+    public MCacheConfiguration<K, V> setEvictionPolicy(String policy) {
+        if (policy == null || policy.isEmpty()) policy = EVICT_LFU;
+        if (!EVICT_LFU.equals(policy) && !EVICT_LRU.equals(policy) && !EVICT_TINY_LFU.equals(policy))
+            throw new IllegalArgumentException("Eviction policy " + policy + " not supported");
+        evictionPolicy = policy;
+        return this;
+    }
+    public String getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /** Set maximum total weight of entries in the cache as calculated by the weigher, 0 means no limit (default).
+     * If set and no weigher is set the MSizeWeigher (estimated bytes) is used. */
+    public MCacheConfiguration<K, V> setMaxWeight(long weight) {
+        maxWeight = weight;
+        return this;
+    }
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public MCacheConfiguration<K, V> setWeigher(MWeigher<K, V> weigher) {
+        this.weigher = weigher;
+        return this;
+    }
+    public MWeigher<K, V> getWeigher() {
+        return weigher;
+    }
+
+    /** Set the byte budget for the off-heap tier, 0 means no off-heap tier (default). Entries evicted from the heap tier (so max
+     * entries or max weight must also be set) are serialized and stored off-heap, and are promoted back to the heap on get. */
+    public MCacheConfiguration<K, V> setOffHeapMaxBytes(long bytes) {
+        offHeapMaxBytes = bytes;
+        return this;
+    }
+    public long getOffHeapMaxBytes() {
+        return offHeapMaxBytes;
+    }
+
+    /** Serializer for off-heap values, defaults to MCompactSerializer */
+    public MCacheConfiguration<K, V> setOffHeapSerializer(MCacheSerializer<V> serializer) {
+        offHeapSerializer = serializer;
+        return this;
+    }
+    public MCacheSerializer<V> getOffHeapSerializer() {
+        return offHeapSerializer;
+    }
+
+    /** Set the age after which an entry is due for refresh-ahead, 0 means no refresh-ahead (default). The cache does not load
+     * values itself, callers use MCache.claimRefresh() on get and reload in the background while the current value is served. */
+    public MCacheConfiguration<K, V> setRefreshAfter(long millis) {
+        refreshAfterMillis = millis;
+        return this;
+    }
+    public long getRefreshAfter() {
+        return refreshAfterMillis;
+    }
 }
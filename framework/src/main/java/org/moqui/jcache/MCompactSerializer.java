@@ -0,0 +1,262 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compact serializer for cache values. Common types (String, numbers, dates, byte[], List, Map) are written with a one byte type
+ * tag and no class descriptor. Externalizable objects are written with their class name (once per value) followed by their own
+ * writeExternal() output, using this same compact stream so nested objects are compact as well; this is what makes EntityValueBase
+ * (through LiteStringMap.writeExternal()) and EntityListImpl small. Anything else that is Serializable falls back to standard Java
+ * serialization. */
+public class MCompactSerializer<V> implements MCacheSerializer<V> {
+    private static final byte NULL = 0, STRING = 1, LONG_STRING = 2, INTEGER = 3, LONG = 4, DOUBLE = 5, FLOAT = 6, BOOLEAN_TRUE = 7,
+            BOOLEAN_FALSE = 8, BIG_DECIMAL = 9, BIG_INTEGER = 10, TIMESTAMP = 11, SQL_DATE = 12, SQL_TIME = 13, DATE = 14, BYTES = 15,
+            LIST = 16, MAP = 17, EXTERNALIZABLE = 18, SERIALIZABLE = 19, SHORT = 20, CHARACTER = 21;
+    // writeUTF() is limited to 65535 bytes, at up to 3 bytes per char this many chars is always safe
+    private static final int MAX_UTF_CHARS = 21000;
+
+    private static final Map<String, Constructor<?>> externalizableConstructors = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] serialize(V value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        try (CompactObjectOutput out = new CompactObjectOutput(baos)) { out.writeObject(value); }
+        return baos.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (CompactObjectInput in = makeInput(new ByteArrayInputStream(bytes))) { return (V) in.readObject(); }
+    }
+    /** Override to use a CompactObjectInput subclass, like to initialize Externalizable instances before readExternal() */
+    protected CompactObjectInput makeInput(InputStream in) { return new CompactObjectInput(in); }
+
+    static Constructor<?> getExternalizableConstructor(String className) throws ClassNotFoundException {
+        Constructor<?> cons = externalizableConstructors.get(className);
+        if (cons != null) return cons;
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        Class<?> theClass = cl != null ? Class.forName(className, true, cl) : Class.forName(className);
+        try {
+            cons = theClass.getDeclaredConstructor();
+            cons.setAccessible(true);
+        } catch (Exception e) {
+            throw new ClassNotFoundException("No default constructor for Externalizable class " + className, e);
+        }
+        externalizableConstructors.put(className, cons);
+        return cons;
+    }
+
+    public static class CompactObjectOutput extends DataOutputStream implements ObjectOutput {
+        private final Map<String, Integer> classIndexMap = new HashMap<>();
+        public CompactObjectOutput(OutputStream out) { super(out); }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            if (obj == null) { writeByte(NULL); return; }
+            if (obj instanceof String) {
+                String str = (String) obj;
+                if (str.length() <= MAX_UTF_CHARS) {
+                    writeByte(STRING);
+                    writeUTF(str);
+                } else {
+                    writeByte(LONG_STRING);
+                    byte[] strBytes = str.getBytes(StandardCharsets.UTF_8);
+                    writeInt(strBytes.length);
+                    write(strBytes);
+                }
+                return;
+            }
+            Class<?> objClass = obj.getClass();
+            if (objClass == Long.class) { writeByte(LONG); writeLong((Long) obj); }
+            else if (objClass == Integer.class) { writeByte(INTEGER); writeInt((Integer) obj); }
+            else if (objClass == BigDecimal.class) {
+                BigDecimal bd = (BigDecimal) obj;
+                writeByte(BIG_DECIMAL);
+                writeInt(bd.scale());
+                byte[] unscaled = bd.unscaledValue().toByteArray();
+                writeInt(unscaled.length);
+                write(unscaled);
+            }
+            else if (objClass == java.sql.Timestamp.class) {
+                java.sql.Timestamp ts = (java.sql.Timestamp) obj;
+                writeByte(TIMESTAMP);
+                writeLong(ts.getTime());
+                writeInt(ts.getNanos());
+            }
+            else if (objClass == Boolean.class) { writeByte((Boolean) obj ? BOOLEAN_TRUE : BOOLEAN_FALSE); }
+            else if (objClass == Double.class) { writeByte(DOUBLE); writeDouble((Double) obj); }
+            else if (objClass == Float.class) { writeByte(FLOAT); writeFloat((Float) obj); }
+            else if (objClass == Short.class) { writeByte(SHORT); writeShort((Short) obj); }
+            else if (objClass == Character.class) { writeByte(CHARACTER); writeChar((Character) obj); }
+            else if (objClass == BigInteger.class) {
+                byte[] bytes = ((BigInteger) obj).toByteArray();
+                writeByte(BIG_INTEGER);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+            else if (objClass == java.sql.Date.class) { writeByte(SQL_DATE); writeLong(((java.sql.Date) obj).getTime()); }
+            else if (objClass == java.sql.Time.class) { writeByte(SQL_TIME); writeLong(((java.sql.Time) obj).getTime()); }
+            else if (objClass == Date.class) { writeByte(DATE); writeLong(((Date) obj).getTime()); }
+            else if (objClass == byte[].class) {
+                byte[] bytes = (byte[]) obj;
+                writeByte(BYTES);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+            else if (obj instanceof Externalizable) {
+                writeByte(EXTERNALIZABLE);
+                writeClassName(objClass.getName());
+                ((Externalizable) obj).writeExternal(this);
+            }
+            else if (objClass == ArrayList.class || objClass == LinkedList.class) {
+                List<?> list = (List<?>) obj;
+                writeByte(LIST);
+                writeInt(list.size());
+                for (Object item : list) writeObject(item);
+            }
+            else if (objClass == HashMap.class || objClass == LinkedHashMap.class) {
+                Map<?, ?> map = (Map<?, ?>) obj;
+                writeByte(MAP);
+                writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) { writeObject(entry.getKey()); writeObject(entry.getValue()); }
+            }
+            else if (obj instanceof Serializable) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(baos)) { oos.writeObject(obj); }
+                byte[] bytes = baos.toByteArray();
+                writeByte(SERIALIZABLE);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+            else {
+                throw new NotSerializableException(objClass.getName());
+            }
+        }
+
+        private void writeClassName(String className) throws IOException {
+            Integer classIndex = classIndexMap.get(className);
+            if (classIndex != null) {
+                writeInt(classIndex);
+            } else {
+                writeInt(-1);
+                writeUTF(className);
+                classIndexMap.put(className, classIndexMap.size());
+            }
+        }
+    }
+
+    public static class CompactObjectInput extends DataInputStream implements ObjectInput {
+        private final ArrayList<String> classNameList = new ArrayList<>();
+        public CompactObjectInput(InputStream in) { super(in); }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL: return null;
+                case STRING: return readUTF();
+                case LONG_STRING: return new String(readBytes(), StandardCharsets.UTF_8);
+                case INTEGER: return readInt();
+                case LONG: return readLong();
+                case DOUBLE: return readDouble();
+                case FLOAT: return readFloat();
+                case SHORT: return readShort();
+                case CHARACTER: return readChar();
+                case BOOLEAN_TRUE: return Boolean.TRUE;
+                case BOOLEAN_FALSE: return Boolean.FALSE;
+                case BIG_DECIMAL: {
+                    int scale = readInt();
+                    return new BigDecimal(new BigInteger(readBytes()), scale);
+                }
+                case BIG_INTEGER: return new BigInteger(readBytes());
+                case TIMESTAMP: {
+                    java.sql.Timestamp ts = new java.sql.Timestamp(readLong());
+                    ts.setNanos(readInt());
+                    return ts;
+                }
+                case SQL_DATE: return new java.sql.Date(readLong());
+                case SQL_TIME: return new java.sql.Time(readLong());
+                case DATE: return new Date(readLong());
+                case BYTES: return readBytes();
+                case LIST: {
+                    int size = readInt();
+                    ArrayList<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) list.add(readObject());
+                    return list;
+                }
+                case MAP: {
+                    int size = readInt();
+                    LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) map.put(readObject(), readObject());
+                    return map;
+                }
+                case EXTERNALIZABLE: {
+                    String className = readClassName();
+                    Externalizable ext = newExternalizable(className);
+                    ext.readExternal(this);
+                    return ext;
+                }
+                case SERIALIZABLE: {
+                    try (ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                        return ois.readObject();
+                    }
+                }
+                default: throw new StreamCorruptedException("Unknown type tag " + tag);
+            }
+        }
+
+        protected Externalizable newExternalizable(String className) throws ClassNotFoundException, IOException {
+            try {
+                return (Externalizable) getExternalizableConstructor(className).newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new InvalidClassException(className, "Could not create instance: " + e.toString());
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readInt()];
+            readFully(bytes);
+            return bytes;
+        }
+        private String readClassName() throws IOException {
+            int classIndex = readInt();
+            if (classIndex >= 0) return classNameList.get(classIndex);
+            String className = readUTF();
+            classNameList.add(className);
+            return className;
+        }
+    }
+
+    /** Resolve classes with the thread context ClassLoader, for classes from components */
+    static class ContextObjectInputStream extends ObjectInputStream {
+        ContextObjectInputStream(InputStream in) throws IOException { super(in); }
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl != null) {
+                try { return Class.forName(desc.getName(), false, cl); }
+                catch (ClassNotFoundException e) { /* fall back to default below */ }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
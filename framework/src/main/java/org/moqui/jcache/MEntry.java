@@ -16,9 +16,11 @@ package org.moqui.jcache;
 import javax.cache.Cache;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class MEntry<K, V> implements Cache.Entry<K, V> {
     private static final Class<MEntry> thisClass = MEntry.class;
+    private static final AtomicIntegerFieldUpdater<MEntry<?, ?>> weightUpdater = makeWeightUpdater();
     private final K key;
     V value;
     private long createdTime = 0;
@@ -26,6 +28,10 @@ public class MEntry<K, V> implements Cache.Entry<K, V> {
     long lastAccessTime = 0;
     long accessCount = 0;
     boolean isExpired = false;
+    // weight from the cache's MWeigher, 0 if the cache has no weigher; set directly only before the entry is in the cache
+    volatile int weight = 0;
+    // for MTinyLfuEvictionPolicy, true while in the admission window
+    boolean inWindow = false;
 
     /**
      * Use this only to create MEntry to compare with an existing entry
@@ -46,6 +52,17 @@ public class MEntry<K, V> implements Cache.Entry<K, V> {
         lastAccessTime = createdTime;
     }
 
+    /**
+     * For entries coming back from the off-heap tier, keeps the original created and updated times for expiry
+     */
+    MEntry(K key, V value, long createdTime, long lastUpdatedTime, long accessTime) {
+        this.key = key;
+        this.value = value;
+        this.createdTime = createdTime;
+        this.lastUpdatedTime = lastUpdatedTime;
+        lastAccessTime = accessTime;
+    }
+
     @Override
     public K getKey() {
         return key;
@@ -107,6 +124,19 @@ public class MEntry<K, V> implements Cache.Entry<K, V> {
         return accessCount;
     }
 
+    public int getWeight() {
+        return weight;
+    }
+
+    /** Set weight for current value, returns difference from the previous weight */
+    int updateWeight(int newWeight) {
+        return newWeight - weightUpdater.getAndSet(this, newWeight);
+    }
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicIntegerFieldUpdater<MEntry<?, ?>> makeWeightUpdater() {
+        return (AtomicIntegerFieldUpdater) AtomicIntegerFieldUpdater.newUpdater(MEntry.class, "weight");
+    }
+
     /* done directly on fields for performance reasons
     void countAccess(long accessTime) {
         accessCount++; if (accessTime > lastAccessTime) lastAccessTime = accessTime;
@@ -0,0 +1,31 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+/** Eviction policy for a bounded MCache (max entries and/or max weight). An instance is created per cache by MCache based on the
+ * policy name in MCacheConfiguration, see the EVICT_* constants there. */
+public interface MEvictionPolicy<K, V> {
+    /** Called for every get on the cache, hit or miss; must be cheap and must not block */
+    void recordAccess(K key);
+    /** Called after a new entry has been added to the cache; policies that evict inline do so from here when the cache is over its bounds */
+    void afterAdd(MEntry<K, V> entry);
+    /** Evict entries until the cache is within its bounds, returns the number of entries evicted */
+    int evict();
+    /** Called when all entries are removed from the cache, clears any state the policy keeps about entries */
+    void clear();
+    /** If true evict() is called from the MCacheEvict scheduled worker, if false the policy evicts inline in afterAdd() */
+    boolean isScheduled();
+    /** Name of the policy, for cache info and logging */
+    String getName();
+}
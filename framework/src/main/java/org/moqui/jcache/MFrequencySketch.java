@@ -0,0 +1,116 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A 4-bit Count-Min sketch used as the TinyLFU frequency filter for MCache admission and eviction decisions.
+ * Each long in the table holds sixteen 4-bit counters; each key maps to four counters (one per hash seed) and its estimated
+ * frequency is the minimum of those. When the number of increments reaches the sample size all counters are halved so that
+ * the history ages and old popularity does not keep stale entries in the cache forever.
+ *
+ * Counters are updated with compare and set so concurrent increments are not lost; the halving is done by one thread at a
+ * time (others skip it) and is not atomic across the table, fine for a frequency estimate. */
+class MFrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final ReentrantLock resetLock = new ReentrantLock();
+
+    MFrequencySketch(long expectedEntries) {
+        int maximum = (int) Math.min(Math.max(expectedEntries, 16), 1 << 28);
+        int tableSize = Integer.highestOneBit(maximum - 1) << 1;
+        table = new AtomicLongArray(tableSize);
+        tableMask = tableSize - 1;
+        sampleSize = 10 * maximum;
+    }
+
+    /** Estimated number of times the key has been seen in the current sample period, from 0 to 15 */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table.get(index) >>> ((start + i) << 2)) & 0xfL);
+            if (count < frequency) frequency = count;
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) added |= incrementAt(indexOf(hash, i), start + i);
+        if (added && size.incrementAndGet() >= sampleSize) reset();
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        while (true) {
+            long cur = table.get(i);
+            if ((cur & mask) == mask) return false;
+            if (table.compareAndSet(i, cur, cur + (1L << offset))) return true;
+        }
+    }
+
+    /** Halve all counters, the frequency history ages by half each sample period */
+    private void reset() {
+        if (!resetLock.tryLock()) return;
+        try {
+            // another thread may have just done it
+            if (size.get() < sampleSize) return;
+            int oddCount = 0;
+            for (int i = 0; i < table.length(); i++) {
+                long prev = table.getAndUpdate(i, cur -> (cur >>> 1) & RESET_MASK);
+                oddCount += Long.bitCount(prev & ONE_MASK);
+            }
+            final int oddQuarter = oddCount >>> 2;
+            size.updateAndGet(cur -> Math.max(0, (cur >>> 1) - oddQuarter));
+        } finally {
+            resetLock.unlock();
+        }
+    }
+
+    /** Clear all counters, for when the cache is cleared */
+    void clear() {
+        resetLock.lock();
+        try {
+            for (int i = 0; i < table.length(); i++) table.set(i, 0L);
+            size.set(0);
+        } finally {
+            resetLock.unlock();
+        }
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
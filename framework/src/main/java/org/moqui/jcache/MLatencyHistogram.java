@@ -0,0 +1,102 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Log-linear latency histogram in nanoseconds for MStats and entity query stats, with four sub-buckets per power of two
+ * so percentiles are accurate to within 25%. Meant for operations that take real time like loads, eviction runs and
+ * queries, not for every cache get. Values above about 18 minutes go in the last bucket. Recording is lock-free; reads
+ * are not a consistent snapshot under concurrent recording which is fine for monitoring. For percentiles over an
+ * interval subtract an earlier getBucketSnapshot() from a later one and use percentileNanos(). */
+public class MLatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        long curMax = maxNanos.get();
+        while (nanos > curMax && !maxNanos.compareAndSet(curMax, nanos)) curMax = maxNanos.get();
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getTotalNanos() { return totalNanos.sum(); }
+    public long getMaxNanos() { return maxNanos.get(); }
+    public float getMeanMicros() {
+        long curCount = count.sum();
+        return curCount == 0 ? 0 : (totalNanos.sum() / 1000f) / curCount;
+    }
+    public float getMaxMicros() { return maxNanos.get() / 1000f; }
+    /** Get the upper bound of the bucket containing the percentile (0-100) in microseconds, capped at the max recorded */
+    public float getPercentileMicros(double percentile) { return getPercentileNanos(percentile) / 1000f; }
+    /** Get the upper bound of the bucket containing the percentile (0-100) in nanoseconds, capped at the max recorded */
+    public long getPercentileNanos(double percentile) {
+        return Math.min(percentileNanos(getBucketSnapshot(), percentile), maxNanos.get());
+    }
+    /** Copy of the count in each bucket */
+    public long[] getBucketSnapshot() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) snapshot[i] = buckets.get(i);
+        return snapshot;
+    }
+    /** Upper bound in nanoseconds of the bucket containing the percentile (0-100) of counts from getBucketSnapshot(), or
+     * of the difference between two snapshots; 0 if there are no counts */
+    public static long percentileNanos(long[] bucketCounts, double percentile) {
+        long total = 0;
+        for (int i = 0; i < bucketCounts.length; i++) total += bucketCounts[i];
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= target) return bucketUpperBound(i);
+        }
+        return bucketUpperBound(bucketCounts.length - 1);
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) buckets.set(i, 0);
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < SUB_COUNT) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+        int sub = (int) ((nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+    static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lower = ((long) (SUB_COUNT + sub)) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Off-heap second tier storage for MCache, holds serialized values in direct ByteBuffers so they don't add to GC work.
+ *
+ * The byte budget is split into segments (by key hash, each with its own lock) and each segment is a circular log: values are
+ * appended at the write position and when the log wraps around the oldest values are overwritten, so the off-heap tier is FIFO
+ * within the byte budget with no fragmentation or free list. Keys stay on the heap in a per-segment index.
+ *
+ * Direct memory used is limited by the JVM -XX:MaxDirectMemorySize setting (by default the max heap size), segment buffers
+ * are allocated on first use. */
+class MOffHeapStore<K> {
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+    private static final int MIN_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+
+    static final class Slot<K> {
+        final K key;
+        final int offset, length;
+        final long lap, createdTime, lastUpdatedTime;
+        boolean live = true;
+        Slot(K key, int offset, int length, long lap, long createdTime, long lastUpdatedTime) {
+            this.key = key; this.offset = offset; this.length = length; this.lap = lap;
+            this.createdTime = createdTime; this.lastUpdatedTime = lastUpdatedTime;
+        }
+    }
+    /** Value bytes read from the store with the times of the original entry */
+    static final class Stored {
+        final byte[] bytes;
+        final long createdTime, lastUpdatedTime;
+        Stored(byte[] bytes, long createdTime, long lastUpdatedTime) {
+            this.bytes = bytes; this.createdTime = createdTime; this.lastUpdatedTime = lastUpdatedTime;
+        }
+    }
+
+    private final Segment<K>[] segments;
+    private final long maxBytes;
+
+    @SuppressWarnings("unchecked")
+    MOffHeapStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+        int segmentCount = (int) Math.min(MAX_SEGMENTS, Math.max(1, maxBytes / MIN_SEGMENT_BYTES));
+        while (maxBytes / segmentCount > MAX_SEGMENT_BYTES) segmentCount++;
+        segments = (Segment<K>[]) new Segment<?>[segmentCount];
+        int segmentBytes = (int) (maxBytes / segmentCount);
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment<>(segmentBytes);
+    }
+
+    private Segment<K> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /** Store bytes for a key, replacing any existing value; returns the number of other values overwritten to make room,
+     * or -1 if the value is too large to store */
+    int put(K key, byte[] bytes, long createdTime, long lastUpdatedTime) {
+        return segmentFor(key).put(key, bytes, createdTime, lastUpdatedTime);
+    }
+    Stored get(K key) { return segmentFor(key).get(key, false); }
+    /** Get and remove, for promotion back to the heap tier */
+    Stored remove(K key) { return segmentFor(key).get(key, true); }
+    /** Remove without reading the value, returns true if there was a value for the key */
+    boolean delete(K key) { return segmentFor(key).delete(key); }
+    boolean containsKey(K key) { return segmentFor(key).containsKey(key); }
+    void clear() { for (Segment<K> segment : segments) segment.clear(); }
+    /** Release the direct buffers (memory is freed when they are garbage collected) */
+    void close() { for (Segment<K> segment : segments) segment.close(); }
+
+    long getMaxBytes() { return maxBytes; }
+    int size() {
+        int size = 0;
+        for (Segment<K> segment : segments) size += segment.size();
+        return size;
+    }
+    long getUsedBytes() {
+        long used = 0;
+        for (Segment<K> segment : segments) used += segment.getUsedBytes();
+        return used;
+    }
+    ArrayList<Slot<K>> getSlotList() {
+        ArrayList<Slot<K>> slotList = new ArrayList<>();
+        for (Segment<K> segment : segments) segment.addSlots(slotList);
+        return slotList;
+    }
+
+    private static final class Segment<K> {
+        private final int capacity;
+        private ByteBuffer buffer = null;
+        private final HashMap<K, Slot<K>> index = new HashMap<>();
+        // slots in write order, oldest first; may include dead (replaced or removed) slots until the log wraps over them
+        private final ArrayDeque<Slot<K>> writeOrder = new ArrayDeque<>();
+        private int writePos = 0;
+        private long lap = 0;
+        private long usedBytes = 0;
+
+        Segment(int capacity) { this.capacity = capacity; }
+
+        synchronized int put(K key, byte[] bytes, long createdTime, long lastUpdatedTime) {
+            int length = bytes.length;
+            if (length > capacity) return -1;
+            if (buffer == null) buffer = ByteBuffer.allocateDirect(capacity);
+            removeInternal(key);
+
+            int overwritten = 0;
+            if (writePos + length > capacity) {
+                // wrap around, everything left from the previous lap is in the tail being skipped
+                while (!writeOrder.isEmpty() && writeOrder.peekFirst().lap < lap) overwritten += dropOldest();
+                lap++;
+                writePos = 0;
+            }
+            int end = writePos + length;
+            while (!writeOrder.isEmpty()) {
+                Slot<K> oldest = writeOrder.peekFirst();
+                if (oldest.lap == lap || oldest.offset >= end) break;
+                overwritten += dropOldest();
+            }
+
+            buffer.put(writePos, bytes);
+            Slot<K> slot = new Slot<>(key, writePos, length, lap, createdTime, lastUpdatedTime);
+            index.put(key, slot);
+            writeOrder.addLast(slot);
+            usedBytes += length;
+            writePos = end;
+            return overwritten;
+        }
+        private int dropOldest() {
+            Slot<K> oldest = writeOrder.pollFirst();
+            if (oldest == null || !oldest.live) return 0;
+            oldest.live = false;
+            index.remove(oldest.key);
+            usedBytes -= oldest.length;
+            return 1;
+        }
+        private void removeInternal(K key) {
+            Slot<K> existing = index.remove(key);
+            if (existing != null) {
+                existing.live = false;
+                usedBytes -= existing.length;
+            }
+        }
+
+        synchronized Stored get(K key, boolean remove) {
+            Slot<K> slot = index.get(key);
+            if (slot == null) return null;
+            byte[] bytes = new byte[slot.length];
+            buffer.get(slot.offset, bytes);
+            if (remove) removeInternal(key);
+            return new Stored(bytes, slot.createdTime, slot.lastUpdatedTime);
+        }
+        synchronized boolean delete(K key) {
+            if (!index.containsKey(key)) return false;
+            removeInternal(key);
+            return true;
+        }
+        synchronized boolean containsKey(K key) { return index.containsKey(key); }
+        synchronized void clear() {
+            index.clear();
+            writeOrder.clear();
+            writePos = 0;
+            usedBytes = 0;
+        }
+        synchronized void close() {
+            clear();
+            buffer = null;
+        }
+        synchronized int size() { return index.size(); }
+        synchronized long getUsedBytes() { return usedBytes; }
+        synchronized void addSlots(ArrayList<Slot<K>> slotList) { slotList.addAll(index.values()); }
+    }
+}
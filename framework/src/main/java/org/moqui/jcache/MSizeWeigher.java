@@ -0,0 +1,64 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/** Weigher that estimates the retained heap size of an entry in bytes. This is a rough estimate based on typical 64-bit JVM
+ * object layouts with compressed references, meant to make cache memory use predictable and not to be exact. Map keys are
+ * counted as references only because for entity values (the main use case, including EntityList of EntityValue) field names
+ * are interned and shared. */
+public class MSizeWeigher<K, V> implements MWeigher<K, V> {
+    protected static final int ENTRY_OVERHEAD = 96;
+    protected static final int REFERENCE_SIZE = 8;
+    protected static final int MAX_DEPTH = 6;
+
+    @Override
+    public int weigh(K key, V value) {
+        long size = ENTRY_OVERHEAD + estimate(key, 0) + estimate(value, 0);
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    protected long estimate(Object obj, int depth) {
+        if (obj == null) return 0;
+        if (depth > MAX_DEPTH) return REFERENCE_SIZE;
+        if (obj instanceof CharSequence) return 40 + (((CharSequence) obj).length() << 1);
+        if (obj instanceof BigDecimal) return 72;
+        if (obj instanceof Number || obj instanceof Boolean || obj instanceof Character) return 16;
+        if (obj instanceof Date) return 32;
+        if (obj instanceof byte[]) return 16 + ((byte[]) obj).length;
+        if (obj instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) obj;
+            long size = 48;
+            for (Object val : map.values()) size += REFERENCE_SIZE * 2 + estimate(val, depth + 1);
+            return size;
+        }
+        if (obj instanceof Collection) {
+            Collection<?> coll = (Collection<?>) obj;
+            long size = 40;
+            for (Object val : coll) size += REFERENCE_SIZE + estimate(val, depth + 1);
+            return size;
+        }
+        if (obj instanceof Object[]) {
+            Object[] arr = (Object[]) obj;
+            long size = 16 + (long) REFERENCE_SIZE * arr.length;
+            for (Object val : arr) size += estimate(val, depth + 1);
+            return size;
+        }
+        return 64;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/** The original MCache eviction: periodically (in the MCacheEvict scheduled worker) sort all entries by access count (LFU) or last
+ * access time (LRU) and remove the least used until within bounds. Cheap on get/put, but the cache may exceed its bounds between runs. */
+class MSortedEvictionPolicy<K, V> implements MEvictionPolicy<K, V> {
+    private static final Comparator<MEntry<?, ?>> lfuComparator = new LfuComparator();
+    private static final Comparator<MEntry<?, ?>> lruComparator = new LruComparator();
+
+    private final MCache<K, V> cache;
+    private final boolean leastRecent;
+
+    MSortedEvictionPolicy(MCache<K, V> cache, boolean leastRecent) {
+        this.cache = cache;
+        this.leastRecent = leastRecent;
+    }
+
+    @Override public void recordAccess(K key) { }
+    @Override public void afterAdd(MEntry<K, V> entry) { }
+    @Override public void clear() { }
+    @Override public boolean isScheduled() { return true; }
+    @Override public String getName() { return leastRecent ? MCacheConfiguration.EVICT_LRU : MCacheConfiguration.EVICT_LFU; }
+
+    @Override
+    public int evict() {
+        if (!cache.isOverBounds()) return 0;
+
+        Collection<MEntry<K, V>> entrySet = cache.entryValues();
+        PriorityQueue<MEntry<K, V>> priorityQueue = new PriorityQueue<>(Math.max(entrySet.size(), 1),
+                leastRecent ? lruComparator : lfuComparator);
+        priorityQueue.addAll(entrySet);
+
+        int entriesEvicted = 0;
+        while (cache.isOverBounds() && priorityQueue.size() > 0) {
+            MEntry<K, V> curEntry = priorityQueue.poll();
+            // if an entry was expired after pulling the initial value set
+            if (curEntry.isExpired) continue;
+            if (cache.evictEntry(curEntry)) entriesEvicted++;
+        }
+        return entriesEvicted;
+    }
+
+    private static class LfuComparator implements Comparator<MEntry<?, ?>> {
+        @Override
+        public int compare(MEntry<?, ?> e1, MEntry<?, ?> e2) {
+            if (e1.accessCount == e2.accessCount) {
+                if (e1.lastAccessTime == e2.lastAccessTime) return 0;
+                else return e1.lastAccessTime > e2.lastAccessTime ? 1 : -1;
+            } else {
+                return e1.accessCount > e2.accessCount ? 1 : -1;
+            }
+        }
+    }
+    private static class LruComparator implements Comparator<MEntry<?, ?>> {
+        @Override
+        public int compare(MEntry<?, ?> e1, MEntry<?, ?> e2) {
+            if (e1.lastAccessTime == e2.lastAccessTime) return 0;
+            else return e1.lastAccessTime > e2.lastAccessTime ? 1 : -1;
+        }
+    }
+}
@@ -14,113 +14,155 @@
 package org.moqui.jcache;
 
 import javax.cache.management.CacheStatisticsMXBean;
+import java.util.concurrent.atomic.LongAdder;
 
+/** Statistics for an MCache. Counters are LongAdder so concurrent gets and puts from many threads don't contend on shared
+ * fields; sums are calculated when read. Gets are not counted separately, they are hits plus misses. Latency histograms are
+ * kept for loads (recorded by callers that load values into the cache, like the entity cache) and eviction runs. */
 public class MStats implements CacheStatisticsMXBean {
-    long hits = 0;
-    long misses = 0;
-    long gets = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
-    long puts = 0;
-    private long removals = 0;
-    long evictions = 0;
-    private long expires = 0;
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expires = new LongAdder();
 
-    // long totalGetMicros = 0, totalPutMicros = 0, totalRemoveMicros = 0;
+    // off-heap tier: hits are promotions back to the heap tier, puts are entries evicted from the heap tier, evictions are
+    //     entries overwritten in the off-heap tier to make room
+    private final LongAdder offHeapHits = new LongAdder();
+    private final LongAdder offHeapMisses = new LongAdder();
+    private final LongAdder offHeapPuts = new LongAdder();
+    private final LongAdder offHeapEvictions = new LongAdder();
+
+    // invalidation of entries for a written record, counted by callers that do it like the entity list cache
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder invalidationNanos = new LongAdder();
+
+    // refresh-ahead reloads that replaced an entry
+    private final LongAdder refreshes = new LongAdder();
+
+    private final MLatencyHistogram loadHistogram = new MLatencyHistogram();
+    private final MLatencyHistogram evictHistogram = new MLatencyHistogram();
 
     @Override
     public void clear() {
-        hits = 0;
-        misses = 0;
-        gets = 0;
-        puts = 0;
-        removals = 0;
-        evictions = 0;
-        expires = 0;
+        hits.reset();
+        misses.reset();
+        puts.reset();
+        removals.reset();
+        evictions.reset();
+        expires.reset();
+        offHeapHits.reset();
+        offHeapMisses.reset();
+        offHeapPuts.reset();
+        offHeapEvictions.reset();
+        invalidations.reset();
+        invalidationNanos.reset();
+        refreshes.reset();
+        loadHistogram.clear();
+        evictHistogram.clear();
     }
 
     @Override
     public long getCacheHits() {
-        return hits;
+        return hits.sum();
     }
 
     @Override
     public float getCacheHitPercentage() {
-        return (hits / gets) * 100;
+        long curHits = hits.sum();
+        long curGets = curHits + misses.sum();
+        return curGets == 0 ? 0 : (curHits * 100f) / curGets;
     }
 
     @Override
     public long getCacheMisses() {
-        return misses;
+        return misses.sum();
     }
 
     @Override
     public float getCacheMissPercentage() {
-        return (misses / gets) * 100;
+        long curMisses = misses.sum();
+        long curGets = curMisses + hits.sum();
+        return curGets == 0 ? 0 : (curMisses * 100f) / curGets;
     }
 
     @Override
     public long getCacheGets() {
-        return gets;
+        return hits.sum() + misses.sum();
     }
 
     @Override
     public long getCachePuts() {
-        return puts;
+        return puts.sum();
     }
 
     @Override
     public long getCacheRemovals() {
-        return removals;
+        return removals.sum();
     }
 
     @Override
     public long getCacheEvictions() {
-        return evictions;
+        return evictions.sum();
     }
 
     @Override
     public float getAverageGetTime() {
         return 0;
-    } // totalGetMicros / gets
+    } // not timed, too expensive relative to a get
 
     @Override
     public float getAveragePutTime() {
         return 0;
-    } // totalPutMicros / puts
+    }
 
     @Override
     public float getAverageRemoveTime() {
         return 0;
-    } // totalRemoveMicros / removals
-
-    public long getCacheExpires() {
-        return expires;
     }
 
-    /* have callers access fields directly for performance reasons:
-    void countHit() {
-        gets++; hits++;
-        // totalGetMicros += micros;
-    }
-    void countMiss() {
-        gets++; misses++;
-        // totalGetMicros += micros;
-    }
-    void countPut() {
-        puts++;
-        // totalPutMicros += micros;
-    }
-    */
-    void countRemoval() {
-        removals++;
-        // totalRemoveMicros += micros;
-    }
-
-    void countBulkRemoval(long entries) {
-        removals += entries;
-    }
-
-    void countExpire() {
-        expires++;
-    }
+    public long getCacheExpires() {
+        return expires.sum();
+    }
+
+    public long getOffHeapHits() { return offHeapHits.sum(); }
+    public long getOffHeapMisses() { return offHeapMisses.sum(); }
+    public long getOffHeapPuts() { return offHeapPuts.sum(); }
+    public long getOffHeapEvictions() { return offHeapEvictions.sum(); }
+
+    public long getInvalidationCount() { return invalidations.sum(); }
+    public float getAverageInvalidationMicros() {
+        long curInvalidations = invalidations.sum();
+        return curInvalidations == 0 ? 0 : (invalidationNanos.sum() / 1000f) / curInvalidations;
+    }
+    public void countInvalidation(long nanos) {
+        invalidations.increment();
+        invalidationNanos.add(nanos);
+    }
+
+    public long getRefreshCount() { return refreshes.sum(); }
+
+    /** Histogram of time to load values put in the cache after a miss, recorded by the caller doing the load */
+    public MLatencyHistogram getLoadHistogram() { return loadHistogram; }
+    public void recordLoad(long nanos) { loadHistogram.record(nanos); }
+    /** Histogram of eviction runs, inline or scheduled depending on the eviction policy */
+    public MLatencyHistogram getEvictHistogram() { return evictHistogram; }
+
+    void countHit() { hits.increment(); }
+    void countMiss() { misses.increment(); }
+    void countPut() { puts.increment(); }
+    void countRemoval() { removals.increment(); }
+    void countBulkRemoval(long entries) { removals.add(entries); }
+    void countEviction() { evictions.increment(); }
+    void countExpire() { expires.increment(); }
+    void countOffHeapHit() { offHeapHits.increment(); }
+    void countOffHeapMiss() { offHeapMisses.increment(); }
+    void countOffHeapPut(int overwritten) {
+        offHeapPuts.increment();
+        if (overwritten > 0) offHeapEvictions.add(overwritten);
+    }
+    void countRefresh() { refreshes.increment(); }
+    void recordEvictRun(long nanos) { evictHistogram.record(nanos); }
 }
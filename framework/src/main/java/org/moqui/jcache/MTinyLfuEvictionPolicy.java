@@ -0,0 +1,140 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** W-TinyLFU style eviction done inline on put, amortized over puts instead of in a scheduled sort of all entries.
+ *
+ * New entries go into a small admission window (about 1% of max entries) so that bursts of new keys get a chance to build up
+ * frequency. When an entry is pushed out of the window it becomes the candidate for the main region and, if the cache is over its
+ * bounds, competes with a victim sampled from the main region: the one with the lower estimated frequency (from MFrequencySketch,
+ * which counts every get including misses) is evicted. This keeps one-off keys from scans (reports, bulk reads) from flushing
+ * frequently used entries.
+ *
+ * Main region victims are chosen by sampling a few entries with a clock style iterator over the entry map, so no per-access
+ * ordering structure (and no lock on get) is needed. Eviction is done by whichever thread gets the evict lock, other threads
+ * doing puts at the same time don't wait and the next put picks up anything left over. */
+class MTinyLfuEvictionPolicy<K, V> implements MEvictionPolicy<K, V> {
+    private static final int SAMPLE_SIZE = 8;
+    private static final int MAX_SAMPLE_STEPS = SAMPLE_SIZE * 4;
+    private static final int MAX_EVICT_PER_CALL = 64;
+
+    private final MCache<K, V> cache;
+    private final MFrequencySketch sketch;
+    private final AtomicReferenceArray<MEntry<K, V>> window;
+    private final AtomicInteger windowIndex = new AtomicInteger(0);
+    private final ReentrantLock evictLock = new ReentrantLock();
+    // only used with evictLock held
+    private Iterator<MEntry<K, V>> clockIterator = null;
+
+    MTinyLfuEvictionPolicy(MCache<K, V> cache, int maxEntries) {
+        this.cache = cache;
+        int expectedEntries = maxEntries > 0 ? maxEntries : 8192;
+        sketch = new MFrequencySketch(expectedEntries);
+        window = new AtomicReferenceArray<>(Math.max(1, expectedEntries / 100));
+    }
+
+    @Override public void recordAccess(K key) { sketch.increment(key); }
+    @Override public boolean isScheduled() { return false; }
+    @Override public String getName() { return MCacheConfiguration.EVICT_TINY_LFU; }
+
+    @Override
+    public void afterAdd(MEntry<K, V> entry) {
+        entry.inWindow = true;
+        int slot = (windowIndex.getAndIncrement() & Integer.MAX_VALUE) % window.length();
+        MEntry<K, V> candidate = window.getAndSet(slot, entry);
+        if (candidate != null) candidate.inWindow = false;
+        if (cache.isOverBounds()) {
+            long startNanos = System.nanoTime();
+            evictInternal(candidate);
+            cache.getMStats().recordEvictRun(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public int evict() { return evictInternal(null); }
+
+    @Override
+    public void clear() {
+        evictLock.lock();
+        try {
+            for (int i = 0; i < window.length(); i++) window.set(i, null);
+            clockIterator = null;
+            sketch.clear();
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private int evictInternal(MEntry<K, V> candidate) {
+        if (!evictLock.tryLock()) return 0;
+        try {
+            int entriesEvicted = 0;
+            while (cache.isOverBounds() && entriesEvicted < MAX_EVICT_PER_CALL) {
+                if (candidate != null && !cache.isCurrentEntry(candidate)) candidate = null;
+                MEntry<K, V> victim = sampleVictim(candidate);
+                if (victim == null) victim = candidate;
+                if (victim == null) break;
+
+                // TinyLFU admission: the candidate from the window only stays if it is more popular than the main region victim
+                if (candidate != null && victim != candidate && !victim.isExpired &&
+                        sketch.frequency(candidate.getKey()) <= sketch.frequency(victim.getKey())) victim = candidate;
+                // the candidate only competes once
+                candidate = null;
+
+                if (cache.evictEntry(victim)) entriesEvicted++;
+            }
+            return entriesEvicted;
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /** Sample entries outside the window and return the one with the lowest frequency, or any expired entry found along the way */
+    private MEntry<K, V> sampleVictim(MEntry<K, V> candidate) {
+        MEntry<K, V> victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        MEntry<K, V> windowFallback = null;
+        int sampled = 0;
+        boolean restarted = false;
+        for (int steps = 0; sampled < SAMPLE_SIZE && steps < MAX_SAMPLE_STEPS; steps++) {
+            if (clockIterator == null || !clockIterator.hasNext()) {
+                // only start over once per sample so an empty or all-window cache doesn't spin
+                if (restarted) break;
+                clockIterator = cache.entryValues().iterator();
+                restarted = true;
+                if (!clockIterator.hasNext()) break;
+            }
+            MEntry<K, V> cur = clockIterator.next();
+            if (cur.isExpired) return cur;
+            if (cur == candidate) continue;
+            if (cur.inWindow) {
+                if (windowFallback == null) windowFallback = cur;
+                continue;
+            }
+            sampled++;
+            int curFrequency = sketch.frequency(cur.getKey());
+            if (victim == null || curFrequency < victimFrequency ||
+                    (curFrequency == victimFrequency && cur.lastAccessTime < victim.lastAccessTime)) {
+                victim = cur;
+                victimFrequency = curFrequency;
+            }
+        }
+        return victim != null ? victim : windowFallback;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+/** Calculates the weight of a cache entry, used with MCacheConfiguration.setMaxWeight() to bound a cache by size instead of
+ * (or in addition to) number of entries. Called on every put so implementations should be fast and must not modify the value. */
+public interface MWeigher<K, V> {
+    /** Return the weight of the entry, must be zero or positive; the unit (bytes, rows, etc) just needs to match max weight */
+    int weigh(K key, V value);
+}
@@ -45,6 +45,21 @@ public interface ServiceCallAsync extends ServiceCall {
      */
     ServiceCallAsync distribute(boolean dist);
 
+    /** If true the service call will be saved in an AsyncServiceCall record in the current transaction and run after
+     * it commits, by any server in the cluster. Calls that fail are retried with a backoff and after the max attempts
+     * for the queue are left in a dead letter status. Parameters MUST be convertible to JSON, and the service may be
+     * run more than once if a server goes down while running it. Not supported by callFuture().
+     *
+     * If false it will be run in memory only (default).
+     *
+     * @return Reference to this for convenience.
+     */
+    ServiceCallAsync persist(boolean persist);
+
+    /** With persist(true) the name of the queue to run the call in, each queue has its own concurrency limit and
+     * retry settings (service-facade.async-queue in the Moqui Conf XML file). Defaults to 'default'. */
+    ServiceCallAsync queue(String queueName);
+
     /**
      * Call the service asynchronously, ignoring the result.
      * This effectively calls the service through a java.lang.Runnable implementation.
@@ -15,9 +15,17 @@
 
 import org.moqui.Moqui
 import org.moqui.context.ExecutionContext
+import org.moqui.impl.context.CacheFacadeImpl
+import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.jcache.MCache
+import org.moqui.jcache.MCacheConfiguration
+import org.moqui.jcache.MLatencyHistogram
+import org.moqui.util.MNode
 import spock.lang.*
 
+import javax.cache.Cache
+import java.nio.file.Files
+
 class CacheFacadeTests extends Specification {
     @Shared
     ExecutionContext ec
@@ -96,5 +104,134 @@ class CacheFacadeTests extends Specification {
         }
     }
 
+    def "tiny-lfu cache bounded on put and keeps frequent entries"() {
+        when:
+        MCacheConfiguration<String, String> conf = new MCacheConfiguration<String, String>()
+                .setMaxEntries(100).setEvictionPolicy(MCacheConfiguration.EVICT_TINY_LFU)
+        MCache<String, String> lfuCache = new MCache<String, String>("CacheFacadeTinyLfuTests", null, conf)
+        // a set of hot keys read many times
+        for (int i = 0; i < 50; i++) lfuCache.put("hot" + i, "value" + i)
+        for (int round = 0; round < 5; round++) for (int i = 0; i < 50; i++) lfuCache.get("hot" + i)
+        // then a scan of keys read only once
+        for (int i = 0; i < 1000; i++) { lfuCache.get("scan" + i); lfuCache.put("scan" + i, "value" + i) }
+        int hotRemaining = (0..<50).count({ int i -> lfuCache.containsKey("hot" + i) }) as int
+
+        then:
+        lfuCache.size() <= 100
+        lfuCache.getMStats().getCacheEvictions() >= 950
+        hotRemaining >= 45
+
+        cleanup:
+        lfuCache.close()
+    }
+
+    def "weight bounded cache"() {
+        when:
+        MCacheConfiguration<String, String> conf = new MCacheConfiguration<String, String>()
+                .setMaxWeight(50000).setEvictionPolicy(MCacheConfiguration.EVICT_TINY_LFU)
+        MCache<String, String> weightCache = new MCache<String, String>("CacheFacadeWeightTests", null, conf)
+        for (int i = 0; i < 500; i++) weightCache.put("key" + i, "x" * 1000)
+
+        then:
+        weightCache.getWeight() <= 50000
+        weightCache.getWeight() > 0
+        weightCache.size() < 500
+
+        cleanup:
+        weightCache.close()
+    }
+
+    def "off-heap tier keeps evicted entries and promotes on get"() {
+        when:
+        MCacheConfiguration<String, Object> conf = new MCacheConfiguration<String, Object>().setMaxEntries(10)
+                .setEvictionPolicy(MCacheConfiguration.EVICT_TINY_LFU).setOffHeapMaxBytes(1000000).setStatisticsEnabled(true)
+        MCache<String, Object> offHeapCache = new MCache<String, Object>("CacheFacadeOffHeapTests", null, conf)
+        for (int i = 0; i < 100; i++) offHeapCache.put("key" + i, [id:"ID" + i, amount:new BigDecimal(i), list:["a", i]])
+        int offHeapSizeBefore = offHeapCache.getOffHeapSize()
+        Map value50 = (Map) offHeapCache.get("key50")
+        offHeapCache.remove("key60")
+
+        then:
+        offHeapCache.size() <= 10
+        offHeapSizeBefore == 90
+        value50 == [id:"ID50", amount:new BigDecimal(50), list:["a", 50]]
+        offHeapCache.getMStats().getOffHeapHits() >= 1
+        offHeapCache.get("key60") == null
+
+        cleanup:
+        offHeapCache.close()
+    }
+
+    def "cache snapshot restored once and discarded when stale"() {
+        when:
+        CacheFacadeImpl cfi = (CacheFacadeImpl) ec.cache
+        MNode cacheListNode = ((ExecutionContextFactoryImpl) ec.factory).getConfXmlRoot().first("cache-list")
+        String locationBefore = cacheListNode.attribute("snapshot-location")
+        File snapshotDir = Files.createTempDirectory("cache-snapshot").toFile()
+        cacheListNode.getAttributes().put("snapshot-location", snapshotDir.getPath())
+        MNode snapshotNode = cacheListNode.append("cache", [name:"CacheFacadeSnapshotTests", snapshot:"values", "snapshot-max-age":"3600"])
+        Cache snapshotCache = cfi.getCache("CacheFacadeSnapshotTests")
+        File snapshotFile = new File(snapshotDir, CacheFacadeImpl.getSnapshotFileName("CacheFacadeSnapshotTests"))
+
+        snapshotCache.put("key1", "value1")
+        snapshotCache.put("key2", [id:"ID2", amount:new BigDecimal(2)])
+        cfi.saveSnapshots()
+        boolean savedExists = snapshotFile.exists()
+        snapshotCache.clear()
+        cfi.loadSnapshots()
+        Object restored1 = snapshotCache.get("key1")
+        Object restored2 = snapshotCache.get("key2")
+        boolean loadedExists = snapshotFile.exists()
+
+        // no save since the last load, like a start after a crash: nothing to restore
+        snapshotCache.clear()
+        cfi.loadSnapshots()
+        Object afterSecondLoad = snapshotCache.get("key1")
+
+        // saved longer ago than snapshot-max-age: discarded, and the file removed
+        snapshotCache.put("key1", "value1b")
+        cfi.saveSnapshots()
+        boolean staleSavedExists = snapshotFile.exists()
+        snapshotNode.getAttributes().put("snapshot-max-age", "1")
+        Thread.sleep(1100)
+        snapshotCache.clear()
+        cfi.loadSnapshots()
+        Object afterStaleLoad = snapshotCache.get("key1")
+        boolean staleLoadedExists = snapshotFile.exists()
+
+        then:
+        savedExists
+        restored1 == "value1"
+        restored2 == [id:"ID2", amount:new BigDecimal(2)]
+        !loadedExists
+        afterSecondLoad == null
+        staleSavedExists
+        afterStaleLoad == null
+        !staleLoadedExists
+
+        cleanup:
+        cacheListNode.remove({ MNode it -> it.name == "cache" && it.attribute("name") == "CacheFacadeSnapshotTests" })
+        if (locationBefore) cacheListNode.getAttributes().put("snapshot-location", locationBefore)
+        else cacheListNode.getAttributes().remove("snapshot-location")
+        snapshotCache?.clear()
+        snapshotDir?.deleteDir()
+    }
+
+    def "latency histogram percentiles"() {
+        when:
+        MLatencyHistogram histogram = new MLatencyHistogram()
+        // 90 at 100us, 9 at 1ms, 1 at 50ms
+        for (int i = 0; i < 90; i++) histogram.record(100000L)
+        for (int i = 0; i < 9; i++) histogram.record(1000000L)
+        histogram.record(50000000L)
+
+        then:
+        histogram.getCount() == 100
+        histogram.getPercentileMicros(50) >= 100 && histogram.getPercentileMicros(50) < 125
+        histogram.getPercentileMicros(95) >= 1000 && histogram.getPercentileMicros(95) < 1250
+        histogram.getPercentileMicros(100) == 50000
+        histogram.getMaxMicros() == 50000
+    }
+
     // TODO: test cache expire time
 }
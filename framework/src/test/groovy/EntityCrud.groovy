@@ -106,6 +106,86 @@ class EntityCrud extends Specification {
         testEntityCheck == null
     }
 
+    def "createBulk and upsertBulk TestEntity"() {
+        when:
+        List<EntityValue> createList = []
+        for (int i = 1; i <= 5; i++) createList.add(ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"CRDBLK" + i, testMedium:"Bulk " + i, testIndicator:"N"]))
+        ec.entity.createBulk(createList)
+        // update two existing without testIndicator, create one new
+        List<EntityValue> upsertList = [ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"CRDBLK2", testMedium:"Bulk 2 Up"]),
+                ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"CRDBLK4", testMedium:"Bulk 4 Up"]),
+                ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"CRDBLK6", testMedium:"Bulk 6"])]
+        ec.entity.upsertBulk(upsertList)
+        EntityList bulkList = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDBLK%").orderBy("testId").list()
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDBLK%").deleteAll()
+
+        then:
+        bulkList.size() == 6
+        bulkList.get(0).testMedium == "Bulk 1"
+        bulkList.get(1).testMedium == "Bulk 2 Up"
+        bulkList.get(1).testIndicator == "N"
+        bulkList.get(3).testMedium == "Bulk 4 Up"
+        bulkList.get(5).testMedium == "Bulk 6"
+        bulkList.get(5).lastUpdatedStamp != null
+    }
+
+    def "updateAll and deleteAll TestEntity"() {
+        when:
+        List<EntityValue> createList = []
+        for (int i = 1; i <= 4; i++) createList.add(ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"CRDALL" + i, testMedium:"All " + i, testIndicator:(i % 2 == 0 ? "Y" : "N")]))
+        ec.entity.createBulk(createList)
+        long updated = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDALL%")
+                .condition("testIndicator", "Y").updateAll([testMedium:"All Updated"])
+        long updatedCount = ec.entity.find("moqui.test.TestEntity").condition("testMedium", "All Updated").count()
+        long deleted = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDALL%").deleteAll()
+        long remainingCount = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDALL%").count()
+
+        then:
+        updated == 2
+        updatedCount == 2
+        deleted == 4
+        remainingCount == 0
+    }
+
+    def "parallel data load counts failed chunk"() {
+        when:
+        StringBuilder xmlText = new StringBuilder("<entity-facade-xml>")
+        // CHAR(1) testIndicator, the value for CRDPAR4 is too long and its chunk fails
+        for (int i = 1; i <= 7; i++) xmlText.append("<moqui.test.TestEntity testId=\"CRDPAR${i}\" testMedium=\"Parallel ${i}\" testIndicator=\"${i == 4 ? 'YES' : 'Y'}\"/>")
+        xmlText.append("</entity-facade-xml>")
+        List<String> messages = []
+        long valuesRead = ec.entity.makeDataLoader().xmlText(xmlText.toString()).threads(2).chunkSize(1).load(messages)
+        EntityList loadedList = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDPAR%").orderBy("testId").list()
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "CRDPAR%").deleteAll()
+
+        then:
+        valuesRead == 7
+        loadedList*.testId == ["CRDPAR1", "CRDPAR2", "CRDPAR3", "CRDPAR5", "CRDPAR6", "CRDPAR7"]
+        messages.any({ it.startsWith("Error loading 1 moqui.test.TestEntity records") })
+        messages.any({ it.contains("6 records, 1 with errors") })
+    }
+
+    def "parallel data load text with inline values referred to by chunks"() {
+        when:
+        // the nested value is written inline on the reading thread, the others refer to it and are written on load threads
+        StringBuilder xmlText = new StringBuilder("<entity-facade-xml>")
+        xmlText.append('<moqui.basic.EnumerationType enumTypeId="TEST_PAR_ET" description="Test parallel enum type">')
+        xmlText.append('<enums enumId="TPARENUM0" description="Test parallel enum 0"/></moqui.basic.EnumerationType>')
+        for (int i = 1; i <= 4; i++) xmlText.append("<moqui.basic.Enumeration enumId=\"TPARENUM${i}\" enumTypeId=\"TEST_PAR_ET\" description=\"Test parallel enum ${i}\"/>")
+        xmlText.append("</entity-facade-xml>")
+        List<String> messages = []
+        ec.entity.makeDataLoader().xmlText(xmlText.toString()).threads(2).chunkSize(1).transactionTimeout(20).load(messages)
+        EntityList loadedList = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "TEST_PAR_ET").orderBy("enumId").list()
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "TEST_PAR_ET").deleteAll()
+        ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", "TEST_PAR_ET").deleteAll()
+
+        then:
+        loadedList*.enumId == ["TPARENUM0", "TPARENUM1", "TPARENUM2", "TPARENUM3", "TPARENUM4"]
+        !messages.any({ it.startsWith("Error") })
+    }
+
     def "delete EnumerationType cascade"() {
         when:
         ec.entity.makeValue("moqui.basic.EnumerationType").setAll([enumTypeId:"TEST_DEL_ET", description:"Test delete enum type"]).create()
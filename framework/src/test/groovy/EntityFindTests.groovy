@@ -22,7 +22,23 @@ import org.moqui.entity.EntityValue
 import org.moqui.Moqui
 import java.sql.Timestamp
 import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityFind
 import org.moqui.entity.EntityList
+import org.moqui.entity.EntityListIterator
+import org.moqui.impl.context.ContextJavaUtil
+import org.moqui.impl.context.WebFacadeImpl
+import org.moqui.impl.entity.EntityCache
+import org.moqui.impl.entity.EntityDefinition
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.impl.entity.EntityIndexAdvisor
+import org.moqui.impl.entity.EntityListCacheIndex
+import org.moqui.impl.entity.EntityListIteratorImpl
+import org.moqui.impl.entity.EntityQueryStats
+import org.moqui.impl.entity.EntityReadRouter
+import org.moqui.impl.entity.EntityStreamWriter
+import org.moqui.impl.entity.EntityValueBase
+import org.moqui.jcache.MCache
+import org.moqui.util.MNode
 
 class EntityFindTests extends Specification {
     protected final static Logger logger = LoggerFactory.getLogger(EntityFindTests.class)
@@ -129,6 +145,64 @@ class EntityFindTests extends Specification {
         noEnums.size() == 0
     }
 
+    def "master value list same as master value map per record with nested detail"() {
+        when:
+        ec.entity.makeValue("moqui.entity.feed.DataFeed").setAll([dataFeedId:"TSTMFEED1", dataFeedTypeEnumId:"DTFDTP_MAN_PULL"]).create()
+        for (String docId in ["TSTMDOC1", "TSTMDOC2", "TSTMDOC3"])
+            ec.entity.makeValue("moqui.entity.document.DataDocument").setAll([dataDocumentId:docId, primaryEntityName:"moqui.test.TestEntity"]).create()
+        // created out of PK order, and a document with no details
+        for (String seqId in ["03", "01", "02"])
+            ec.entity.makeValue("moqui.entity.document.DataDocumentField").setAll([dataDocumentId:"TSTMDOC1", fieldSeqId:seqId, fieldPath:"testMedium" + seqId]).create()
+        ec.entity.makeValue("moqui.entity.document.DataDocumentField").setAll([dataDocumentId:"TSTMDOC2", fieldSeqId:"01", fieldPath:"testId"]).create()
+        ec.entity.makeValue("moqui.entity.document.DataDocumentCondition").setAll([dataDocumentId:"TSTMDOC2", conditionSeqId:"01", fieldNameAlias:"testId", fieldValue:"EXTST1"]).create()
+        for (String docId in ["TSTMDOC1", "TSTMDOC2"])
+            ec.entity.makeValue("moqui.entity.feed.DataFeedDocument").setAll([dataFeedId:"TSTMFEED1", dataDocumentId:docId]).create()
+
+        EntityList docList = ec.entity.find("moqui.entity.document.DataDocument")
+                .condition("dataDocumentId", EntityCondition.IN, ["TSTMDOC1", "TSTMDOC2", "TSTMDOC3"]).orderBy("dataDocumentId").list()
+        List<Map<String, Object>> bulkList = docList.getMasterValueList("default")
+
+        // the per record path that getMasterValueList replaced: findRelated for each value and detail, ordered by PK as the bulk finds are
+        Closure<Map> perRecordMap
+        perRecordMap = { EntityValueBase evb, List details, Set<String> parentPkFields, relInfo ->
+            Map<String, Object> vMap = evb.makeMasterBaseMap(parentPkFields, relInfo)
+            Set<String> curPkFields = new HashSet<>(evb.getEntityDefinition().getPkFieldNames())
+            if (parentPkFields != null) curPkFields.addAll(parentPkFields)
+            for (detail in details) {
+                def detailRelInfo = detail.relInfo
+                String entryName = detailRelInfo.shortAlias ?: detailRelInfo.relationshipName
+                if (detailRelInfo.isTypeOne) {
+                    EntityValueBase relEv = (EntityValueBase) evb.findRelatedOne(detailRelInfo.relationshipName, null, false)
+                    if (relEv != null) vMap.put(entryName, perRecordMap(relEv, detail.getDetailList(), curPkFields, detailRelInfo))
+                } else {
+                    EntityList relList = evb.findRelated(detailRelInfo.relationshipName, null,
+                            detailRelInfo.relatedEd.getPkFieldNames(), null, false)
+                    if (relList) vMap.put(entryName, relList.collect({ perRecordMap((EntityValueBase) it, detail.getDetailList(), curPkFields, detailRelInfo) }))
+                }
+            }
+            return vMap
+        }
+        def detailList = ((EntityFacadeImpl) ec.entity).getEntityDefinition("moqui.entity.document.DataDocument")
+                .getMasterDefinition("default").detailList
+        List<Map> perRecordList = docList.collect({ perRecordMap((EntityValueBase) it, detailList, null, null) })
+
+        then:
+        bulkList == perRecordList
+        bulkList*.get("dataDocumentId") == ["TSTMDOC1", "TSTMDOC2", "TSTMDOC3"]
+        bulkList[0].fields*.get("fieldSeqId") == ["01", "02", "03"]
+        bulkList[0].feeds[0].feed.dataFeedId == "TSTMFEED1"
+        bulkList[1].conditions.size() == 1
+        !bulkList[2].containsKey("fields")
+        docList.get(0).getMasterValueMap("default") == perRecordList[0]
+
+        cleanup:
+        ec.entity.find("moqui.entity.feed.DataFeedDocument").condition("dataFeedId", "TSTMFEED1").deleteAll()
+        ec.entity.find("moqui.entity.document.DataDocumentCondition").condition("dataDocumentId", "TSTMDOC2").deleteAll()
+        ec.entity.find("moqui.entity.document.DataDocumentField").condition("dataDocumentId", EntityCondition.IN, ["TSTMDOC1", "TSTMDOC2"]).deleteAll()
+        ec.entity.find("moqui.entity.document.DataDocument").condition("dataDocumentId", EntityCondition.IN, ["TSTMDOC1", "TSTMDOC2", "TSTMDOC3"]).deleteAll()
+        ec.entity.find("moqui.entity.feed.DataFeed").condition("dataFeedId", "TSTMFEED1").deleteAll()
+    }
+
     def "auto cache clear for list"() {
         // update the testMedium and make sure we get the new value
         when:
@@ -261,6 +335,51 @@ class EntityFindTests extends Specification {
         reset == before
     }
 
+    def "list cache index clears only lists matching the written value"() {
+        when:
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        EntityCache entityCache = efi.entityCache
+        EntityDefinition testEd = efi.getEntityDefinition("moqui.test.TestEntity")
+        def listCache = testEd.getCacheList(entityCache)
+        EntityListCacheIndex listIndex = entityCache.getListCacheIndex("moqui.test.TestEntity")
+        def cf = ec.entity.conditionFactory
+        // indexed by the testMedium value: A, B, and A with a non-matching testNumberInteger; in the fallback set: D, E
+        EntityCondition condA = cf.makeCondition("testMedium", EntityCondition.EQUALS, "LCIDX A")
+        EntityCondition condB = cf.makeCondition("testMedium", EntityCondition.EQUALS, "LCIDX B")
+        EntityCondition condC = cf.makeCondition([testMedium:"LCIDX A", testNumberInteger:99L])
+        EntityCondition condD = cf.makeCondition("testNumberInteger", EntityCondition.GREATER_THAN, 1000L)
+        EntityCondition condE = cf.makeCondition("testNumberInteger", EntityCondition.LESS_THAN, 10L)
+        for (EntityCondition cond in [condA, condB, condC, condD, condE]) entityCache.putInListCache(testEd, null, cond, listCache)
+
+        EntityValueBase valueA = (EntityValueBase) ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"LCIDX1", testMedium:"LCIDX A", testNumberInteger:5L])
+        List<EntityCondition> candidatesA = listIndex.getCandidates(valueA.getValueMap())
+        entityCache.clearCacheForValue(valueA, true)
+        List<Boolean> cachedAfterA = [condA, condB, condC, condD, condE].collect({ listCache.containsKey(it) })
+
+        EntityValueBase valueB = (EntityValueBase) ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"LCIDX2", testMedium:"LCIDX B", testNumberInteger:2000L])
+        List<EntityCondition> candidatesB = listIndex.getCandidates(valueB.getValueMap())
+        entityCache.clearCacheForValue(valueB, true)
+        List<Boolean> cachedAfterB = [condA, condB, condC, condD, condE].collect({ listCache.containsKey(it) })
+        List<EntityCondition> candidatesAfter = listIndex.getCandidates(valueA.getValueMap())
+
+        then:
+        candidatesA.containsAll([condA, condC, condD, condE])
+        !candidatesA.contains(condB)
+        cachedAfterA == [false, true, true, true, false]
+        candidatesB.containsAll([condB, condD])
+        !candidatesB.contains(condC)
+        cachedAfterB == [false, false, true, false, false]
+        // cleared conditions are out of the index too, the list that didn't match is still there
+        candidatesAfter.contains(condC)
+        !candidatesAfter.any({ it in [condA, condB, condD, condE] })
+
+        cleanup:
+        listCache.remove(condC)
+        listIndex.remove(condC)
+    }
+
     def "no cache with for update"() {
         when:
         // do query on Geo which has cache=true, with for-update it should not use the cache
@@ -269,4 +388,386 @@ class EntityFindTests extends Specification {
         then:
         geo.isMutable()
     }
+
+    def "read router uses a clone within its max lag outside write transactions"() {
+        when:
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        ec.transaction.commit()
+        // clones of the test group on the same database, with lag queries for one within and one over clone-max-lag
+        MNode efNode = efi.getEntityFacadeNode()
+        efNode.append("datasource", ["group-name":"routetest", "read-clones":"true"])
+        efNode.append("datasource", ["group-name":"routetest#current", "clone-max-lag":"5", "clone-lag-query":"SELECT 1"])
+        efNode.append("datasource", ["group-name":"routetest#lagged", "clone-max-lag":"5", "clone-lag-query":"SELECT 60"])
+        def edf = efi.getDatasourceFactory("transactional")
+        EntityReadRouter router = new EntityReadRouter(efi)
+        router.init([routetest:edf, "routetest#current":edf, "routetest#lagged":edf])
+
+        // lag not checked yet: primary, and the first find starts the checks in the background
+        String beforeCheck = router.getReadGroupName("routetest", false)
+        long waitStart = System.currentTimeMillis()
+        while (router.getRouteInfo("routetest").clones.any({ it.lagSeconds == 0 }) && System.currentTimeMillis() - waitStart < 10000)
+            Thread.sleep(50)
+        List<String> noTx = (1..10).collect({ router.getReadGroupName("routetest", false) })
+
+        ec.transaction.begin(null)
+        String inTxBeforeWrite = router.getReadGroupName("routetest", false)
+        efi.ecfi.transactionFacade.registerGroupWrite("routetest")
+        String inTxAfterWrite = router.getReadGroupName("routetest", false)
+        String otherGroupInTx = router.getReadGroupName("transactional", false)
+        ec.transaction.commit()
+
+        ec.transaction.begin(null)
+        String forUpdate = router.getReadGroupName("routetest", true)
+        String afterForUpdate = router.getReadGroupName("routetest", false)
+        ec.transaction.commit()
+        String afterCommit = router.getReadGroupName("routetest", false)
+        Map routeInfo = router.getRouteInfo("routetest")
+        Map laggedInfo = (Map) routeInfo.clones.find({ it.group == "routetest#lagged" })
+
+        then:
+        beforeCheck == "routetest"
+        noTx.every({ it == "routetest#current" })
+        inTxBeforeWrite == "routetest#current"
+        inTxAfterWrite == "routetest"
+        otherGroupInTx == "transactional"
+        forUpdate == "routetest"
+        afterForUpdate == "routetest"
+        afterCommit == "routetest#current"
+        routeInfo.primaryLagged == 1
+        routeInfo.primaryInTx == 2
+        routeInfo.primaryForUpdate == 1
+        laggedInfo.reads == 0
+        !laggedInfo.available
+        laggedInfo.lagSeconds == 60.0d
+        router.getRouteInfo("transactional") == null
+
+        cleanup:
+        efNode.remove({ MNode it -> it.name == "datasource" && it.attribute("group-name")?.startsWith("routetest") })
+        for (String groupName in ["routetest", "routetest#current", "routetest#lagged"]) efi.@datasourceNodeByGroupName.remove(groupName)
+        if (!ec.transaction.isTransactionInPlace()) ec.transaction.begin(null)
+    }
+
+    def "seek pagination matches offset pagination"() {
+        when:
+        List<String> offsetIds = ec.entity.find("moqui.basic.Enumeration").orderBy(["-enumTypeId", "enumId"])
+                .offset(20).limit(10).list()*.enumId
+        EntityList firstPage = ec.entity.find("moqui.basic.Enumeration").orderBy(["-enumTypeId", "enumId"]).limit(20).list()
+        EntityFind seekFind = ec.entity.find("moqui.basic.Enumeration").orderBy(["-enumTypeId", "enumId"]).limit(10)
+        String cursor = seekFind.makeSeekCursor(firstPage.get(19))
+        List<String> seekIds = seekFind.seekAfter(firstPage.get(19)).list()*.enumId
+        List<String> cursorIds = ec.entity.find("moqui.basic.Enumeration").orderBy(["-enumTypeId", "enumId"]).limit(10)
+                .seekCursor(cursor).list()*.enumId
+
+        then:
+        offsetIds.size() == 10
+        seekIds == offsetIds
+        cursorIds == offsetIds
+    }
+
+    def "seek pagination with null order by values"() {
+        when:
+        List<Integer> numbers = [3, null, 1, null, 2, 3, null, 1, 5]
+        for (int i = 0; i < numbers.size(); i++) ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"SEEKN0" + i, testNumberInteger:numbers.get(i)]).create()
+        Map<List<String>, List<List<String>>> resultsByOrderBy = [:]
+        for (List<String> orderBy in [["testNumberInteger", "testId"], ["-testNumberInteger", "testId"],
+                                     ["testNumberInteger NULLS FIRST", "-testId"]]) {
+            List<String> offsetIds = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "SEEKN0%")
+                    .orderBy(orderBy).list()*.testId
+            List<String> seekIds = []
+            String cursor = null
+            while (true) {
+                EntityFind pageFind = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "SEEKN0%")
+                        .orderBy(orderBy).limit(2)
+                if (cursor != null) pageFind.seekCursor(cursor)
+                EntityList page = pageFind.list()
+                seekIds.addAll(page*.testId)
+                if (page.size() < 2 || seekIds.size() > numbers.size()) break
+                cursor = pageFind.makeSeekCursor(page.get(1))
+            }
+            resultsByOrderBy.put(orderBy, [offsetIds, seekIds])
+        }
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "SEEKN0%").deleteAll()
+
+        then:
+        resultsByOrderBy.size() == 3
+        resultsByOrderBy.values().every { List<List<String>> results -> results[0].size() == 9 && results[1] == results[0] }
+    }
+
+    def "iterator row view has same fields as values"() {
+        when:
+        List<Map<String, Object>> valueMaps = []
+        EntityListIterator eli = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").iterator()
+        EntityValue ev
+        while ((ev = eli.next()) != null) valueMaps.add(ev.getMap())
+        eli.close()
+        List<Map<String, Object>> rowMaps = []
+        List<String> reusedIds = []
+        eli = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").iterator()
+        Map<String, Object> row
+        while ((row = eli.nextRow(false)) != null) rowMaps.add(row)
+        eli.close()
+        eli = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").iterator()
+        while ((row = eli.nextRow(true)) != null) reusedIds.add((String) row.enumId)
+        eli.close()
+
+        then:
+        valueMaps.size() > 0
+        rowMaps.collect({ new HashMap(it) }) == valueMaps.collect({ new HashMap(it) })
+        reusedIds == valueMaps*.enumId
+    }
+
+    def "async count same as count with list in between"() {
+        when:
+        long count = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType").count()
+        EntityFind asyncFind = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").limit(2).countAsync(false)
+        EntityList firstPage = asyncFind.list()
+        long asyncCount = asyncFind.count()
+
+        then:
+        count > 2
+        firstPage.size() == 2
+        asyncCount == count
+        !asyncFind.isCountEstimated()
+    }
+
+    def "async count not run when not needed"() {
+        when:
+        // setup() wrote to the group in this transaction so the count can't be on another thread, and isn't run here
+        EntityFind asyncFind = ec.entity.find("moqui.test.TestEntity").condition("testId", "EXTST1").limit(10).countAsync(false)
+        int queriesAfterAsync = asyncFind.getQueryTextList().size()
+        EntityList shortPage = asyncFind.list()
+        // fewer than limit values, so the count is the list size and no count query is needed
+        long asyncCount = asyncFind.count()
+        int queriesAfterCount = asyncFind.getQueryTextList().size()
+
+        then:
+        queriesAfterAsync == 0
+        shortPage.size() == 1
+        asyncCount == 1
+        queriesAfterCount == 1
+    }
+
+    def "stream writer JSON same as value maps"() {
+        when:
+        EntityList valueList = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").list()
+        EntityStreamWriter streamWriter = new EntityStreamWriter(ec.entity.find("moqui.basic.Enumeration")
+                .condition("enumTypeId", "DataSourceType").orderBy("enumId").iterator()).flushRows(2)
+        String streamJson = ContextJavaUtil.jacksonMapper.writeValueAsString([values:streamWriter])
+        String listJson = ContextJavaUtil.jacksonMapper.writeValueAsString([values:valueList.collect({ ((EntityValue) it).getMap().findAll({ it.value != null }) })])
+
+        then:
+        valueList.size() > 2
+        streamWriter.getValuesWritten() == valueList.size()
+        ContextJavaUtil.jacksonMapper.readTree(streamJson) == ContextJavaUtil.jacksonMapper.readTree(listJson)
+    }
+
+    def "stream writer iterates in its own transaction"() {
+        when:
+        // setup() begins a transaction, commit it to stream like REST does with no transaction in place
+        ec.transaction.commit()
+        EntityStreamWriter streamWriter = EntityStreamWriter.iterate(ec.entity.find("moqui.basic.Enumeration")
+                .condition("enumTypeId", "DataSourceType"), ec.transaction)
+        boolean inPlaceWhileOpen = ec.transaction.isTransactionInPlace()
+        boolean hasWriter = WebFacadeImpl.hasStreamWriter([values:streamWriter, other:[a:1]])
+        ContextJavaUtil.jacksonMapper.writeValueAsString(streamWriter)
+        boolean inPlaceAfterWrite = ec.transaction.isTransactionInPlace()
+        // closing again after written is fine, doesn't commit twice
+        streamWriter.close()
+        ec.transaction.begin(null)
+
+        then:
+        inPlaceWhileOpen
+        hasWriter
+        !WebFacadeImpl.hasStreamWriter([values:[[a:1]], other:[b:2]])
+        streamWriter.getValuesWritten() > 0
+        !inPlaceAfterWrite
+    }
+
+    def "stream writer read into a list for a response not written as JSON"() {
+        when:
+        // like a ScreenTest with skipJsonSerialize, the values are read and the transaction ended instead of left open
+        ec.transaction.commit()
+        EntityList valueList = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DataSourceType")
+                .orderBy("enumId").list()
+        EntityStreamWriter streamWriter = EntityStreamWriter.iterate(ec.entity.find("moqui.basic.Enumeration")
+                .condition("enumTypeId", "DataSourceType").orderBy("enumId"), ec.transaction)
+        Map responseMap = (Map) WebFacadeImpl.materializeStreamWriters([values:streamWriter, other:[a:1]])
+        boolean inPlaceAfter = ec.transaction.isTransactionInPlace()
+        ec.transaction.begin(null)
+
+        then:
+        responseMap.values instanceof List
+        responseMap.values == valueList.collect({ ((EntityValue) it).getMap().findAll({ it.value != null }) })
+        responseMap.other == [a:1]
+        streamWriter.getValuesWritten() == valueList.size()
+        !inPlaceAfter
+    }
+
+    def "stream writer localizes fields like getMap"() {
+        when:
+        // NOTE: this relies on a LocalizedEntityField record in CommonL10nData.xml
+        ec.user.setLocale(new Locale("es"))
+        EntityListIterator eli = ec.entity.find("moqui.basic.Enumeration").condition("enumId", "GEOT_CITY").iterator()
+        boolean enumRowViewPlain = ((EntityListIteratorImpl) eli).isRowViewPlain()
+        String streamJson = ContextJavaUtil.jacksonMapper.writeValueAsString(new EntityStreamWriter(eli))
+        ec.user.setLocale(Locale.US)
+        eli = ec.entity.find("moqui.test.TestEntity").condition("testId", "EXTST1").iterator()
+        boolean testRowViewPlain = ((EntityListIteratorImpl) eli).isRowViewPlain()
+        eli.close()
+
+        then:
+        !enumRowViewPlain
+        testRowViewPlain
+        ContextJavaUtil.jacksonMapper.readTree(streamJson).get(0).get("description").asText() == "Ciudad"
+    }
+
+    def "index advisor recommends indexes for recorded find patterns"() {
+        when:
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        def cf = ec.entity.conditionFactory
+        EntityDefinition testEd = efi.getEntityDefinition("moqui.test.TestEntity")
+        EntityDefinition enumEd = efi.getEntityDefinition("moqui.basic.Enumeration")
+        EntityIndexAdvisor advisor = new EntityIndexAdvisor(efi)
+        Closure record = { EntityDefinition ed, EntityCondition cond, List<String> orderBy, int times ->
+            for (int i = 0; i < times; i++) advisor.record(ed, cond, orderBy != null ? new ArrayList<String>(orderBy) : null, 1000000L) }
+
+        // equality field then one range field, with two order bys for the same candidate index
+        EntityCondition mediumRange = cf.makeCondition([cf.makeCondition("testMedium", EntityCondition.EQUALS, "A"),
+                cf.makeCondition("testNumberInteger", EntityCondition.GREATER_THAN, 5L)])
+        record(testEd, mediumRange, ["testDate"], 5)
+        record(testEd, mediumRange, ["-testDateTime"], 2)
+        // equality field then order by
+        record(testEd, cf.makeCondition("testIndicator", EntityCondition.EQUALS, "Y"), ["-testDate"], 2)
+        // not recommended: by the full PK, OR conditions only, under minHits
+        record(testEd, cf.makeCondition("testId", EntityCondition.EQUALS, "EXTST1"), null, 5)
+        record(testEd, cf.makeCondition(cf.makeCondition("testMedium", EntityCondition.EQUALS, "A"), EntityCondition.JoinOperator.OR,
+                cf.makeCondition("testLong", EntityCondition.EQUALS, "B")), null, 5)
+        record(testEd, cf.makeCondition("testNumberDecimal", EntityCondition.IN, [1.0, 2.0]), null, 1)
+        // the foreign key index on enumTypeId covers the equality field but not the order by
+        record(enumEd, cf.makeCondition("enumTypeId", EntityCondition.EQUALS, "DataSourceType"), null, 3)
+        record(enumEd, cf.makeCondition("enumTypeId", EntityCondition.EQUALS, "DataSourceType"), ["sequenceNum"], 3)
+
+        List<Map<String, Object>> recList = advisor.getRecommendations(2, 0)
+        Map<String, Object> mediumRec = recList.find({ it.fieldNames == ["testMedium", "testNumberInteger"] })
+        Map<String, Object> indicatorRec = recList.find({ it.fieldNames == ["testIndicator", "testDate"] })
+        Map<String, Object> enumRec = recList.find({ it.entityName == "moqui.basic.Enumeration" })
+
+        then:
+        advisor.getPatternCount() == 7
+        recList.size() == 3
+        recList.indexOf(mediumRec) < recList.indexOf(indicatorRec)
+        mediumRec.entityName == "moqui.test.TestEntity"
+        mediumRec.hitCount == 7L
+        mediumRec.patterns.size() == 2
+        mediumRec.usableColumns == 0
+        mediumRec.existingIndexName == null
+        ((String) mediumRec.indexName).startsWith("IDXA")
+        mediumRec.createSql == "CREATE INDEX " + mediumRec.indexName + " ON " + testEd.getFullTableName() + " (TEST_MEDIUM, TEST_NUMBER_INTEGER)"
+        indicatorRec.hitCount == 2L
+        indicatorRec.createSql == "CREATE INDEX " + indicatorRec.indexName + " ON " + testEd.getFullTableName() + " (TEST_INDICATOR, TEST_DATE)"
+        enumRec.fieldNames == ["enumTypeId", "sequenceNum"]
+        enumRec.usableColumns == 1
+        enumRec.existingIndexName != null
+        enumRec.existingIndexName != "PRIMARY"
+        enumRec.hitCount == 3L
+        advisor.getRecommendations(4, 0)*.hitCount == [5L]
+    }
+
+    def "query stats shape normalization and percentiles"() {
+        when:
+        String inShape = EntityQueryStats.normalizeSql("SELECT A FROM T WHERE B IN (?, ?, ?) AND C = 'x'")
+        String inShape2 = EntityQueryStats.normalizeSql("SELECT  A FROM T\nWHERE B IN (?,?) AND C = 'it''s'")
+        String otherShape = EntityQueryStats.normalizeSql("SELECT A FROM T WHERE B = ? AND C = 'x'")
+
+        EntityQueryStats.QueryShape shape = new EntityQueryStats.QueryShape("moqui.test.TestEntity", inShape, null)
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        // 90 at 100us, 9 at 1ms, 1 at 50ms
+        for (int i = 0; i < 90; i++) shape.record(efi, 100000L, false)
+        for (int i = 0; i < 9; i++) shape.record(efi, 1000000L, false)
+        shape.record(efi, 50000000L, true)
+        Map<String, Object> displayMap = shape.makeDisplayMap()
+        def firstDelta = shape.takeBinDelta()
+        for (int i = 0; i < 10; i++) shape.record(efi, 20000000L, false)
+        def secondDelta = shape.takeBinDelta()
+
+        then:
+        inShape == inShape2
+        inShape != otherShape
+        displayMap.hitCount == 100L
+        displayMap.errorCount == 1L
+        displayMap.p50Time >= 100 && displayMap.p50Time < 125
+        displayMap.p99Time >= 1000 && displayMap.p99Time < 1250
+        displayMap.maxTime == 50000
+        firstDelta.hitCount == 100L
+        firstDelta.p99Nanos >= 1000000L && firstDelta.p99Nanos < 1250000L
+        // only the times since the first bin, capped at the max in the bin
+        secondDelta.hitCount == 10L
+        secondDelta.maxNanos == 20000000L
+        secondDelta.p99Nanos == 20000000L
+    }
+
+    def "cache invalidations coalesced by PK and cleared for whole entity over threshold"() {
+        when:
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        EntityCache entityCache = efi.entityCache
+        EntityDefinition testEd = efi.getEntityDefinition("moqui.test.TestEntity")
+        EntityDefinition enumEd = efi.getEntityDefinition("moqui.basic.Enumeration")
+        Closure<EntityValueBase> testValue = { String testId -> (EntityValueBase) ec.entity.makeValue("moqui.test.TestEntity").set("testId", testId) }
+        Closure<EntityValueBase> enumValue = { String enumId -> (EntityValueBase) ec.entity.makeValue("moqui.basic.Enumeration").set("enumId", enumId) }
+
+        // without dci-batch-messages (the default) a message per record, over dci-batch-threshold clear all for the entity
+        def cis = new EntityCache.CacheInvalidateSynchronization(entityCache)
+        cis.addValue(enumEd, enumValue("CISTST1"), true)
+        cis.addValue(enumEd, enumValue("CISTST1"), false)
+        cis.addValue(enumEd, enumValue("CISTST2"), false)
+        for (int i = 0; i <= entityCache.dciBatchThreshold; i++) cis.addValue(testEd, testValue("CISTST" + i), false)
+        cis.addValue(testEd, testValue("CISTSTX"), false)
+        Map enumInvalidates = cis.invalidateByEntity.get("moqui.basic.Enumeration")
+
+        // with dci-batch-messages one batch of PKs for the transaction, written and read as when sent on the topic
+        def batch = new EntityCache.EntityCacheInvalidateBatch("otherServer")
+        batch.addValue(enumEd, enumValue("CISTST1"), 2)
+        batch.addValue(enumEd, enumValue("CISTST1"), 2)
+        for (int i = 1; i <= 3; i++) batch.addValue(testEd, testValue("CISTST" + i), 2)
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytesOut).withCloseable { it.writeObject(batch) }
+        def sentBatch = new ObjectInputStream(new ByteArrayInputStream(bytesOut.toByteArray())).withCloseable { it.readObject() }
+
+        then:
+        !entityCache.dciBatchMessages
+        cis.batch == null
+        enumInvalidates.size() == 2
+        enumInvalidates.get(["CISTST1"]).isCreate
+        !enumInvalidates.get(["CISTST2"]).isCreate
+        !cis.invalidateByEntity.containsKey("moqui.test.TestEntity")
+        cis.clearAllBatch.pkInvalidateByEntity.keySet() == ["moqui.test.TestEntity"] as Set
+        cis.clearAllBatch.pkInvalidateByEntity.get("moqui.test.TestEntity").isClearAll()
+        sentBatch.senderId == "otherServer"
+        sentBatch.pkInvalidateByEntity.get("moqui.basic.Enumeration").getPkMaps() == [[enumId:"CISTST1"]]
+        sentBatch.pkInvalidateByEntity.get("moqui.test.TestEntity").isClearAll()
+
+        when:
+        // batches from other servers clear local caches, those from this server were already applied when written
+        Closure<Boolean> isCached = { ((MCache) testEd.getCacheOne(entityCache)).getEntryList().any({ it.key.toString().contains("EXTST1") }) }
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "EXTST1").useCache(true).one()
+        boolean cachedBefore = isCached()
+        def ownBatch = new EntityCache.EntityCacheInvalidateBatch(entityCache.dciSenderId)
+        ownBatch.addValue(testEd, testValue("EXTST1"), 1000)
+        entityCache.receiveInvalidate(ownBatch)
+        boolean cachedAfterOwn = isCached()
+        def otherBatch = new EntityCache.EntityCacheInvalidateBatch("otherServer")
+        otherBatch.addValue(testEd, testValue("EXTST1"), 1000)
+        entityCache.receiveInvalidate(otherBatch)
+
+        then:
+        cachedBefore
+        cachedAfterOwn
+        !isCached()
+    }
 }
@@ -13,12 +13,29 @@
  */
 
 
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.service.ServiceDefinition
 import org.moqui.impl.service.ServiceFacadeImpl
+import org.moqui.impl.service.AsyncServiceQueue
+import org.moqui.impl.service.ScheduledJobRunner
+import org.moqui.impl.service.ServiceJobLeases
+import org.moqui.impl.service.ServiceSemaphoreLocks
 import org.moqui.service.ServiceCallback
+import org.moqui.service.ServiceException
 import spock.lang.*
 
+import java.sql.Timestamp
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.IntBinaryOperator
+
 import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityValue
 import org.moqui.Moqui
+import org.moqui.util.MNode
 
 class ServiceFacadeTests extends Specification {
     @Shared
@@ -44,4 +61,303 @@ class ServiceFacadeTests extends Specification {
         then:
         10 * scb.receiveEvent(null, null)
     }
+
+    def "async-max-concurrent limit enforced across service definition reload"() {
+        when:
+        def sfi = (ServiceFacadeImpl) ec.service
+        String serviceXml = '<service verb="run" noun="AsyncLimitTest" type="inline" async-max-concurrent="MAX"><actions><return/></actions></service>'
+        ServiceDefinition sd = new ServiceDefinition(sfi, "moqui.test", MNode.parseText(null, serviceXml.replace("MAX", "2")))
+        // like a reload of the definition after the service cache is cleared
+        ServiceDefinition reloadedSd = new ServiceDefinition(sfi, "moqui.test", MNode.parseText(null, serviceXml.replace("MAX", "2")))
+        AtomicInteger running = new AtomicInteger(0)
+        AtomicInteger maxRunning = new AtomicInteger(0)
+        // half use the limiter from each definition, as calls started before and after a reload would
+        List results = ConcurrentExecution.executeConcurrently(6, {
+            Semaphore limiter = Thread.currentThread().getId() % 2 == 0 ? sd.asyncLimiter : reloadedSd.asyncLimiter
+            limiter.acquire()
+            try {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), { int a, int b -> Math.max(a, b) } as IntBinaryOperator)
+                Thread.sleep(50)
+                running.decrementAndGet()
+            } finally {
+                limiter.release()
+            }
+        })
+        ServiceDefinition raisedSd = new ServiceDefinition(sfi, "moqui.test", MNode.parseText(null, serviceXml.replace("MAX", "3")))
+
+        then:
+        sd.asyncLimiter.is(reloadedSd.asyncLimiter)
+        results.every({ !(it instanceof Throwable) })
+        maxRunning.get() == 2
+        raisedSd.asyncLimiter.is(sd.asyncLimiter)
+        sd.asyncLimiter.availablePermits() == 3
+    }
+
+    def "local service semaphore waits, times out, and takes over stale locks"() {
+        when:
+        ServiceSemaphoreLocks locks = new ServiceSemaphoreLocks()
+        AtomicInteger running = new AtomicInteger(0)
+        AtomicInteger maxRunning = new AtomicInteger(0)
+        List results = ConcurrentExecution.executeConcurrently(4, {
+            def holder = locks.acquire("SemTest", "A", false, 10000L, 60000L, Thread.currentThread().getName())
+            try {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), { int a, int b -> Math.max(a, b) } as IntBinaryOperator)
+                Thread.sleep(20)
+                running.decrementAndGet()
+            } finally {
+                locks.release("SemTest", "A", holder)
+            }
+        })
+        boolean removedAfterRelease = locks.@lockByKey.isEmpty()
+
+        // other parameter values don't wait, the same one with semaphore=fail or past the timeout does
+        def heldHolder = locks.acquire("SemTest", "A", false, 1000L, 60000L, "held")
+        def otherHolder = locks.acquire("SemTest", "B", true, 1000L, 60000L, "other")
+        String failError = null
+        try { locks.acquire("SemTest", "A", true, 1000L, 60000L, "fail") } catch (ServiceException e) { failError = e.message }
+        long waitStart = System.currentTimeMillis()
+        String timeoutError = null
+        try { locks.acquire("SemTest", "A", false, 200L, 60000L, "timeout") } catch (ServiceException e) { timeoutError = e.message }
+        long waitTime = System.currentTimeMillis() - waitStart
+        locks.release("SemTest", "B", otherHolder)
+        locks.release("SemTest", "A", heldHolder)
+
+        // a lock held past semaphore-ignore is taken over, and release by the old holder does nothing
+        def staleHolder = locks.acquire("SemTest", "C", false, 1000L, 100L, "stale")
+        def takeoverHolder = locks.acquire("SemTest", "C", false, 1000L, 100L, "takeover")
+        locks.release("SemTest", "C", staleHolder)
+        String afterStaleError = null
+        try { locks.acquire("SemTest", "C", true, 1000L, 60000L, "afterStale") } catch (ServiceException e) { afterStaleError = e.message }
+        locks.release("SemTest", "C", takeoverHolder)
+        def afterReleaseHolder = locks.acquire("SemTest", "C", true, 1000L, 60000L, "afterRelease")
+        locks.release("SemTest", "C", afterReleaseHolder)
+
+        then:
+        results.every({ !(it instanceof Throwable) })
+        maxRunning.get() == 1
+        removedAfterRelease
+        otherHolder != null
+        failError?.contains("fail on semaphore conflict")
+        timeoutError?.contains("did not clear")
+        waitTime >= 200L
+        takeoverHolder.threadName == "takeover"
+        afterStaleError?.contains("takeover")
+        afterReleaseHolder != null
+        locks.@lockByKey.isEmpty()
+    }
+
+    def "persisted async call runs after commit and is deleted"() {
+        when:
+        boolean beganTransaction = ec.transaction.begin(null)
+        ec.service.async().name("create#moqui.test.TestEntity").parameters([testId:"ASYNCQ1", testMedium:"persisted"])
+                .persist(true).call()
+        long beforeCommit = ec.entity.find("moqui.test.TestEntity").condition("testId", "ASYNCQ1").count()
+        ec.transaction.commit(beganTransaction)
+        // succeeded calls are deleted on the next pass, flush here instead of waiting for it
+        long waitUntil = System.currentTimeMillis() + 10000
+        while (System.currentTimeMillis() < waitUntil && ec.entity.find("moqui.service.async.AsyncServiceCall")
+                .condition("serviceName", "create#moqui.test.TestEntity").count() > 0) {
+            Thread.sleep(50)
+            ((ServiceFacadeImpl) ec.service).asyncQueue.flushAcks()
+        }
+
+        then:
+        beforeCommit == 0
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "ASYNCQ1").one()?.testMedium == "persisted"
+        ec.entity.find("moqui.service.async.AsyncServiceCall").condition("serviceName", "create#moqui.test.TestEntity").count() == 0
+
+        cleanup:
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "ASYNCQ1").deleteAll()
+    }
+
+    def "persisted async calls claimed by only one of two servers racing"() {
+        // two servers simulated by two queues with different owners against the same database
+        ExecutionContextFactoryImpl ecfi = (ExecutionContextFactoryImpl) ec.factory
+        MNode serviceFacadeNode = MNode.parseText(null, '<service-facade><async-queue name="ClaimTestQueue" batch-size="3"/></service-facade>')
+        AsyncServiceQueue server1 = new AsyncServiceQueue(ecfi, serviceFacadeNode, "server1")
+        AsyncServiceQueue server2 = new AsyncServiceQueue(ecfi, serviceFacadeNode, "server2")
+        Timestamp pastTime = new Timestamp(System.currentTimeMillis() - 1000)
+        for (int i = 1; i <= 12; i++) ec.entity.makeValue("moqui.service.async.AsyncServiceCall").setAll([asyncCallId:"ASCCLM" + i,
+                queueName:(i <= 10 ? "ClaimTestQueue" : "OrphanTestQueue"), serviceName:"noop#AsyncClaimTest",
+                statusId:"AscPending", attemptCount:0L, nextAttemptTime:pastTime]).create()
+        AtomicInteger threadIndex = new AtomicInteger(0)
+        Closure raceClaim = {
+            AsyncServiceQueue server = threadIndex.getAndIncrement() % 2 == 0 ? server1 : server2
+            def threadEci = ecfi.getEci()
+            try {
+                List<String> claimedIds = []
+                List claimedList
+                while ((claimedList = server.claimBatch(server.getQueue("ClaimTestQueue"), 3, System.currentTimeMillis())).size() > 0)
+                    for (EntityValue claimed in claimedList) claimedIds.add(claimed.asyncCallId + ":" + claimed.claimOwner)
+                return claimedIds
+            } finally {
+                threadEci.destroy()
+            }
+        }
+
+        when:
+        List<String> claims = ConcurrentExecution.executeConcurrently(4, raceClaim).collectMany({ it instanceof List ? it : [it] })
+        Map<String, String> ownerById = claims.collectEntries({ String claim -> int idx = claim.indexOf(':'); [claim.substring(0, idx), claim.substring(idx + 1)] })
+        // a claim taken over by another server isn't changed by the server that had it
+        EntityValue takenOver = ec.entity.find("moqui.service.async.AsyncServiceCall").condition("asyncCallId", "ASCCLM1").one()
+        ec.entity.find("moqui.service.async.AsyncServiceCall").condition("asyncCallId", "ASCCLM1").updateAll([claimOwner:"server3:1"])
+        (ownerById.get("ASCCLM1").startsWith("server1") ? server1 : server2).updateCall(takenOver, [statusId:"AscDeadLetter"])
+        // queues with pending calls that aren't configured or used yet are found when polling
+        boolean orphanBefore = server1.queueByName.containsKey("OrphanTestQueue")
+        server1.addPendingQueues()
+
+        then:
+        claims.every({ it instanceof String })
+        claims.size() == ownerById.size()
+        ownerById.keySet().containsAll((1..10).collect({ "ASCCLM" + it }))
+        ownerById.every({ String id, String owner -> ec.entity.find("moqui.service.async.AsyncServiceCall")
+                .condition("asyncCallId", id).one().claimOwner == (id == "ASCCLM1" ? "server3:1" : owner) })
+        ec.entity.find("moqui.service.async.AsyncServiceCall").condition("asyncCallId", "ASCCLM1").one().statusId == "AscRunning"
+        !orphanBefore
+        server1.queueByName.containsKey("OrphanTestQueue")
+
+        cleanup:
+        ec.entity.find("moqui.service.async.AsyncServiceCall").condition("serviceName", "noop#AsyncClaimTest").deleteAll()
+    }
+
+    def "job lease claimed by only one of two servers racing, and reclaimed after it expires"() {
+        // two servers simulated by two lease owners against the same database, claiming on separate threads
+        ExecutionContextFactoryImpl ecfi = (ExecutionContextFactoryImpl) ec.factory
+        ServiceJobLeases server1 = new ServiceJobLeases(ecfi, "server1", 60000L)
+        ServiceJobLeases server2 = new ServiceJobLeases(ecfi, "server2", 60000L)
+        ec.entity.makeValue("moqui.service.job.ServiceJob")
+                .setAll([jobName:"LeaseTestJob", serviceName:"org.moqui.impl.ServiceServices.clean#ServiceJobRun"]).create()
+        AtomicInteger threadIndex = new AtomicInteger(0)
+        Closure raceClaim = {
+            ServiceJobLeases server = threadIndex.getAndIncrement() % 2 == 0 ? server1 : server2
+            def threadEci = ecfi.getEci()
+            try {
+                return server.claim("LeaseTestJob", server.findLock("LeaseTestJob"), new Timestamp(System.currentTimeMillis()))
+            } finally {
+                threadEci.destroy()
+            }
+        }
+
+        when:
+        // first claim with no lock record, then after each expired lease
+        List<List> roundResults = []
+        for (int round = 0; round < 5; round++) {
+            if (round > 0) ec.entity.find("moqui.service.job.ServiceJobRunLock").condition("jobName", "LeaseTestJob")
+                    .updateAll([leaseExpireTime:new Timestamp(System.currentTimeMillis() - 1000)])
+            roundResults.add(ConcurrentExecution.executeConcurrently(4, raceClaim))
+        }
+        EntityValue lock = server1.findLock("LeaseTestJob")
+        String lastRunId = (String) roundResults.last().find({ it instanceof String })
+        ServiceJobLeases lastOwner = lock.leaseOwner == "server1" ? server1 : server2
+        ServiceJobLeases otherServer = lastOwner.is(server1) ? server2 : server1
+
+        then:
+        roundResults.every({ List results -> !results.any({ it instanceof Throwable }) && results.count({ it != null }) == 1 })
+        lock.jobRunId == lastRunId
+        lastOwner.heartbeat() == 1
+        otherServer.heartbeat() == 0
+        !otherServer.leasedJobNames.contains("LeaseTestJob")
+        // runs of leases that expired were ended with an error
+        ec.entity.find("moqui.service.job.ServiceJobRun").condition("jobName", "LeaseTestJob").condition("hasError", "Y").count() == 4
+        lastOwner.release("LeaseTestJob", lastRunId, false, null)
+        server1.findLock("LeaseTestJob").leaseOwner == null
+
+        cleanup:
+        ec.entity.find("moqui.service.job.ServiceJobRunLock").condition("jobName", "LeaseTestJob").deleteAll()
+        ec.entity.find("moqui.service.job.ServiceJobRun").condition("jobName", "LeaseTestJob").deleteAll()
+        ec.entity.find("moqui.service.job.ServiceJob").condition("jobName", "LeaseTestJob").deleteAll()
+    }
+
+    def "scheduled job next run from cron, last run, and from/thru dates"() {
+        when:
+        ScheduledJobRunner runner = new ScheduledJobRunner((ExecutionContextFactoryImpl) ec.factory)
+        ZonedDateTime now = ZonedDateTime.of(2026, 3, 10, 12, 0, 0, 0, ZoneId.systemDefault())
+        long nowMillis = now.toInstant().toEpochMilli()
+        Closure<Long> millisAt = { int day, int hour -> ZonedDateTime.of(2026, 3, day, hour, 0, 0, 0, ZoneId.systemDefault()).toInstant().toEpochMilli() }
+        Closure makeJob = { Map fields -> ec.entity.makeValue("moqui.service.job.ServiceJob")
+                .setAll([jobName:"NextRunTestJob", cronExpression:"0 0 2 * * ?"] + fields) }
+        def neverRun = runner.makeSchedule(makeJob([:]), null, now)
+        def ranToday = runner.makeSchedule(makeJob([:]), new Timestamp(millisAt(10, 2) + 5000L), now)
+        def missedRun = runner.makeSchedule(makeJob([:]), new Timestamp(millisAt(9, 2) + 5000L), now)
+        def notYetFrom = runner.makeSchedule(makeJob([fromDate:new Timestamp(millisAt(20, 0))]), null, now)
+        def pastThru = runner.makeSchedule(makeJob([thruDate:new Timestamp(millisAt(10, 11))]), null, now)
+        def thruBeforeNext = runner.makeSchedule(makeJob([thruDate:new Timestamp(millisAt(11, 1))]), new Timestamp(millisAt(10, 2) + 5000L), now)
+        def paused = runner.makeSchedule(makeJob([paused:"Y"]), null, now)
+
+        then:
+        neverRun.nextRunMillis == nowMillis
+        ranToday.nextRunMillis == millisAt(11, 2)
+        missedRun.nextRunMillis == nowMillis
+        notYetFrom.nextRunMillis == millisAt(20, 2)
+        pastThru.nextRunMillis == 0L
+        thruBeforeNext.nextRunMillis == 0L
+        paused.paused
+        paused.nextRunMillis == 0L
+    }
+
+    def "changed scheduled job reloaded after commit by ServiceJob EECA"() {
+        // cron for a year far out so the job is never due and run
+        ServiceFacadeImpl sfi = (ServiceFacadeImpl) ec.service
+        ScheduledJobRunner runner = sfi.jobRunner
+        Closure<Timestamp> waitNextRunTime = { Timestamp notTime ->
+            long waitUntil = System.currentTimeMillis() + 10000L
+            Timestamp nextRunTime = runner.getNextRunTime("ReloadTestJob")
+            while (nextRunTime == notTime && System.currentTimeMillis() < waitUntil) {
+                Thread.sleep(50)
+                nextRunTime = runner.getNextRunTime("ReloadTestJob")
+            }
+            return nextRunTime
+        }
+
+        when:
+        boolean beganTransaction = ec.transaction.begin(null)
+        ec.entity.makeValue("moqui.service.job.ServiceJob").setAll([jobName:"ReloadTestJob",
+                serviceName:"org.moqui.impl.ServiceServices.clean#ServiceJobRun", cronExpression:"0 0 0 1 1 ? 2099"]).create()
+        boolean dirtyBeforeCommit = runner.dirtyJobNames.contains("ReloadTestJob")
+        ec.transaction.commit(beganTransaction)
+        Timestamp createdNextRun = waitNextRunTime(null)
+        ec.entity.makeValue("moqui.service.job.ServiceJob").setAll([jobName:"ReloadTestJob", cronExpression:"0 0 0 1 1 ? 2098"]).update()
+        Timestamp updatedNextRun = waitNextRunTime(createdNextRun)
+        ec.entity.makeValue("moqui.service.job.ServiceJob").set("jobName", "ReloadTestJob").delete()
+        Timestamp deletedNextRun = waitNextRunTime(updatedNextRun)
+
+        then:
+        runner != null
+        !dirtyBeforeCommit
+        createdNextRun?.toLocalDateTime()?.year == 2099
+        updatedNextRun?.toLocalDateTime()?.year == 2098
+        deletedNextRun == null
+
+        cleanup:
+        ec.entity.find("moqui.service.job.ServiceJob").condition("jobName", "ReloadTestJob").deleteAll()
+    }
+
+    def "scheduled job with lock held rescheduled at lock expiry when no next run"() {
+        // thruDate before the next cron time so there is no next run, only the lock expiry
+        long nowMillis = System.currentTimeMillis()
+        ec.entity.makeValue("moqui.service.job.ServiceJob").setAll([jobName:"LockHeldTestJob",
+                serviceName:"org.moqui.impl.ServiceServices.clean#ServiceJobRun", cronExpression:"0 0 0 1 1 ? 2099",
+                thruDate:new Timestamp(nowMillis + 3600000L)]).create()
+        Timestamp lastRunTime = new Timestamp(nowMillis - 60000L)
+        ec.entity.makeValue("moqui.service.job.ServiceJobRunLock").setAll([jobName:"LockHeldTestJob", jobRunId:"LockHeldTestRun",
+                lastRunTime:lastRunTime]).create()
+
+        when:
+        ExecutionContextFactoryImpl ecfi = (ExecutionContextFactoryImpl) ec.factory
+        ScheduledJobRunner runner = new ScheduledJobRunner(ecfi)
+        ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), ZoneId.systemDefault())
+        def js = runner.makeSchedule(ec.entity.find("moqui.service.job.ServiceJob").condition("jobName", "LockHeldTestJob").one(),
+                lastRunTime, now)
+        boolean ran = runner.runJob(ecfi.entityFacade, js, now, new Timestamp(nowMillis))
+
+        then:
+        ecfi.serviceFacade.jobLeases == null
+        !ran
+        js.nextRunMillis == lastRunTime.time + js.expireLockTime * 60000L + 1000L
+        ec.entity.find("moqui.service.job.ServiceJobRun").condition("jobName", "LockHeldTestJob").count() == 0
+
+        cleanup:
+        ec.entity.find("moqui.service.job.ServiceJobRunLock").condition("jobName", "LockHeldTestJob").deleteAll()
+        ec.entity.find("moqui.service.job.ServiceJob").condition("jobName", "LockHeldTestJob").deleteAll()
+    }
 }
@@ -17,6 +17,8 @@ import java.sql.Statement
 
 import org.moqui.Moqui
 import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityList
+import org.moqui.impl.context.TransactionFacadeImpl
 
 import spock.lang.Shared
 import spock.lang.Specification
@@ -160,4 +162,36 @@ class TransactionFacadeTests extends Specification {
         rawCon1 == rawCon2
         rawCon1 == rawCon3
     }
+
+    def "transaction cache flush registers group write"() {
+        when:
+        String groupName = ec.entity.getEntityGroupName("moqui.test.TestEntity")
+        TransactionFacadeImpl tfi = (TransactionFacadeImpl) ec.transaction
+        boolean hasWriteBefore, cacheActiveAfter, hasWriteAfter
+        EntityList flushedList
+        ec.artifactExecution.disableAuthz()
+        boolean beganTransaction = ec.transaction.begin(null)
+        try {
+            ec.transaction.initTransactionCache(false)
+            for (int i = 1; i <= 3; i++) ec.entity.makeValue("moqui.test.TestEntity")
+                    .setAll([testId:"TXCFL" + i, testMedium:"Flush " + i]).create()
+            hasWriteBefore = tfi.hasGroupWrite(groupName)
+            // writes are sent in a JDBC batch, then finds in the transaction go to the database
+            ec.transaction.flushAndDisableTransactionCache()
+            cacheActiveAfter = ec.transaction.isTransactionCacheActive()
+            // with read-clones EntityReadRouter routes finds to the primary for groups written in the transaction
+            hasWriteAfter = tfi.hasGroupWrite(groupName)
+            flushedList = ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "TXCFL%").list()
+            ec.entity.find("moqui.test.TestEntity").condition("testId", "like", "TXCFL%").deleteAll()
+        } finally {
+            ec.transaction.commit(beganTransaction)
+            ec.artifactExecution.enableAuthz()
+        }
+
+        then:
+        !hasWriteBefore
+        !cacheActiveAfter
+        hasWriteAfter
+        flushedList.size() == 3
+    }
 }
@@ -159,6 +159,10 @@ ${.node}
     <#elseif .node["use-iterator"]?has_content && !useCache>
         ${listName} = ${listName}_xafind.iterator()
     <#else>
+        <#if doPaginate && !useCache>
+        <#-- start the count so it runs at the same time as the list query, list() cancels it if less than a page -->
+        if (${listName}_xafind.getLimit() != null) ${listName}_xafind.countAsync(${sfiNode["@count-estimate"]!"false"})
+        </#if>
         ${listName} = ${listName}_xafind.list()
         <#if useCache>
             <#list .node["date-filter"] as df>
@@ -175,6 +179,8 @@ ${.node}
         </#if>
     </#if>
     <#if doPaginate>
+        <#-- always set, true only from an estimated count below, so a value from an earlier find isn't left in the context -->
+        ${listName}CountEstimated = false
         <#if !useCache>
             if (${listName}_xafind.getLimit() == null) {
                 ${listName}Count = ${listName}.size()
@@ -184,7 +190,11 @@ ${.node}
                 ${listName}PageIndex = ${listName}_xafind.getPageIndex()
                 ${listName}PageSize = ${listName}_xafind.getPageSize()
                 if (${listName}.size() < ${listName}PageSize) { ${listName}Count = ${listName}.size() + ${listName}PageIndex * ${listName}PageSize }
-                else { ${listName}Count = ${listName}_xafind.count() }
+                else {
+                    ${listName}Count = ${listName}_xafind.count()
+                    ${listName}CountEstimated = ${listName}_xafind.isCountEstimated()
+                    if (${listName}CountEstimated && ${listName}Count < ${listName}.size() + ${listName}PageIndex * ${listName}PageSize) ${listName}Count = ${listName}.size() + ${listName}PageIndex * ${listName}PageSize
+                }
             }
         </#if>
         ${listName}PageMaxIndex = ((BigDecimal) (${listName}Count - 1)).divide(${listName}PageSize ?: (${listName}Count - 1), 0, java.math.RoundingMode.DOWN) as int